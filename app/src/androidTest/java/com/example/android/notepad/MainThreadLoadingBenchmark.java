@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.Printer;
+
+/**
+ * Starts NotesList, NoteEditor and TitleEditor, and rotates each, and reports how long the
+ * main thread was busy handling messages meanwhile, in total and for the longest message.
+ * Next to it, reports how long the queries each activity used to make on the main thread take
+ * there, which is what starting and rotating it blocked the main thread for on top of the rest,
+ * and how many times the provider was queried for a single note. The editors' loaders reuse the
+ * note they read before a rotation, so rotating an editor should not query it again.
+ *
+ * Runs against the application's own provider, on notes it creates and deletes.
+ */
+@LargeTest
+public class MainThreadLoadingBenchmark extends InstrumentationTestCase {
+
+    // Tag for the benchmark results in the log.
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of notes in the list, and the number of words in the edited note.
+    private static final int LIST_NOTES = 2000;
+    private static final int NOTE_WORDS = 20000;
+
+    // The title the notes of the benchmark start with, by which they are deleted.
+    private static final String TITLE_PREFIX = "Loading benchmark ";
+
+    // How long to wait for the loads started by an activity to finish.
+    private static final long SETTLE_MILLIS = 500;
+
+    // The projections the activities read with.
+    private static final String[] LIST_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+    private static final String[] EDITOR_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_NOTE
+    };
+
+    private ContentResolver mResolver;
+
+    // The time the main thread spent handling messages since the recorder was last reset, and
+    // the longest message. Only touched on the main thread.
+    private long mBusyNanos;
+    private long mLongestNanos;
+    private long mMessageStart;
+
+    private final Printer mRecorder = new Printer() {
+        @Override
+        public void println(String x) {
+            // The looper logs ">>>>> Dispatching" before each message, and "<<<<< Finished"
+            // after it.
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (x.startsWith(">")) {
+                mMessageStart = now;
+            } else if (mMessageStart != 0) {
+                long nanos = now - mMessageStart;
+                mBusyNanos += nanos;
+                mLongestNanos = Math.max(mLongestNanos, nanos);
+                mMessageStart = 0;
+            }
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+        deleteNotes();
+        ContentValues[] notes = new ContentValues[LIST_NOTES];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, TITLE_PREFIX + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Note " + i);
+        }
+        mResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteNotes();
+        super.tearDown();
+    }
+
+    public void testStartAndRotate() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < NOTE_WORDS; i++) {
+            text.append("word").append(i % 100).append(i % 7 == 6 ? '\n' : ' ');
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, TITLE_PREFIX + "edited");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        Uri noteUri = mResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Intent list = new Intent(Intent.ACTION_VIEW, NotePad.Notes.CONTENT_URI);
+        list.setClass(getInstrumentation().getTargetContext(), NotesList.class);
+        measure("NotesList", list, timeQuery(NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "50").build(),
+                LIST_PROJECTION, NotePad.Notes.PAGED_SORT_ORDER));
+
+        Intent editor = new Intent(Intent.ACTION_EDIT, noteUri);
+        editor.setClass(getInstrumentation().getTargetContext(), NoteEditor.class);
+        // The editor also read the note's newest revision.
+        measure("NoteEditor", editor, timeQuery(noteUri, EDITOR_PROJECTION, null)
+                + timeQuery(NotePad.Revisions.getContentUri(ContentUris.parseId(noteUri)),
+                        new String[] { NotePad.Revisions.COLUMN_NAME_REVISION },
+                        NotePad.Revisions.DEFAULT_SORT_ORDER));
+
+        Intent title = new Intent(TitleEditor.EDIT_TITLE_ACTION, noteUri);
+        title.setClass(getInstrumentation().getTargetContext(), TitleEditor.class);
+        measure("TitleEditor", title, timeQuery(noteUri, EDITOR_PROJECTION, null));
+    }
+
+    /*
+     * Starts an activity, rotates it, and logs how long the main thread was busy for each,
+     * next to how long the queries the activity used to make on the main thread take there.
+     */
+    private void measure(String name, Intent intent, long syncQueryMicros) {
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        resetRecorder();
+        Looper.getMainLooper().setMessageLogging(mRecorder);
+        mResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_RESET, null, null);
+        final Activity activity;
+        try {
+            activity = getInstrumentation().startActivitySync(intent);
+            getInstrumentation().waitForIdleSync();
+            SystemClock.sleep(SETTLE_MILLIS);
+            getInstrumentation().waitForIdleSync();
+        } finally {
+            Looper.getMainLooper().setMessageLogging(null);
+        }
+        long[] start = takeRecorded();
+        long startLoads = countNoteQueries();
+
+        Instrumentation.ActivityMonitor monitor = getInstrumentation().addMonitor(
+                intent.getComponent().getClassName(), null, false);
+        resetRecorder();
+        Looper.getMainLooper().setMessageLogging(mRecorder);
+        mResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_RESET, null, null);
+        try {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    activity.setRequestedOrientation(
+                            ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
+                }
+            });
+            getInstrumentation().waitForIdleSync();
+            SystemClock.sleep(SETTLE_MILLIS);
+            getInstrumentation().waitForIdleSync();
+        } finally {
+            Looper.getMainLooper().setMessageLogging(null);
+        }
+        final Activity rotated = monitor.waitForActivityWithTimeout(SETTLE_MILLIS);
+        getInstrumentation().removeMonitor(monitor);
+        long[] rotation = takeRecorded();
+        long rotationLoads = countNoteQueries();
+
+        Log.i(TAG, "loading activity=" + name
+                + " syncQuery=" + syncQueryMicros + "us"
+                + " startBusy=" + start[0] / 1000 + "us"
+                + " startLongest=" + start[1] / 1000 + "us"
+                + " startLoads=" + startLoads
+                + " rotationBusy=" + rotation[0] / 1000 + "us"
+                + " rotationLongest=" + rotation[1] / 1000 + "us"
+                + " rotationLoads=" + rotationLoads);
+
+        // Finishes the instance of the activity that replaced the rotated one.
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Activity showing = rotated != null ? rotated : activity;
+                showing.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
+                showing.finish();
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+    }
+
+    /*
+     * Returns how many times the provider has been queried for a single note since its metrics
+     * were reset.
+     */
+    private long countNoteQueries() {
+        Bundle metrics = mResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_GET,
+                null, null);
+        long[] queries = metrics.getLongArray("query notes/#");
+        return queries == null ? 0 : queries[NotePad.Metrics.INDEX_COUNT];
+    }
+
+    /*
+     * Returns how long a query takes on the main thread, in microseconds, reading every row.
+     */
+    private long timeQuery(final Uri uri, final String[] projection, final String sortOrder) {
+        final long[] nanos = new long[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Cursor cursor = mResolver.query(uri, projection, null, null, sortOrder);
+                if (cursor != null) {
+                    while (cursor.moveToNext()) {
+                        cursor.getString(projection.length - 1);
+                    }
+                    cursor.close();
+                }
+                nanos[0] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+        });
+        return nanos[0] / 1000;
+    }
+
+    private void resetRecorder() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mBusyNanos = 0;
+                mLongestNanos = 0;
+                mMessageStart = 0;
+            }
+        });
+    }
+
+    // Returns the time the main thread was busy, and the longest message, since the reset.
+    private long[] takeRecorded() {
+        final long[] recorded = new long[2];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recorded[0] = mBusyNanos;
+                recorded[1] = mLongestNanos;
+            }
+        });
+        return recorded;
+    }
+
+    private void deleteNotes() {
+        mResolver.delete(NotePad.Notes.CONTENT_URI, NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?",
+                new String[] { TITLE_PREFIX + "%" });
+    }
+}
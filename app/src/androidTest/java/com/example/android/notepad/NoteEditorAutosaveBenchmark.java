@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.widget.EditText;
+
+/**
+ * Opens and leaves a note in {@link NoteEditor} following a script of typical visits, and
+ * reports how many saves the editor performed and skipped, counted from the provider's updates
+ * of the note, and how many change notifications, each of which makes NotesList query the notes
+ * again, reached observers. Before the editor tracked its changes, every visit saved the note
+ * and sent a notification.
+ *
+ * Also reports the average time the main thread spent pausing the editor, from the start of
+ * onPause() until the main thread was free again, now that saves are queued by
+ * {@link NoteSaveQueue}, next to the time a synchronous update of the same note takes on the
+ * main thread, which is what onPause() used to spend on every save.
+ *
+ * Runs against the application's own provider, on a note it creates and deletes.
+ */
+@LargeTest
+public class NoteEditorAutosaveBenchmark extends InstrumentationTestCase {
+
+    // Tag for the benchmark results in the log.
+    private static final String TAG = "NotePadBenchmark";
+
+    // The visits of the script: most only read the note, some edit it, and some edit it and
+    // then undo the edit by hand.
+    private static final int READ_VISITS = 60;
+    private static final int EDIT_VISITS = 20;
+    private static final int UNDONE_VISITS = 20;
+
+    // How long to wait for the last change notifications to arrive.
+    private static final long NOTIFICATION_SETTLE_MILLIS = 500;
+
+    public void testOpenCloseWorkload() throws Exception {
+        ContentResolver resolver = getInstrumentation().getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Autosave benchmark");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Autosave benchmark note");
+        Uri noteUri = resolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        final int[] notifications = new int[1];
+        ContentObserver observer = new ContentObserver(new Handler(thread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                synchronized (notifications) {
+                    notifications[0]++;
+                }
+            }
+        };
+        resolver.registerContentObserver(NotePad.Notes.CONTENT_URI, true, observer);
+
+        Application application =
+                (Application) getInstrumentation().getTargetContext().getApplicationContext();
+        PauseTimer pauses = new PauseTimer();
+        application.registerActivityLifecycleCallbacks(pauses);
+        resolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_RESET, null, null);
+        int visits = 0;
+        long performed;
+        try {
+            for (int i = 0; i < READ_VISITS; i++) {
+                visit(noteUri, null, false);
+                visits++;
+            }
+            for (int i = 0; i < EDIT_VISITS; i++) {
+                visit(noteUri, " edit " + i, false);
+                visits++;
+            }
+            for (int i = 0; i < UNDONE_VISITS; i++) {
+                visit(noteUri, " undone", true);
+                visits++;
+            }
+            SystemClock.sleep(NOTIFICATION_SETTLE_MILLIS);
+            performed = countNoteUpdates(resolver);
+        } finally {
+            application.unregisterActivityLifecycleCallbacks(pauses);
+            resolver.unregisterContentObserver(observer);
+            thread.quit();
+            resolver.delete(noteUri, null, null);
+        }
+
+        long skipped = visits - performed;
+        long pauseMicros = pauses.getAverageMicros();
+        long syncUpdateMicros = timeSynchronousUpdate(resolver);
+        synchronized (notifications) {
+            Log.i(TAG, "autosave visits=" + visits
+                    + " onPauseSyncUpdate=" + syncUpdateMicros + "us"
+                    + " onPauseQueued=" + pauseMicros + "us"
+                    + " savesBefore=" + visits
+                    + " savesPerformed=" + performed
+                    + " savesSkipped=" + skipped
+                    + " listRequeriesBefore=" + visits
+                    + " listRequeries=" + notifications[0]);
+        }
+        assertEquals(visits, pauses.getCount());
+        assertEquals(EDIT_VISITS, performed);
+    }
+
+    /*
+     * Returns how many times the provider has updated a single note since its metrics were
+     * reset.
+     */
+    private static long countNoteUpdates(ContentResolver resolver) {
+        Bundle metrics = resolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_GET,
+                null, null);
+        long[] updates = metrics.getLongArray("update notes/#");
+        return updates == null ? 0 : updates[NotePad.Metrics.INDEX_COUNT];
+    }
+
+    /*
+     * Times the pauses of NoteEditor on the main thread. Activity.onPause() reports the pause
+     * when NoteEditor calls it, first thing in its own onPause(), and the time runs until the
+     * main thread takes up its next message.
+     */
+    private static final class PauseTimer implements Application.ActivityLifecycleCallbacks {
+
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        private long mNanos;
+        private int mCount;
+
+        synchronized int getCount() {
+            return mCount;
+        }
+
+        synchronized long getAverageMicros() {
+            return mNanos / Math.max(1, mCount) / 1000;
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+            if (!(activity instanceof NoteEditor)) {
+                return;
+            }
+            final long start = SystemClock.elapsedRealtimeNanos();
+            mMainHandler.postAtFrontOfQueue(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (PauseTimer.this) {
+                        mNanos += SystemClock.elapsedRealtimeNanos() - start;
+                        mCount++;
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+
+    /*
+     * Returns the average time, in microseconds, that updating a note synchronously takes on
+     * the main thread. The note is created and deleted here, so the other counters do not see
+     * its updates.
+     */
+    private long timeSynchronousUpdate(final ContentResolver resolver) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Synchronous update");
+        final Uri noteUri = resolver.insert(NotePad.Notes.CONTENT_URI, values);
+        final long[] nanos = new long[1];
+        try {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    ContentValues update = new ContentValues();
+                    for (int i = 0; i < EDIT_VISITS; i++) {
+                        update.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                                System.currentTimeMillis());
+                        update.put(NotePad.Notes.COLUMN_NAME_NOTE, "Synchronous update " + i);
+                        long start = SystemClock.elapsedRealtimeNanos();
+                        resolver.update(noteUri, update, null, null);
+                        nanos[0] += SystemClock.elapsedRealtimeNanos() - start;
+                    }
+                }
+            });
+        } finally {
+            resolver.delete(noteUri, null, null);
+        }
+        return nanos[0] / EDIT_VISITS / 1000;
+    }
+
+    /*
+     * Opens the note in the editor, optionally appends text to it, optionally deletes that
+     * text again, and leaves the editor, waiting until its save, if any, has been written so
+     * that the provider sees one update for every save.
+     */
+    private void visit(Uri noteUri, final String append, final boolean undo)
+            throws InterruptedException {
+        Intent intent = new Intent(Intent.ACTION_EDIT, noteUri);
+        intent.setClass(getInstrumentation().getTargetContext(), NoteEditor.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        final Activity editor = getInstrumentation().startActivitySync(intent);
+        getInstrumentation().waitForIdleSync();
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                EditText text = (EditText) editor.findViewById(R.id.note);
+                if (append != null) {
+                    int length = text.length();
+                    text.append(append);
+                    if (undo) {
+                        text.getText().delete(length, text.length());
+                    }
+                }
+                editor.finish();
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+        NoteSaveQueue.getInstance(getInstrumentation().getTargetContext()).flushAndWait(
+                NOTIFICATION_SETTLE_MILLIS);
+    }
+}
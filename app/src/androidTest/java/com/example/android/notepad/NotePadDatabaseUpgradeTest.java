@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+/**
+ * This class tests the database migrations in {@link NotePadProvider.DatabaseHelper}. Each test
+ * builds a fixture database in memory at an old version, upgrades it, and checks that the
+ * schema changed as expected and the notes survived.
+ */
+public class NotePadDatabaseUpgradeTest extends AndroidTestCase {
+
+    // The number of notes in each fixture database.
+    private static final int FIXTURE_NOTES = 25;
+
+    // Contains the fixture database under test.
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    /*
+     * Tests the step that adds the search table. The notes that were already in the database
+     * must be searchable afterwards.
+     */
+    public void testUpgradeToVersion3() {
+        createFixture(2);
+
+        NotePadProvider.DatabaseHelper.upgradeToVersion3(mDb);
+
+        Cursor c = mDb.rawQuery("SELECT docid FROM " + NotePadProvider.SEARCH_TABLE_NAME
+                + " WHERE " + NotePadProvider.SEARCH_TABLE_NAME + " MATCH ?",
+                new String[] { "fixture*" });
+        assertEquals(FIXTURE_NOTES, c.getCount());
+        c.close();
+    }
+
+    /*
+     * Tests the step that adds the color column. Existing notes get the default color.
+     */
+    public void testUpgradeToVersion4() {
+        createFixture(3);
+
+        NotePadProvider.DatabaseHelper.upgradeToVersion4(mDb);
+
+        assertTrue(columnsOf(NotePad.Notes.TABLE_NAME).contains(
+                NotePad.Notes.COLUMN_NAME_BACK_COLOR));
+        Cursor c = mDb.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_BACK_COLOR }, null, null, null, null,
+                null);
+        assertEquals(FIXTURE_NOTES, c.getCount());
+        while (c.moveToNext()) {
+            assertEquals(NotePad.Notes.DEFAULT_COLOR, c.getInt(0));
+        }
+        c.close();
+    }
+
+    /*
+     * Tests the step that converts text modification dates to milliseconds and adds the
+     * covering index for the default sort order.
+     */
+    public void testUpgradeToVersion5() {
+        createFixture(4);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, "10-01-02 03:04:05");
+        mDb.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = 1", null);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, "not a date");
+        mDb.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = 2", null);
+
+        NotePadProvider.DatabaseHelper.upgradeToVersion5(mDb);
+
+        Cursor c = mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                "typeof(" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ")",
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE
+        }, null, null, null, null, NotePad.Notes._ID);
+        assertEquals(FIXTURE_NOTES, c.getCount());
+        while (c.moveToNext()) {
+            assertEquals("integer", c.getString(0));
+        }
+        assertTrue(c.moveToPosition(0));
+        assertEquals(new GregorianCalendar(2010, Calendar.JANUARY, 2, 3, 4, 5).getTimeInMillis(),
+                c.getLong(1));
+        // An unreadable date falls back to the creation date.
+        assertTrue(c.moveToPosition(1));
+        assertEquals(c.getLong(2), c.getLong(1));
+        c.close();
+
+        c = mDb.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                new String[] { NotePadProvider.MODIFIED_INDEX_NAME });
+        assertEquals(1, c.getCount());
+        c.close();
+    }
+
+    /*
+     * Tests the step that adds the chunks table. Existing notes are left unchunked.
+     */
+    public void testUpgradeToVersion6() {
+        createFixture(5);
+
+        NotePadProvider.DatabaseHelper.upgradeToVersion6(mDb);
+
+        assertTrue(columnsOf(NoteChunks.TABLE_NAME).contains(NoteChunks.COLUMN_BODY));
+        Cursor c = mDb.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NoteChunks.COLUMN_CHUNKED }, null, null, null, null, null);
+        assertEquals(FIXTURE_NOTES, c.getCount());
+        while (c.moveToNext()) {
+            assertEquals(0, c.getInt(0));
+        }
+        c.close();
+    }
+
+    /*
+     * Tests that version 7 records the current text of every note as its first revision.
+     */
+    public void testUpgradeToVersion7() {
+        createFixture(6);
+
+        NotePadProvider.DatabaseHelper.upgradeToVersion7(mDb);
+
+        Cursor c = mDb.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                null, null, null, null, NotePad.Notes._ID);
+        assertEquals(FIXTURE_NOTES, c.getCount());
+        for (int i = 0; c.moveToNext(); i++) {
+            assertEquals("Fixture body " + i, NoteRevisions.read(mDb, c.getLong(0), 1));
+            assertNull(NoteRevisions.read(mDb, c.getLong(0), 2));
+        }
+        c.close();
+    }
+
+    /*
+     * Tests that version 8 fills in the columns derived from the text of every note, and that
+     * the covering index for the default sort order includes them.
+     */
+    public void testUpgradeToVersion8() {
+        createFixture(7);
+
+        NotePadProvider.DatabaseHelper.upgradeToVersion8(mDb);
+
+        Cursor c = mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                NotePad.Notes.COLUMN_NAME_PREVIEW,
+                NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+                NotePad.Notes.COLUMN_NAME_LINE_COUNT
+        }, null, null, null, null, NotePad.Notes._ID);
+        assertEquals(FIXTURE_NOTES, c.getCount());
+        for (int i = 0; c.moveToNext(); i++) {
+            assertEquals("Fixture body " + i, c.getString(0));
+            assertEquals(("Fixture body " + i).length(), c.getInt(1));
+            assertEquals(1, c.getInt(2));
+        }
+        c.close();
+
+        c = mDb.rawQuery("PRAGMA index_info(" + NotePadProvider.MODIFIED_INDEX_NAME + ")", null);
+        List<String> columns = new ArrayList<String>();
+        while (c.moveToNext()) {
+            columns.add(c.getString(c.getColumnIndex("name")));
+        }
+        c.close();
+        assertTrue(columns.toString(), columns.contains(NotePad.Notes.COLUMN_NAME_PREVIEW));
+        assertTrue(columns.toString(), columns.contains(NotePad.Notes.COLUMN_NAME_LINE_COUNT));
+    }
+
+    /*
+     * Upgrades a fixture database at the oldest supported version through every version, and
+     * checks that it ends up with the same schema as a newly created database, with every note
+     * intact.
+     */
+    public void testUpgradeThroughEveryVersion() {
+        createFixture(NotePadProvider.BASE_DATABASE_VERSION);
+
+        new NotePadProvider.DatabaseHelper(getContext()).onUpgrade(mDb,
+                NotePadProvider.BASE_DATABASE_VERSION, NotePadProvider.DATABASE_VERSION);
+
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        try {
+            new NotePadProvider.DatabaseHelper(getContext()).onCreate(fresh);
+            assertEquals(schemaOf(fresh), schemaOf(mDb));
+        } finally {
+            fresh.close();
+        }
+
+        Cursor c = mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE
+        }, null, null, null, null, NotePad.Notes._ID);
+        assertEquals(FIXTURE_NOTES, c.getCount());
+        for (int i = 0; c.moveToNext(); i++) {
+            assertEquals("Fixture " + i, c.getString(1));
+            assertEquals("Fixture body " + i, c.getString(2));
+        }
+        c.close();
+    }
+
+    /*
+     * Tests that asking for a version with no migration fails instead of silently leaving the
+     * database behind.
+     */
+    public void testMissingMigration() {
+        createFixture(NotePadProvider.DATABASE_VERSION);
+        try {
+            NotePadProvider.DatabaseHelper.upgrade(mDb, NotePadProvider.DATABASE_VERSION,
+                    NotePadProvider.DATABASE_VERSION + 1);
+            fail("Expected an upgrade past the latest version to fail");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    /*
+     * Builds a fixture database at the given version, holding FIXTURE_NOTES notes. The notes
+     * are written with the columns of the oldest schema, so the same rows work at any version.
+     */
+    private void createFixture(int version) {
+        NotePadProvider.DatabaseHelper.createBaseSchema(mDb);
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < FIXTURE_NOTES; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Fixture " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Fixture body " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, 1262304000000L + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1262304000000L + i);
+            mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values);
+        }
+        NotePadProvider.DatabaseHelper.upgrade(mDb, NotePadProvider.BASE_DATABASE_VERSION,
+                version);
+        mDb.setVersion(version);
+    }
+
+    // Returns the names of the columns of a table.
+    private List<String> columnsOf(String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor c = mDb.rawQuery("PRAGMA table_info(" + table + ")", null);
+        while (c.moveToNext()) {
+            columns.add(c.getString(c.getColumnIndex("name")));
+        }
+        c.close();
+        return columns;
+    }
+
+    // Returns the SQL of every table, index and trigger in a database, in a stable order.
+    private static List<String> schemaOf(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        Cursor c = db.rawQuery("SELECT type, name, sql FROM sqlite_master"
+                + " WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'"
+                + " ORDER BY type, name", null);
+        while (c.moveToNext()) {
+            schema.add(c.getString(0) + " " + c.getString(1) + " " + c.getString(2));
+        }
+        c.close();
+        return schema;
+    }
+}
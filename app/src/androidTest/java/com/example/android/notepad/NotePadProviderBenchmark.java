@@ -0,0 +1,1432 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ClipDescription;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the performance of the Note Pad content provider against large generated
+ * databases. Results are written to the log under the "NotePadBenchmark" tag rather than
+ * asserted, since they depend on the device.
+ *
+ * These tests are annotated as large tests, so they can be run on their own with
+ * "adb shell am instrument -w -e size large ...", and skipped otherwise.
+ */
+@LargeTest
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    // Tag for the benchmark results in the log.
+    private static final String TAG = "NotePadBenchmark";
+
+    // The database sizes the benchmarks are run against.
+    private static final int[] NOTE_COUNTS = { 10000, 100000 };
+
+    // The longest an upgrade of the largest database through every version may take.
+    private static final long UPGRADE_BUDGET_MILLIS = 30000;
+
+    // The number of times each measured query is repeated.
+    private static final int QUERY_REPEATS = 20;
+
+    // The number of threads reading while a writer saves notes in the stress test.
+    private static final int READER_THREADS = 4;
+
+    // How long each configuration of the stress test runs.
+    private static final long STRESS_MILLIS = 10000;
+
+    // The size of the notes database the export benchmark fills, in bytes of note contents.
+    private static final long EXPORT_DATABASE_BYTES = 500L * 1024 * 1024;
+
+    // The number of words in each note of the export benchmark, about 8kB of contents.
+    private static final int EXPORT_NOTE_WORDS = 1200;
+
+    // The number of notes in the compression benchmark's corpus.
+    private static final int CORPUS_NOTES = 2000;
+
+    // The size of the note edited by the chunked save benchmark, in characters.
+    private static final int LARGE_NOTE_CHARS = 2 * 1024 * 1024;
+
+    // The number of saves of one note in the revision history benchmark.
+    private static final int REVISION_COUNT = 500;
+
+    // The number of words in the note of the revision history benchmark, about 12kB of text.
+    private static final int REVISION_NOTE_WORDS = 2000;
+
+    // The number of times the editor resume benchmark reopens each note.
+    private static final int RESUME_REPEATS = 200;
+
+    // The number of operations recorded by each thread of the metrics overhead benchmark.
+    private static final int METRICS_RECORDS = 1000000;
+
+    // The most that recording one operation in the provider's metrics may cost.
+    private static final long METRICS_BUDGET_NANOS = 500;
+
+    // The number of list rows the date formatting benchmark renders, and how far apart their
+    // dates are, so that they span the relative and the full forms.
+    private static final int DATE_ROWS = 500;
+    private static final long DATE_ROW_SPACING_MILLIS = 17 * 60 * 1000;
+
+    // The frame budget at 60 frames a second, which work on the UI thread must stay well under.
+    private static final long FRAME_BUDGET_NANOS = 16666667;
+
+    // How far apart the modification dates of the notes of the section index benchmark are,
+    // so that the largest database spans several hundred months.
+    private static final long SECTION_NOTE_SPACING_MILLIS = 6 * 60 * 60 * 1000;
+
+    // The projection NoteEditor reads a note with.
+    private static final String[] EDITOR_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_NOTE
+    };
+
+    // Words the generated notes are built from.
+    private static final String[] WORDS = {
+        "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel", "india",
+        "juliet", "kilo", "lima", "mike", "november", "oscar", "papa", "quebec", "romeo",
+        "sierra", "tango", "uniform", "victor", "whiskey", "xray", "yankee", "zulu",
+        "笔记", "会议", "超市", "牛奶", "项目", "计划"
+    };
+
+    // The projection used by the list and search screens.
+    private static final String[] LIST_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    // Contains a reference to the mocked content resolver for the provider under test.
+    private MockContentResolver mMockResolver;
+
+    // Contains the database underlying the provider under test.
+    private SQLiteDatabase mDb;
+
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * Compares the latency of the old LIKE '%q%' search with the full-text search URI.
+     */
+    public void testSearchLatency() {
+        for (int count : NOTE_COUNTS) {
+            fillDatabase(count);
+
+            for (String query : new String[] { "oscar", "超市", "tango lima" }) {
+                long likeNanos = timeLikeSearch(query);
+                long ftsNanos = timeFtsSearch(query);
+                Log.i(TAG, "search notes=" + count + " query=\"" + query + "\""
+                        + " like=" + likeNanos / 1000 + "us"
+                        + " fts=" + ftsNanos / 1000 + "us");
+            }
+        }
+    }
+
+    /*
+     * Compares the throughput of inserting notes one call at a time with bulkInsert() and
+     * applyBatch(), which use a single transaction and a single change notification.
+     */
+    public void testBatchInsertThroughput() throws Exception {
+        for (int count : new int[] { 100, 1000, 10000 }) {
+            ContentValues[] values = new ContentValues[count];
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>(count);
+            for (int i = 0; i < count; i++) {
+                values[i] = new ContentValues();
+                values[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+                values[i].put(NotePad.Notes.COLUMN_NAME_NOTE, generateBody(i, 40));
+                operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                        .withValues(values[i])
+                        .withYieldAllowed(i % 100 == 0)
+                        .build());
+            }
+
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (ContentValues value : values) {
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, value);
+            }
+            long singleNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            start = SystemClock.elapsedRealtimeNanos();
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+            long bulkNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            start = SystemClock.elapsedRealtimeNanos();
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            long batchNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            Log.i(TAG, "insert rows=" + count
+                    + " single=" + rowsPerSecond(count, singleNanos) + "rows/s"
+                    + " bulkInsert=" + rowsPerSecond(count, bulkNanos) + "rows/s"
+                    + " applyBatch=" + rowsPerSecond(count, batchNanos) + "rows/s");
+        }
+    }
+
+    /*
+     * Compares loading the whole notes list, as NotesList used to, with loading its first page,
+     * and a page deep into the list. Reports the latency and the growth of the process's
+     * proportional set size while the cursor is held open.
+     */
+    public void testFirstPageLatency() {
+        for (int count : new int[] { 1000, 10000, 100000 }) {
+            fillDatabase(count);
+
+            Uri firstPage = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "50")
+                    .build();
+            // Starts after the note in the middle of the list; fillDatabase() spaces the
+            // modification dates one second apart, newest first.
+            Cursor middle = mDb.query(NotePad.Notes.TABLE_NAME, LIST_PROJECTION, null, null,
+                    null, null, NotePad.Notes.PAGED_SORT_ORDER, (count / 2) + ",1");
+            assertTrue(middle.moveToFirst());
+            Uri deepPage = firstPage.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_MODIFIED,
+                            Long.toString(middle.getLong(2)))
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_ID,
+                            Long.toString(middle.getLong(0)))
+                    .build();
+            middle.close();
+
+            Log.i(TAG, "list notes=" + count
+                    + " full=" + timeListQuery(NotePad.Notes.CONTENT_URI, null)
+                    + " firstPage=" + timeListQuery(firstPage, NotePad.Notes.PAGED_SORT_ORDER)
+                    + " deepPage=" + timeListQuery(deepPage, NotePad.Notes.PAGED_SORT_ORDER));
+        }
+    }
+
+    /*
+     * Measures the latency of list queries from several threads while another thread keeps
+     * saving notes, first with a rollback journal and then with the write-ahead log the
+     * provider uses. Reports the read latency percentiles for each.
+     */
+    public void testReadLatencyUnderWriteLoad() throws Exception {
+        fillDatabase(NOTE_COUNTS[0]);
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        try {
+            for (boolean wal : new boolean[] { false, true }) {
+                helper.setWriteAheadLoggingEnabled(wal);
+                long[] latencies = readUnderWriteLoad();
+                Arrays.sort(latencies);
+                Log.i(TAG, "reads under writes journal=" + (wal ? "wal" : "rollback")
+                        + " reads=" + latencies.length
+                        + " p50=" + percentile(latencies, 50) / 1000 + "us"
+                        + " p90=" + percentile(latencies, 90) / 1000 + "us"
+                        + " p99=" + percentile(latencies, 99) / 1000 + "us"
+                        + " max=" + latencies[latencies.length - 1] / 1000 + "us");
+            }
+        } finally {
+            helper.setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /*
+     * Exports a notes database of about EXPORT_DATABASE_BYTES through the notes URI, as plain
+     * text and as line-delimited JSON. Reports the throughput, and the peak growth of the Java
+     * and native heaps while the export runs, which should stay flat however many notes there
+     * are.
+     */
+    public void testExportThroughput() throws IOException {
+        int noteBytes = generateBody(0, EXPORT_NOTE_WORDS).length();
+        fillDatabase((int) (EXPORT_DATABASE_BYTES / noteBytes), EXPORT_NOTE_WORDS);
+
+        byte[] buffer = new byte[64 * 1024];
+        for (String mimeType : new String[] {
+                ClipDescription.MIMETYPE_TEXT_PLAIN, NotePad.Notes.EXPORT_JSON_TYPE }) {
+            Runtime runtime = Runtime.getRuntime();
+            runtime.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long nativeBefore = Debug.getNativeHeapAllocatedSize();
+            long peakHeap = 0;
+            long peakNative = 0;
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                    NotePad.Notes.CONTENT_URI, mimeType, null);
+            InputStream in = descriptor.createInputStream();
+            long bytes = 0;
+            try {
+                for (int read; (read = in.read(buffer)) != -1; ) {
+                    bytes += read;
+                    // Samples the heaps about once a megabyte.
+                    if ((bytes & 0xFFFFF) < read) {
+                        peakHeap = Math.max(peakHeap,
+                                runtime.totalMemory() - runtime.freeMemory() - heapBefore);
+                        peakNative = Math.max(peakNative,
+                                Debug.getNativeHeapAllocatedSize() - nativeBefore);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            long nanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            Log.i(TAG, "export type=" + mimeType + " bytes=" + bytes
+                    + " time=" + nanos / 1000000 + "ms"
+                    + " throughput=" + bytes * 1000 / Math.max(1, nanos) + "MB/s"
+                    + " peakHeap=" + peakHeap / 1024 + "kB"
+                    + " peakNative=" + peakNative / 1024 + "kB");
+        }
+    }
+
+    /*
+     * Compares storing a corpus of short notes, pasted logs and long documents as raw text with
+     * storing it through the provider, which compresses the long notes. Reports the size of the
+     * note column and of the database, the median cost of writing and of reading a note, and
+     * the median time spent compressing and expanding one.
+     */
+    public void testCompressionStorage() {
+        String[] corpus = new String[CORPUS_NOTES];
+        for (int i = 0; i < corpus.length; i++) {
+            corpus[i] = generateCorpusNote(i);
+        }
+
+        for (boolean compressed : new boolean[] { false, true }) {
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            mDb.execSQL("VACUUM");
+
+            long[] writes = new long[corpus.length];
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < corpus.length; i++) {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Corpus " + i);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, corpus[i]);
+                long start = SystemClock.elapsedRealtimeNanos();
+                if (compressed) {
+                    mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+                } else {
+                    // Stores the text as the provider did before notes were compressed.
+                    mDb.insert(NotePad.Notes.TABLE_NAME, null, values);
+                }
+                writes[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+
+            long[] reads = new long[corpus.length];
+            for (int i = 0; i < corpus.length; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Cursor c = mMockResolver.query(ContentUris.withAppendedId(
+                        NotePad.Notes.CONTENT_ID_URI_BASE, i + 1),
+                        new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+                assertTrue(c.moveToFirst());
+                c.getString(0);
+                c.close();
+                reads[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+
+            mDb.execSQL("VACUUM");
+            Cursor size = mDb.rawQuery("SELECT sum(length(" + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ")) FROM " + NotePad.Notes.TABLE_NAME, null);
+            assertTrue(size.moveToFirst());
+            long columnBytes = size.getLong(0);
+            size.close();
+            long databaseBytes = DatabaseUtils.longForQuery(mDb, "PRAGMA page_count", null)
+                    * DatabaseUtils.longForQuery(mDb, "PRAGMA page_size", null);
+
+            Log.i(TAG, "storage compressed=" + compressed + " notes=" + corpus.length
+                    + " noteColumn=" + columnBytes / 1024 + "kB"
+                    + " database=" + databaseBytes / 1024 + "kB"
+                    + " write=" + median(writes) / 1000 + "us"
+                    + " read=" + median(reads) / 1000 + "us");
+        }
+
+        long[] compressTimes = new long[corpus.length];
+        long[] expandTimes = new long[corpus.length];
+        for (int i = 0; i < corpus.length; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            byte[] stored = NoteCompression.compress(corpus[i]);
+            compressTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+            if (stored != null) {
+                start = SystemClock.elapsedRealtimeNanos();
+                NoteCompression.decompress(stored);
+                expandTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+        }
+        Log.i(TAG, "compression compress=" + median(compressTimes) / 1000 + "us"
+                + " expand=" + median(expandTimes) / 1000 + "us");
+    }
+
+    /*
+     * Saves edits of increasing size to a 2M character note, the way NoteEditor saves it, by
+     * updating the whole text. Reports the median save latency, how many characters of chunks
+     * each save wrote, against the whole note that was rewritten before notes were stored as
+     * chunks, and how many bytes each save wrote to the database files in all, which includes
+     * the search table row and the revision.
+     */
+    public void testChunkedSaveLatency() {
+        String note = generateBody(0, LARGE_NOTE_CHARS / 6);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.remove(NotePad.Notes.COLUMN_NAME_TITLE);
+
+        for (int editChars : new int[] { 1, 100, 10000, 1000000 }) {
+            long[] times = new long[QUERY_REPEATS];
+            long written = 0;
+            long bytesWritten = 0;
+            for (int i = 0; i < times.length; i++) {
+                // Replaces editChars characters at a different place each time.
+                int at = (int) ((long) (note.length() - editChars) * i / times.length);
+                StringBuilder edit = new StringBuilder(note.length());
+                edit.append(note, 0, at);
+                for (int j = 0; j < editChars; j++) {
+                    edit.append((char) ('a' + (i + j) % 26));
+                }
+                edit.append(note, at + editChars, note.length());
+                note = edit.toString();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+
+                HashMap<String, Integer> before = chunkLengths();
+                long bytesBefore = processBytesWritten();
+                long start = SystemClock.elapsedRealtimeNanos();
+                mMockResolver.update(noteUri, values, null, null);
+                times[i] = SystemClock.elapsedRealtimeNanos() - start;
+                bytesWritten += processBytesWritten() - bytesBefore;
+                for (Map.Entry<String, Integer> chunk : chunkLengths().entrySet()) {
+                    if (!before.containsKey(chunk.getKey())) {
+                        written += chunk.getValue();
+                    }
+                }
+            }
+            Log.i(TAG, "save noteChars=" + note.length() + " editChars=" + editChars
+                    + " time=" + median(times) / 1000 + "us"
+                    + " chunkCharsWritten=" + written / times.length
+                    + " unchunkedCharsWritten=" + note.length()
+                    + " bytesWritten=" + bytesWritten / times.length);
+        }
+    }
+
+    /*
+     * Reads a note the way NoteEditor does when it resumes, RESUME_REPEATS times, for a short
+     * note and a long compressed one, with the note cache turned off and on. Reports the median
+     * latency of a resume and the number of SQLite queries the resumes made, which with the
+     * cache is its number of misses.
+     */
+    public void testEditorResumeLatency() {
+        fillDatabase(NOTE_COUNTS[0]);
+        NoteCache cache = getProvider().getNoteCacheForTest();
+        for (int words : new int[] { 20, 3000 }) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Resume");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, generateBody(1, words));
+            Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+            for (boolean enabled : new boolean[] { false, true }) {
+                cache.setEnabled(enabled);
+                int misses = cache.missCount();
+                long[] times = new long[RESUME_REPEATS];
+                for (int i = 0; i < times.length; i++) {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    Cursor c = mMockResolver.query(noteUri, EDITOR_PROJECTION, null, null, null);
+                    assertTrue(c.moveToFirst());
+                    c.getString(1);
+                    c.getString(2);
+                    c.close();
+                    times[i] = SystemClock.elapsedRealtimeNanos() - start;
+                }
+                int queries = enabled ? cache.missCount() - misses : RESUME_REPEATS;
+                Log.i(TAG, "resume noteWords=" + words + " cache=" + enabled
+                        + " time=" + median(times) / 1000 + "us"
+                        + " sqliteQueries=" + queries);
+            }
+            Log.i(TAG, "resume " + cache);
+        }
+    }
+
+    /*
+     * Saves a note REVISION_COUNT times, each time with a small edit somewhere in it, and
+     * reports the median save latency, the bytes stored per revision against the bytes of a
+     * full copy of the text, and the median time to read back revisions spread over the
+     * history, including the slowest kind, the last delta before a snapshot.
+     */
+    public void testRevisionHistory() {
+        String note = generateBody(0, REVISION_NOTE_WORDS);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long id = ContentUris.parseId(noteUri);
+
+        long[] saves = new long[REVISION_COUNT - 1];
+        long fullCopyBytes = note.getBytes(StandardCharsets.UTF_8).length;
+        for (int i = 0; i < saves.length; i++) {
+            int at = (int) ((long) note.length() * (i * 37 % saves.length) / saves.length);
+            note = note.substring(0, at) + word(i) + " " + note.substring(at);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+            long start = SystemClock.elapsedRealtimeNanos();
+            mMockResolver.update(noteUri, values, null, null);
+            saves[i] = SystemClock.elapsedRealtimeNanos() - start;
+            fullCopyBytes += note.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        Cursor c = mMockResolver.query(NotePad.Revisions.getContentUri(id),
+                new String[] { NotePad.Revisions.COLUMN_NAME_STORED_SIZE }, null, null, null);
+        long storedBytes = 0;
+        while (c.moveToNext()) {
+            storedBytes += c.getLong(0);
+        }
+        assertEquals(REVISION_COUNT, c.getCount());
+        c.close();
+        Log.i(TAG, "revisions count=" + REVISION_COUNT
+                + " save=" + median(saves) / 1000 + "us"
+                + " storedBytesPerRevision=" + storedBytes / REVISION_COUNT
+                + " fullCopyBytesPerRevision=" + fullCopyBytes / REVISION_COUNT);
+
+        long[] revisions = {
+                1,
+                NoteRevisions.SNAPSHOT_INTERVAL - 1,
+                REVISION_COUNT / 2,
+                REVISION_COUNT
+        };
+        for (long revision : revisions) {
+            Uri revisionUri = NotePad.Revisions.getItemUri(id, revision);
+            long[] times = new long[QUERY_REPEATS];
+            for (int i = 0; i < times.length; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                c = mMockResolver.query(revisionUri,
+                        new String[] { NotePad.Revisions.COLUMN_NAME_NOTE }, null, null, null);
+                assertTrue(c.moveToFirst());
+                c.getString(0);
+                times[i] = SystemClock.elapsedRealtimeNanos() - start;
+                c.close();
+            }
+            Log.i(TAG, "revisions read revision=" + revision
+                    + " time=" + median(times) / 1000 + "us");
+        }
+    }
+
+    /*
+     * Lists the compression benchmark's corpus, stored through the provider, the way a list
+     * showing the start of each note would: first by reading each note's text and shortening
+     * it, as it had to before the provider kept previews, and then by reading the stored
+     * preview, length and line count. Reports the median query time and how many times the
+     * cursor window was filled for each.
+     */
+    public void testListPreviewQuery() {
+        ContentValues[] notes = new ContentValues[CORPUS_NOTES];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Corpus " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, generateCorpusNote(i));
+            notes[i].put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i * 1000L);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+
+        String[] bodyProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_NOTE
+        };
+        String[] previewProjection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+            NotePad.Notes.COLUMN_NAME_LINE_COUNT
+        };
+        for (String[] projection : new String[][] { bodyProjection, previewProjection }) {
+            boolean body = projection == bodyProjection;
+            long[] times = new long[QUERY_REPEATS];
+            int windowFills = 0;
+            for (int i = 0; i < times.length; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Cursor c = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null,
+                        null, null);
+                Cursor unwrapped = c;
+                while (unwrapped instanceof CursorWrapper) {
+                    unwrapped = ((CursorWrapper) unwrapped).getWrappedCursor();
+                }
+                HashSet<Integer> windowStarts = new HashSet<Integer>();
+                try {
+                    while (c.moveToNext()) {
+                        if (body) {
+                            String note = c.getString(3);
+                            NotePreview.preview(note);
+                            NotePreview.lineCount(note);
+                        } else {
+                            c.getString(3);
+                        }
+                        if (unwrapped instanceof AbstractWindowedCursor) {
+                            windowStarts.add(((AbstractWindowedCursor) unwrapped).getWindow()
+                                    .getStartPosition());
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                times[i] = SystemClock.elapsedRealtimeNanos() - start;
+                windowFills = windowStarts.size();
+            }
+            Log.i(TAG, "listPreview notes=" + notes.length
+                    + " readsBody=" + body
+                    + " time=" + median(times) / 1000 + "us"
+                    + " windowFills=" + windowFills);
+        }
+    }
+
+    /*
+     * Measures what the provider's metrics add to each operation: reading the clock when it
+     * starts and recording it when it ends. Runs on one thread, and then on READER_THREADS
+     * threads recording the same operation at once, which is the worst case for the shared
+     * counters. Fails if an operation costs more than the budget on one thread.
+     */
+    public void testMetricsOverhead() throws Exception {
+        final NotePadMetrics metrics = new NotePadMetrics(new String[] { "unknown", "notes" });
+        for (int threads : new int[] { 1, READER_THREADS }) {
+            final long[] nanos = new long[threads];
+            Thread[] recorders = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int index = t;
+                recorders[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        long start = SystemClock.elapsedRealtimeNanos();
+                        for (int i = 0; i < METRICS_RECORDS; i++) {
+                            metrics.record(NotePadMetrics.QUERY, 1,
+                                    SystemClock.elapsedRealtimeNanos());
+                        }
+                        nanos[index] = SystemClock.elapsedRealtimeNanos() - start;
+                    }
+                };
+            }
+            for (Thread recorder : recorders) {
+                recorder.start();
+            }
+            for (Thread recorder : recorders) {
+                recorder.join();
+            }
+            long perRecord = median(nanos) / METRICS_RECORDS;
+            Log.i(TAG, "metrics threads=" + threads + " overhead=" + perRecord + "ns");
+            if (threads == 1) {
+                assertTrue("Recording took " + perRecord + "ns",
+                        perRecord <= METRICS_BUDGET_NANOS);
+            }
+        }
+        assertEquals((1 + READER_THREADS) * (long) METRICS_RECORDS, metrics.snapshot(false)
+                .getLongArray("query notes")[NotePad.Metrics.INDEX_COUNT]);
+    }
+
+    /*
+     * Runs the same workload against the SQLite, in-memory and log stores: inserting notes,
+     * reading them back one by one, listing them a page at a time, searching, updating and
+     * deleting them. Reports the throughput of each step, and the memory the notes take, which
+     * is the growth of the Java heap for all of them, and the size of the files for SQLite and
+     * the log.
+     */
+    public void testStoreComparison() {
+        int count = NOTE_COUNTS[0];
+        mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+        File logDirectory = emptyLogDirectory();
+        NoteStore[] stores = {
+            getProvider().getNoteStoreForTest(), new InMemoryNoteStore(),
+            new LogNoteStore(logDirectory)
+        };
+        for (NoteStore store : stores) {
+            long[] nanos = runStoreWorkload(store, count);
+            String storage = "";
+            if (store instanceof SQLiteNoteStore) {
+                storage = " file=" + new File(mDb.getPath()).length() / 1024 + "KiB";
+            } else if (store instanceof LogNoteStore) {
+                storage = " file=" + directoryBytes(logDirectory) / 1024 + "KiB";
+            }
+            Log.i(TAG, "store " + store.getClass().getSimpleName() + " notes=" + count
+                    + " insert=" + rowsPerSecond(count, nanos[0]) + "rows/s"
+                    + " get=" + rowsPerSecond(count, nanos[1]) + "rows/s"
+                    + " list=" + rowsPerSecond(count, nanos[2]) + "rows/s"
+                    + " search=" + nanos[3] / QUERY_REPEATS / 1000 + "us"
+                    + " update=" + rowsPerSecond(count, nanos[4]) + "rows/s"
+                    + " delete=" + rowsPerSecond(count, nanos[5]) + "rows/s"
+                    + " heap=" + nanos[6] / 1024 + "KiB" + storage);
+        }
+        stores[1].close();
+        stores[2].close();
+    }
+
+    /*
+     * Compares the throughput of the autosave workload, where the editor saves the whole note
+     * on every pause while the user types, on the SQLite store and the log store. Each save
+     * updates one note with its text grown by a word. Reports the saves per second, the bytes
+     * on disk afterwards, and for the log how long compacting it takes and what it leaves.
+     */
+    public void testAutosaveThroughput() {
+        int notes = 100;
+        int saves = 100;
+        mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+        File logDirectory = emptyLogDirectory();
+        LogNoteStore logStore = new LogNoteStore(logDirectory);
+        NoteStore[] stores = { getProvider().getNoteStoreForTest(), logStore };
+        try {
+            for (NoteStore store : stores) {
+                long[] ids = new long[notes];
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < notes; i++) {
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+                    ids[i] = store.insert(values);
+                }
+
+                StringBuilder[] texts = new StringBuilder[notes];
+                for (int i = 0; i < notes; i++) {
+                    texts[i] = new StringBuilder();
+                }
+                values.clear();
+                long start = SystemClock.elapsedRealtimeNanos();
+                for (int save = 0; save < saves; save++) {
+                    for (int i = 0; i < notes; i++) {
+                        texts[i].append(word(save + i)).append(' ');
+                        String text = texts[i].toString();
+                        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+                        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                                System.currentTimeMillis());
+                        NotePreview.put(values, text);
+                        assertEquals(1, store.update(ids[i], values));
+                    }
+                }
+                long nanos = SystemClock.elapsedRealtimeNanos() - start;
+
+                String storage;
+                if (store == logStore) {
+                    long logBytes = directoryBytes(logDirectory);
+                    start = SystemClock.elapsedRealtime();
+                    logStore.compact();
+                    storage = " file=" + logBytes / 1024 + "KiB"
+                            + " compaction=" + (SystemClock.elapsedRealtime() - start) + "ms"
+                            + " compacted=" + directoryBytes(logDirectory) / 1024 + "KiB";
+                } else {
+                    storage = " file=" + (new File(mDb.getPath()).length()
+                            + new File(mDb.getPath() + "-wal").length()) / 1024 + "KiB";
+                }
+                Log.i(TAG, "autosave store=" + store.getClass().getSimpleName()
+                        + " notes=" + notes + " saves=" + notes * saves
+                        + " throughput=" + rowsPerSecond(notes * saves, nanos) + "saves/s"
+                        + storage);
+            }
+        } finally {
+            logStore.close();
+        }
+    }
+
+    /*
+     * Compares how NotesList reflects a change to the notes it shows: by querying every note it
+     * has loaded again, as it did when a change notification named no note, or by reading the
+     * notes the notification names and moving their rows. Runs an edit script of single saves,
+     * a small batch, deletes and a large import against a list of every note, and reports how
+     * many notifications each edit sent, how many were applied note by note and how many made
+     * the list load again, and the median time to reflect an edit each way.
+     */
+    public void testListChangeLatency() throws Exception {
+        int count = NOTE_COUNTS[0];
+        int edits = 100;
+        fillDatabase(count);
+        NoteChangeNotifier notifier = new NoteChangeNotifier();
+        NoteStore store = getProvider().getNoteStoreForTest();
+        NoteListModel model = new NoteListModel(LIST_PROJECTION, 0, 2);
+        reloadList(model);
+        store.addChangeListener(notifier);
+        try {
+            long[] reloadTimes = new long[edits];
+            long[] applyTimes = new long[edits];
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < edits; i++) {
+                long id = model.getId((i * 7919) % model.size());
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Edited " + i);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                        System.currentTimeMillis() + i);
+                mMockResolver.update(
+                        ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                        values, null, null);
+                ArrayList<Uri> uris = notifier.takeNotifications();
+                assertEquals(1, uris.size());
+
+                long start = SystemClock.elapsedRealtimeNanos();
+                applyToList(model, uris.get(0));
+                applyTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+                start = SystemClock.elapsedRealtimeNanos();
+                reloadList(model);
+                reloadTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+                assertEquals(id, model.getId(0));
+            }
+            Arrays.sort(applyTimes);
+            Arrays.sort(reloadTimes);
+
+            // The rest of the script, counting how the list takes each notification.
+            int notifications = 0;
+            int reloads = 0;
+            ContentValues[] batch = new ContentValues[10];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = new ContentValues();
+                batch[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Batched " + i);
+            }
+            ContentValues[] imported = new ContentValues[NoteChangeNotifier.MAX_NOTIFIED_IDS * 4];
+            for (int i = 0; i < imported.length; i++) {
+                imported[i] = new ContentValues();
+                imported[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Imported " + i);
+            }
+            ArrayList<ContentProviderOperation> deletes =
+                    new ArrayList<ContentProviderOperation>();
+            for (int i = 0; i < 5; i++) {
+                deletes.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                        NotePad.Notes.CONTENT_ID_URI_BASE, model.getId(i * 3))).build());
+            }
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, batch);
+            mMockResolver.applyBatch(NotePad.AUTHORITY, deletes);
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, imported);
+            for (Uri uri : notifier.takeNotifications()) {
+                notifications++;
+                if (!applyToList(model, uri)) {
+                    reloadList(model);
+                    reloads++;
+                }
+            }
+            assertEquals(count - deletes.size() + batch.length + imported.length, model.size());
+
+            Log.i(TAG, "list changes notes=" + count + " edits=" + edits
+                    + " reload=" + median(reloadTimes) / 1000 + "us"
+                    + " applied=" + median(applyTimes) / 1000 + "us"
+                    + " batchNotifications=" + notifications
+                    + " reloads=" + reloads);
+        } finally {
+            store.removeChangeListener(notifier);
+        }
+    }
+
+    /*
+     * Loads every note into a list again, in the order NotesList shows them, keeping the rows
+     * of the notes that did not change, as NotesList does.
+     */
+    private void reloadList(NoteListModel model) {
+        Cursor notes = mMockResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION, null,
+                null, NotePad.Notes.PAGED_SORT_ORDER);
+        model.setRows(model.diffRows(notes, model.snapshot()));
+        notes.close();
+    }
+
+    /*
+     * Applies a change notification to a list of every note, as NotesList does, and returns
+     * false if it names no notes and the list has to be loaded again.
+     */
+    private boolean applyToList(NoteListModel model, Uri uri) {
+        long[] ids = NoteChangeNotifier.idsOf(uri);
+        if (ids == null) {
+            return false;
+        }
+        boolean deleted = NoteChangeNotifier.changeOf(uri) == NoteStore.CHANGE_DELETE;
+        for (long id : ids) {
+            Object[] row = null;
+            if (!deleted) {
+                Cursor note = mMockResolver.query(
+                        ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                        LIST_PROJECTION, null, null, null);
+                List<Object[]> rows = model.readRows(note);
+                note.close();
+                row = rows.isEmpty() ? null : rows.get(0);
+            }
+            model.apply(id, row, true);
+        }
+        return true;
+    }
+
+    /*
+     * Measures the cost of rendering the date of a list row, for DATE_ROWS rows a few minutes
+     * apart, going back over a few days: with a new SimpleDateFormat for each date, as
+     * NoteEditor used to store the date as text; with DateUtils for each date, as the list
+     * used to; and with NoteDateFormatter, the first time the rows are shown and when they are
+     * shown again, as when the list is scrolled back.
+     */
+    public void testDateFormatting() {
+        long now = System.currentTimeMillis();
+        long[] dates = new long[DATE_ROWS];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = now - i * DATE_ROW_SPACING_MILLIS;
+        }
+        long[] perCall = new long[QUERY_REPEATS];
+        long[] uncached = new long[QUERY_REPEATS];
+        long[] firstShown = new long[QUERY_REPEATS];
+        long[] shownAgain = new long[QUERY_REPEATS];
+        int length = 0;
+        for (int r = 0; r < QUERY_REPEATS; r++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (long date : dates) {
+                length += new SimpleDateFormat("yy-MM-dd HH:mm:ss").format(new Date(date))
+                        .length();
+            }
+            perCall[r] = SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (long date : dates) {
+                length += DateUtils.formatDateTime(getContext(), date,
+                        DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME
+                                | DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_NUMERIC_DATE)
+                        .length();
+            }
+            uncached[r] = SystemClock.elapsedRealtimeNanos() - start;
+
+            NoteDateFormatter formatter = new NoteDateFormatter(getContext());
+            start = SystemClock.elapsedRealtimeNanos();
+            for (long date : dates) {
+                length += formatter.format(date, now).length();
+            }
+            firstShown[r] = SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (long date : dates) {
+                length += formatter.format(date, now).length();
+            }
+            shownAgain[r] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        assertTrue(length > 0);
+
+        Log.i(TAG, "date formatting rows=" + DATE_ROWS
+                + " newSimpleDateFormat=" + median(perCall) / DATE_ROWS + "ns"
+                + " dateUtils=" + median(uncached) / DATE_ROWS + "ns"
+                + " formatterFirst=" + median(firstShown) / DATE_ROWS + "ns"
+                + " formatterAgain=" + median(shownAgain) / DATE_ROWS + "ns");
+    }
+
+    /*
+     * Measures building the fast scroll index of NotesList for the largest database, with its
+     * notes spread over several hundred months: the aggregate query of the months URI and
+     * reading it, which run on the loading thread; walking every note's date instead, as a
+     * cursor-based index would; and handing the index to the list and counting a change in
+     * it, which run on the UI thread. Fails if either of those takes more than a tenth of a
+     * frame.
+     */
+    public void testSectionIndexBuild() {
+        int count = NOTE_COUNTS[NOTE_COUNTS.length - 1];
+        fillDatabase(count);
+        long now = System.currentTimeMillis();
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = " + now + " - "
+                + NotePad.Notes._ID + " * " + SECTION_NOTE_SPACING_MILLIS);
+
+        long[] queryTimes = new long[QUERY_REPEATS];
+        long[] walkTimes = new long[QUERY_REPEATS];
+        long[] setTimes = new long[QUERY_REPEATS];
+        long[] addTimes = new long[QUERY_REPEATS];
+        NoteSectionIndex index = new NoteSectionIndex(getContext());
+        Calendar calendar = Calendar.getInstance();
+        for (int r = 0; r < QUERY_REPEATS; r++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Cursor months = mMockResolver.query(NotePad.Notes.CONTENT_MONTHS_URI, null, null,
+                    null, null);
+            NoteSectionIndex read = NoteSectionIndex.read(getContext(), months);
+            months.close();
+            queryTimes[r] = SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            Cursor notes = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                    new String[] { NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE }, null, null,
+                    NotePad.Notes.PAGED_SORT_ORDER);
+            int walked = 0;
+            int lastMonth = -1;
+            while (notes.moveToNext()) {
+                calendar.setTimeInMillis(notes.getLong(0));
+                int month = calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH);
+                if (month != lastMonth) {
+                    walked++;
+                    lastMonth = month;
+                }
+            }
+            notes.close();
+            walkTimes[r] = SystemClock.elapsedRealtimeNanos() - start;
+            assertEquals(read.getSections().length, walked);
+
+            start = SystemClock.elapsedRealtimeNanos();
+            index.set(read);
+            setTimes[r] = SystemClock.elapsedRealtimeNanos() - start;
+            assertEquals(count, index.getTotal());
+
+            // A note of the oldest month edited now.
+            start = SystemClock.elapsedRealtimeNanos();
+            index.add(now - count * SECTION_NOTE_SPACING_MILLIS, -1);
+            index.add(now, 1);
+            addTimes[r] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+
+        Log.i(TAG, "section index notes=" + count
+                + " months=" + index.getSections().length
+                + " query=" + median(queryTimes) / 1000 + "us"
+                + " walk=" + median(walkTimes) / 1000 + "us"
+                + " set=" + median(setTimes) / 1000 + "us"
+                + " change=" + median(addTimes) / 1000 + "us");
+        assertTrue("Handing the index over took " + median(setTimes) + "ns",
+                median(setTimes) < FRAME_BUDGET_NANOS / 10);
+        assertTrue("Counting a change took " + median(addTimes) + "ns",
+                median(addTimes) < FRAME_BUDGET_NANOS / 10);
+    }
+
+    /*
+     * Runs the steps of testStoreComparison() against one store, and returns the time each
+     * took, followed by the growth of the Java heap while the store held the notes.
+     */
+    private long[] runStoreWorkload(NoteStore store, int count) {
+        long[] nanos = new long[7];
+        long[] ids = new long[count];
+        ContentValues values = new ContentValues();
+        long heapBefore = usedHeap();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < count; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, generateBody(i, 40));
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, (long) i * 1000);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, (long) i * 1000);
+            NotePreview.put(values, values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+            ids[i] = store.insert(values);
+        }
+        nanos[0] = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (long id : ids) {
+            Cursor cursor = store.get(id, EDITOR_PROJECTION);
+            assertTrue(cursor.moveToFirst());
+            cursor.close();
+        }
+        nanos[1] = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        long afterModified = NoteStore.FIRST_PAGE;
+        long afterId = 0;
+        int listed = 0;
+        while (true) {
+            Cursor page = store.list(LIST_PROJECTION, afterModified, afterId, 50, null);
+            if (!page.moveToLast()) {
+                page.close();
+                break;
+            }
+            listed += page.getCount();
+            afterModified = page.getLong(2);
+            afterId = page.getLong(0);
+            page.close();
+        }
+        nanos[2] = SystemClock.elapsedRealtimeNanos() - start;
+        assertEquals(count, listed);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < QUERY_REPEATS; i++) {
+            store.search("tango lima", LIST_PROJECTION, null).close();
+        }
+        nanos[3] = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        values.clear();
+        for (int i = 0; i < count; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, generateBody(i + 1, 40));
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, (long) (count + i) * 1000);
+            NotePreview.put(values, values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+            assertEquals(1, store.update(ids[i], values));
+        }
+        nanos[4] = SystemClock.elapsedRealtimeNanos() - start;
+        nanos[6] = usedHeap() - heapBefore;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (long id : ids) {
+            assertEquals(1, store.delete(id));
+        }
+        nanos[5] = SystemClock.elapsedRealtimeNanos() - start;
+        return nanos;
+    }
+
+    // Returns an empty directory for a log store.
+    private File emptyLogDirectory() {
+        File directory = new File(getContext().getCacheDir(), "notes-log-benchmark");
+        if (directory.isDirectory()) {
+            for (File file : directory.listFiles()) {
+                assertTrue(file.delete());
+            }
+        }
+        return directory;
+    }
+
+    // Returns the total size of the files in a directory.
+    private static long directoryBytes(File directory) {
+        long bytes = 0;
+        for (File file : directory.listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    // Returns the bytes in use on the Java heap, after collecting garbage.
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /*
+     * Times the upgrade of a database at the oldest supported version, holding the largest
+     * number of notes, through every migration. Fails if it takes longer than the budget.
+     */
+    public void testUpgradeTimeBudget() {
+        int count = NOTE_COUNTS[NOTE_COUNTS.length - 1];
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            NotePadProvider.DatabaseHelper.createBaseSchema(db);
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < count; i++) {
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, generateBody(i, 40));
+                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, (long) i);
+                    db.insert(NotePad.Notes.TABLE_NAME, null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                NotePadProvider.DatabaseHelper.upgrade(db,
+                        NotePadProvider.BASE_DATABASE_VERSION, NotePadProvider.DATABASE_VERSION);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long millis = SystemClock.elapsedRealtime() - start;
+
+            Log.i(TAG, "upgrade notes=" + count + " from=" + NotePadProvider.BASE_DATABASE_VERSION
+                    + " to=" + NotePadProvider.DATABASE_VERSION + " time=" + millis + "ms");
+            assertTrue("upgrade took " + millis + "ms", millis < UPGRADE_BUDGET_MILLIS);
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Replaces the contents of the database with count generated notes, and builds their
+     * search index.
+     */
+    private void fillDatabase(int count) {
+        fillDatabase(count, 40);
+        NotePadProvider.DatabaseHelper.rebuildSearchIndex(mDb);
+    }
+
+    /*
+     * Replaces the contents of the database with count generated notes of the given number of
+     * words, without indexing them. The notes are written directly, in a single transaction, so
+     * that filling the database is not what dominates the run time.
+     */
+    private void fillDatabase(int count, int words) {
+        mDb.beginTransaction();
+        try {
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            ContentValues values = new ContentValues();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i + " " + word(i));
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, generateBody(i, words));
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now - i * 1000L);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i * 1000L);
+                mDb.insert(NotePad.Notes.TABLE_NAME, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /*
+     * Returns a body of the given number of words, deterministic for each seed.
+     */
+    static String generateBody(int seed, int words) {
+        StringBuilder body = new StringBuilder(words * 8);
+        for (int i = 0; i < words; i++) {
+            body.append(word(seed * 31 + i * 7)).append(i % 10 == 9 ? '\n' : ' ');
+        }
+        return body.toString();
+    }
+
+    /*
+     * Returns the number of bytes this process has passed to write() and similar calls, which
+     * for a save is what SQLite wrote to the database and its write-ahead log.
+     */
+    private static long processBytesWritten() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/io"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("wchar:")) {
+                        return Long.parseLong(line.substring("wchar:".length()).trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the bytes written", e);
+        }
+        return 0;
+    }
+
+    /*
+     * Returns the length of every chunk in the database, keyed by its row ID and sequence
+     * number. A rewritten chunk gets a new row, so its key changes.
+     */
+    private HashMap<String, Integer> chunkLengths() {
+        HashMap<String, Integer> lengths = new HashMap<String, Integer>();
+        Cursor c = mDb.query(NoteChunks.TABLE_NAME, new String[] {
+                "rowid", NoteChunks.COLUMN_SEQUENCE, "length(" + NoteChunks.COLUMN_BODY + ")"
+        }, null, null, null, null, null);
+        while (c.moveToNext()) {
+            lengths.put(c.getLong(0) + ":" + c.getLong(1), c.getInt(2));
+        }
+        c.close();
+        return lengths;
+    }
+
+    /*
+     * Returns a note of the compression benchmark's corpus: mostly short notes, with pasted
+     * logs and long documents mixed in the way users write them.
+     */
+    static String generateCorpusNote(int seed) {
+        switch (seed % 4) {
+            case 0:
+                StringBuilder log = new StringBuilder();
+                for (int line = 0; line < 200 + seed % 300; line++) {
+                    log.append("2026-01-0").append(1 + line % 9).append(" 12:")
+                            .append(10 + line % 50).append(':').append(10 + seed % 50)
+                            .append(line % 7 == 0 ? " WARN" : " INFO")
+                            .append(" [worker-").append(line % 8).append("] request ")
+                            .append(seed * 1000 + line).append(" took ")
+                            .append((seed + line * 13) % 500).append("ms\n");
+                }
+                return log.toString();
+            case 1:
+                return generateBody(seed, 1000 + seed % 2000);
+            default:
+                return generateBody(seed, 10 + seed % 60);
+        }
+    }
+
+    private static String word(int i) {
+        return WORDS[(i & Integer.MAX_VALUE) % WORDS.length];
+    }
+
+    /*
+     * Returns the median time of running the search the way NoteSearch used to, with leading
+     * wildcard LIKE expressions on the title and body.
+     */
+    private long timeLikeSearch(String query) {
+        long[] times = new long[QUERY_REPEATS];
+        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " like ? or "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " like ?";
+        String[] selectionArgs = { "%" + query + "%", "%" + query + "%" };
+        for (int i = 0; i < times.length; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Cursor c = mDb.query(NotePad.Notes.TABLE_NAME, LIST_PROJECTION, selection,
+                    selectionArgs, null, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+            drain(c);
+            times[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        return median(times);
+    }
+
+    /*
+     * Returns the median time of running the search through the provider's search URI.
+     */
+    private long timeFtsSearch(String query) {
+        long[] times = new long[QUERY_REPEATS];
+        Uri uri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_SEARCH_QUERY, query)
+                .build();
+        for (int i = 0; i < times.length; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Cursor c = mMockResolver.query(uri, LIST_PROJECTION, null, null, null);
+            drain(c);
+            times[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        return median(times);
+    }
+
+    /*
+     * Runs READER_THREADS threads querying the first page of the notes list, and one thread
+     * updating notes one at a time, for STRESS_MILLIS. Returns the latency of every read.
+     */
+    private long[] readUnderWriteLoad() throws Exception {
+        final long deadline = SystemClock.elapsedRealtime() + STRESS_MILLIS;
+        final Uri firstPage = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "50")
+                .build();
+        final Throwable[] failure = new Throwable[1];
+        List<List<Long>> reads = new ArrayList<List<Long>>(READER_THREADS);
+        Thread[] threads = new Thread[READER_THREADS + 1];
+
+        threads[0] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                for (int i = 0; SystemClock.elapsedRealtime() < deadline; i++) {
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, generateBody(i, 40));
+                    mMockResolver.update(ContentUris.withAppendedId(
+                            NotePad.Notes.CONTENT_ID_URI_BASE, 1 + i % NOTE_COUNTS[0]),
+                            values, null, null);
+                }
+            }
+        });
+        for (int t = 0; t < READER_THREADS; t++) {
+            final List<Long> latencies = new ArrayList<Long>();
+            reads.add(latencies);
+            threads[t + 1] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (SystemClock.elapsedRealtime() < deadline) {
+                        long start = SystemClock.elapsedRealtimeNanos();
+                        drain(mMockResolver.query(firstPage, LIST_PROJECTION, null, null, null));
+                        latencies.add(SystemClock.elapsedRealtimeNanos() - start);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread thread, Throwable e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new AssertionError(failure[0]);
+            }
+        }
+
+        int count = 0;
+        for (List<Long> latencies : reads) {
+            count += latencies.size();
+        }
+        long[] all = new long[count];
+        int i = 0;
+        for (List<Long> latencies : reads) {
+            for (long latency : latencies) {
+                all[i++] = latency;
+            }
+        }
+        return all;
+    }
+
+    /*
+     * Returns the median latency of a list query and the memory its cursor held, formatted for
+     * the log. The memory is the growth of the proportional set size with the last cursor open.
+     */
+    private String timeListQuery(Uri uri, String sortOrder) {
+        long[] times = new long[QUERY_REPEATS];
+        for (int i = 0; i < times.length; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Cursor c = mMockResolver.query(uri, LIST_PROJECTION, null, null, sortOrder);
+            drain(c);
+            times[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+
+        Runtime.getRuntime().gc();
+        long pssBefore = Debug.getPss();
+        Cursor c = mMockResolver.query(uri, LIST_PROJECTION, null, null, sortOrder);
+        int rows = 0;
+        while (c.moveToNext()) {
+            rows++;
+        }
+        long pssKb = Debug.getPss() - pssBefore;
+        c.close();
+
+        return median(times) / 1000 + "us/" + rows + "rows/" + pssKb + "kB";
+    }
+
+    /*
+     * Reads every row of a cursor, so that the whole result is materialized, then closes it.
+     */
+    static int drain(Cursor c) {
+        try {
+            int rows = 0;
+            while (c.moveToNext()) {
+                rows++;
+            }
+            return rows;
+        } finally {
+            c.close();
+        }
+    }
+
+    static long rowsPerSecond(int rows, long nanos) {
+        return nanos == 0 ? 0 : rows * 1000000000L / nanos;
+    }
+
+    // Returns the given percentile of a sorted array of times.
+    static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
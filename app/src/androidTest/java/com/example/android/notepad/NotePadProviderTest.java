@@ -16,23 +16,50 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.graphics.drawable.ColorDrawable;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.test.IsolatedContext;
 import android.test.ProviderTestCase2;
+import android.test.mock.MockContentProvider;
 import android.test.mock.MockContentResolver;
+import android.text.format.DateUtils;
+import android.view.View;
+import android.widget.TextView;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /*
  */
@@ -176,6 +203,10 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         mimeType = mMockResolver.getType(noteIdUri);
         assertEquals(NotePad.Notes.CONTENT_ITEM_TYPE, mimeType);
 
+        // Tests the MIME type for the months of the notes.
+        mimeType = mMockResolver.getType(NotePad.Notes.CONTENT_MONTHS_URI);
+        assertEquals(NotePad.Notes.MONTHS_CONTENT_TYPE, mimeType);
+
         // Tests an invalid URI. This should throw an IllegalArgumentException.
         mimeType = mMockResolver.getType(INVALID_URI);
     }
@@ -186,9 +217,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. Every note can be exported as plain text or as
+        // line-delimited JSON.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI,
+                MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(2, exportTypes.length);
+        assertEquals(MIME_TYPE_TEXT, exportTypes[0]);
+        assertEquals(NotePad.Notes.EXPORT_JSON_TYPE, exportTypes[1]);
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -222,7 +258,7 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
          * Tests with a URI that should not have any associated stream MIME types, but with a
          * filter that returns all types. The result should still be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_SEARCH_URI, MIME_TYPES_ALL);
         assertNull(mimeType);
 
     }
@@ -280,13 +316,13 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         testAssetDescriptor.close();
 
         /*
-         * Changes the URI to a notes URI for multiple notes, and re-test. This should fail, since
-         * the provider does not support this type of URI. A FileNotFound exception is expected,
-         * so call fail() if it does *not* occur.
+         * Changes the URI to the live folder URI for multiple notes, and re-test. This should
+         * fail, since the provider does not support this type of URI. A FileNotFound exception is
+         * expected, so call fail() if it does *not* occur.
          */
         try {
             testAssetDescriptor = mMockResolver.openTypedAssetFileDescriptor(
-                    NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.LIVE_FOLDER_URI,
                     MIME_TYPE_TEXT,
                     null
             );
@@ -415,6 +451,46 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(TEST_NOTES[0].note, inputData[2]);
     }
 
+    /*
+     * Tests exporting every note through the notes URI, as plain text and as line-delimited
+     * JSON. Inserts more notes than the export reads at a time, so that it has to continue from
+     * one chunk to the next.
+     */
+    public void testExportNotes() throws IOException, JSONException {
+        int count = NotePadProvider.EXPORT_CHUNK_NOTES * 2 + 1;
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < count; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Export " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Line one of " + i + "\n\"quoted\"");
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        BufferedReader in = openExport(NotePad.Notes.EXPORT_JSON_TYPE);
+        for (int i = 0; i < count; i++) {
+            JSONObject note = new JSONObject(in.readLine());
+            assertEquals(i + 1, note.getLong(NotePad.Notes._ID));
+            assertEquals("Export " + i, note.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+            assertEquals("Line one of " + i + "\n\"quoted\"",
+                    note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+            assertEquals(NotePad.Notes.DEFAULT_COLOR,
+                    note.getInt(NotePad.Notes.COLUMN_NAME_BACK_COLOR));
+        }
+        assertNull(in.readLine());
+        in.close();
+
+        // Each note is its title, a blank line, its contents and another blank line.
+        in = openExport(MIME_TYPE_TEXT);
+        for (int i = 0; i < count; i++) {
+            assertEquals("Export " + i, in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("Line one of " + i, in.readLine());
+            assertEquals("\"quoted\"", in.readLine());
+            assertEquals("", in.readLine());
+        }
+        assertNull(in.readLine());
+        in.close();
+    }
+
     /*
      * Tests the provider's public API for querying data in the table, using the URI for
      * a dataset of records.
@@ -790,6 +866,2095 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests full-text search through the search URI. Notes are inserted through the provider,
+     * since the provider is what keeps the search table in step with the notes table.
+     */
+    public void testSearch() {
+        // Inserts the test notes, plus one with Chinese text.
+        for (NoteInfo note : TEST_NOTES) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, note.getContentValues());
+        }
+        Uri chineseUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("购物清单", "明天去超市买牛奶").getContentValues());
+
+        // An empty query matches every note.
+        assertEquals(TEST_NOTES.length + 1, search("").getCount());
+
+        // A word in every test note body matches all of them, and a prefix of it does too.
+        assertEquals(TEST_NOTES.length, search("note").getCount());
+        assertEquals(TEST_NOTES.length, search("NO").getCount());
+
+        // Several words must all match.
+        Cursor cursor = search("this note 7");
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note7", cursor.getString(cursor.getColumnIndex(
+                NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        // Chinese text matches from the middle of a run of characters, in title and body.
+        assertEquals(1, search("超市").getCount());
+        assertEquals(1, search("清单").getCount());
+        assertEquals(1, search("奶").getCount());
+        assertEquals(0, search("超牛").getCount());
+
+        // Quotes in the query are not treated as FTS syntax.
+        assertEquals(TEST_NOTES.length + 1, search("\"").getCount());
+
+        // Terms of punctuation only are ignored, alone or next to words.
+        assertEquals(TEST_NOTES.length + 1, search("-").getCount());
+        assertEquals(TEST_NOTES.length, search("note + -").getCount());
+
+        // Updating a note moves its search entry to the new text.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "明天去书店");
+        mMockResolver.update(chineseUri, values, null, null);
+        assertEquals(0, search("超市").getCount());
+        assertEquals(1, search("书店").getCount());
+
+        // Deleting a note removes its search entry.
+        mMockResolver.delete(chineseUri, null, null);
+        assertEquals(0, search("书店").getCount());
+
+        // A multi-row delete removes the entries of every deleted note.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)", new String[] { "Note1", "Note2" });
+        assertEquals(TEST_NOTES.length - 2, search("note").getCount());
+    }
+
+    /*
+     * Tests that the search table can be rebuilt from the notes table, as happens once when a
+     * database created before search existed is upgraded.
+     */
+    public void testRebuildSearchIndex() {
+        // Inserts the notes directly into the database, bypassing the search table.
+        insertData();
+        assertEquals(0, search("note").getCount());
+
+        NotePadProvider.DatabaseHelper.rebuildSearchIndex(mDb);
+        assertEquals(TEST_NOTES.length, search("note").getCount());
+    }
+
+    /*
+     * Tests inserting many notes in one call. All the notes should be inserted, and should be
+     * searchable, since bulk inserts go through the same path as single inserts.
+     */
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            values[index] = TEST_NOTES[index].getContentValues();
+        }
+
+        int rowsInserted = mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(TEST_NOTES.length, rowsInserted);
+        assertEquals(TEST_NOTES.length, search("note").getCount());
+
+        // Bulk inserts are only allowed on the notes URI.
+        try {
+            mMockResolver.bulkInsert(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1), values);
+            fail("Expected bulk insert into a note ID URI to fail");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /*
+     * Tests applying a batch of operations. The results of earlier operations can be referred
+     * to by later ones, and a failing operation rolls back the whole batch.
+     */
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+
+        // Inserts two notes, then renames the first one through a back reference to its URI.
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[0].getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[1].getContentValues())
+                .withYieldAllowed(true)
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note0" })
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed")
+                .build());
+
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(3, results.length);
+        assertNotNull(results[0].uri);
+        assertNotNull(results[1].uri);
+        assertEquals(1, results[2].count.intValue());
+        assertEquals(1, search("renamed").getCount());
+
+        // A batch whose last operation fails leaves the notes as they were.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI).build());
+        operations.add(ContentProviderOperation.newInsert(INVALID_URI).build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected the batch to fail");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(2, search("").getCount());
+    }
+
+    /*
+     * Tests that the notes list query is served entirely from the covering index on the
+     * modification date: no sort step, and no reads of the table rows themselves.
+     */
+    public void testListQueryUsesCoveringIndex() {
+        insertData();
+
+        String sql = SQLiteQueryBuilder.buildQueryString(
+            false,                                  // not distinct
+            NotePad.Notes.TABLE_NAME,               // the notes table
+            new String[] {                          // the NotesList projection
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            },
+            null, null, null,                       // no where, group by or having clauses
+            NotePad.Notes.DEFAULT_SORT_ORDER,       // the default sort order
+            null                                    // no limit
+        );
+
+        String plan = explainQueryPlan(sql);
+        assertTrue(plan, plan.contains("COVERING INDEX " + NotePadProvider.MODIFIED_INDEX_NAME));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // A list showing previews is served by the same index.
+        sql = SQLiteQueryBuilder.buildQueryString(false, NotePad.Notes.TABLE_NAME,
+                new String[] {
+                    NotePad.Notes._ID,
+                    NotePad.Notes.COLUMN_NAME_TITLE,
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                    NotePad.Notes.COLUMN_NAME_PREVIEW,
+                    NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+                    NotePad.Notes.COLUMN_NAME_LINE_COUNT
+                },
+                null, null, null, NotePad.Notes.DEFAULT_SORT_ORDER, null);
+        plan = explainQueryPlan(sql);
+        assertTrue(plan, plan.contains("COVERING INDEX " + NotePadProvider.MODIFIED_INDEX_NAME));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * Tests that modification dates are always stored as numbers. Dates sent as text in the
+     * format older editors used are converted, and text that is not a date is rejected.
+     */
+    public void testModificationDateNormalized() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues());
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, "10-01-02 03:04:05");
+        mMockResolver.update(noteUri, values, null, null);
+
+        Cursor cursor = mDb.rawQuery("SELECT typeof(" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                + "), " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " FROM "
+                + NotePad.Notes.TABLE_NAME, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("integer", cursor.getString(0));
+        assertEquals(new GregorianCalendar(2010, Calendar.JANUARY, 2, 3, 4, 5).getTimeInMillis(),
+                cursor.getLong(1));
+        cursor.close();
+
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, "yesterday");
+        try {
+            mMockResolver.update(noteUri, values, null, null);
+            fail("Expected an invalid modification date to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /*
+     * Tests paging through the notes with the keyset page parameters. Several notes share a
+     * modification date, so a page boundary falls between notes with the same date; every note
+     * must still appear exactly once, in the paged sort order.
+     */
+    public void testPagedQuery() {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 10; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Page note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1000L * (i / 3));
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        String[] projection = {
+            NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        Cursor all = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.PAGED_SORT_ORDER);
+        ArrayList<Long> expected = new ArrayList<Long>();
+        while (all.moveToNext()) {
+            expected.add(all.getLong(0));
+        }
+        all.close();
+
+        ArrayList<Long> paged = new ArrayList<Long>();
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "3")
+                .build();
+        while (true) {
+            Cursor page = mMockResolver.query(pageUri, projection, null, null, null);
+            assertTrue(page.getCount() <= 3);
+            while (page.moveToNext()) {
+                paged.add(page.getLong(0));
+            }
+            if (!page.moveToLast()) {
+                page.close();
+                break;
+            }
+            pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "3")
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_MODIFIED,
+                            Long.toString(page.getLong(1)))
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_ID,
+                            Long.toString(page.getLong(0)))
+                    .build();
+            page.close();
+        }
+        assertEquals(10, paged.size());
+        assertEquals(expected, paged);
+
+        // Malformed page parameters and other sort orders are rejected.
+        Uri[] badUris = {
+            NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "0").build(),
+            NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "3")
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_MODIFIED, "1000").build(),
+            NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "3")
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_MODIFIED, "1000")
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_ID, "1 OR 1=1").build()
+        };
+        for (Uri badUri : badUris) {
+            try {
+                mMockResolver.query(badUri, projection, null, null, null);
+                fail("Expected " + badUri + " to be rejected");
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        try {
+            mMockResolver.query(pageUri, projection, null, null,
+                    NotePad.Notes.DEFAULT_SORT_ORDER);
+            fail("Expected a paged query with another sort order to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /*
+     * Tests that the provider's database uses a write-ahead log, so that readers are not
+     * blocked by writes, and checkpoints it once the log grows past the configured size.
+     */
+    public void testWriteAheadLogging() {
+        Cursor cursor = mDb.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("wal", cursor.getString(0).toLowerCase(Locale.US));
+        cursor.close();
+
+        cursor = mDb.rawQuery("PRAGMA wal_autocheckpoint", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePadProvider.WAL_AUTOCHECKPOINT_PAGES, cursor.getInt(0));
+        cursor.close();
+
+        // A read started while a write transaction is open sees the last committed notes.
+        insertData();
+        mDb.beginTransactionNonExclusive();
+        try {
+            mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+            final int[] count = new int[1];
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Cursor c = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null,
+                            null);
+                    count[0] = c.getCount();
+                    c.close();
+                }
+            });
+            reader.start();
+            reader.join();
+            assertEquals(TEST_NOTES.length, count[0]);
+        } catch (InterruptedException e) {
+            fail("Interrupted while reading");
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /*
+     * Tests that long notes are stored compressed, and that clients still read, search, update
+     * and export them as text.
+     */
+    public void testCompressedNotes() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < NoteCompression.COMPRESSION_THRESHOLD_BYTES * 4; i++) {
+            log.append("12:00:").append(i % 60).append(" INFO request ").append(i)
+                    .append(" finished 日志\n");
+        }
+        String longNote = log.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote);
+        Uri longUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Short");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "A short note");
+        Uri shortUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // The long note is stored as a smaller BLOB, the short one as text.
+        Cursor cursor = mDb.rawQuery("SELECT typeof(" + NotePad.Notes.COLUMN_NAME_NOTE + "), length("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePad.Notes.TABLE_NAME
+                + " ORDER BY " + NotePad.Notes._ID, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("blob", cursor.getString(0));
+        assertTrue(cursor.getInt(1) < longNote.length());
+        assertTrue(cursor.moveToNext());
+        assertEquals("text", cursor.getString(0));
+        cursor.close();
+
+        // Clients read the text back, whatever the projection.
+        cursor = mMockResolver.query(longUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        int noteIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(noteIndex));
+        assertEquals(longNote, cursor.getString(noteIndex));
+        cursor.close();
+        cursor = mMockResolver.query(shortUri, new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("A short note", cursor.getString(0));
+        cursor.close();
+
+        // The search table holds the text, not the compressed bytes.
+        assertEquals(1, search("finished").getCount());
+        assertEquals(1, search("日志").getCount());
+
+        // Shortening the note stores it as text again.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Now short");
+        mMockResolver.update(longUri, values, null, null);
+        cursor = mDb.rawQuery("SELECT typeof(" + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = "
+                + ContentUris.parseId(longUri), null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("text", cursor.getString(0));
+        cursor.close();
+        assertEquals(0, search("finished").getCount());
+
+        // Lengthening it compresses it again, and the export writes it out as text.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote);
+        mMockResolver.update(longUri, values, null, null);
+        BufferedReader in = openExport(MIME_TYPE_TEXT);
+        assertEquals("Long", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals(longNote.substring(0, longNote.indexOf('\n')), in.readLine());
+        in.close();
+
+        // A BLOB stored by a client that starts like a compressed note, but is not one, is read
+        // as raw UTF-8 rather than failing the read, even with a huge length in its header.
+        byte[][] blobs = {
+            { NoteCompression.FORMAT_DEFLATE, 0, 0, 0, 3, 'a', 'b', 'c' },
+            { NoteCompression.FORMAT_DEFLATE, 0x7f, -1, -1, -1, 'x' }
+        };
+        for (byte[] blob : blobs) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, blob);
+            mMockResolver.update(shortUri, values, null, null);
+            cursor = mMockResolver.query(shortUri,
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(new String(blob, StandardCharsets.UTF_8), cursor.getString(0));
+            cursor.close();
+        }
+
+        // SQL on the note column would miss the compressed note, so it is rejected. A string
+        // literal that only looks like it is not.
+        String noteSelection = NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
+        String[] noteArgs = { "%finished%" };
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI, null, noteSelection, noteArgs, null);
+            fail("Expected a selection on the note column to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null,
+                    NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE);
+            fail("Expected a sort order on the note column to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            mMockResolver.update(NotePad.Notes.CONTENT_URI, values, noteSelection, noteArgs);
+            fail("Expected an update selecting on the note column to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            mMockResolver.delete(longUri, "\"" + NotePad.Notes.COLUMN_NAME_NOTE + "\" IS NULL",
+                    null);
+            fail("Expected a delete selecting on the note column to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePad.Notes.COLUMN_NAME_TITLE + " != 'note'", null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that very large notes are stored as chunks, that a small edit only rewrites the
+     * chunks around it, and that clients still read, search and delete them as whole notes.
+     */
+    public void testChunkedNotes() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < NoteChunks.CHUNKING_THRESHOLD_CHARS * 3; i++) {
+            text.append("Paragraph ").append(i).append(" of a very long document 文档.\n");
+        }
+        String longNote = text.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long id = ContentUris.parseId(noteUri);
+        assertEquals(longNote, readNote(noteUri));
+        ArrayList<String> before = chunkKeys(id);
+        assertTrue(before.size() > 1);
+
+        // Inserts a character in the middle of the note. Only the chunk holding it, and maybe
+        // its neighbours, are replaced.
+        int middle = longNote.length() / 2;
+        String edited = longNote.substring(0, middle) + "!" + longNote.substring(middle);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, edited);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(edited, readNote(noteUri));
+        Cursor cursor;
+        ArrayList<String> after = chunkKeys(id);
+        ArrayList<String> kept = new ArrayList<String>(before);
+        kept.retainAll(after);
+        assertTrue(kept.size() >= before.size() - 2);
+        assertEquals(1, search("Paragraph").getCount());
+
+        // Renaming the note keeps its text searchable, and saving the same text again records
+        // no revision and rewrites no chunks.
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, search("Renamed Paragraph").getCount());
+        assertEquals(after, chunkKeys(id));
+        cursor = mMockResolver.query(NotePad.Revisions.getContentUri(id), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        values.remove(NotePad.Notes.COLUMN_NAME_TITLE);
+
+        // The export writes the whole note.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(edited, cursor.getString(0));
+        cursor.close();
+
+        // Shortening the note stores it inline again.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Short again", readNote(noteUri));
+        assertEquals(0, chunkKeys(id).size());
+
+        // Deleting a chunked note deletes its chunks.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote);
+        mMockResolver.update(noteUri, values, null, null);
+        assertTrue(chunkKeys(id).size() > 1);
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals(0, chunkKeys(id).size());
+    }
+
+    /*
+     * Tests that the preview, length and line count of a note follow its text through inserts
+     * and updates, however the text is stored, and that clients cannot write them.
+     */
+    public void testPreviewColumns() {
+        String[] projection = new String[] {
+                NotePad.Notes.COLUMN_NAME_PREVIEW,
+                NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+                NotePad.Notes.COLUMN_NAME_LINE_COUNT
+        };
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "  First line\n\n\tsecond   line\n");
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, "Written by the client");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("First line second line", cursor.getString(0));
+        assertEquals(29, cursor.getInt(1));
+        assertEquals(3, cursor.getInt(2));
+        cursor.close();
+
+        // A long note, stored compressed or as chunks, has a bounded preview.
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < NoteChunks.CHUNKING_THRESHOLD_CHARS; i++) {
+            text.append("Line ").append(i).append('\n');
+        }
+        String longNote = text.append("No line break at the end").toString();
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Notes.PREVIEW_MAX_CHARS, cursor.getString(0).length());
+        assertTrue(cursor.getString(0).startsWith("Line 0 Line 1 Line 2"));
+        assertEquals(longNote.length(), cursor.getInt(1));
+        assertEquals(NotePreview.lineCount(longNote), cursor.getInt(2));
+        cursor.close();
+
+        // Updates that leave the text alone leave the derived columns alone too.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        values.put(NotePad.Notes.COLUMN_NAME_LINE_COUNT, 1);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePreview.lineCount(longNote), cursor.getInt(2));
+        cursor.close();
+
+        assertEquals("", NotePreview.preview(" \n "));
+        assertEquals(0, NotePreview.lineCount(""));
+        assertEquals(1, NotePreview.lineCount("\n"));
+        assertEquals(2, NotePreview.lineCount("a\nb"));
+
+        // A surrogate pair cut by the limit is left out rather than split.
+        text.setLength(0);
+        for (int i = 1; i < NotePad.Notes.PREVIEW_MAX_CHARS; i++) {
+            text.append('a');
+        }
+        String preview = NotePreview.preview(text.append("\ud83d\ude00").toString());
+        assertEquals(NotePad.Notes.PREVIEW_MAX_CHARS - 1, preview.length());
+    }
+
+    /*
+     * Tests that every save of a note's text records a revision, mostly as a small delta, that
+     * any revision can be read back whole, and that a note can be reverted to one.
+     */
+    public void testRevisions() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("Line ").append(i).append(" of a note with a history 历史.\n");
+        }
+        ArrayList<String> versions = new ArrayList<String>();
+        versions.add(text.toString());
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "History");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, versions.get(0));
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long id = ContentUris.parseId(noteUri);
+        Uri revisionsUri = NotePad.Revisions.getContentUri(id);
+        assertEquals(NotePad.Revisions.CONTENT_TYPE, mMockResolver.getType(revisionsUri));
+        assertEquals(NotePad.Revisions.CONTENT_ITEM_TYPE,
+                mMockResolver.getType(NotePad.Revisions.getItemUri(id, 1)));
+
+        // Edits lines all over the note, one save at a time.
+        for (int i = 1; i <= 40; i++) {
+            int line = text.indexOf("Line " + (i * 7 % 50) + " ");
+            text.insert(line, "Edit " + i + " ");
+            versions.add(text.toString());
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, versions.get(i));
+            mMockResolver.update(noteUri, values, null, null);
+        }
+
+        // Saving the same text again, or only the title, records nothing.
+        mMockResolver.update(noteUri, values, null, null);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed history");
+        mMockResolver.update(noteUri, values, null, null);
+
+        Cursor cursor = mMockResolver.query(revisionsUri, new String[] {
+                NotePad.Revisions.COLUMN_NAME_REVISION,
+                NotePad.Revisions.COLUMN_NAME_LENGTH,
+                NotePad.Revisions.COLUMN_NAME_STORED_SIZE
+        }, null, null, null);
+        assertEquals(versions.size(), cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(versions.size(), cursor.getLong(0));
+        assertEquals(versions.get(versions.size() - 1).length(), cursor.getInt(1));
+        // The newest revision is a delta, much smaller than the note.
+        assertTrue(cursor.getInt(2) < cursor.getInt(1) / 10);
+        cursor.close();
+
+        // Only every SNAPSHOT_INTERVAL-th revision holds the whole text.
+        cursor = mDb.rawQuery("SELECT count(*) FROM " + NotePad.Revisions.TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + id
+                + " AND " + NoteRevisions.COLUMN_PREFIX + " IS NULL", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals((versions.size() + NoteRevisions.SNAPSHOT_INTERVAL - 1)
+                / NoteRevisions.SNAPSHOT_INTERVAL, cursor.getInt(0));
+        cursor.close();
+
+        // Every revision reads back whole.
+        for (int i = 0; i < versions.size(); i++) {
+            cursor = mMockResolver.query(NotePad.Revisions.getItemUri(id, i + 1),
+                    new String[] { NotePad.Revisions.COLUMN_NAME_NOTE }, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(versions.get(i), cursor.getString(0));
+            cursor.close();
+        }
+
+        // Reverting restores an old text, and records it as a new revision.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        assertEquals(1, mMockResolver.update(NotePad.Revisions.getItemUri(id, 5),
+                values, null, null));
+        assertEquals(versions.get(4), readNote(noteUri));
+        cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(versions.size() + 1, cursor.getCount());
+        cursor.close();
+        assertEquals(0, mMockResolver.update(NotePad.Revisions.getItemUri(id, 1000),
+                values, null, null));
+
+        // Deleting the note deletes its revisions.
+        mMockResolver.delete(noteUri, null, null);
+        cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Revisions.getItemUri(id, 1), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that the SQLite and in-memory stores keep the newest MAX_REVISIONS revisions of a
+     * note, and record a note given as a BLOB by its text.
+     */
+    public void testRevisionRetention() {
+        NotePadProvider memoryProvider = new NotePadProvider(new InMemoryNoteStore());
+        memoryProvider.attachInfo(getMockContext(), null);
+        try {
+            checkRevisionRetention(getProvider());
+            checkRevisionRetention(memoryProvider);
+        } finally {
+            memoryProvider.shutdown();
+        }
+    }
+
+    private static void checkRevisionRetention(NotePadProvider provider) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved".getBytes(StandardCharsets.UTF_8));
+        Uri noteUri = provider.insert(NotePad.Notes.CONTENT_URI, values);
+        long id = ContentUris.parseId(noteUri);
+        assertEquals("Saved", readRevision(provider, id, 1));
+
+        // Saving the same text as a string records nothing.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved");
+        provider.update(noteUri, values, null, null);
+
+        int saves = NotePad.Revisions.MAX_REVISIONS + 2 * NoteRevisions.SNAPSHOT_INTERVAL;
+        for (int i = 2; i <= saves; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved " + i);
+            provider.update(noteUri, values, null, null);
+        }
+
+        // The SQLite store also keeps the deltas back to the oldest revision's snapshot.
+        Cursor c = provider.query(NotePad.Revisions.getContentUri(id),
+                new String[] { NotePad.Revisions.COLUMN_NAME_REVISION }, null, null, null);
+        assertTrue(c.getCount() >= NotePad.Revisions.MAX_REVISIONS);
+        assertTrue(c.getCount()
+                < NotePad.Revisions.MAX_REVISIONS + NoteRevisions.SNAPSHOT_INTERVAL);
+        assertTrue(c.moveToFirst());
+        assertEquals(saves, c.getLong(0));
+        assertTrue(c.moveToLast());
+        long oldest = c.getLong(0);
+        assertEquals(saves - oldest + 1, c.getCount());
+        c.close();
+        for (long revision = oldest; revision <= saves; revision++) {
+            assertEquals("Saved " + revision, readRevision(provider, id, revision));
+        }
+        assertNull(readRevision(provider, id, oldest - 1));
+        provider.delete(noteUri, null, null);
+    }
+
+    // Returns the text of a revision, or null if there is no such revision.
+    private static String readRevision(NotePadProvider provider, long noteId, long revision) {
+        Cursor c = provider.query(NotePad.Revisions.getItemUri(noteId, revision),
+                new String[] { NotePad.Revisions.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Tests that single notes are read from the cache until they are updated or deleted, that
+     * the cache stays within its size, and that notes too long for it are not cached.
+     */
+    public void testNoteCache() {
+        NoteCache cache = getProvider().getNoteCacheForTest();
+        String[] projection = {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE
+        };
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Cached note");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // The first read misses, the second hits.
+        int hits = cache.hitCount();
+        int misses = cache.missCount();
+        for (int i = 0; i < 2; i++) {
+            Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(ContentUris.parseId(noteUri), cursor.getLong(0));
+            assertEquals("Cached", cursor.getString(1));
+            assertEquals("Cached note", cursor.getString(2));
+            cursor.close();
+        }
+        assertEquals(hits + 1, cache.hitCount());
+        assertEquals(misses + 1, cache.missCount());
+
+        // A query with a selection goes to the database.
+        Cursor cursor = mMockResolver.query(noteUri, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Cached" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        assertEquals(hits + 1, cache.hitCount());
+        assertEquals(misses + 1, cache.missCount());
+
+        // An update drops the note, so the next read sees the change.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Renamed", cursor.getString(1));
+        cursor.close();
+        assertEquals(misses + 2, cache.missCount());
+
+        // So does a delete.
+        mMockResolver.delete(noteUri, null, null);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Reading many long notes evicts the oldest, and keeps the cache within its size.
+        int evictions = cache.evictionCount();
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NoteCache.DEFAULT_MAX_BYTES / 32) {
+            text.append("A long cached note. ");
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        for (int i = 0; i < 32; i++) {
+            cursor = mMockResolver.query(mMockResolver.insert(NotePad.Notes.CONTENT_URI, values),
+                    projection, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+        }
+        assertTrue(cache.evictionCount() > evictions);
+        assertTrue(cache.size() <= NoteCache.DEFAULT_MAX_BYTES);
+
+        // A note too long for the cache is read from the database every time.
+        while (text.length() < NoteCache.DEFAULT_MAX_BYTES / 8) {
+            text.append("A note too long to cache. ");
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        misses = cache.missCount();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(text.toString(), readNote(noteUri));
+        }
+        assertEquals(misses + 2, cache.missCount());
+    }
+
+    /*
+     * Tests that the provider counts its operations by URI pattern, with a histogram of their
+     * times, and that the metrics returned by call() can be reset.
+     */
+    public void testMetrics() {
+        NotePadProvider provider = getProvider();
+        provider.call(NotePad.Metrics.METHOD_RESET, null, null);
+
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                TEST_NOTES[0].getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, TEST_NOTES[1].getContentValues());
+        mMockResolver.query(noteUri, null, null, null, null).close();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(noteUri, values, null, null);
+        mMockResolver.delete(noteUri, null, null);
+        try {
+            mMockResolver.query(INVALID_URI, null, null, null, null);
+            fail("Expected a query on an invalid URI to fail");
+        } catch (IllegalArgumentException e) {
+        }
+
+        Bundle metrics = provider.call(NotePad.Metrics.METHOD_GET, null, null);
+        assertEquals(NotePadMetrics.BUCKET_COUNT,
+                metrics.getLongArray(NotePad.Metrics.KEY_BUCKET_BOUNDS_NANOS).length);
+        long[] inserts = metrics.getLongArray("insert notes");
+        assertEquals(2, inserts[NotePad.Metrics.INDEX_COUNT]);
+        assertTrue(inserts[NotePad.Metrics.INDEX_TOTAL_NANOS] > 0);
+        long bucketed = 0;
+        for (int i = NotePad.Metrics.INDEX_FIRST_BUCKET; i < inserts.length; i++) {
+            bucketed += inserts[i];
+        }
+        assertEquals(2, bucketed);
+        assertEquals(1, metrics.getLongArray("query notes/#")[NotePad.Metrics.INDEX_COUNT]);
+        assertEquals(1, metrics.getLongArray("update notes/#")[NotePad.Metrics.INDEX_COUNT]);
+        assertEquals(1, metrics.getLongArray("delete notes/#")[NotePad.Metrics.INDEX_COUNT]);
+        assertEquals(1, metrics.getLongArray("query unknown")[NotePad.Metrics.INDEX_COUNT]);
+        assertNull(metrics.getLongArray("query notes"));
+        assertTrue(metrics.getString(NotePad.Metrics.KEY_TEXT).contains("insert notes count=2"));
+
+        // Resetting returns the metrics it cleared.
+        metrics = provider.call(NotePad.Metrics.METHOD_RESET, null, null);
+        assertEquals(2, metrics.getLongArray("insert notes")[NotePad.Metrics.INDEX_COUNT]);
+        metrics = provider.call(NotePad.Metrics.METHOD_GET, null, null);
+        assertNull(metrics.getLongArray("insert notes"));
+        assertEquals("", metrics.getString(NotePad.Metrics.KEY_TEXT));
+
+        assertNull(provider.call("unknownMethod", null, null));
+
+        assertEquals(0, NotePadMetrics.bucketOf(0));
+        assertEquals(0, NotePadMetrics.bucketOf(NotePadMetrics.FIRST_BOUND_NANOS - 1));
+        assertEquals(1, NotePadMetrics.bucketOf(NotePadMetrics.FIRST_BOUND_NANOS));
+        assertEquals(NotePadMetrics.BUCKET_COUNT - 1, NotePadMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    /*
+     * Tests that the save queue merges the updates of a note into one write, lets a delete
+     * replace a pending update, and reports the values it has not written yet.
+     */
+    public void testSaveQueue() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Queued");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Before");
+        Uri keptUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri deletedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        HandlerThread thread = new HandlerThread("testSaveQueue");
+        thread.start();
+        try {
+            NoteSaveQueue queue = new NoteSaveQueue(mMockResolver, thread.getLooper());
+
+            // Two updates of different columns, and a later update of the same column.
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First");
+            queue.update(keptUri, values);
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+            queue.update(keptUri, values);
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Second");
+            queue.update(keptUri, values);
+
+            // Nothing is written yet, but the merged values are pending.
+            assertEquals("Before", readNote(keptUri));
+            ContentValues pending = queue.getPendingUpdate(keptUri);
+            assertEquals("Renamed", pending.getAsString(NotePad.Notes.COLUMN_NAME_TITLE));
+            assertEquals("Second", pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+
+            // A delete replaces the update queued before it, and ignores the one after it.
+            queue.update(deletedUri, values);
+            queue.delete(deletedUri);
+            queue.update(deletedUri, values);
+            assertNull(queue.getPendingUpdate(deletedUri));
+
+            assertTrue(queue.flushAndWait(5000));
+            assertNull(queue.getPendingUpdate(keptUri));
+            assertEquals("Second", readNote(keptUri));
+            Cursor cursor = mMockResolver.query(keptUri,
+                    new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Renamed", cursor.getString(0));
+            cursor.close();
+            cursor = mMockResolver.query(deletedUri, null, null, null, null);
+            assertEquals(0, cursor.getCount());
+            cursor.close();
+
+            // Without an explicit flush, the queue writes the update after its delay.
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Third");
+            queue.update(keptUri, values);
+            SystemClock.sleep(NoteSaveQueue.FLUSH_DELAY_MILLIS * 4);
+            assertEquals("Third", readNote(keptUri));
+
+            // An update queued again moves behind the changes queued since, so the update made
+            // after a revert is written after it, and not overwritten by it.
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Fourth");
+            queue.update(keptUri, values);
+            ContentValues revert = new ContentValues();
+            revert.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+            queue.update(NotePad.Revisions.getItemUri(ContentUris.parseId(keptUri), 1), revert);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Fifth");
+            queue.update(keptUri, values);
+            assertTrue(queue.flushAndWait(5000));
+            assertEquals("Fifth", readNote(keptUri));
+
+            // A change the provider rejects fails the batch, but not the other changes in it,
+            // and is dropped rather than tried again on every later flush.
+            Uri unknownUri = Uri.withAppendedPath(keptUri, "unknown");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rejected");
+            queue.update(unknownUri, values);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Sixth");
+            queue.update(keptUri, values);
+            assertTrue(queue.flushAndWait(5000));
+            assertEquals("Sixth", readNote(keptUri));
+            assertNull(queue.getPendingUpdate(unknownUri));
+            assertNull(queue.getPendingUpdate(keptUri));
+        } finally {
+            thread.quit();
+        }
+    }
+
+    /*
+     * Tests that the save queue retries a change that failed because the database was locked,
+     * after a delay, and drops it once it has failed MAX_SAVE_ATTEMPTS times.
+     */
+    public void testSaveQueueRetries() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Retried");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Before");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Fails the batches while failures are left, as a database locked by another process
+        // would, and otherwise hands them to the real provider.
+        final int[] failures = new int[1];
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(NotePad.AUTHORITY, new MockContentProvider() {
+            @Override
+            public ContentProviderResult[] applyBatch(
+                    ArrayList<ContentProviderOperation> operations) {
+                synchronized (failures) {
+                    if (failures[0] > 0) {
+                        failures[0]--;
+                        throw new SQLiteDatabaseLockedException("database is locked");
+                    }
+                }
+                try {
+                    return getProvider().applyBatch(operations);
+                } catch (OperationApplicationException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        });
+
+        HandlerThread thread = new HandlerThread("testSaveQueueRetries");
+        thread.start();
+        try {
+            NoteSaveQueue queue = new NoteSaveQueue(resolver, thread.getLooper());
+
+            // Fails once, stays queued, and is written by the retry it schedules.
+            synchronized (failures) {
+                failures[0] = 1;
+            }
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Locked once");
+            queue.update(noteUri, values);
+            assertTrue(queue.flushAndWait(5000));
+            assertEquals("Before", readNote(noteUri));
+            assertNotNull(queue.getPendingUpdate(noteUri));
+            SystemClock.sleep(NoteSaveQueue.RETRY_DELAY_MILLIS * 3);
+            assertEquals("Locked once", readNote(noteUri));
+            assertNull(queue.getPendingUpdate(noteUri));
+
+            // Fails every time, and is dropped after the last attempt.
+            synchronized (failures) {
+                failures[0] = Integer.MAX_VALUE;
+            }
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Always locked");
+            queue.update(noteUri, values);
+            for (int i = 1; i < NoteSaveQueue.MAX_SAVE_ATTEMPTS; i++) {
+                assertTrue(queue.flushAndWait(5000));
+                assertNotNull(queue.getPendingUpdate(noteUri));
+            }
+            assertTrue(queue.flushAndWait(5000));
+            assertNull(queue.getPendingUpdate(noteUri));
+            assertEquals("Locked once", readNote(noteUri));
+        } finally {
+            thread.quit();
+        }
+    }
+
+    /*
+     * Tests that a provider backed by the in-memory store gives the same results as the default
+     * store for the same calls, and rejects the queries that are written in SQL.
+     */
+    public void testNoteStores() throws Exception {
+        NotePadProvider memoryProvider = new NotePadProvider(new InMemoryNoteStore());
+        memoryProvider.attachInfo(getMockContext(), null);
+        try {
+            assertEquals(runStoreWorkload(getProvider()), runStoreWorkload(memoryProvider));
+
+            try {
+                memoryProvider.query(NotePad.Notes.CONTENT_URI, null,
+                        NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" }, null);
+                fail("Expected a selection to be rejected by the in-memory store");
+            } catch (UnsupportedOperationException e) {
+            }
+            try {
+                memoryProvider.delete(NotePad.Notes.CONTENT_URI, null, null);
+                fail("Expected a multi-row delete to be rejected by the in-memory store");
+            } catch (UnsupportedOperationException e) {
+            }
+        } finally {
+            memoryProvider.shutdown();
+        }
+    }
+
+    /*
+     * Tests that the store reports each committed change with its note ID, and holds back the
+     * changes of a batch until it is committed.
+     */
+    public void testChangeFeed() throws Exception {
+        NoteStore store = getProvider().getNoteStoreForTest();
+        final ArrayList<String> changes = new ArrayList<String>();
+        NoteStore.ChangeListener listener = new NoteStore.ChangeListener() {
+            @Override
+            public void onNoteChanged(long sequence, int change, long id) {
+                changes.add(change + ":" + id);
+            }
+        };
+        store.addChangeListener(listener);
+        try {
+            long sequence = store.getChangeSequence();
+            long id = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    TEST_NOTES[0].getContentValues()));
+            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id);
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+            mMockResolver.update(noteUri, values, null, null);
+            mMockResolver.delete(noteUri, null, null);
+
+            // Deleting a note that is already gone is not a change.
+            mMockResolver.delete(noteUri, null, null);
+
+            assertEquals(sequence + 3, store.getChangeSequence());
+            assertEquals(NoteStore.CHANGE_INSERT + ":" + id, changes.get(0));
+            assertEquals(NoteStore.CHANGE_UPDATE + ":" + id, changes.get(1));
+            assertEquals(NoteStore.CHANGE_DELETE + ":" + id, changes.get(2));
+
+            // A batch reports its changes once it is committed, and nothing if it fails.
+            changes.clear();
+            ContentValues[] notes = {
+                TEST_NOTES[1].getContentValues(), TEST_NOTES[2].getContentValues()
+            };
+            assertEquals(2, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+            assertEquals(2, changes.size());
+
+            changes.clear();
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValues(TEST_NOTES[3].getContentValues())
+                    .build());
+            operations.add(ContentProviderOperation.newInsert(INVALID_URI).build());
+            try {
+                mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+                fail("Expected the batch to fail");
+            } catch (IllegalArgumentException e) {
+            }
+            assertEquals(0, changes.size());
+
+            // An update of every note without their title or text does not list them.
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, 1);
+            mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+            assertEquals(NoteStore.CHANGE_UPDATE + ":" + NoteStore.ALL_NOTES,
+                    changes.get(changes.size() - 1));
+        } finally {
+            store.removeChangeListener(listener);
+        }
+    }
+
+    /*
+     * Tests that a provider backed by the log store gives the same results as the default store
+     * for the same calls, and that the notes are still there when the log is opened again.
+     */
+    public void testLogStore() throws Exception {
+        File directory = emptyLogDirectory();
+        NotePadProvider logProvider = new NotePadProvider(new LogNoteStore(directory));
+        logProvider.attachInfo(getMockContext(), null);
+        try {
+            assertEquals(runStoreWorkload(getProvider()), runStoreWorkload(logProvider));
+        } finally {
+            logProvider.shutdown();
+        }
+
+        Cursor expected = getProvider().getNoteStoreForTest().list(NoteStore.COLUMNS,
+                NoteStore.FIRST_PAGE, 0, 0, null);
+        LogNoteStore store = new LogNoteStore(directory);
+        try {
+            assertEquals(rowsOf(expected), rowsOf(store.list(NoteStore.COLUMNS,
+                    NoteStore.FIRST_PAGE, 0, 0, null)));
+        } finally {
+            store.close();
+        }
+    }
+
+    /*
+     * Tests that opening the log after a crash cuts off a record that was only written in part,
+     * and a batch that was written without its commit record, and keeps everything before them.
+     */
+    public void testLogStoreRecovery() throws Exception {
+        File directory = emptyLogDirectory();
+        LogNoteStore store = new LogNoteStore(directory);
+        for (NoteInfo note : TEST_NOTES) {
+            store.insert(note.getContentValues());
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, store.update(1, values));
+        store.close();
+
+        // Cuts the last record, which renamed the first note, short in the middle.
+        File segment = lastSegment(directory);
+        long length = segment.length();
+        truncate(segment, length - 5);
+        store = new LogNoteStore(directory);
+        try {
+            assertEquals(TEST_NOTES[0].title, readTitle(store, 1));
+            assertEquals(TEST_NOTES.length, store.list(null, NoteStore.FIRST_PAGE, 0, 0, null)
+                    .getCount());
+
+            // The rest of the record is gone, so new records follow the ones before it.
+            assertTrue(segment.length() < length - 5);
+            assertEquals(1, store.update(1, values));
+        } finally {
+            store.close();
+        }
+        store = new LogNoteStore(directory);
+        try {
+            assertEquals("Renamed", readTitle(store, 1));
+
+            // Writes a batch, then cuts off the commit record at its end.
+            store.beginBatch();
+            store.delete(2);
+            store.insert(new NoteInfo("Batched", "Lost with its batch").getContentValues());
+            store.setBatchSuccessful();
+            store.endBatch();
+            assertNull(readTitle(store, 2));
+        } finally {
+            store.close();
+        }
+        length = segment.length();
+        truncate(segment, length - 1);
+        store = new LogNoteStore(directory);
+        try {
+            assertEquals(TEST_NOTES[1].title, readTitle(store, 2));
+            assertEquals(TEST_NOTES.length, store.list(null, NoteStore.FIRST_PAGE, 0, 0, null)
+                    .getCount());
+        } finally {
+            store.close();
+        }
+    }
+
+    /*
+     * Tests that compacting the log deletes the segments that only hold stale records, and
+     * that neither the notes nor their deletions are lost when the log is opened again.
+     */
+    public void testLogStoreCompaction() throws Exception {
+        File directory = emptyLogDirectory();
+        LogNoteStore store = new LogNoteStore(directory, 1024);
+        for (NoteInfo note : TEST_NOTES) {
+            store.insert(note.getContentValues());
+        }
+        store.delete(3);
+
+        // Saves the first note over and over, as the editor does.
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 200; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Save " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + i);
+            store.update(1, values);
+        }
+        store.delete(4);
+        int segments = directory.list().length;
+        store.compact();
+        assertTrue(directory.list().length < segments / 4);
+
+        String[] projection = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE };
+        String expected = rowsOf(store.list(projection, NoteStore.FIRST_PAGE, 0, 0, null));
+        store.close();
+
+        store = new LogNoteStore(directory, 1024);
+        try {
+            assertEquals(expected, rowsOf(store.list(projection, NoteStore.FIRST_PAGE, 0, 0,
+                    null)));
+            assertEquals("Save 199", readTitle(store, 1));
+            assertNull(readTitle(store, 3));
+            assertNull(readTitle(store, 4));
+            assertEquals(TEST_NOTES.length - 2, store.list(null, NoteStore.FIRST_PAGE, 0, 0,
+                    null).getCount());
+        } finally {
+            store.close();
+        }
+    }
+
+    /*
+     * Tests that the notes a compaction copied are found when the log is opened again without
+     * having been closed, as after a crash, since the segments they came from are gone.
+     */
+    public void testLogStoreCompactionRecovery() throws Exception {
+        File directory = emptyLogDirectory();
+        LogNoteStore crashed = new LogNoteStore(directory, 1024);
+        LogNoteStore store = null;
+        try {
+            for (NoteInfo note : TEST_NOTES) {
+                crashed.insert(note.getContentValues());
+            }
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < 200; i++) {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Save " + i);
+                crashed.update(1, values);
+            }
+            int segments = directory.list().length;
+            crashed.compact();
+            assertTrue(directory.list().length < segments);
+
+            // Opens the log while the store that compacted it is still open.
+            store = new LogNoteStore(directory, 1024);
+            assertEquals("Save 199", readTitle(store, 1));
+            for (int i = 1; i < TEST_NOTES.length; i++) {
+                assertEquals(TEST_NOTES[i].title, readTitle(store, i + 1));
+            }
+        } finally {
+            if (store != null) {
+                store.close();
+            }
+            crashed.close();
+        }
+    }
+
+    /*
+     * Tests that the log store keeps the revisions of a note through a rolled back batch, a
+     * compaction and opening the log again, and that a revision a compaction copied does not
+     * replace the note it belongs to.
+     */
+    public void testLogStoreRevisions() throws Exception {
+        File directory = emptyLogDirectory();
+        LogNoteStore store = new LogNoteStore(directory, 1024);
+        ContentValues values = new ContentValues();
+        // Enough saves for the oldest revisions to be dropped.
+        int saves = NotePad.Revisions.MAX_REVISIONS + 30;
+        try {
+            store.insert(new NoteInfo("History", "Text 0").getContentValues());
+            for (int i = 1; i < saves; i++) {
+                values.clear();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Text " + i);
+                store.update(1, values);
+
+                // Saves that only rename the note are no revisions, and leave the segments
+                // stale enough to be compacted around the revisions.
+                values.clear();
+                for (int j = 0; j < 3; j++) {
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title " + i + "." + j);
+                    store.update(1, values);
+                }
+            }
+
+            store.beginBatch();
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rolled back");
+            store.update(1, values);
+            store.endBatch();
+            assertEquals(NotePad.Revisions.MAX_REVISIONS,
+                    store.listRevisions(1, null, null).getCount());
+
+            int segments = directory.list().length;
+            store.compact();
+            assertTrue(directory.list().length < segments);
+        } finally {
+            store.close();
+        }
+
+        store = new LogNoteStore(directory, 1024);
+        try {
+            // The dropped revisions stay dropped, though their records may still be in the log.
+            assertEquals("Title " + (saves - 1) + ".2", readTitle(store, 1));
+            Cursor c = store.listRevisions(1, new String[] {
+                    NotePad.Revisions.COLUMN_NAME_REVISION, NotePad.Revisions.COLUMN_NAME_LENGTH
+            }, null);
+            assertEquals(NotePad.Revisions.MAX_REVISIONS, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(saves, c.getLong(0));
+            assertEquals(("Text " + (saves - 1)).length(), c.getInt(1));
+            c.close();
+            for (int i = 0; i < saves; i++) {
+                c = store.getRevision(1, i + 1,
+                        new String[] { NotePad.Revisions.COLUMN_NAME_NOTE });
+                if (i < saves - NotePad.Revisions.MAX_REVISIONS) {
+                    assertEquals(0, c.getCount());
+                } else {
+                    assertTrue(c.moveToFirst());
+                    assertEquals("Text " + i, c.getString(0));
+                }
+                c.close();
+            }
+
+            store.delete(1);
+            assertEquals(0, store.listRevisions(1, null, null).getCount());
+        } finally {
+            store.close();
+        }
+        store = new LogNoteStore(directory, 1024);
+        try {
+            assertEquals(0, store.listRevisions(1, null, null).getCount());
+        } finally {
+            store.close();
+        }
+    }
+
+    // Returns an empty directory for a log store.
+    private File emptyLogDirectory() {
+        File directory = new File(getContext().getCacheDir(), "notes-log-test");
+        if (directory.isDirectory()) {
+            for (File file : directory.listFiles()) {
+                assertTrue(file.delete());
+            }
+        }
+        return directory;
+    }
+
+    // Returns the segment of a log that is written to.
+    private static File lastSegment(File directory) {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return new File(directory, names[names.length - 1]);
+    }
+
+    // Cuts a file short, as a crash in the middle of writing it would.
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(length);
+        } finally {
+            output.close();
+        }
+    }
+
+    // Returns the title of a note in a store, or null if it does not exist.
+    private static String readTitle(NoteStore store, long id) {
+        Cursor c = store.get(id, new String[] { NotePad.Notes.COLUMN_NAME_TITLE });
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Tests that the provider notifies observers of the notes that changed and how: one note
+     * with its note ID URI, several with one URI listing them, and every note with the notes
+     * URI. Operations that change nothing send nothing.
+     */
+    public void testChangeNotifications() throws Exception {
+        RecordingResolver resolver = new RecordingResolver();
+        NotePadProvider provider = newRecordedProvider(resolver);
+        try {
+            ArrayList<Uri> notified = resolver.mNotified;
+            Uri noteUri = resolver.insert(NotePad.Notes.CONTENT_URI,
+                    TEST_NOTES[0].getContentValues());
+            long id = ContentUris.parseId(noteUri);
+            assertEquals(1, notified.size());
+            assertEquals(NoteStore.CHANGE_INSERT, NoteChangeNotifier.changeOf(notified.get(0)));
+            assertEquals(noteUri, notified.get(0).buildUpon().clearQuery().build());
+            assertEquals(id, NoteChangeNotifier.idsOf(notified.get(0))[0]);
+
+            notified.clear();
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+            resolver.update(noteUri, values, null, null);
+            resolver.update(noteUri, values, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                    new String[] { "Not this title" });
+            resolver.delete(noteUri, null, null);
+            resolver.delete(noteUri, null, null);
+            assertEquals(2, notified.size());
+            assertEquals(NoteStore.CHANGE_UPDATE, NoteChangeNotifier.changeOf(notified.get(0)));
+            assertEquals(NoteStore.CHANGE_DELETE, NoteChangeNotifier.changeOf(notified.get(1)));
+            assertEquals(id, NoteChangeNotifier.idsOf(notified.get(1))[0]);
+
+            // A batch sends one notification for each run of changes of the same kind.
+            notified.clear();
+            ContentValues[] notes = new ContentValues[3];
+            for (int i = 0; i < notes.length; i++) {
+                notes[i] = TEST_NOTES[i + 1].getContentValues();
+            }
+            assertEquals(3, resolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+            assertEquals(1, notified.size());
+            assertEquals(NoteStore.CHANGE_INSERT, NoteChangeNotifier.changeOf(notified.get(0)));
+            long[] ids = NoteChangeNotifier.idsOf(notified.get(0));
+            assertEquals(3, ids.length);
+
+            notified.clear();
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            for (long changed : ids) {
+                operations.add(ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, changed))
+                        .withValues(values)
+                        .build());
+            }
+            operations.add(ContentProviderOperation.newDelete(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[0]))
+                    .build());
+            resolver.applyBatch(NotePad.AUTHORITY, operations);
+            assertEquals(2, notified.size());
+            assertEquals(NoteStore.CHANGE_UPDATE, NoteChangeNotifier.changeOf(notified.get(0)));
+            assertEquals(3, NoteChangeNotifier.idsOf(notified.get(0)).length);
+            assertEquals(NoteStore.CHANGE_DELETE, NoteChangeNotifier.changeOf(notified.get(1)));
+
+            // A selection names the notes it changed; an update of every note does not.
+            notified.clear();
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, NotePad.Notes.BLUE_COLOR);
+            resolver.update(NotePad.Notes.CONTENT_URI, values,
+                    NotePad.Notes._ID + " = " + ids[1], null);
+            resolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+            assertEquals(2, notified.size());
+            assertEquals(ids[1], NoteChangeNotifier.idsOf(notified.get(0))[0]);
+            assertEquals(NotePad.Notes.CONTENT_URI, notified.get(1));
+            assertNull(NoteChangeNotifier.idsOf(notified.get(1)));
+
+            // Past the limit, a batch is notified as a change to every note.
+            notified.clear();
+            notes = new ContentValues[NoteChangeNotifier.MAX_NOTIFIED_IDS + 1];
+            for (int i = 0; i < notes.length; i++) {
+                notes[i] = new NoteInfo("Bulk" + i, "Bulk note").getContentValues();
+            }
+            resolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+            assertEquals(1, notified.size());
+            assertEquals(NotePad.Notes.CONTENT_URI, notified.get(0));
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    /*
+     * Tests that a list of every note, kept up to date by applying the change notifications
+     * one note at a time, ends up the same as the list loaded again from scratch.
+     */
+    public void testNoteListModel() throws Exception {
+        RecordingResolver resolver = new RecordingResolver();
+        NotePadProvider provider = newRecordedProvider(resolver);
+        String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        try {
+            long[] ids = new long[TEST_NOTES.length];
+            for (int i = 0; i < TEST_NOTES.length; i++) {
+                ContentValues values = TEST_NOTES[i].getContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + i / 2);
+                ids[i] = ContentUris.parseId(resolver.insert(NotePad.Notes.CONTENT_URI, values));
+            }
+            NoteListModel model = new NoteListModel(projection, 0, 2);
+            Cursor page = resolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                    NotePad.Notes.PAGED_SORT_ORDER);
+            model.addRows(model.readRows(page));
+            page.close();
+            resolver.mNotified.clear();
+
+            // Moves a note to the top, one to the bottom, deletes one and adds two.
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 100);
+            resolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[4]),
+                    values, null, null);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE - 100);
+            resolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[2]),
+                    values, null, null);
+            resolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[6]),
+                    null, null);
+            ContentValues[] notes = {
+                new NoteInfo("New0", "New note").getContentValues(),
+                new NoteInfo("New1", "New note").getContentValues()
+            };
+            notes[1].put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 1);
+            resolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+
+            for (Uri uri : resolver.mNotified) {
+                long[] changed = NoteChangeNotifier.idsOf(uri);
+                assertNotNull(changed);
+                for (long id : changed) {
+                    Cursor note = resolver.query(
+                            ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                            projection, null, null, null);
+                    assertTrue(model.apply(id, readRow(model, note), true));
+                }
+            }
+
+            NoteListModel reloaded = new NoteListModel(projection, 0, 2);
+            page = resolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                    NotePad.Notes.PAGED_SORT_ORDER);
+            reloaded.addRows(reloaded.readRows(page));
+            page.close();
+            assertEquals(rowsOf(reloaded.newCursor()), rowsOf(model.newCursor()));
+            assertEquals(ids[4], model.getId(0));
+            assertEquals(ids[2], model.getId(model.size() - 1));
+
+            // A note that moves past the end of a list that is not complete is left out.
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE - 200);
+            Uri firstUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[0]);
+            resolver.update(firstUri, values, null, null);
+            Cursor note = resolver.query(firstUri, projection, null, null, null);
+            int size = model.size();
+            assertTrue(model.apply(ids[0], readRow(model, note), false));
+            assertEquals(size - 1, model.size());
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    /*
+     * Tests that loading the notes of a list again keeps the rows of the notes that did not
+     * change, so that only the rows of the notes that did are bound again, and that applying a
+     * change that leaves a note's columns as they were keeps its row too.
+     */
+    public void testNoteListDiff() {
+        insertData();
+        String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        NoteListModel model = new NoteListModel(projection, 0, 2);
+        Cursor notes = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.PAGED_SORT_ORDER);
+        model.addRows(model.readRows(notes));
+        notes.close();
+        int size = model.size();
+        long changedId = model.getId(3);
+        Object[] unchanged = model.getRow(0);
+
+        // Nothing changed.
+        notes = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.PAGED_SORT_ORDER);
+        assertFalse(model.setRows(model.diffRows(notes, model.snapshot())));
+        notes.close();
+        assertSame(unchanged, model.getRow(0));
+
+        // Only the renamed note gets a new row.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        Uri changedUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, changedId);
+        mMockResolver.update(changedUri, values, null, null);
+        List<Object[]> previous = model.snapshot();
+        notes = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.PAGED_SORT_ORDER);
+        int version = model.getVersion();
+        assertTrue(model.setRows(model.diffRows(notes, previous)));
+        assertTrue(version != model.getVersion());
+        notes.close();
+        assertEquals(size, model.size());
+        for (int i = 0; i < size; i++) {
+            if (model.getId(i) == changedId) {
+                assertNotSame(previous.get(i), model.getRow(i));
+                assertEquals("Renamed", model.getRow(i)[1]);
+            } else {
+                assertSame(previous.get(i), model.getRow(i));
+            }
+        }
+
+        // A change to a column the list does not show leaves its row alone.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, NotePad.Notes.RED_COLOR);
+        mMockResolver.update(changedUri, values, null, null);
+        Object[] row = model.getRow(model.indexOf(changedId));
+        Cursor note = mMockResolver.query(changedUri, projection, null, null, null);
+        assertFalse(model.apply(changedId, readRow(model, note), true));
+        assertSame(row, model.getRow(model.indexOf(changedId)));
+    }
+
+    /*
+     * Reads a note as a row of a list, as NotesList does, and closes its cursor. Returns null
+     * if the note does not exist.
+     */
+    private static Object[] readRow(NoteListModel model, Cursor note) {
+        try {
+            List<Object[]> rows = model.readRows(note);
+            return rows.isEmpty() ? null : rows.get(0);
+        } finally {
+            note.close();
+        }
+    }
+
+    /*
+     * Tests that MyCursorAdapter shows the notes of a search result, and that binding its views
+     * again to the notes they show allocates nothing.
+     */
+    public void testSearchAdapterBinding() {
+        insertData();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, NotePad.Notes.BLUE_COLOR);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note3" });
+        String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_BACK_COLOR
+        };
+        Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_SEARCH_QUERY, "").build();
+        Cursor notes = mMockResolver.query(searchUri, projection, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER);
+        MyCursorAdapter adapter = new MyCursorAdapter(getContext(), R.layout.noteslist_item,
+                notes);
+        assertEquals(TEST_NOTES.length, adapter.getCount());
+
+        // Binds a view to each note.
+        View[] views = new View[notes.getCount()];
+        for (int i = 0; i < views.length; i++) {
+            assertTrue(notes.moveToPosition(i));
+            views[i] = adapter.newView(getContext(), notes, null);
+            adapter.bindView(views[i], getContext(), notes);
+            TextView title = (TextView) views[i].findViewById(android.R.id.text1);
+            String expected = notes.getString(1);
+            assertEquals(expected, title.getText().toString());
+            int color = "Note3".equals(expected) ? NotePad.Notes.BLUE_COLOR
+                    : NotePad.Notes.DEFAULT_COLOR;
+            assertEquals(MyCursorAdapter.colorOf(color),
+                    ((ColorDrawable) views[i].getBackground()).getColor());
+        }
+
+        // Binds each view to its note again, as the list does when it lays out. The dates are
+        // formatted again once a minute passes, so the rounds are measured again if one does.
+        NoteDateFormatter formatter = NoteDateFormatter.getInstance(getContext());
+        int allocations;
+        int version;
+        do {
+            version = formatter.getVersion();
+            for (int i = 0; i < views.length; i++) {
+                notes.moveToPosition(i);
+                adapter.bindView(views[i], getContext(), notes);
+            }
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < views.length; i++) {
+                    notes.moveToPosition(i);
+                    adapter.bindView(views[i], getContext(), notes);
+                }
+            }
+            allocations = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+        } while (formatter.getVersion() != version);
+        assertEquals(0, allocations);
+
+        // A view bound to another note shows it.
+        notes.moveToPosition(0);
+        adapter.bindView(views[1], getContext(), notes);
+        assertEquals(notes.getString(1),
+                ((TextView) views[1].findViewById(android.R.id.text1)).getText().toString());
+
+        adapter.changeCursor(null);
+        assertTrue(notes.isClosed());
+    }
+
+    /*
+     * Tests the forms NoteDateFormatter renders dates in, and that it renders the dates of a
+     * minute once.
+     */
+    public void testNoteDateFormatter() {
+        NoteDateFormatter formatter = new NoteDateFormatter(getContext());
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, 15);
+        calendar.set(Calendar.MINUTE, 30);
+        calendar.set(Calendar.SECOND, 20);
+        long now = calendar.getTimeInMillis();
+        long minute = DateUtils.MINUTE_IN_MILLIS;
+
+        // Minutes ago, and never less than one.
+        String fiveMinutes = DateUtils.getRelativeTimeSpanString(now - 5 * minute, now,
+                DateUtils.MINUTE_IN_MILLIS, DateUtils.FORMAT_ABBREV_RELATIVE).toString();
+        assertEquals(fiveMinutes, formatter.format(now - 5 * minute, now));
+        String oneMinute = DateUtils.getRelativeTimeSpanString(now - minute, now,
+                DateUtils.MINUTE_IN_MILLIS, DateUtils.FORMAT_ABBREV_RELATIVE).toString();
+        assertEquals(oneMinute, formatter.format(now - 1000, now));
+
+        // The text of a minute is rendered once.
+        assertSame(formatter.format(now - 5 * minute, now),
+                formatter.format(now - 5 * minute + 10000, now));
+
+        // Hours ago, earlier today.
+        assertEquals(DateUtils.getRelativeTimeSpanString(now - 3 * DateUtils.HOUR_IN_MILLIS,
+                now, DateUtils.HOUR_IN_MILLIS, DateUtils.FORMAT_ABBREV_RELATIVE).toString(),
+                formatter.format(now - 3 * DateUtils.HOUR_IN_MILLIS, now));
+
+        // Yesterday.
+        long yesterday = now - DateUtils.DAY_IN_MILLIS;
+        assertEquals(DateUtils.getRelativeTimeSpanString(yesterday, now,
+                DateUtils.DAY_IN_MILLIS, DateUtils.FORMAT_ABBREV_RELATIVE).toString(),
+                formatter.format(yesterday, now));
+
+        // The full date before that.
+        long lastWeek = now - ONE_WEEK_MILLIS;
+        assertEquals(DateUtils.formatDateTime(getContext(), lastWeek,
+                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME
+                        | DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_NUMERIC_DATE),
+                formatter.format(lastWeek, now));
+
+        // A minute later, a recent date reads a minute older.
+        assertEquals(DateUtils.getRelativeTimeSpanString(now - 6 * minute, now,
+                DateUtils.MINUTE_IN_MILLIS, DateUtils.FORMAT_ABBREV_RELATIVE).toString(),
+                formatter.format(now - 5 * minute, now + minute));
+    }
+
+    /*
+     * Tests that MyCursorAdapter shows the date of a search result again once the date
+     * formatter's version changes, since the relative text may have changed, and not before.
+     */
+    public void testSearchAdapterDates() {
+        long modified = System.currentTimeMillis() - 5 * DateUtils.MINUTE_IN_MILLIS;
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Recent");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Cursor notes = mMockResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        }, null, null, null);
+        MyCursorAdapter adapter = new MyCursorAdapter(getContext(), R.layout.noteslist_item,
+                notes);
+        NoteDateFormatter formatter = NoteDateFormatter.getInstance(getContext());
+
+        assertTrue(notes.moveToFirst());
+        View view = adapter.newView(getContext(), notes, null);
+        adapter.bindView(view, getContext(), notes);
+        TextView date = (TextView) view.findViewById(R.id.text2);
+        assertEquals(formatter.format(modified), date.getText().toString());
+
+        // Binding the view again to the same note, in the same minute, leaves the date alone.
+        int version = formatter.getVersion();
+        date.setText("Shown before");
+        adapter.bindView(view, getContext(), notes);
+        if (formatter.getVersion() == version) {
+            assertEquals("Shown before", date.getText().toString());
+        }
+
+        // Once the version changes, as it does every minute, the date is rendered again.
+        version = formatter.getVersion();
+        formatter.invalidate();
+        assertTrue(formatter.getVersion() != version);
+        adapter.bindView(view, getContext(), notes);
+        assertEquals(formatter.format(modified), date.getText().toString());
+
+        adapter.changeCursor(null);
+    }
+
+    /*
+     * Tests the months URI, and NoteSectionIndex, which reads it and keeps it up to date as
+     * notes change.
+     */
+    public void testMonthSections() {
+        // Two notes in March 2024, one in January 2024 and three in December 2023.
+        long[] dates = {
+            new GregorianCalendar(2024, Calendar.MARCH, 31, 23, 59).getTimeInMillis(),
+            new GregorianCalendar(2024, Calendar.MARCH, 1, 0, 0).getTimeInMillis(),
+            new GregorianCalendar(2024, Calendar.JANUARY, 15, 12, 0).getTimeInMillis(),
+            new GregorianCalendar(2023, Calendar.DECEMBER, 31, 23, 0).getTimeInMillis(),
+            new GregorianCalendar(2023, Calendar.DECEMBER, 2, 8, 0).getTimeInMillis(),
+            new GregorianCalendar(2023, Calendar.DECEMBER, 1, 0, 30).getTimeInMillis()
+        };
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < dates.length; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, dates[i]);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        Cursor months = mMockResolver.query(NotePad.Notes.CONTENT_MONTHS_URI, null, null, null,
+                null);
+        assertEquals(3, months.getCount());
+        int[][] expected = { { 202403, 2 }, { 202401, 1 }, { 202312, 3 } };
+        for (int[] month : expected) {
+            assertTrue(months.moveToNext());
+            assertEquals(month[0], months.getInt(
+                    months.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_MONTH)));
+            assertEquals(month[1], months.getInt(
+                    months.getColumnIndexOrThrow(NotePad.Notes._COUNT)));
+        }
+
+        NoteSectionIndex index = new NoteSectionIndex(getContext());
+        index.set(NoteSectionIndex.read(getContext(), months));
+        months.close();
+        assertEquals(3, index.getSections().length);
+        assertEquals(dates.length, index.getTotal());
+        assertEquals(0, index.getPositionForSection(0));
+        assertEquals(2, index.getPositionForSection(1));
+        assertEquals(3, index.getPositionForSection(2));
+        assertEquals(3, index.getPositionForSection(5));
+        assertEquals(0, index.getSectionForPosition(1));
+        assertEquals(1, index.getSectionForPosition(2));
+        assertEquals(2, index.getSectionForPosition(5));
+
+        // A note edited in March moves to February, a month the index did not have.
+        int version = index.getVersion();
+        Object[] sections = index.getSections();
+        assertFalse(index.add(dates[1], -1));
+        assertTrue(index.add(new GregorianCalendar(2024, Calendar.FEBRUARY, 10, 9, 0)
+                .getTimeInMillis(), 1));
+        assertTrue(version != index.getVersion());
+        assertNotSame(sections, index.getSections());
+        assertEquals(4, index.getSections().length);
+        assertEquals(1, index.getPositionForSection(1));
+        assertEquals(2, index.getPositionForSection(2));
+
+        // Deleting the note of January removes its month.
+        assertTrue(index.add(dates[2], -1));
+        assertEquals(3, index.getSections().length);
+        assertEquals(dates.length - 1, index.getTotal());
+        assertEquals(2, index.getPositionForSection(2));
+
+        try {
+            index.add(dates[0], 2);
+            fail("add() accepted a delta of 2");
+        } catch (IllegalArgumentException e) {
+            // The expected exception.
+        }
+    }
+
+    /*
+     * Returns a provider backed by the default store on the test database, which sends its
+     * change notifications to the given resolver.
+     */
+    private NotePadProvider newRecordedProvider(RecordingResolver resolver) {
+        NotePadProvider provider = new NotePadProvider();
+        provider.attachInfo(new IsolatedContext(resolver, getMockContext()), null);
+        resolver.addProvider(NotePad.AUTHORITY, provider);
+        return provider;
+    }
+
+    /*
+     * A resolver that records the change notifications sent to it, rather than dropping them.
+     */
+    private static class RecordingResolver extends MockContentResolver {
+        final ArrayList<Uri> mNotified = new ArrayList<Uri>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            mNotified.add(uri);
+        }
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, int flags) {
+            mNotified.add(uri);
+        }
+    }
+
+    /*
+     * Makes the same calls that the app makes on a provider, and returns what it saw, so that
+     * providers backed by different stores can be compared.
+     */
+    private ArrayList<String> runStoreWorkload(NotePadProvider provider) throws Exception {
+        ArrayList<String> results = new ArrayList<String>();
+        String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_LINE_COUNT
+        };
+
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            ContentValues values = TEST_NOTES[index].getContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + index / 3);
+            provider.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        Uri chineseUri = provider.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("购物清单", "明天去超市买牛奶\n还有面包").getContentValues());
+
+        // Reads a single note.
+        results.add(rowsOf(provider.query(chineseUri, null, null, null, null)));
+
+        // Lists the notes, then lists them again a page at a time.
+        results.add(rowsOf(provider.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                null)));
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "4")
+                .build();
+        while (true) {
+            Cursor page = provider.query(pageUri, projection, null, null, null);
+            if (!page.moveToLast()) {
+                page.close();
+                break;
+            }
+            pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, "4")
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_MODIFIED,
+                            Long.toString(page.getLong(2)))
+                    .appendQueryParameter(NotePad.Notes.PARAM_AFTER_ID,
+                            Long.toString(page.getLong(0)))
+                    .build();
+            results.add(rowsOf(page));
+        }
+
+        // Searches.
+        for (String query : new String[] { "", "note", "NO", "this note 7", "超市", "奶", "超牛" }) {
+            Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_SEARCH_QUERY, query)
+                    .build();
+            results.add(query + " " + rowsOf(provider.query(searchUri,
+                    new String[] { NotePad.Notes._ID }, null, null, null)));
+        }
+
+        // Edits a note, deletes another, and reads them back.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Edited");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Edited text");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 100);
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        results.add("updated " + provider.update(noteUri, values, null, null));
+        results.add(rowsOf(provider.query(noteUri, null, null, null, null)));
+        noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 3);
+        results.add("deleted " + provider.delete(noteUri, null, null));
+        results.add("deleted " + provider.delete(noteUri, null, null));
+        results.add(rowsOf(provider.query(noteUri, null, null, null, null)));
+
+        // Lists the revisions of the edited note, reverts it to its first one, and lists them
+        // again, along with those of the deleted note, which are gone.
+        String[] revisionProjection = {
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+            NotePad.Revisions.COLUMN_NAME_REVISION,
+            NotePad.Revisions.COLUMN_NAME_LENGTH
+        };
+        Uri revisionsUri = NotePad.Revisions.getContentUri(2);
+        results.add(rowsOf(provider.query(revisionsUri, revisionProjection, null, null, null)));
+        Uri revisionUri = NotePad.Revisions.getItemUri(2, 1);
+        results.add(rowsOf(provider.query(revisionUri, new String[] {
+                NotePad.Revisions.COLUMN_NAME_REVISION, NotePad.Revisions.COLUMN_NAME_NOTE },
+                null, null, null)));
+        results.add("reverted " + provider.update(revisionUri, new ContentValues(), null, null));
+        results.add(rowsOf(provider.query(revisionsUri, revisionProjection, null, null, null)));
+        results.add(rowsOf(provider.query(NotePad.Revisions.getContentUri(3),
+                revisionProjection, null, null, null)));
+
+        // Lists the notes for a live folder, and exports them.
+        results.add(rowsOf(provider.query(
+                Uri.parse("content://" + NotePad.AUTHORITY + "/live_folders/notes"),
+                null, null, null, null)));
+        AssetFileDescriptor export = provider.openTypedAssetFile(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.EXPORT_JSON_TYPE, null);
+        BufferedReader in = new BufferedReader(new InputStreamReader(export.createInputStream(),
+                StandardCharsets.UTF_8));
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                results.add(line);
+            }
+        } finally {
+            in.close();
+        }
+
+        // Inserts in bulk, and applies a batch that fails, which changes nothing.
+        ContentValues[] notes = {
+            new NoteInfo("Bulk0", "Bulk note").getContentValues(),
+            new NoteInfo("Bulk1", "Bulk note").getContentValues()
+        };
+        results.add("inserted " + provider.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newDelete(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1)).build());
+        operations.add(ContentProviderOperation.newInsert(INVALID_URI).build());
+        try {
+            provider.applyBatch(operations);
+            fail("Expected the batch to fail");
+        } catch (IllegalArgumentException e) {
+        }
+        results.add(rowsOf(provider.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER)));
+
+        // Counts the notes of each month, after adding one from more than a year earlier.
+        values = new NoteInfo("Old", "Old note").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                START_DATE - 400 * DateUtils.DAY_IN_MILLIS);
+        provider.insert(NotePad.Notes.CONTENT_URI, values);
+        results.add(rowsOf(provider.query(NotePad.Notes.CONTENT_MONTHS_URI, null, null, null,
+                null)));
+        results.add(rowsOf(provider.query(NotePad.Notes.CONTENT_MONTHS_URI,
+                new String[] { NotePad.Notes._COUNT }, null, null, null)));
+        return results;
+    }
+
+    // Returns every row of a cursor as text, and closes it.
+    private static String rowsOf(Cursor cursor) {
+        StringBuilder rows = new StringBuilder();
+        try {
+            while (cursor.moveToNext()) {
+                rows.append('[');
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    rows.append(cursor.getColumnName(i)).append('=')
+                            .append(cursor.getString(i)).append(' ');
+                }
+                rows.append(']');
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows.toString();
+    }
+
+    // Reads the text of a single note through the provider.
+    private String readNote(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the row ID and sequence number of each chunk of a note. A rewritten chunk gets a
+    // new row, so its key changes.
+    private ArrayList<String> chunkKeys(long noteId) {
+        ArrayList<String> keys = new ArrayList<String>();
+        Cursor cursor = mDb.query(NoteChunks.TABLE_NAME,
+                new String[] { "rowid", NoteChunks.COLUMN_SEQUENCE },
+                NoteChunks.COLUMN_NOTE_ID + " = " + noteId, null, null, null,
+                NoteChunks.COLUMN_SEQUENCE);
+        while (cursor.moveToNext()) {
+            keys.add(cursor.getLong(0) + ":" + cursor.getLong(1));
+        }
+        cursor.close();
+        return keys;
+    }
+
+    // Opens an export of every note, of the given MIME type, for reading line by line.
+    private BufferedReader openExport(String mimeType) throws IOException {
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, mimeType, null);
+        assertNotNull(descriptor);
+        return new BufferedReader(new InputStreamReader(descriptor.createInputStream(),
+                StandardCharsets.UTF_8));
+    }
+
+    // Returns the details of the query plan SQLite chooses for a query, one step per line.
+    private String explainQueryPlan(String sql) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = cursor.getColumnIndexOrThrow("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+
+    // Runs a search through the provider's search URI.
+    private Cursor search(String query) {
+        Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_SEARCH_QUERY, query)
+                .build();
+        return mMockResolver.query(
+            searchUri,                                                         // the search URI
+            new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE }, // ID and title
+            null,                                                              // no selection
+            null,                                                              // no arguments
+            null                                                               // default sort
+        );
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+
+import java.util.Arrays;
+
+/**
+ * Scrolls {@link NotesList} through a list of SCROLL_NOTES notes and reports the frame times
+ * and how many rows were bound, and then changes the notes it shows and reports how many rows
+ * each change bound again. Before NotesList used {@link NoteListAdapter}, every change bound
+ * every visible row again. The binds are counted by {@link BindCounter}, which the list shows
+ * its adapter through.
+ *
+ * Runs against the application's own provider, on notes it creates and deletes.
+ */
+@LargeTest
+public class NotesListScrollBenchmark extends ActivityInstrumentationTestCase2<NotesList> {
+
+    // Tag for the benchmark results in the log.
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of notes in the list.
+    private static final int SCROLL_NOTES = 10000;
+
+    // The title the notes of the benchmark start with, by which they are deleted.
+    private static final String TITLE_PREFIX = "Scroll benchmark ";
+
+    // The number of frames the list is scrolled for, and how far it scrolls in each.
+    private static final int SCROLL_FRAMES = 600;
+    private static final int SCROLL_PIXELS_PER_FRAME = 40;
+
+    // The frame budget at 60 frames a second.
+    private static final long FRAME_BUDGET_NANOS = 16666667;
+
+    // How long to wait for a change notification to reach the list.
+    private static final long NOTIFICATION_SETTLE_MILLIS = 500;
+
+    private ContentResolver mResolver;
+
+    // Counts the rows the list binds. Only touched on the main thread.
+    private BindCounter mBinds;
+
+    public NotesListScrollBenchmark() {
+        super(NotesList.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+        deleteNotes();
+        ContentValues[] notes = new ContentValues[SCROLL_NOTES];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, TITLE_PREFIX + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Note " + i);
+            notes[i].put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i * 60000L);
+        }
+        mResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteNotes();
+        super.tearDown();
+    }
+
+    public void testScrollAndRefresh() throws Exception {
+        final NotesList activity = getActivity();
+        final ListView list = activity.getListView();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mBinds = new BindCounter((NoteListAdapter) activity.getListAdapter());
+                activity.setListAdapter(mBinds);
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+
+        // Scrolls the list by a fixed distance each frame, recording how long each frame took.
+        final long[] frames = new long[SCROLL_FRAMES];
+        final Object done = new Object();
+        int boundBefore = countBinds();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                    private long mLastFrameNanos;
+                    private int mFrame = -1;
+
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        if (mFrame >= 0) {
+                            frames[mFrame] = frameTimeNanos - mLastFrameNanos;
+                        }
+                        mLastFrameNanos = frameTimeNanos;
+                        if (++mFrame == frames.length) {
+                            synchronized (done) {
+                                done.notifyAll();
+                            }
+                            return;
+                        }
+                        list.scrollListBy(SCROLL_PIXELS_PER_FRAME);
+                        Choreographer.getInstance().postFrameCallback(this);
+                    }
+                });
+            }
+        });
+        synchronized (done) {
+            done.wait(frames.length * FRAME_BUDGET_NANOS / 1000000 * 10);
+        }
+        getInstrumentation().waitForIdleSync();
+        int scrollBinds = countBinds() - boundBefore;
+        int scrolledPast = list.getLastVisiblePosition();
+
+        int janky = 0;
+        for (long frame : frames) {
+            if (frame > FRAME_BUDGET_NANOS * 3 / 2) {
+                janky++;
+            }
+        }
+        Arrays.sort(frames);
+        Log.i(TAG, "list scroll notes=" + SCROLL_NOTES + " frames=" + frames.length
+                + " rowsScrolled=" + scrolledPast + " binds=" + scrollBinds
+                + " p50=" + frames[frames.length / 2] / 1000 + "us"
+                + " p90=" + frames[frames.length * 9 / 10] / 1000 + "us"
+                + " max=" + frames[frames.length - 1] / 1000 + "us"
+                + " janky=" + janky);
+
+        // Renames a visible note, which stays where it is.
+        int visible = list.getChildCount();
+        long id = list.getItemIdAtPosition(list.getFirstVisiblePosition() + visible / 2);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, TITLE_PREFIX + "renamed");
+        int editBinds = bindsAfter(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                id), values);
+
+        // Moves a visible note to the top of the list, shifting the notes above it down.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                list.setSelection(0);
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+        id = list.getItemIdAtPosition(visible / 2);
+        int moveBinds = bindsAfter(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                id), values);
+
+        // Notifies a change to every note, which reloads the list in the background.
+        mResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_RESET, null, null);
+        int refreshBinds = bindsAfter(null, null);
+        Bundle metrics = mResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_GET,
+                null, null);
+        assertEquals(1, metrics.getLongArray("query notes")[NotePad.Metrics.INDEX_COUNT]);
+
+        Log.i(TAG, "list refresh visibleRows=" + visible
+                + " editBinds=" + editBinds
+                + " moveBinds=" + moveBinds
+                + " refreshBinds=" + refreshBinds
+                + " bindsBefore=" + visible);
+        assertEquals(1, editBinds);
+        assertEquals(0, refreshBinds);
+    }
+
+    /*
+     * Updates a note, or notifies a change to every note if no note is given, and returns how
+     * many rows the list bound once the change reached it.
+     */
+    private int bindsAfter(Uri noteUri, ContentValues values) {
+        int boundBefore = countBinds();
+        if (noteUri != null) {
+            assertEquals(1, mResolver.update(noteUri, values, null, null));
+        } else {
+            mResolver.notifyChange(NotePad.Notes.CONTENT_URI, null);
+        }
+        SystemClock.sleep(NOTIFICATION_SETTLE_MILLIS);
+        getInstrumentation().waitForIdleSync();
+        return countBinds() - boundBefore;
+    }
+
+    private int countBinds() {
+        final int[] binds = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                binds[0] = mBinds.mBinds;
+            }
+        });
+        return binds[0];
+    }
+
+    private void deleteNotes() {
+        mResolver.delete(NotePad.Notes.CONTENT_URI, NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?",
+                new String[] { TITLE_PREFIX + "%" });
+    }
+
+    /*
+     * Shows the rows of a NoteListAdapter, and counts how many times it bound a row to a note.
+     * The adapter sets the title of a row only when it binds the row, so every row it creates is
+     * counted once, and then every change to its title.
+     */
+    private static final class BindCounter extends BaseAdapter implements SectionIndexer {
+
+        private final NoteListAdapter mAdapter;
+
+        // Counts the titles set by the rows, once the rows have been created.
+        private final TextWatcher mTitleWatcher = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mBinds++;
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        };
+
+        int mBinds;
+
+        BindCounter(NoteListAdapter adapter) {
+            mAdapter = adapter;
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+            mAdapter.registerDataSetObserver(observer);
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+            mAdapter.unregisterDataSetObserver(observer);
+        }
+
+        @Override
+        public int getCount() {
+            return mAdapter.getCount();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mAdapter.getItem(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mAdapter.getItemId(position);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return mAdapter.hasStableIds();
+        }
+
+        @Override
+        public Object[] getSections() {
+            return mAdapter.getSections();
+        }
+
+        @Override
+        public int getPositionForSection(int section) {
+            return mAdapter.getPositionForSection(section);
+        }
+
+        @Override
+        public int getSectionForPosition(int position) {
+            return mAdapter.getSectionForPosition(position);
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = mAdapter.getView(position, convertView, parent);
+            if (convertView == null) {
+                mBinds++;
+                ((TextView) view.findViewById(android.R.id.text1))
+                        .addTextChangedListener(mTitleWatcher);
+            }
+            return view;
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link NoteStore} that keeps the notes in memory and loses them when it is closed, for
+ * tests and for comparing stores in benchmarks. Each note is a {@link NoteRows} array of the
+ * values of {@link NoteStore#COLUMNS}, in a map sorted by ID and in a set sorted in
+ * {@link NotePad.Notes#PAGED_SORT_ORDER}; the arrays are replaced rather than changed, so
+ * cursors can be filled from them without copying. Searches scan every note with the tokens
+ * and phrases of {@link NoteSearchIndex}, so they find the same notes as the search table.
+ * Each revision holds the whole text, in a list per note that is also replaced rather than
+ * changed, and holds the newest {@link NotePad.Revisions#MAX_REVISIONS} revisions.
+ *
+ * Reads share a lock and writes take it exclusively. A batch holds it until it ends or yields,
+ * so unlike the SQLite store, which reads from the write-ahead log, it keeps readers waiting.
+ * A batch remembers the notes it changed, and their revisions, as they were before, to put them
+ * back if it is rolled back.
+ *
+ * Set to package visibility, since only the provider, its tests and the benchmarks need it.
+ */
+final class InMemoryNoteStore implements NoteStore {
+
+    // The number of notes a list or search steps over between checks of its cancellation signal.
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    // Orders notes by descending modification date, then by ascending ID.
+    private static final Comparator<Object[]> PAGED_ORDER = new Comparator<Object[]>() {
+        @Override
+        public int compare(Object[] a, Object[] b) {
+            int modified = Long.compare(NoteRows.longOf(b[NoteRows.MODIFIED]),
+                    NoteRows.longOf(a[NoteRows.MODIFIED]));
+            return modified != 0 ? modified : Long.compare(NoteRows.longOf(a[NoteRows.ID]),
+                    NoteRows.longOf(b[NoteRows.ID]));
+        }
+    };
+
+    private final TreeMap<Long, Object[]> mNotes = new TreeMap<Long, Object[]>();
+
+    private final TreeSet<Object[]> mOrder = new TreeSet<Object[]>(PAGED_ORDER);
+
+    // The revisions of each note that has any, as arrays of the values of
+    // NoteStore.REVISION_COLUMNS, oldest first.
+    private final HashMap<Long, ArrayList<Object[]>> mRevisions =
+            new HashMap<Long, ArrayList<Object[]>>();
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private final NoteChangeFeed mFeed = new NoteChangeFeed();
+
+    // The ID of the next note inserted without one, which like SQLite's is one more than the
+    // largest ID ever used, and the same for revisions.
+    private long mNextId = 1;
+    private long mNextRevisionId = 1;
+
+    // The notes changed by the current batch as they were before it, or null for the notes it
+    // inserted, the same for their revisions, and the next IDs before it. Only used by the
+    // thread holding the write lock.
+    private HashMap<Long, Object[]> mUndo;
+    private HashMap<Long, ArrayList<Object[]>> mUndoRevisions;
+    private long mUndoNextId;
+    private long mUndoNextRevisionId;
+
+    @Override
+    public Cursor get(long id, String[] projection) {
+        int[] columns = NoteRows.columnIndexes(projection);
+        MatrixCursor c = new MatrixCursor(NoteRows.projectionOf(projection), 1);
+        mLock.readLock().lock();
+        try {
+            Object[] note = mNotes.get(id);
+            if (note != null) {
+                NoteRows.addRow(c, note, columns);
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor list(String[] projection, long afterModified, long afterId, int limit,
+            CancellationSignal cancellationSignal) {
+        int[] columns = NoteRows.columnIndexes(projection);
+        MatrixCursor c = new MatrixCursor(NoteRows.projectionOf(projection));
+        mLock.readLock().lock();
+        try {
+            NavigableSet<Object[]> notes = mOrder;
+            if (afterModified != FIRST_PAGE) {
+                Object[] after = new Object[COLUMNS.length];
+                after[NoteRows.ID] = afterId;
+                after[NoteRows.MODIFIED] = afterModified;
+                notes = mOrder.tailSet(after, false);
+            }
+            int count = 0;
+            for (Object[] note : notes) {
+                if (limit > 0 && count == limit) {
+                    break;
+                }
+                if (count % CANCEL_CHECK_INTERVAL == 0 && cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                NoteRows.addRow(c, note, columns);
+                count++;
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor listById(String[] projection, long afterId, int limit) {
+        int[] columns = NoteRows.columnIndexes(projection);
+        MatrixCursor c = new MatrixCursor(NoteRows.projectionOf(projection));
+        mLock.readLock().lock();
+        try {
+            for (Object[] note : mNotes.tailMap(afterId, false).values()) {
+                if (c.getCount() == limit) {
+                    break;
+                }
+                NoteRows.addRow(c, note, columns);
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor search(String query, String[] projection,
+            CancellationSignal cancellationSignal) {
+        int[] columns = NoteRows.columnIndexes(projection);
+        String[][] phrases = NoteSearchIndex.toPhrases(query);
+        MatrixCursor c = new MatrixCursor(NoteRows.projectionOf(projection));
+        mLock.readLock().lock();
+        try {
+            int count = 0;
+            for (Object[] note : mOrder) {
+                if (count++ % CANCEL_CHECK_INTERVAL == 0 && cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                if (phrases == null || NoteRows.matches(phrases, (String) note[NoteRows.TITLE],
+                        (String) note[NoteRows.NOTE])) {
+                    NoteRows.addRow(c, note, columns);
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor months(String[] projection, CancellationSignal cancellationSignal) {
+        NoteRows.MonthCounter months = new NoteRows.MonthCounter(projection);
+        mLock.readLock().lock();
+        try {
+            int count = 0;
+            for (Object[] note : mOrder) {
+                if (count++ % CANCEL_CHECK_INTERVAL == 0 && cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                months.add(NoteRows.longOf(note[NoteRows.MODIFIED]));
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return months.finish();
+    }
+
+    @Override
+    public Cursor listRevisions(long noteId, String[] projection,
+            CancellationSignal cancellationSignal) {
+        int[] columns = NoteRows.revisionColumnIndexes(projection, false);
+        MatrixCursor c = new MatrixCursor(NoteRows.revisionProjectionOf(projection, false));
+        mLock.readLock().lock();
+        try {
+            ArrayList<Object[]> revisions = mRevisions.get(noteId);
+            if (revisions != null) {
+                for (int i = revisions.size() - 1; i >= 0; i--) {
+                    if (i % CANCEL_CHECK_INTERVAL == 0 && cancellationSignal != null) {
+                        cancellationSignal.throwIfCanceled();
+                    }
+                    NoteRows.addRow(c, revisions.get(i), columns);
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor getRevision(long noteId, long revision, String[] projection) {
+        int[] columns = NoteRows.revisionColumnIndexes(projection, true);
+        MatrixCursor c = new MatrixCursor(NoteRows.revisionProjectionOf(projection, true), 1);
+        mLock.readLock().lock();
+        try {
+            ArrayList<Object[]> revisions = mRevisions.get(noteId);
+            if (revisions != null) {
+                // The numbers of a note's revisions follow on from each other.
+                long index = revision - (Long) revisions.get(0)[NoteRows.REVISION_NUMBER];
+                if (index >= 0 && index < revisions.size()) {
+                    NoteRows.addRow(c, revisions.get((int) index), columns);
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public long insert(ContentValues values) {
+        Object[] note = NoteRows.newNote(values);
+
+        long id;
+        mLock.writeLock().lock();
+        try {
+            if (note[NoteRows.ID] == null) {
+                note[NoteRows.ID] = mNextId;
+            } else if (mNotes.containsKey(note[NoteRows.ID])) {
+                return -1;
+            }
+            id = (Long) note[NoteRows.ID];
+            remember(id, null);
+            mNotes.put(id, note);
+            mOrder.add(note);
+            mNextId = Math.max(mNextId, id + 1);
+            addRevision(id, (String) note[NoteRows.NOTE]);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mFeed.changed(CHANGE_INSERT, id);
+        return id;
+    }
+
+    @Override
+    public int update(long id, ContentValues values) {
+        mLock.writeLock().lock();
+        try {
+            Object[] old = mNotes.get(id);
+            if (old == null) {
+                return 0;
+            }
+            Object[] note = old.clone();
+            NoteRows.putValues(note, values);
+            note[NoteRows.ID] = id;
+            remember(id, old);
+            mOrder.remove(old);
+            mNotes.put(id, note);
+            mOrder.add(note);
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                    && !textOf(note).equals(textOf(old))) {
+                addRevision(id, (String) note[NoteRows.NOTE]);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mFeed.changed(CHANGE_UPDATE, id);
+        return 1;
+    }
+
+    @Override
+    public int delete(long id) {
+        mLock.writeLock().lock();
+        try {
+            Object[] old = mNotes.remove(id);
+            if (old == null) {
+                return 0;
+            }
+            remember(id, old);
+            mOrder.remove(old);
+            rememberRevisions(id);
+            mRevisions.remove(id);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mFeed.changed(CHANGE_DELETE, id);
+        return 1;
+    }
+
+    /**
+     * Starts a batch by taking the write lock, which it holds until it ends.
+     */
+    @Override
+    public void beginBatch() {
+        mFeed.beginBatch();
+        mLock.writeLock().lock();
+        mUndo = new HashMap<Long, Object[]>();
+        mUndoRevisions = new HashMap<Long, ArrayList<Object[]>>();
+        mUndoNextId = mNextId;
+        mUndoNextRevisionId = mNextRevisionId;
+    }
+
+    /**
+     * Commits the batch so far and lets in any thread waiting for the lock.
+     */
+    @Override
+    public void yieldBatchIfContended() {
+        if (!mLock.hasQueuedThreads()) {
+            return;
+        }
+        if (mUndo != null) {
+            mUndo.clear();
+            mUndoRevisions.clear();
+            mUndoNextId = mNextId;
+            mUndoNextRevisionId = mNextRevisionId;
+        }
+        mLock.writeLock().unlock();
+        mFeed.flushBatch();
+        mLock.writeLock().lock();
+    }
+
+    @Override
+    public void setBatchSuccessful() {
+        mFeed.setBatchSuccessful();
+        mUndo = null;
+        mUndoRevisions = null;
+    }
+
+    @Override
+    public void endBatch() {
+        try {
+            // The batch was not marked successful, so the notes it changed are put back.
+            if (mUndo != null) {
+                for (Map.Entry<Long, Object[]> entry : mUndo.entrySet()) {
+                    Object[] note = mNotes.remove(entry.getKey());
+                    if (note != null) {
+                        mOrder.remove(note);
+                    }
+                    if (entry.getValue() != null) {
+                        mNotes.put(entry.getKey(), entry.getValue());
+                        mOrder.add(entry.getValue());
+                    }
+                }
+                for (Map.Entry<Long, ArrayList<Object[]>> entry : mUndoRevisions.entrySet()) {
+                    if (entry.getValue() != null) {
+                        mRevisions.put(entry.getKey(), entry.getValue());
+                    } else {
+                        mRevisions.remove(entry.getKey());
+                    }
+                }
+                mNextId = mUndoNextId;
+                mNextRevisionId = mUndoNextRevisionId;
+                mUndo = null;
+                mUndoRevisions = null;
+            }
+        } finally {
+            mLock.writeLock().unlock();
+            mFeed.endBatch(true);
+        }
+    }
+
+    @Override
+    public long getChangeSequence() {
+        return mFeed.sequence();
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        mFeed.addListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        mFeed.removeListener(listener);
+    }
+
+    @Override
+    public void close() {
+        mLock.writeLock().lock();
+        try {
+            mNotes.clear();
+            mOrder.clear();
+            mRevisions.clear();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Remembers a note as it was before the current batch changed it, unless the batch already
+     * changed it before. Does nothing outside of batches, including for other threads that
+     * write while the batch has yielded the lock.
+     */
+    private void remember(long id, Object[] old) {
+        if (mUndo != null && mFeed.inBatch() && !mUndo.containsKey(id)) {
+            mUndo.put(id, old);
+        }
+    }
+
+    // Remembers the revisions of a note before the current batch changed them, like remember().
+    private void rememberRevisions(long id) {
+        if (mUndoRevisions != null && mFeed.inBatch() && !mUndoRevisions.containsKey(id)) {
+            mUndoRevisions.put(id, mRevisions.get(id));
+        }
+    }
+
+    /*
+     * Records the text of a note as its newest revision, replacing its list of revisions with
+     * one that also drops the oldest revision once there are MAX_REVISIONS of them.
+     */
+    private void addRevision(long id, String text) {
+        if (text == null) {
+            text = "";
+        }
+        rememberRevisions(id);
+        ArrayList<Object[]> old = mRevisions.get(id);
+        int kept = old != null ? Math.min(old.size(), NotePad.Revisions.MAX_REVISIONS - 1) : 0;
+        ArrayList<Object[]> revisions = new ArrayList<Object[]>(kept + 1);
+        if (kept > 0) {
+            revisions.addAll(old.subList(old.size() - kept, old.size()));
+        }
+        long number = old != null
+                ? (Long) old.get(old.size() - 1)[NoteRows.REVISION_NUMBER] + 1 : 1;
+        revisions.add(new Object[] {
+                mNextRevisionId++,
+                id,
+                number,
+                System.currentTimeMillis(),
+                (long) text.length(),
+                // The characters of the text, two bytes each.
+                2L * text.length(),
+                text
+        });
+        mRevisions.put(id, revisions);
+    }
+
+    // Returns the text of a note, which is empty if it has none, as for its revisions.
+    private static String textOf(Object[] note) {
+        return note[NoteRows.NOTE] != null ? (String) note[NoteRows.NOTE] : "";
+    }
+}
@@ -0,0 +1,1307 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link NoteStore} that appends every write to a log, for the autosave workload, where
+ * NoteEditor saves the whole note on every pause. Saving a note appends one record to the end
+ * of a file, instead of updating the pages of a B-tree, a search index and a write-ahead log.
+ *
+ * The log is a directory of segment files, numbered in the order they were written. Each
+ * record holds its length, a CRC32 of its body, its type, the note ID and, for a note that was
+ * written, every column of the note. Only the newest record of a note counts. An index in
+ * memory maps each note ID to its newest record, and keeps the notes in
+ * {@link NotePad.Notes#PAGED_SORT_ORDER}; the columns themselves are read from the segments
+ * through memory maps when they are needed. The index is rebuilt by reading the log when the
+ * store is opened.
+ *
+ * A record that changed the text of its note is marked as a revision, and ends with the
+ * revision's ID, number and date. It stays in the log as a revision of the note after newer
+ * records replace it, so revisions cost no writes of their own. A record counts as live while
+ * the index or a revision refers to it. Only the newest {@link NotePad.Revisions#MAX_REVISIONS}
+ * revisions of a note are kept, and replaying the log drops the older ones the same way, so a
+ * revision that was dropped stays dropped when the store is opened again.
+ *
+ * The records written by a batch are marked as such, and count only once a commit record
+ * follows them, so that a batch cut short by a crash is dropped as a whole. When the store is
+ * opened, a record cut short by a crash, or a batch without a commit record, is cut off the
+ * end of its segment. Records are not forced to the disk one by one: if the app dies they are
+ * still written by the kernel, but losing power can lose the last few, which recovery then
+ * cuts off.
+ *
+ * Once the active segment reaches its size limit, writes go to a new one. A segment that is at
+ * least {@link #COMPACT_STALE_PERCENT} percent stale is compacted in the background, by copying
+ * the records that still count to the end of the log, forcing them to the disk, and deleting
+ * the segment. A revision that is no longer the newest record of its note is copied as a
+ * revision record, which only adds the revision when it is replayed.
+ *
+ * Searches scan every note, as the in-memory store does. The queries the provider only offers
+ * through SQL are not available.
+ *
+ * Set to package visibility, since only the provider, its tests and the benchmarks need it.
+ */
+final class LogNoteStore implements NoteStore {
+
+    private static final String TAG = "LogNoteStore";
+
+    /**
+     * The file name suffix of the segments.
+     */
+    static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * The size a segment grows to before writes go to a new one.
+     */
+    static final long SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The share of a segment, in percent, that must be stale for it to be compacted.
+     */
+    static final int COMPACT_STALE_PERCENT = 50;
+
+    /**
+     * How long the store waits after starting a new segment before it compacts the old ones,
+     * so that a burst of saves is over first.
+     */
+    static final long COMPACTION_DELAY_MILLIS = 5000;
+
+    /*
+     * A record is its body's length and CRC32, followed by the body: a type, a note ID and,
+     * for RECORD_PUT and RECORD_REVISION, a value for each column of NoteStore.COLUMNS after
+     * the ID, followed for a revision by its ID, number and creation date.
+     */
+    private static final int HEADER_BYTES = 8;
+    private static final int MIN_BODY_BYTES = 9;
+    private static final int REVISION_BYTES = 24;
+
+    /*
+     * The types of record. Records written by a batch have IN_BATCH set, and count once a
+     * RECORD_COMMIT follows them. A RECORD_PUT that changed the text of its note has REVISION
+     * set. A RECORD_REVISION is the copy a compaction made of such a record after newer ones
+     * replaced it.
+     */
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_DELETE = 2;
+    private static final int RECORD_COMMIT = 3;
+    private static final int RECORD_REVISION = 4;
+    private static final int IN_BATCH = 0x80;
+    private static final int REVISION = 0x40;
+
+    /*
+     * The types of value in a RECORD_PUT.
+     */
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_LONG = 1;
+    private static final byte VALUE_TEXT = 2;
+
+    // The number of notes a list or search steps over between checks of its cancellation signal.
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    // Every column of a note, and only its text.
+    private static final boolean[] ALL_COLUMNS = new boolean[COLUMNS.length];
+    private static final boolean[] TEXT_COLUMN = new boolean[COLUMNS.length];
+
+    static {
+        Arrays.fill(ALL_COLUMNS, true);
+        TEXT_COLUMN[NoteRows.NOTE] = true;
+    }
+
+    /*
+     * A segment file of the log, which is mapped into memory for reading.
+     */
+    private static final class Segment {
+        final long number;
+        final File file;
+        final FileChannel channel;
+
+        // The bytes written to the segment, and those of the records in the index. Guarded by
+        // the store's lock; read with it held for reading and written with it held for writing.
+        long size;
+        long liveBytes;
+
+        // Covers at least the records in the index. Guarded by this.
+        private MappedByteBuffer mMap;
+
+        Segment(File file, long number) throws IOException {
+            this.file = file;
+            this.number = number;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            size = channel.size();
+        }
+
+        /**
+         * Returns a buffer over the segment, which holds at least its first end bytes. The
+         * segment is mapped again if it has grown past the end of the current map.
+         */
+        synchronized ByteBuffer map(long end) throws IOException {
+            if (mMap == null || mMap.capacity() < end) {
+                mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return mMap.duplicate();
+        }
+
+        /**
+         * Writes a record at the given offset, which is the end of the segment. A record that
+         * could only be written in part is cut off again.
+         */
+        void write(byte[] record, long offset) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+            } catch (IOException e) {
+                truncate(offset);
+                throw e;
+            }
+            size = offset + record.length;
+        }
+
+        synchronized void truncate(long newSize) throws IOException {
+            channel.truncate(newSize);
+            size = newSize;
+            mMap = null;
+        }
+
+        boolean isStale() {
+            return size > 0 && (size - liveBytes) * 100 >= size * COMPACT_STALE_PERCENT;
+        }
+    }
+
+    /*
+     * The newest record of a note.
+     */
+    private static final class Entry {
+        final long id;
+        final long modified;
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        // The index entries and revisions that refer to the record. Guarded by the store's
+        // lock.
+        int references;
+
+        Entry(long id, long modified, Segment segment, long offset, int length) {
+            this.id = id;
+            this.modified = modified;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /*
+     * A revision of a note, and the record holding its text.
+     */
+    private static final class Revision {
+        final long id;
+        final long number;
+        final long created;
+        final Entry entry;
+
+        Revision(long id, long number, long created, Entry entry) {
+            this.id = id;
+            this.number = number;
+            this.created = created;
+            this.entry = entry;
+        }
+
+        Revision withEntry(Entry entry) {
+            return new Revision(id, number, created, entry);
+        }
+    }
+
+    // Orders notes by descending modification date, then by ascending ID.
+    private static final Comparator<Entry> PAGED_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int modified = Long.compare(b.modified, a.modified);
+            return modified != 0 ? modified : Long.compare(a.id, b.id);
+        }
+    };
+
+    private final File mDirectory;
+
+    private final long mSegmentBytes;
+
+    // The segments, oldest first. The last one is the one written to.
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+
+    private final TreeMap<Long, Entry> mIndex = new TreeMap<Long, Entry>();
+
+    private final TreeSet<Entry> mOrder = new TreeSet<Entry>(PAGED_ORDER);
+
+    // The revisions of each note that has any, oldest first.
+    private final HashMap<Long, ArrayList<Revision>> mRevisions =
+            new HashMap<Long, ArrayList<Revision>>();
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private final NoteChangeFeed mFeed = new NoteChangeFeed();
+
+    // The ID of the next note inserted without one, which is one more than the largest ID in
+    // the log, and the same for revisions.
+    private long mNextId = 1;
+    private long mNextRevisionId = 1;
+
+    // The records the current batch replaced, or null for the notes it inserted, the same for
+    // the revisions of the notes it changed, and the next IDs before it. Only used by the
+    // thread in the batch while it holds the write lock.
+    private HashMap<Long, Entry> mUndo;
+    private HashMap<Long, ArrayList<Revision>> mUndoRevisions;
+    private long mUndoNextId;
+    private long mUndoNextRevisionId;
+
+    // Where the records of the current batch since its last commit start, and whether there
+    // are any.
+    private Segment mBatchSegment;
+    private long mBatchStart;
+    private boolean mBatchWritten;
+    private boolean mBatchSuccessful;
+
+    // Set once the store is closed. Guarded by the lock.
+    private boolean mClosed;
+
+    // Runs the compactions, off the threads that call the store. Guarded by this.
+    private Handler mCompactionHandler;
+
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    /**
+     * Opens the log in a directory, creating it if needed, and reads it into the index.
+     *
+     * @throws SQLException if the log cannot be opened, like the SQLite store.
+     */
+    LogNoteStore(File directory) {
+        this(directory, SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log with segments of the given size, which tests make small.
+     */
+    LogNoteStore(File directory, long segmentBytes) {
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        try {
+            open();
+        } catch (IOException e) {
+            throw failure("open", e);
+        }
+    }
+
+    @Override
+    public Cursor get(long id, String[] projection) {
+        int[] columns = NoteRows.columnIndexes(projection);
+        MatrixCursor c = new MatrixCursor(NoteRows.projectionOf(projection), 1);
+        mLock.readLock().lock();
+        try {
+            Entry entry = mIndex.get(id);
+            if (entry != null) {
+                NoteRows.addRow(c, read(entry, wanted(columns)), columns);
+            }
+        } catch (IOException e) {
+            throw failure("read a note", e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor list(String[] projection, long afterModified, long afterId, int limit,
+            CancellationSignal cancellationSignal) {
+        int[] columns = NoteRows.columnIndexes(projection);
+        boolean[] wanted = wanted(columns);
+        MatrixCursor c = new MatrixCursor(NoteRows.projectionOf(projection));
+        mLock.readLock().lock();
+        try {
+            NavigableSet<Entry> entries = mOrder;
+            if (afterModified != FIRST_PAGE) {
+                entries = mOrder.tailSet(new Entry(afterId, afterModified, null, 0, 0), false);
+            }
+            int count = 0;
+            for (Entry entry : entries) {
+                if (limit > 0 && count == limit) {
+                    break;
+                }
+                if (count % CANCEL_CHECK_INTERVAL == 0 && cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                NoteRows.addRow(c, read(entry, wanted), columns);
+                count++;
+            }
+        } catch (IOException e) {
+            throw failure("list notes", e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor listById(String[] projection, long afterId, int limit) {
+        int[] columns = NoteRows.columnIndexes(projection);
+        boolean[] wanted = wanted(columns);
+        MatrixCursor c = new MatrixCursor(NoteRows.projectionOf(projection));
+        mLock.readLock().lock();
+        try {
+            for (Entry entry : mIndex.tailMap(afterId, false).values()) {
+                if (c.getCount() == limit) {
+                    break;
+                }
+                NoteRows.addRow(c, read(entry, wanted), columns);
+            }
+        } catch (IOException e) {
+            throw failure("list notes", e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor search(String query, String[] projection,
+            CancellationSignal cancellationSignal) {
+        int[] columns = NoteRows.columnIndexes(projection);
+        boolean[] wanted = wanted(columns);
+        wanted[NoteRows.TITLE] = true;
+        wanted[NoteRows.NOTE] = true;
+        String[][] phrases = NoteSearchIndex.toPhrases(query);
+        MatrixCursor c = new MatrixCursor(NoteRows.projectionOf(projection));
+        mLock.readLock().lock();
+        try {
+            int count = 0;
+            for (Entry entry : mOrder) {
+                if (count++ % CANCEL_CHECK_INTERVAL == 0 && cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                Object[] note = read(entry, wanted);
+                if (phrases == null || NoteRows.matches(phrases, (String) note[NoteRows.TITLE],
+                        (String) note[NoteRows.NOTE])) {
+                    NoteRows.addRow(c, note, columns);
+                }
+            }
+        } catch (IOException e) {
+            throw failure("search notes", e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor months(String[] projection, CancellationSignal cancellationSignal) {
+        NoteRows.MonthCounter months = new NoteRows.MonthCounter(projection);
+        mLock.readLock().lock();
+        try {
+            int count = 0;
+            for (Entry entry : mOrder) {
+                if (count++ % CANCEL_CHECK_INTERVAL == 0 && cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                months.add(entry.modified);
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return months.finish();
+    }
+
+    @Override
+    public Cursor listRevisions(long noteId, String[] projection,
+            CancellationSignal cancellationSignal) {
+        int[] columns = NoteRows.revisionColumnIndexes(projection, false);
+        MatrixCursor c = new MatrixCursor(NoteRows.revisionProjectionOf(projection, false));
+        mLock.readLock().lock();
+        try {
+            ArrayList<Revision> revisions = mRevisions.get(noteId);
+            if (revisions != null) {
+                for (int i = revisions.size() - 1; i >= 0; i--) {
+                    if (i % CANCEL_CHECK_INTERVAL == 0 && cancellationSignal != null) {
+                        cancellationSignal.throwIfCanceled();
+                    }
+                    NoteRows.addRow(c, read(revisions.get(i), columns), columns);
+                }
+            }
+        } catch (IOException e) {
+            throw failure("list revisions", e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public Cursor getRevision(long noteId, long revision, String[] projection) {
+        int[] columns = NoteRows.revisionColumnIndexes(projection, true);
+        MatrixCursor c = new MatrixCursor(NoteRows.revisionProjectionOf(projection, true), 1);
+        mLock.readLock().lock();
+        try {
+            ArrayList<Revision> revisions = mRevisions.get(noteId);
+            int index = revisions != null ? indexOfRevision(revisions, revision) : -1;
+            if (index >= 0) {
+                NoteRows.addRow(c, read(revisions.get(index), columns), columns);
+            }
+        } catch (IOException e) {
+            throw failure("read a revision", e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return c;
+    }
+
+    @Override
+    public long insert(ContentValues values) {
+        Object[] note = NoteRows.newNote(values);
+        long id;
+        mLock.writeLock().lock();
+        try {
+            if (note[NoteRows.ID] == null) {
+                note[NoteRows.ID] = mNextId;
+            } else if (mIndex.containsKey(note[NoteRows.ID])) {
+                return -1;
+            }
+            id = (Long) note[NoteRows.ID];
+            Revision revision = new Revision(mNextRevisionId, 1, System.currentTimeMillis(),
+                    null);
+            Entry entry = append(RECORD_PUT | REVISION, id, note, revision);
+            remember(id, null);
+            index(entry);
+            addRevision(revision.withEntry(entry));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to insert a note", e);
+            return -1;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mFeed.changed(CHANGE_INSERT, id);
+        return id;
+    }
+
+    @Override
+    public int update(long id, ContentValues values) {
+        mLock.writeLock().lock();
+        try {
+            Entry old = mIndex.get(id);
+            if (old == null) {
+                return 0;
+            }
+            Object[] note = read(old, ALL_COLUMNS);
+            String oldText = textOf(note);
+            NoteRows.putValues(note, values);
+            note[NoteRows.ID] = id;
+
+            // A new text is a new revision, which the record itself keeps.
+            Revision revision = null;
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                    && !textOf(note).equals(oldText)) {
+                ArrayList<Revision> revisions = mRevisions.get(id);
+                long latest = revisions != null
+                        ? revisions.get(revisions.size() - 1).number : 0;
+                revision = new Revision(mNextRevisionId, latest + 1, System.currentTimeMillis(),
+                        null);
+            }
+            Entry entry = append(revision != null ? RECORD_PUT | REVISION : RECORD_PUT, id,
+                    note, revision);
+            remember(id, old);
+            index(entry);
+            if (revision != null) {
+                addRevision(revision.withEntry(entry));
+            }
+        } catch (IOException e) {
+            throw failure("update a note", e);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mFeed.changed(CHANGE_UPDATE, id);
+        return 1;
+    }
+
+    @Override
+    public int delete(long id) {
+        mLock.writeLock().lock();
+        try {
+            Entry old = mIndex.get(id);
+            if (old == null) {
+                return 0;
+            }
+            append(RECORD_DELETE, id, null, null);
+            remember(id, old);
+            unindex(id);
+            dropRevisions(id);
+        } catch (IOException e) {
+            throw failure("delete a note", e);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mFeed.changed(CHANGE_DELETE, id);
+        return 1;
+    }
+
+    /**
+     * Starts a batch by taking the write lock, which it holds until it ends or yields.
+     */
+    @Override
+    public void beginBatch() {
+        mFeed.beginBatch();
+        mLock.writeLock().lock();
+        mBatchSuccessful = false;
+        startBatch();
+    }
+
+    /**
+     * Commits the batch so far and lets in any thread waiting for the lock.
+     */
+    @Override
+    public void yieldBatchIfContended() {
+        if (!mLock.hasQueuedThreads()) {
+            return;
+        }
+        try {
+            commitBatch();
+        } catch (IOException e) {
+            throw failure("commit a batch", e);
+        }
+        mLock.writeLock().unlock();
+        mFeed.flushBatch();
+        mLock.writeLock().lock();
+        startBatch();
+    }
+
+    @Override
+    public void setBatchSuccessful() {
+        mFeed.setBatchSuccessful();
+        mBatchSuccessful = true;
+    }
+
+    @Override
+    public void endBatch() {
+        boolean committed = false;
+        try {
+            if (mBatchSuccessful) {
+                commitBatch();
+                committed = true;
+            }
+        } catch (IOException e) {
+            throw failure("commit a batch", e);
+        } finally {
+            try {
+                if (!committed) {
+                    rollBackBatch();
+                }
+            } finally {
+                mUndo = null;
+                mUndoRevisions = null;
+                mBatchSegment = null;
+                mLock.writeLock().unlock();
+                mFeed.endBatch(committed);
+            }
+        }
+    }
+
+    @Override
+    public long getChangeSequence() {
+        return mFeed.sequence();
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        mFeed.addListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        mFeed.removeListener(listener);
+    }
+
+    /**
+     * Stops the compactions, and closes the segments after forcing the active one to the disk.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mCompactionHandler != null) {
+                mCompactionHandler.removeCallbacks(mCompaction);
+                mCompactionHandler.getLooper().quit();
+                mCompactionHandler = null;
+            }
+        }
+        mLock.writeLock().lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            activeSegment().channel.force(false);
+            for (Segment segment : mSegments) {
+                segment.channel.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the note log", e);
+        } finally {
+            mSegments.clear();
+            mIndex.clear();
+            mOrder.clear();
+            mRevisions.clear();
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts every segment but the active one that is stale enough, oldest first. Holds the
+     * write lock for one segment at a time. Runs on the compaction thread, and tests call it
+     * directly.
+     */
+    void compact() {
+        while (true) {
+            mLock.writeLock().lock();
+            try {
+                if (mClosed) {
+                    return;
+                }
+                Segment stale = null;
+                for (int i = 0; i < mSegments.size() - 1; i++) {
+                    if (mSegments.get(i).isStale()) {
+                        stale = mSegments.get(i);
+                        break;
+                    }
+                }
+                if (stale == null) {
+                    return;
+                }
+                compact(stale);
+            } catch (IOException e) {
+                // The segment is left as it is, and compacted once another segment fills up.
+                Log.w(TAG, "Failed to compact the note log", e);
+                return;
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /*
+     * Reads the segments in the directory, oldest first, into the index, and cuts off what an
+     * interrupted write left at the end of a segment.
+     */
+    private void open() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        ArrayList<Long> numbers = new ArrayList<Long>();
+        for (String name : mDirectory.list()) {
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    numbers.add(Long.parseLong(
+                            name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment.
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (long number : numbers) {
+            Segment segment = new Segment(segmentFile(number), number);
+            mSegments.add(segment);
+            recover(segment);
+        }
+        if (mSegments.isEmpty()) {
+            mSegments.add(new Segment(segmentFile(1), 1));
+        }
+        scheduleCompactionIfStale();
+    }
+
+    /*
+     * Replays the records of a segment into the index, up to the first one that is cut short
+     * or does not match its CRC, and cuts the segment off there. The records of a batch that
+     * was not committed are cut off with it.
+     */
+    private void recover(Segment segment) throws IOException {
+        if (segment.size == 0) {
+            return;
+        }
+        ByteBuffer buffer = segment.map(segment.size);
+        int position = 0;
+        int batchStart = -1;
+        ArrayList<Integer> pending = new ArrayList<Integer>();
+        while (position + HEADER_BYTES <= segment.size) {
+            int length = buffer.getInt(position);
+            if (length < MIN_BODY_BYTES || position + HEADER_BYTES + (long) length > segment.size
+                    || buffer.getInt(position + 4) != crcOf(buffer, position, length)) {
+                break;
+            }
+            int type = buffer.get(position + HEADER_BYTES) & 0xff;
+            if (type == RECORD_COMMIT) {
+                for (int record : pending) {
+                    replay(segment, buffer, record);
+                }
+                pending.clear();
+                batchStart = -1;
+            } else if ((type & IN_BATCH) != 0) {
+                if (batchStart < 0) {
+                    batchStart = position;
+                }
+                pending.add(position);
+            } else {
+                replay(segment, buffer, position);
+            }
+            position += HEADER_BYTES + length;
+        }
+
+        long end = batchStart >= 0 ? batchStart : position;
+        if (end < segment.size) {
+            Log.w(TAG, "Cutting off " + (segment.size - end) + " bytes at " + end + " of "
+                    + segment.file + ", left by an interrupted write");
+            segment.truncate(end);
+        }
+    }
+
+    // Applies a record read from the log to the index and the revisions.
+    private void replay(Segment segment, ByteBuffer buffer, int position) {
+        int flags = buffer.get(position + HEADER_BYTES) & ~IN_BATCH;
+        int type = flags & ~REVISION;
+        long id = buffer.getLong(position + HEADER_BYTES + 1);
+        int length = HEADER_BYTES + buffer.getInt(position);
+        if (type == RECORD_PUT || type == RECORD_REVISION) {
+            Entry entry;
+            if (type == RECORD_PUT) {
+                boolean[] wanted = new boolean[COLUMNS.length];
+                wanted[NoteRows.MODIFIED] = true;
+                Object[] note = decode(buffer, position, wanted);
+                entry = new Entry(id, NoteRows.longOf(note[NoteRows.MODIFIED]), segment,
+                        position, length);
+                index(entry);
+            } else {
+                entry = new Entry(id, 0, segment, position, length);
+            }
+            if (type == RECORD_REVISION || (flags & REVISION) != 0) {
+                int end = position + length;
+                addRevision(new Revision(buffer.getLong(end - REVISION_BYTES),
+                        buffer.getLong(end - 16), buffer.getLong(end - 8), entry));
+            }
+        } else if (type == RECORD_DELETE) {
+            unindex(id);
+            dropRevisions(id);
+        }
+    }
+
+    /*
+     * Appends a record to the active segment, starting a new one first if it is full and the
+     * calling thread is not in a batch, whose records must stay in one segment. Returns the
+     * index entry for it.
+     */
+    private Entry append(int type, long id, Object[] note, Revision revision)
+            throws IOException {
+        boolean batched = mFeed.inBatch();
+        if (!batched && activeSegment().size >= mSegmentBytes) {
+            startSegment();
+        }
+        byte[] record = encode(batched ? type | IN_BATCH : type, id, note, revision);
+        Segment segment = activeSegment();
+        long offset = segment.size;
+        segment.write(record, offset);
+        if (batched) {
+            mBatchWritten = true;
+        }
+        return new Entry(id, note != null ? NoteRows.longOf(note[NoteRows.MODIFIED]) : 0,
+                segment, offset, record.length);
+    }
+
+    // Starts a new active segment, and compacts the old ones later if any are stale.
+    private void startSegment() throws IOException {
+        Segment sealed = activeSegment();
+        sealed.channel.force(false);
+        mSegments.add(new Segment(segmentFile(sealed.number + 1), sealed.number + 1));
+        scheduleCompactionIfStale();
+    }
+
+    /*
+     * Copies the records of a segment that still count to the end of the log, and deletes it.
+     * Deletions are kept, unless this is the oldest segment, as an older segment may still
+     * hold the note they deleted. A revision that is no longer the newest record of its note
+     * is copied as a RECORD_REVISION, so that it does not become the newest record again when
+     * the log is replayed.
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.map(segment.size);
+        boolean oldest = mSegments.get(0) == segment;
+        int position = 0;
+        while (position < segment.size) {
+            int length = HEADER_BYTES + buffer.getInt(position);
+            int flags = buffer.get(position + HEADER_BYTES) & ~IN_BATCH;
+            int type = flags & ~REVISION;
+            long id = buffer.getLong(position + HEADER_BYTES + 1);
+            Entry entry = mIndex.get(id);
+            boolean current = type == RECORD_PUT && entry != null && entry.segment == segment
+                    && entry.offset == position;
+            ArrayList<Revision> revisions = mRevisions.get(id);
+            int revision = -1;
+            if (revisions != null && (type == RECORD_PUT || type == RECORD_REVISION)) {
+                for (int i = 0; i < revisions.size() && revision < 0; i++) {
+                    Entry record = revisions.get(i).entry;
+                    if (record.segment == segment && record.offset == position) {
+                        revision = i;
+                    }
+                }
+            }
+            if (current || revision >= 0) {
+                Entry copy = copy(buffer, position, length, current ? flags : RECORD_REVISION,
+                        id, current ? entry.modified : 0);
+                if (current) {
+                    index(copy);
+                }
+                if (revision >= 0) {
+                    Revision old = revisions.get(revision);
+                    revisions.set(revision, old.withEntry(copy));
+                    retain(copy);
+                    release(old.entry);
+                }
+            } else if (type == RECORD_DELETE && entry == null && !oldest) {
+                copy(buffer, position, length, RECORD_DELETE, id, 0);
+            }
+            position += length;
+        }
+        // The copies must be on the disk before the segment is gone from it, or losing power
+        // could lose notes of any age, rather than only the last few writes.
+        activeSegment().channel.force(false);
+        syncDirectory();
+        mSegments.remove(segment);
+        segment.channel.close();
+        if (!segment.file.delete()) {
+            Log.w(TAG, "Failed to delete " + segment.file);
+        }
+    }
+
+    /*
+     * Forces the directory to the disk, so that the segments created since are found after a
+     * loss of power. Directories can only be synced from API 21; before, the file system
+     * journal is relied on.
+     */
+    private void syncDirectory() throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        try {
+            FileDescriptor fd = Os.open(mDirectory.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("Cannot sync " + mDirectory, e);
+        }
+    }
+
+    // Appends a copy of a record to the log with the given type, which is never in a batch.
+    private Entry copy(ByteBuffer buffer, int position, int length, int type, long id,
+            long modified) throws IOException {
+        if (activeSegment().size >= mSegmentBytes) {
+            startSegment();
+        }
+        byte[] record = new byte[length];
+        buffer.position(position);
+        buffer.get(record);
+        record[HEADER_BYTES] = (byte) type;
+        ByteBuffer.wrap(record).putInt(4, crcOf(ByteBuffer.wrap(record), 0, length - HEADER_BYTES));
+        Segment segment = activeSegment();
+        long offset = segment.size;
+        segment.write(record, offset);
+        return new Entry(id, modified, segment, offset, length);
+    }
+
+    private synchronized void scheduleCompactionIfStale() {
+        boolean stale = false;
+        for (int i = 0; i < mSegments.size() - 1; i++) {
+            stale |= mSegments.get(i).isStale();
+        }
+        if (!stale) {
+            return;
+        }
+        if (mCompactionHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG + "Compaction",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mCompactionHandler = new Handler(thread.getLooper());
+        }
+        mCompactionHandler.removeCallbacks(mCompaction);
+        mCompactionHandler.postDelayed(mCompaction, COMPACTION_DELAY_MILLIS);
+    }
+
+    // Marks where the records of the current batch start, after it begins or yields.
+    private void startBatch() {
+        mUndo = new HashMap<Long, Entry>();
+        mUndoRevisions = new HashMap<Long, ArrayList<Revision>>();
+        mUndoNextId = mNextId;
+        mUndoNextRevisionId = mNextRevisionId;
+        mBatchSegment = activeSegment();
+        mBatchStart = mBatchSegment.size;
+        mBatchWritten = false;
+    }
+
+    // Appends a commit record for the records the current batch wrote since it last committed.
+    private void commitBatch() throws IOException {
+        if (mBatchWritten) {
+            mBatchSegment.write(encode(RECORD_COMMIT, 0, null, null), mBatchSegment.size);
+            mBatchWritten = false;
+        }
+    }
+
+    /*
+     * Puts the index and the revisions back as they were before the records the current batch
+     * wrote since it last committed, and cuts them off the log. If they cannot be cut off, the
+     * segment is left behind, as its records do not count without a commit record after them.
+     */
+    private void rollBackBatch() {
+        for (Map.Entry<Long, Entry> entry : mUndo.entrySet()) {
+            if (entry.getValue() != null) {
+                index(entry.getValue());
+            } else {
+                unindex(entry.getKey());
+            }
+        }
+        for (Map.Entry<Long, ArrayList<Revision>> entry : mUndoRevisions.entrySet()) {
+            ArrayList<Revision> revisions = mRevisions.remove(entry.getKey());
+            if (entry.getValue() != null) {
+                mRevisions.put(entry.getKey(), entry.getValue());
+                for (Revision revision : entry.getValue()) {
+                    retain(revision.entry);
+                }
+            }
+            if (revisions != null) {
+                for (Revision revision : revisions) {
+                    release(revision.entry);
+                }
+            }
+        }
+        mNextId = mUndoNextId;
+        mNextRevisionId = mUndoNextRevisionId;
+        try {
+            mBatchSegment.truncate(mBatchStart);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cut off a batch that was rolled back", e);
+            try {
+                startSegment();
+            } catch (IOException e2) {
+                throw failure("roll back a batch", e2);
+            }
+        }
+    }
+
+    /*
+     * Remembers the record of a note before the current batch replaced it, unless the batch
+     * already replaced it before. Does nothing outside of batches, including for other threads
+     * that write while the batch has yielded the lock.
+     */
+    private void remember(long id, Entry old) {
+        if (mUndo != null && mFeed.inBatch() && !mUndo.containsKey(id)) {
+            mUndo.put(id, old);
+        }
+    }
+
+    /*
+     * Remembers the revisions of a note before the current batch changed them, like
+     * remember(). The list is copied, as revisions are added to it in place.
+     */
+    private void rememberRevisions(long id) {
+        if (mUndoRevisions != null && mFeed.inBatch() && !mUndoRevisions.containsKey(id)) {
+            ArrayList<Revision> revisions = mRevisions.get(id);
+            mUndoRevisions.put(id, revisions != null
+                    ? new ArrayList<Revision>(revisions) : null);
+        }
+    }
+
+    private void index(Entry entry) {
+        retain(entry);
+        Entry old = mIndex.put(entry.id, entry);
+        if (old != null) {
+            mOrder.remove(old);
+            release(old);
+        }
+        mOrder.add(entry);
+        mNextId = Math.max(mNextId, entry.id + 1);
+    }
+
+    private void unindex(long id) {
+        Entry old = mIndex.remove(id);
+        if (old != null) {
+            mOrder.remove(old);
+            release(old);
+        }
+    }
+
+    /*
+     * Adds a revision to its note, in order of number, and drops the oldest ones beyond
+     * MAX_REVISIONS. A revision with the same number is replaced, as happens when the log holds
+     * both a record and the copy a compaction made of it before it could delete the segment.
+     */
+    private void addRevision(Revision revision) {
+        long id = revision.entry.id;
+        rememberRevisions(id);
+        ArrayList<Revision> revisions = mRevisions.get(id);
+        if (revisions == null) {
+            revisions = new ArrayList<Revision>(1);
+            mRevisions.put(id, revisions);
+        }
+        retain(revision.entry);
+        int index = indexOfRevision(revisions, revision.number);
+        if (index >= 0) {
+            release(revisions.get(index).entry);
+            revisions.set(index, revision);
+        } else {
+            revisions.add(-index - 1, revision);
+        }
+        while (revisions.size() > NotePad.Revisions.MAX_REVISIONS) {
+            release(revisions.remove(0).entry);
+        }
+        mNextRevisionId = Math.max(mNextRevisionId, revision.id + 1);
+    }
+
+    private void dropRevisions(long id) {
+        rememberRevisions(id);
+        ArrayList<Revision> revisions = mRevisions.remove(id);
+        if (revisions != null) {
+            for (Revision revision : revisions) {
+                release(revision.entry);
+            }
+        }
+    }
+
+    /*
+     * Counts a reference to a record from the index or a revision. The bytes of a record count
+     * as live in its segment while it has any.
+     */
+    private static void retain(Entry entry) {
+        if (entry.references++ == 0) {
+            entry.segment.liveBytes += entry.length;
+        }
+    }
+
+    private static void release(Entry entry) {
+        if (--entry.references == 0) {
+            entry.segment.liveBytes -= entry.length;
+        }
+    }
+
+    /*
+     * Returns the position of the revision with the given number in a list of revisions, or
+     * -(the position it would be inserted at) - 1.
+     */
+    private static int indexOfRevision(ArrayList<Revision> revisions, long number) {
+        int low = 0;
+        int high = revisions.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long found = revisions.get(middle).number;
+            if (found < number) {
+                low = middle + 1;
+            } else if (found > number) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -low - 1;
+    }
+
+    private Segment activeSegment() {
+        return mSegments.get(mSegments.size() - 1);
+    }
+
+    private File segmentFile(long number) {
+        return new File(mDirectory, String.format(Locale.US, "%010d", number)
+                + SEGMENT_SUFFIX);
+    }
+
+    // Reads the given columns of a note from its record.
+    private static Object[] read(Entry entry, boolean[] wanted) throws IOException {
+        return decode(entry.segment.map(entry.offset + entry.length), (int) entry.offset,
+                wanted);
+    }
+
+    /*
+     * Returns the given columns of a revision, as positions in NoteStore.REVISION_COLUMNS,
+     * reading the text from its record only if they need it.
+     */
+    private static Object[] read(Revision revision, int[] columns) throws IOException {
+        Object[] row = new Object[REVISION_COLUMNS.length];
+        row[NoteRows.REVISION_ID] = revision.id;
+        row[NoteRows.REVISION_NOTE_ID] = revision.entry.id;
+        row[NoteRows.REVISION_NUMBER] = revision.number;
+        row[NoteRows.REVISION_CREATED] = revision.created;
+        row[NoteRows.REVISION_STORED_SIZE] = (long) revision.entry.length;
+        for (int column : columns) {
+            if (column == NoteRows.REVISION_LENGTH || column == NoteRows.REVISION_TEXT) {
+                String text = textOf(read(revision.entry, TEXT_COLUMN));
+                row[NoteRows.REVISION_LENGTH] = (long) text.length();
+                row[NoteRows.REVISION_TEXT] = text;
+                break;
+            }
+        }
+        return row;
+    }
+
+    // Returns the text of a note, which is empty if it has none, as for its revisions.
+    private static String textOf(Object[] note) {
+        return note[NoteRows.NOTE] != null ? (String) note[NoteRows.NOTE] : "";
+    }
+
+    private static boolean[] wanted(int[] columns) {
+        boolean[] wanted = new boolean[COLUMNS.length];
+        for (int column : columns) {
+            wanted[column] = true;
+        }
+        return wanted;
+    }
+
+    /*
+     * Returns a record of the given type. A note is written with every column after its ID,
+     * followed by the revision it is, if any; the other types have no note.
+     */
+    private static byte[] encode(int type, long id, Object[] note, Revision revision) {
+        byte[][] texts = new byte[COLUMNS.length][];
+        int length = MIN_BODY_BYTES;
+        if (note != null) {
+            for (int i = 1; i < COLUMNS.length; i++) {
+                length++;
+                if (note[i] == null) {
+                    continue;
+                } else if (NoteRows.isText(i)) {
+                    texts[i] = ((String) note[i]).getBytes(StandardCharsets.UTF_8);
+                    length += 4 + texts[i].length;
+                } else {
+                    length += 8;
+                }
+            }
+        }
+        if (revision != null) {
+            length += REVISION_BYTES;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + length);
+        buffer.putInt(length).putInt(0).put((byte) type).putLong(id);
+        if (note != null) {
+            for (int i = 1; i < COLUMNS.length; i++) {
+                if (note[i] == null) {
+                    buffer.put(VALUE_NULL);
+                } else if (texts[i] != null) {
+                    buffer.put(VALUE_TEXT).putInt(texts[i].length).put(texts[i]);
+                } else {
+                    buffer.put(VALUE_LONG).putLong((Long) note[i]);
+                }
+            }
+        }
+        if (revision != null) {
+            buffer.putLong(revision.id).putLong(revision.number).putLong(revision.created);
+        }
+        buffer.putInt(4, crcOf(buffer, 0, length));
+        return buffer.array();
+    }
+
+    // Reads the given columns of the note in a RECORD_PUT or RECORD_REVISION, skipping over the
+    // others.
+    private static Object[] decode(ByteBuffer buffer, int position, boolean[] wanted) {
+        Object[] note = new Object[COLUMNS.length];
+        int p = position + HEADER_BYTES + 1;
+        note[NoteRows.ID] = buffer.getLong(p);
+        p += 8;
+        for (int i = 1; i < COLUMNS.length; i++) {
+            byte value = buffer.get(p++);
+            if (value == VALUE_LONG) {
+                if (wanted[i]) {
+                    note[i] = buffer.getLong(p);
+                }
+                p += 8;
+            } else if (value == VALUE_TEXT) {
+                int length = buffer.getInt(p);
+                p += 4;
+                if (wanted[i]) {
+                    byte[] text = new byte[length];
+                    buffer.position(p);
+                    buffer.get(text);
+                    note[i] = new String(text, StandardCharsets.UTF_8);
+                }
+                p += length;
+            }
+        }
+        return note;
+    }
+
+    // Returns the CRC32 of the body of the record at the given position.
+    private static int crcOf(ByteBuffer buffer, int position, int length) {
+        byte[] body;
+        int offset;
+        if (buffer.hasArray()) {
+            body = buffer.array();
+            offset = buffer.arrayOffset() + position + HEADER_BYTES;
+        } else {
+            body = new byte[length];
+            offset = 0;
+            ByteBuffer source = buffer.duplicate();
+            source.position(position + HEADER_BYTES);
+            source.get(body);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static SQLException failure(String action, IOException e) {
+        return new SQLException("Failed to " + action + " in the note log", e);
+    }
+}
@@ -1,47 +1,187 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
 package com.example.android.notepad;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.graphics.Color;
 import android.view.View;
-import android.widget.SimpleCursorAdapter;
+import android.view.ViewGroup;
+import android.widget.ResourceCursorAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows the notes of a cursor, one row per note, with the note's title and modification date,
+ * and the note's color as the row's background. The layout must hold the title in
+ * android.R.id.text1 and the date in R.id.text2, as noteslist_item.xml does.
+ *
+ * Binding a row allocates nothing of the adapter's own: the columns are looked up once for
+ * each cursor swapped in, each row keeps its views in a holder, the colors come from a palette
+ * built once, and the title is copied out of the cursor into a buffer the holder reuses. A view
+ * is only given a title, date or color that differs from the one it shows, so binding a view
+ * again to the note it shows, as the list does whenever it lays out or a new cursor with the
+ * same notes is swapped in, allocates nothing at all. Text that does change is still copied by
+ * the TextView it is set on. The date of an unchanged note is shown again once
+ * {@link NoteDateFormatter#getVersion()} has changed, since it may read differently, such as
+ * "6 min. ago" instead of "5 min. ago".
+ */
+public class MyCursorAdapter extends ResourceCursorAdapter {
+
+    /*
+     * The row backgrounds, indexed by the color constants of NotePad.Notes.
+     */
+    private static final int[] BACKGROUND_COLORS = {
+        Color.rgb(255, 255, 255), // DEFAULT_COLOR, white
+        Color.rgb(247, 216, 133), // YELLOW_COLOR
+        Color.rgb(165, 202, 237), // BLUE_COLOR
+        Color.rgb(161, 214, 174), // GREEN_COLOR
+        Color.rgb(244, 149, 133)  // RED_COLOR
+    };
+
+    // The size the title buffers start at, which fits most titles.
+    private static final int TITLE_BUFFER_SIZE = 64;
+
+    private final NoteDateBinder mDateBinder;
+    private final NoteDateFormatter mDateFormatter;
+
+    // The positions of the columns in the current cursor. The color column is optional.
+    private int mTitleColumn = -1;
+    private int mModifiedColumn = -1;
+    private int mColorColumn = -1;
+
+    /*
+     * The views of a row, and what they show.
+     */
+    private static final class RowViews {
+        final TextView mTitle;
+        final TextView mModified;
+
+        // The title shown, and the buffer the next title is read into; swapped when it differs.
+        CharArrayBuffer mShownTitle = new CharArrayBuffer(TITLE_BUFFER_SIZE);
+        CharArrayBuffer mNextTitle = new CharArrayBuffer(TITLE_BUFFER_SIZE);
+
+        long mShownModified;
+        int mShownColor;
+
+        // The version of the date formatter the date was shown with.
+        int mDateVersion;
 
-public class MyCursorAdapter extends SimpleCursorAdapter {
-    public MyCursorAdapter(Context context, int layout, Cursor c,
-                           String[] from, int[] to) {
-        super(context, layout, c, from, to);
+        // Whether the views have been bound yet, and so show the values above.
+        boolean mBound;
+
+        RowViews(View view) {
+            mTitle = (TextView) view.findViewById(android.R.id.text1);
+            mModified = (TextView) view.findViewById(R.id.text2);
+        }
+    }
+
+    /**
+     * @param layout The layout of a row.
+     * @param c The notes to show, or null to show none until a cursor is swapped in. It must
+     * hold the title and the modification date, and may hold the color.
+     */
+    public MyCursorAdapter(Context context, int layout, Cursor c) {
+        // No auto-requery: the owner swaps in a new cursor when the notes change.
+        super(context, layout, c, 0);
+        mDateBinder = new NoteDateBinder(context);
+        mDateFormatter = NoteDateFormatter.getInstance(context);
+        findColumns(c);
+    }
+
+    /**
+     * Swaps in a new cursor, and looks up the columns in it. {@link #changeCursor(Cursor)}
+     * comes through here as well.
+     */
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        Cursor old = super.swapCursor(newCursor);
+        findColumns(newCursor);
+        return old;
     }
+
     @Override
-    public void bindView(View view, Context context, Cursor cursor){
-        super.bindView(view, context, cursor);
-        //从数据库中读取的cursor中获取笔记列表对应的颜色数据，并设置笔记颜色
-        int x = cursor.getInt(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_BACK_COLOR));
-        /**
-         * 白 255 255 255
-         * 黄 247 216 133
-         * 蓝 165 202 237
-         * 绿 161 214 174
-         * 红 244 149 133
-         */
-        switch (x){
-            case NotePad.Notes.DEFAULT_COLOR:
-                view.setBackgroundColor(Color.rgb(255, 255, 255));
-                break;
-            case NotePad.Notes.YELLOW_COLOR:
-                view.setBackgroundColor(Color.rgb(247, 216, 133));
-                break;
-            case NotePad.Notes.BLUE_COLOR:
-                view.setBackgroundColor(Color.rgb(165, 202, 237));
-                break;
-            case NotePad.Notes.GREEN_COLOR:
-                view.setBackgroundColor(Color.rgb(161, 214, 174));
-                break;
-            case NotePad.Notes.RED_COLOR:
-                view.setBackgroundColor(Color.rgb(244, 149, 133));
-                break;
-            default:
-                view.setBackgroundColor(Color.rgb(255, 255, 255));
-                break;
-        }
-    }
-}
\ No newline at end of file
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        View view = super.newView(context, cursor, parent);
+        view.setTag(new RowViews(view));
+        return view;
+    }
+
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+        RowViews views = (RowViews) view.getTag();
+
+        CharArrayBuffer title = views.mNextTitle;
+        cursor.copyStringToBuffer(mTitleColumn, title);
+        if (!views.mBound || !sameText(title, views.mShownTitle)) {
+            views.mTitle.setText(title.data, 0, title.sizeCopied);
+            views.mNextTitle = views.mShownTitle;
+            views.mShownTitle = title;
+        }
+
+        long modified = cursor.getLong(mModifiedColumn);
+        int dateVersion = mDateFormatter.getVersion();
+        if (!views.mBound || modified != views.mShownModified
+                || dateVersion != views.mDateVersion) {
+            mDateBinder.setDate(views.mModified, modified);
+            views.mShownModified = modified;
+            views.mDateVersion = dateVersion;
+        }
+
+        int color = colorOf(mColorColumn >= 0 ? cursor.getInt(mColorColumn)
+                : NotePad.Notes.DEFAULT_COLOR);
+        if (!views.mBound || color != views.mShownColor) {
+            view.setBackgroundColor(color);
+            views.mShownColor = color;
+        }
+
+        views.mBound = true;
+    }
+
+    /**
+     * Returns the background of a row for a note color, one of the color constants of
+     * NotePad.Notes. An unknown color gets the default one.
+     */
+    static int colorOf(int noteColor) {
+        if (noteColor < 0 || noteColor >= BACKGROUND_COLORS.length) {
+            noteColor = NotePad.Notes.DEFAULT_COLOR;
+        }
+        return BACKGROUND_COLORS[noteColor];
+    }
+
+    private void findColumns(Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        mTitleColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+        mModifiedColumn = cursor.getColumnIndexOrThrow(
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        mColorColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_BACK_COLOR);
+    }
+
+    private static boolean sameText(CharArrayBuffer a, CharArrayBuffer b) {
+        if (a.sizeCopied != b.sizeCopied) {
+            return false;
+        }
+        for (int i = 0; i < a.sizeCopied; i++) {
+            if (a.data[i] != b.data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the most recently read single notes of {@link NotePadProvider} in memory, so that the
+ * editors reading the same note again on every resume, and streams of a note, do not query
+ * SQLite each time.
+ *
+ * The cache is bounded by an estimate of the bytes its notes take up, rather than by their
+ * number, since a few long notes can take more memory than thousands of short ones. Notes are
+ * dropped from it whenever they are updated or deleted. A note read from the database while an
+ * update or delete is committed is not stored, since it may predate the change; every
+ * invalidation advances a generation number for this.
+ *
+ * Set to package visibility, since only the provider and its tests need it.
+ */
+final class NoteCache {
+
+    /**
+     * The columns kept for each note, in the order of the values of a {@link Note}. A query
+     * asking for any other column is not served from the cache.
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_BACK_COLOR
+    };
+
+    private static final List<String> COLUMN_LIST = Arrays.asList(COLUMNS);
+
+    /**
+     * The default size of the cache, in bytes.
+     */
+    static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    // The estimated size of a cached note apart from its strings, in bytes.
+    private static final int NOTE_OVERHEAD_BYTES = 96;
+
+    /**
+     * The values of the {@link #COLUMNS} of one note.
+     */
+    static final class Note {
+
+        final Object[] values;
+
+        // The estimated size of the note in memory, in bytes.
+        final int bytes;
+
+        Note(Object[] values) {
+            this.values = values;
+            int bytes = NOTE_OVERHEAD_BYTES;
+            for (Object value : values) {
+                if (value instanceof String) {
+                    bytes += 2 * ((String) value).length();
+                }
+            }
+            this.bytes = bytes;
+        }
+
+        /**
+         * Returns the value of one of the {@link #COLUMNS}.
+         */
+        Object get(String column) {
+            return values[COLUMN_LIST.indexOf(column)];
+        }
+    }
+
+    private final int mMaxBytes;
+
+    private final LruCache<Long, Note> mNotes;
+
+    // Advanced by every invalidation. Guarded by this.
+    private long mGeneration;
+
+    // The notes LruCache counted as evicted when invalidateAll() dropped them. Guarded by this.
+    private int mInvalidatedCount;
+
+    private volatile boolean mEnabled = true;
+
+    NoteCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mNotes = new LruCache<Long, Note>(maxBytes) {
+            @Override
+            protected int sizeOf(Long id, Note note) {
+                return note.bytes;
+            }
+        };
+    }
+
+    /**
+     * Returns true if a query for the given columns can be served from the cache.
+     */
+    static boolean covers(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (!COLUMN_LIST.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a cached note, or null if it is not cached.
+     */
+    Note get(long id) {
+        return mEnabled ? mNotes.get(id) : null;
+    }
+
+    /**
+     * Returns the current generation. Read it before reading a note from the database, and pass
+     * it to {@link #put(long, Note, long)}.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a note read from the database, unless a note was invalidated since the generation
+     * was read, or the note is too long to be worth holding.
+     */
+    synchronized void put(long id, Note note, long generation) {
+        // A single note may only take an eighth of the cache, so that one huge note does not
+        // push out every other note.
+        if (mEnabled && generation == mGeneration && note.bytes <= mMaxBytes / 8) {
+            mNotes.put(id, note);
+        }
+    }
+
+    /**
+     * Drops a note that was updated or deleted.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mNotes.remove(id);
+    }
+
+    /**
+     * Drops every note, after a change whose notes are not known.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        int evictions = mNotes.evictionCount();
+        mNotes.evictAll();
+        mInvalidatedCount += mNotes.evictionCount() - evictions;
+    }
+
+    /**
+     * Turns the cache on or off, for comparing the two in benchmarks. Turning it off empties it.
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            invalidateAll();
+        }
+    }
+
+    int hitCount() {
+        return mNotes.hitCount();
+    }
+
+    int missCount() {
+        return mNotes.missCount();
+    }
+
+    /**
+     * Returns the number of notes dropped to make room for others.
+     */
+    synchronized int evictionCount() {
+        return mNotes.evictionCount() - mInvalidatedCount;
+    }
+
+    /**
+     * Returns the estimated number of bytes the cached notes take up.
+     */
+    int size() {
+        return mNotes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "NoteCache[maxBytes=" + mMaxBytes + ",bytes=" + size() + ",hits=" + hitCount()
+                + ",misses=" + missCount() + ",evictions=" + evictionCount() + "]";
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The change feed of a {@link NoteStore}. Stores report each change once it is committed, and
+ * the feed numbers it and passes it to the listeners. Changes made on a thread that is in a
+ * batch are held back until the store commits the batch, or dropped if it rolls it back. A
+ * batch that changes more than {@link #MAX_PENDING_CHANGES} notes is reported as a single
+ * change to {@link NoteStore#ALL_NOTES}, rather than holding on to every ID.
+ *
+ * Set to package visibility, since only the stores need it.
+ */
+final class NoteChangeFeed {
+
+    /**
+     * The largest number of changes a batch holds back one by one.
+     */
+    static final int MAX_PENDING_CHANGES = 1000;
+
+    /*
+     * The changes held back by the batch of one thread.
+     */
+    private static final class Batch {
+        boolean successful;
+
+        // Set once the batch has changed too many notes to list them.
+        boolean allNotes;
+        int size;
+        int[] changes = new int[16];
+        long[] ids = new long[16];
+    }
+
+    private final CopyOnWriteArrayList<NoteStore.ChangeListener> mListeners =
+            new CopyOnWriteArrayList<NoteStore.ChangeListener>();
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // The batch the calling thread is in, if any.
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    void addListener(NoteStore.ChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(NoteStore.ChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns the sequence number of the last change reported, or 0.
+     */
+    long sequence() {
+        return mSequence.get();
+    }
+
+    /**
+     * Returns true if the calling thread is in a batch.
+     */
+    boolean inBatch() {
+        return mBatch.get() != null;
+    }
+
+    /**
+     * Starts holding back the changes made by the calling thread.
+     *
+     * @throws IllegalStateException if the calling thread is already in a batch.
+     */
+    void beginBatch() {
+        if (mBatch.get() != null) {
+            throw new IllegalStateException("Batches do not nest");
+        }
+        mBatch.set(new Batch());
+    }
+
+    /**
+     * Marks the batch of the calling thread as successful.
+     */
+    void setBatchSuccessful() {
+        mBatch.get().successful = true;
+    }
+
+    /**
+     * Reports the changes held back by the batch of the calling thread, which the store has
+     * just committed at a yield point.
+     */
+    void flushBatch() {
+        Batch batch = mBatch.get();
+        deliver(batch);
+        batch.allNotes = false;
+        batch.size = 0;
+    }
+
+    /**
+     * Ends the batch of the calling thread, reporting its changes if it was marked successful
+     * and the store committed it.
+     */
+    void endBatch(boolean committed) {
+        Batch batch = mBatch.get();
+        mBatch.set(null);
+        if (committed && batch.successful) {
+            deliver(batch);
+        }
+    }
+
+    /**
+     * Reports a committed change, or holds it back if the calling thread is in a batch.
+     */
+    void changed(int change, long id) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            notifyListeners(change, id);
+            return;
+        }
+
+        // Past the limit, the batch only remembers that it changed every note.
+        if (batch.allNotes) {
+            return;
+        }
+        if (batch.size == MAX_PENDING_CHANGES || id == NoteStore.ALL_NOTES) {
+            batch.allNotes = true;
+            batch.size = 0;
+            return;
+        }
+        if (batch.size == batch.ids.length) {
+            int[] changes = new int[batch.size * 2];
+            long[] ids = new long[batch.size * 2];
+            System.arraycopy(batch.changes, 0, changes, 0, batch.size);
+            System.arraycopy(batch.ids, 0, ids, 0, batch.size);
+            batch.changes = changes;
+            batch.ids = ids;
+        }
+        batch.changes[batch.size] = change;
+        batch.ids[batch.size] = id;
+        batch.size++;
+    }
+
+    private void deliver(Batch batch) {
+        if (batch.allNotes) {
+            notifyListeners(NoteStore.CHANGE_UPDATE, NoteStore.ALL_NOTES);
+            return;
+        }
+        for (int i = 0; i < batch.size; i++) {
+            notifyListeners(batch.changes[i], batch.ids[i]);
+        }
+    }
+
+    private void notifyListeners(int change, long id) {
+        long sequence = mSequence.incrementAndGet();
+        for (NoteStore.ChangeListener listener : mListeners) {
+            listener.onNoteChanged(sequence, change, id);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.net.Uri;
+
+import java.util.ArrayList;
+
+/**
+ * Turns the changes a {@link NoteStore} reports into the change notifications the provider
+ * sends, which name the notes that changed and how, as described by
+ * {@link NotePad.Notes#PARAM_CHANGE}, so that observers such as NotesList can apply them to
+ * what they have loaded rather than query every note again.
+ *
+ * The changes are collected for each thread as the store commits them, and sent when the
+ * provider calls {@link #notifyChanges(ContentResolver)} once its operation is over: a change
+ * to one note with its note ID URI, and consecutive changes of the same kind to several notes
+ * with one URI listing their IDs. More than {@link #MAX_NOTIFIED_IDS} changes, or a change to
+ * an unknown number of notes, are sent as a single notification of {@link
+ * NotePad.Notes#CONTENT_URI}, which tells observers to load the notes again.
+ *
+ * Also parses the notifications, for the observers.
+ *
+ * Set to package visibility, since only the provider and the app's activities need it.
+ */
+final class NoteChangeNotifier implements NoteStore.ChangeListener {
+
+    /**
+     * The most notes a notification names. Past this, observers are better off loading the
+     * notes again than reading each one that changed.
+     */
+    static final int MAX_NOTIFIED_IDS = 50;
+
+    /*
+     * The changes committed on one thread and not yet notified.
+     */
+    private static final class Pending {
+        // Set once more notes have changed than can be named.
+        boolean allNotes;
+        int size;
+        final int[] changes = new int[MAX_NOTIFIED_IDS];
+        final long[] ids = new long[MAX_NOTIFIED_IDS];
+    }
+
+    private final ThreadLocal<Pending> mPending = new ThreadLocal<Pending>() {
+        @Override
+        protected Pending initialValue() {
+            return new Pending();
+        }
+    };
+
+    /**
+     * Collects a change committed by the calling thread, to be sent by the next call to
+     * {@link #notifyChanges(ContentResolver)} on it.
+     */
+    @Override
+    public void onNoteChanged(long sequence, int change, long id) {
+        Pending pending = mPending.get();
+        if (pending.allNotes) {
+            return;
+        }
+        if (id == NoteStore.ALL_NOTES || pending.size == MAX_NOTIFIED_IDS) {
+            pending.allNotes = true;
+            return;
+        }
+        pending.changes[pending.size] = change;
+        pending.ids[pending.size] = id;
+        pending.size++;
+    }
+
+    /**
+     * Sends the notifications for the changes the calling thread committed since the last
+     * call, if there were any.
+     */
+    void notifyChanges(ContentResolver resolver) {
+        for (Uri uri : takeNotifications()) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Returns the URIs of the notifications for the changes the calling thread committed since
+     * the last call, and forgets the changes.
+     */
+    ArrayList<Uri> takeNotifications() {
+        Pending pending = mPending.get();
+        ArrayList<Uri> uris = new ArrayList<Uri>();
+        if (pending.allNotes) {
+            uris.add(NotePad.Notes.CONTENT_URI);
+        } else {
+            int start = 0;
+            for (int i = 1; i <= pending.size; i++) {
+                if (i == pending.size || pending.changes[i] != pending.changes[start]) {
+                    uris.add(toUri(pending.changes[start], pending.ids, start, i));
+                    start = i;
+                }
+            }
+        }
+        pending.allNotes = false;
+        pending.size = 0;
+        return uris;
+    }
+
+    /**
+     * Returns the kind of change a notification is for, as one of the {@link NoteStore}
+     * change constants, or 0 if any note may have changed.
+     */
+    static int changeOf(Uri uri) {
+        String change = uri != null ? uri.getQueryParameter(NotePad.Notes.PARAM_CHANGE) : null;
+        if (NotePad.Notes.CHANGE_INSERT.equals(change)) {
+            return NoteStore.CHANGE_INSERT;
+        } else if (NotePad.Notes.CHANGE_UPDATE.equals(change)) {
+            return NoteStore.CHANGE_UPDATE;
+        } else if (NotePad.Notes.CHANGE_DELETE.equals(change)) {
+            return NoteStore.CHANGE_DELETE;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the IDs of the notes a notification is for, or null if it does not name them.
+     */
+    static long[] idsOf(Uri uri) {
+        if (changeOf(uri) == 0) {
+            return null;
+        }
+        String ids = uri.getQueryParameter(NotePad.Notes.PARAM_CHANGED_IDS);
+        try {
+            if (ids == null) {
+                return new long[] { ContentUris.parseId(uri) };
+            }
+            String[] parts = ids.split(",");
+            long[] result = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                result[i] = Long.parseLong(parts[i]);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Returns the URI of a notification for changes of one kind to the notes in ids[start:end].
+    private static Uri toUri(int change, long[] ids, int start, int end) {
+        Uri.Builder uri;
+        if (end - start == 1) {
+            uri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[start])
+                    .buildUpon();
+        } else {
+            StringBuilder list = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    list.append(',');
+                }
+                list.append(ids[i]);
+            }
+            uri = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PARAM_CHANGED_IDS, list.toString());
+        }
+        String name = change == NoteStore.CHANGE_INSERT ? NotePad.Notes.CHANGE_INSERT
+                : change == NoteStore.CHANGE_UPDATE ? NotePad.Notes.CHANGE_UPDATE
+                : NotePad.Notes.CHANGE_DELETE;
+        return uri.appendQueryParameter(NotePad.Notes.PARAM_CHANGE, name).build();
+    }
+}
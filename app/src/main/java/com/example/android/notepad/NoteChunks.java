@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Stores very large notes for {@link NotePadProvider} as a sequence of chunks in a side table,
+ * so that saving an edit only rewrites the chunks that changed.
+ *
+ * A note of at least {@link #CHUNKING_THRESHOLD_CHARS} characters has its {@link #COLUMN_CHUNKED}
+ * flag set and a null note column; its text is the concatenation of its rows in
+ * {@link #TABLE_NAME}, in order of sequence number. When a chunked note is saved, the chunks at
+ * its start and end whose text is unchanged are kept, and only the text between them is split
+ * into new chunks. The sequence numbers are spaced {@link #SEQUENCE_GAP} apart, so new chunks
+ * can be numbered between the kept ones without renumbering them.
+ *
+ * Set to package visibility, since only the provider and its tests need it.
+ */
+final class NoteChunks {
+
+    /**
+     * The table holding the chunks of the chunked notes.
+     */
+    static final String TABLE_NAME = "note_chunks";
+
+    /**
+     * The column of the chunks table holding the ID of the note a chunk belongs to.
+     */
+    static final String COLUMN_NOTE_ID = "note_id";
+
+    /**
+     * The column of the chunks table that orders the chunks of a note.
+     */
+    static final String COLUMN_SEQUENCE = "seq";
+
+    /**
+     * The column of the chunks table holding the text of a chunk.
+     */
+    static final String COLUMN_BODY = "body";
+
+    /**
+     * The column of the notes table that is 1 for notes stored as chunks, and 0 otherwise. It is
+     * internal to the provider, and not part of the contract.
+     */
+    static final String COLUMN_CHUNKED = "chunked";
+
+    /**
+     * Notes of at least this many characters are stored as chunks.
+     */
+    static final int CHUNKING_THRESHOLD_CHARS = 64 * 1024;
+
+    /**
+     * The largest number of characters in a chunk.
+     */
+    static final int CHUNK_CHARS = 16 * 1024;
+
+    /**
+     * Rewritten text shorter than this is merged with the chunk before it, so that repeated
+     * small edits do not leave a note split into many tiny chunks.
+     */
+    static final int MIN_CHUNK_CHARS = CHUNK_CHARS / 4;
+
+    /**
+     * The spacing of the sequence numbers given to newly written chunks.
+     */
+    static final long SEQUENCE_GAP = 1L << 20;
+
+    /**
+     * An SQL expression for the note column of the notes table that {@link #readNote} reads the
+     * full text from: the stored note, or the ID of a chunked note, whose text is read from its
+     * chunks. The note column has text affinity, so it never holds an integer itself.
+     */
+    static final String NOTE_TEXT = "CASE WHEN " + NotePad.Notes.TABLE_NAME + "." + COLUMN_CHUNKED
+            + " THEN " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+            + " ELSE " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + " END";
+
+    // The columns read to put a note back together from its chunks.
+    private static final String[] BODY_PROJECTION = new String[] { COLUMN_BODY };
+
+    // This class cannot be instantiated
+    private NoteChunks() {
+    }
+
+    /**
+     * Returns true if a note is long enough to be stored as chunks.
+     */
+    static boolean shouldChunk(String note) {
+        return note != null && note.length() >= CHUNKING_THRESHOLD_CHARS;
+    }
+
+    /**
+     * Reads the full text of a note from a column holding {@link #NOTE_TEXT}, whether it is
+     * stored as text, compressed or as chunks.
+     */
+    static String readNote(SQLiteDatabase db, Cursor c, int columnIndex) {
+        if (c.getType(columnIndex) == Cursor.FIELD_TYPE_INTEGER) {
+            return read(db, c.getLong(columnIndex));
+        }
+        return NoteCompression.readNote(c, columnIndex);
+    }
+
+    /**
+     * Reads the text of a chunked note, by concatenating its chunks in order of sequence number.
+     *
+     * @return The text, which is empty if the note has no chunks.
+     */
+    static String read(SQLiteDatabase db, long noteId) {
+        Cursor c = db.query(TABLE_NAME, BODY_PROJECTION, COLUMN_NOTE_ID + " = " + noteId, null,
+                null, null, COLUMN_SEQUENCE);
+        try {
+            StringBuilder text = new StringBuilder(c.getCount() * CHUNK_CHARS);
+            while (c.moveToNext()) {
+                text.append(c.getString(0));
+            }
+            return text.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Creates the chunks table.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                + COLUMN_SEQUENCE + " INTEGER NOT NULL,"
+                + COLUMN_BODY + " TEXT NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_NOTE_ID + ", " + COLUMN_SEQUENCE + ")"
+                + ");");
+    }
+
+    /**
+     * Stores the text of a chunked note, rewriting only the chunks that changed since it was
+     * last stored. Must be called inside a transaction.
+     *
+     * @return The number of characters written to new chunks.
+     */
+    static int write(SQLiteDatabase db, long noteId, String text) {
+        long[] sequences;
+        String[] bodies;
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_SEQUENCE, COLUMN_BODY },
+                COLUMN_NOTE_ID + " = " + noteId, null, null, null, COLUMN_SEQUENCE);
+        try {
+            sequences = new long[c.getCount()];
+            bodies = new String[sequences.length];
+            for (int i = 0; c.moveToNext(); i++) {
+                sequences[i] = c.getLong(0);
+                bodies[i] = c.getString(1);
+            }
+        } finally {
+            c.close();
+        }
+
+        // Keeps the unchanged chunks at the start of the note...
+        int first = 0;
+        int start = 0;
+        while (first < bodies.length && text.startsWith(bodies[first], start)) {
+            start += bodies[first].length();
+            first++;
+        }
+
+        // ...and at its end, without overlapping the ones at the start.
+        int last = bodies.length;
+        int end = text.length();
+        while (last > first && end - bodies[last - 1].length() >= start
+                && text.startsWith(bodies[last - 1], end - bodies[last - 1].length())) {
+            end -= bodies[last - 1].length();
+            last--;
+        }
+
+        // Nothing changed.
+        if (first == last && start == end) {
+            return 0;
+        }
+
+        // Rewrites a short change together with the chunk before it.
+        if (end - start < MIN_CHUNK_CHARS && first > 0) {
+            first--;
+            start -= bodies[first].length();
+        }
+
+        int count = (end - start + CHUNK_CHARS - 1) / CHUNK_CHARS;
+        long low = first > 0 ? sequences[first - 1] : 0;
+        long high = last < bodies.length ? sequences[last] : low + (count + 1) * SEQUENCE_GAP;
+        long step = (high - low) / (count + 1);
+
+        // If there is no room between the kept chunks, renumbers the whole note by rewriting it.
+        if (step == 0) {
+            delete(db, noteId);
+            return write(db, noteId, text);
+        }
+
+        if (first < last) {
+            db.delete(TABLE_NAME, COLUMN_NOTE_ID + " = " + noteId + " AND "
+                    + COLUMN_SEQUENCE + " BETWEEN " + sequences[first] + " AND "
+                    + sequences[last - 1], null);
+        }
+
+        // Splits the changed text into chunks of about equal size.
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NOTE_ID, noteId);
+        int from = start;
+        for (int i = 1; i <= count; i++) {
+            int to = i == count ? end : start + (int) ((long) (end - start) * i / count);
+            // Keeps surrogate pairs in one chunk.
+            if (to < end && Character.isHighSurrogate(text.charAt(to - 1))) {
+                to++;
+            }
+            values.put(COLUMN_SEQUENCE, low + step * i);
+            values.put(COLUMN_BODY, text.substring(from, to));
+            db.insertOrThrow(TABLE_NAME, null, values);
+            from = to;
+        }
+        return end - start;
+    }
+
+    /**
+     * Deletes the chunks of a note, if it has any.
+     */
+    static void delete(SQLiteDatabase db, long noteId) {
+        db.delete(TABLE_NAME, COLUMN_NOTE_ID + " = " + noteId, null);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DataSetObserver;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses large note bodies for storage by {@link NotePadProvider}, and expands them again
+ * when they are read.
+ *
+ * A note shorter than {@link #COMPRESSION_THRESHOLD_BYTES} is stored as TEXT, as it always was.
+ * A longer note is stored in the same column as a BLOB holding a format marker, the length of
+ * the note in UTF-8, and the note deflated. Since SQLite keeps the type of each value, the notes
+ * written before compression existed are read unchanged, and no migration is needed. Cursors
+ * returned by the provider are wrapped by {@link #wrap(Cursor, SQLiteDatabase)}, so that clients
+ * only ever see the note as text.
+ *
+ * Set to package visibility, since only the provider and its tests need it.
+ */
+final class NoteCompression {
+
+    /**
+     * Notes whose UTF-8 encoding is shorter than this are not compressed. Deflating a short
+     * note saves little space and costs time on every save and every read.
+     */
+    static final int COMPRESSION_THRESHOLD_BYTES = 4096;
+
+    /**
+     * The first byte of a compressed note: zlib-wrapped deflate data follows the length.
+     */
+    static final byte FORMAT_DEFLATE = 1;
+
+    // The size of the format marker and the length that precede the compressed data.
+    private static final int HEADER_BYTES = 5;
+
+    // The most deflate expands data by, which bounds the length a compressed note can have.
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    // This class cannot be instantiated
+    private NoteCompression() {
+    }
+
+    /**
+     * Compresses a note for storage, if it is long enough and compresses well enough to be
+     * worth it.
+     *
+     * @param note The note text. May be null.
+     * @return The compressed note, or null if the note should be stored as text.
+     */
+    static byte[] compress(String note) {
+        if (note == null) {
+            return null;
+        }
+        byte[] utf8 = note.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length < COMPRESSION_THRESHOLD_BYTES) {
+            return null;
+        }
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(utf8);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 4);
+            out.write(FORMAT_DEFLATE);
+            out.write(utf8.length >>> 24);
+            out.write(utf8.length >>> 16);
+            out.write(utf8.length >>> 8);
+            out.write(utf8.length);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                // Gives up as soon as the result is no smaller than the text.
+                if (out.size() >= utf8.length) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Expands a note stored as a BLOB back into text.
+     *
+     * A client may store any BLOB in the note column, including one that starts like a
+     * compressed note by chance. A BLOB that does not expand to the length in its header is
+     * therefore read as raw UTF-8, as a BLOB without the marker is, rather than failing the read
+     * of the whole list or editor.
+     *
+     * @param stored The stored note.
+     * @return The note text.
+     */
+    static String decompress(byte[] stored) {
+        String note = stored.length < HEADER_BYTES || stored[0] != FORMAT_DEFLATE ? null
+                : inflate(stored);
+        // Not written by compress(), so it was stored as raw UTF-8 by a client.
+        return note != null ? note : new String(stored, StandardCharsets.UTF_8);
+    }
+
+    // Expands a BLOB written by compress(), or returns null if it is not valid.
+    private static String inflate(byte[] stored) {
+        int length = (stored[1] & 0xff) << 24 | (stored[2] & 0xff) << 16
+                | (stored[3] & 0xff) << 8 | (stored[4] & 0xff);
+        // Deflate expands data at most MAX_DEFLATE_RATIO times, so a longer length is not one
+        // compress() wrote, and must not be allocated.
+        if (length < 0 || length > (long) (stored.length - HEADER_BYTES) * MAX_DEFLATE_RATIO) {
+            return null;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, HEADER_BYTES, stored.length - HEADER_BYTES);
+            byte[] utf8 = new byte[length];
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(utf8, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            return inflated == length ? new String(utf8, StandardCharsets.UTF_8) : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns the text of a note value given to the provider. A BLOB is read as text the way
+     * {@link #readNote} reads it back once it is stored, rather than as the name of an array.
+     *
+     * @param value The value of the note column. May be null.
+     * @return The note text, or null if the value is null.
+     */
+    static String toText(Object value) {
+        if (value instanceof byte[]) {
+            return decompress((byte[]) value);
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Reads a note column as text, whether it is stored as text or compressed.
+     */
+    static String readNote(Cursor c, int columnIndex) {
+        if (c.getType(columnIndex) == Cursor.FIELD_TYPE_BLOB) {
+            return decompress(c.getBlob(columnIndex));
+        }
+        return c.getString(columnIndex);
+    }
+
+    /**
+     * Wraps a cursor over the notes table so that its note column, read as
+     * {@link NoteChunks#NOTE_TEXT}, is always read as text.
+     *
+     * @param db The database to read the chunks of chunked notes from.
+     * @return The wrapped cursor, or the cursor itself if it has no note column.
+     */
+    static Cursor wrap(Cursor c, SQLiteDatabase db) {
+        int noteIndex = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        return noteIndex < 0 ? c : new DecompressingCursor(c, noteIndex, db);
+    }
+
+    /**
+     * A cursor that expands the compressed notes of the cursor it wraps, and reads chunked notes
+     * from their chunks as their rows are read. The last note expanded is kept, since adapters
+     * read the same row more than once.
+     */
+    private static final class DecompressingCursor extends CrossProcessCursorWrapper {
+
+        private final int mNoteIndex;
+
+        private final SQLiteDatabase mDb;
+
+        // The position of the note held in mNote, or -1 if none is.
+        private int mNotePosition = -1;
+        private String mNote;
+
+        DecompressingCursor(Cursor cursor, int noteIndex, SQLiteDatabase db) {
+            super(cursor);
+            mNoteIndex = noteIndex;
+            mDb = db;
+            // Forgets the note kept when the wrapped cursor's rows change, as a requery makes
+            // them.
+            cursor.registerDataSetObserver(new DataSetObserver() {
+                @Override
+                public void onChanged() {
+                    mNotePosition = -1;
+                }
+
+                @Override
+                public void onInvalidated() {
+                    mNotePosition = -1;
+                }
+            });
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex != mNoteIndex) {
+                return super.getString(columnIndex);
+            }
+            int type = super.getType(columnIndex);
+            if (type != FIELD_TYPE_BLOB && type != FIELD_TYPE_INTEGER) {
+                return super.getString(columnIndex);
+            }
+            int position = getPosition();
+            if (position != mNotePosition) {
+                mNote = type == FIELD_TYPE_BLOB ? decompress(super.getBlob(columnIndex))
+                        : NoteChunks.read(mDb, super.getLong(columnIndex));
+                mNotePosition = position;
+            }
+            return mNote;
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            int type = super.getType(columnIndex);
+            return columnIndex == mNoteIndex
+                    && (type == FIELD_TYPE_BLOB || type == FIELD_TYPE_INTEGER)
+                    ? FIELD_TYPE_STRING : type;
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            if (columnIndex == mNoteIndex) {
+                String note = getString(columnIndex);
+                return note == null ? null : note.getBytes(StandardCharsets.UTF_8);
+            }
+            return super.getBlob(columnIndex);
+        }
+
+        /*
+         * Fills windows through getString(), rather than letting the wrapped cursor copy its
+         * compressed values into a window sent to another process.
+         */
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            DatabaseUtils.cursorFillWindow(this, position, window);
+        }
+
+        @Override
+        public CursorWindow getWindow() {
+            return null;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.View;
+import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
+
+/**
+ * Binds the modification date column of a notes cursor to a TextView. The provider stores the
+ * date as milliseconds since the epoch; this renders it through {@link NoteDateFormatter},
+ * relative to now for recent notes. Every other column is left to the adapter's default
+ * binding.
+ */
+class NoteDateBinder implements SimpleCursorAdapter.ViewBinder {
+
+    private final NoteDateFormatter mFormatter;
+
+    NoteDateBinder(Context context) {
+        mFormatter = NoteDateFormatter.getInstance(context);
+    }
+
+    @Override
+    public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+        if (!NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE.equals(
+                cursor.getColumnName(columnIndex))) {
+            return false;
+        }
+        setDate((TextView) view, cursor.getLong(columnIndex));
+        return true;
+    }
+
+    /**
+     * Shows a modification date, in milliseconds since the epoch, in a TextView.
+     */
+    void setDate(TextView view, long modified) {
+        view.setText(mFormatter.format(modified));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
+import android.util.LongSparseArray;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Renders the modification dates of notes, in milliseconds since the epoch, for the lists,
+ * relative to now and in the user's locale: "5 min. ago" within the last hour, "3 hr. ago"
+ * earlier today, "Yesterday", and the full date and time before that.
+ *
+ * Dates are shown to the minute, so the text is cached by the minute a date falls in. The text
+ * of a date from today or yesterday changes as time passes, and is cached for the current
+ * minute only; the full date of an older one is kept until the locale, the time zone or the
+ * 12/24-hour setting changes. Scrolling back over notes therefore formats nothing again.
+ *
+ * There is one formatter for the application, which may be used from any thread.
+ *
+ * Set to package visibility, since only the app's lists and their tests need it.
+ */
+final class NoteDateFormatter {
+
+    // The most dates each cache holds before it is emptied.
+    private static final int MAX_CACHED_DATES = 512;
+
+    private static NoteDateFormatter sInstance;
+
+    private final Context mContext;
+
+    // The text of recent dates, valid during mCacheMinute, and of older dates, by minute.
+    private final LongSparseArray<String> mRecent = new LongSparseArray<String>();
+    private final LongSparseArray<String> mOlder = new LongSparseArray<String>();
+
+    // The minute the recent dates were rendered in, and the settings all dates were rendered
+    // with.
+    private long mCacheMinute = Long.MIN_VALUE;
+    private Locale mLocale;
+    private TimeZone mTimeZone;
+    private boolean m24Hour;
+
+    // Incremented whenever cached text is dropped.
+    private int mVersion;
+
+    /**
+     * Returns the application's formatter, creating it the first time.
+     */
+    static synchronized NoteDateFormatter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteDateFormatter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    // Set to package visibility for the tests, which need formatters whose caches start empty.
+    NoteDateFormatter(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the text of a modification date, as of now.
+     */
+    String format(long modified) {
+        return format(modified, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the text of a modification date, as of the given time.
+     */
+    synchronized String format(long modified, long now) {
+        long nowMinute = now / DateUtils.MINUTE_IN_MILLIS;
+        checkSettings(nowMinute);
+        long minute = modified / DateUtils.MINUTE_IN_MILLIS;
+        int days = dayOf(now) - dayOf(modified);
+        boolean recent = days >= 0 && days <= 1 && minute <= nowMinute + 1;
+        LongSparseArray<String> cache = recent ? mRecent : mOlder;
+        String text = cache.get(minute);
+        if (text == null) {
+            text = render(modified, now, minute, nowMinute, days, recent);
+            if (cache.size() >= MAX_CACHED_DATES) {
+                cache.clear();
+            }
+            cache.put(minute, text);
+        }
+        return text;
+    }
+
+    /**
+     * Returns a number that changes whenever the text of a date shown before may have changed:
+     * once a minute, and when the locale, the time zone or the clock format changes.
+     */
+    synchronized int getVersion() {
+        checkSettings(System.currentTimeMillis() / DateUtils.MINUTE_IN_MILLIS);
+        return mVersion;
+    }
+
+    /**
+     * Drops every date rendered so far, and changes the version, as a change of the settings
+     * does. For the tests, which cannot wait for the minute to change.
+     */
+    synchronized void invalidate() {
+        mCacheMinute = Long.MIN_VALUE;
+        mLocale = null;
+    }
+
+    /*
+     * Drops the recent dates when the minute has changed, and every date when the settings
+     * they were rendered with have changed too. The settings are only read once a minute.
+     */
+    private void checkSettings(long nowMinute) {
+        if (nowMinute == mCacheMinute) {
+            return;
+        }
+        mCacheMinute = nowMinute;
+        mRecent.clear();
+        mVersion++;
+        Locale locale = Locale.getDefault();
+        TimeZone timeZone = TimeZone.getDefault();
+        boolean is24Hour = DateFormat.is24HourFormat(mContext);
+        if (!locale.equals(mLocale) || mTimeZone == null
+                || !timeZone.getID().equals(mTimeZone.getID()) || is24Hour != m24Hour) {
+            mLocale = locale;
+            mTimeZone = timeZone;
+            m24Hour = is24Hour;
+            mOlder.clear();
+        }
+    }
+
+    private String render(long modified, long now, long minute, long nowMinute, int days,
+            boolean recent) {
+        if (!recent) {
+            return DateUtils.formatDateTime(mContext, modified,
+                    DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME
+                            | DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_NUMERIC_DATE);
+        }
+        // Renders the minutes rather than the times, so that every date in a minute gets the
+        // same text.
+        now = nowMinute * DateUtils.MINUTE_IN_MILLIS;
+        modified = minute * DateUtils.MINUTE_IN_MILLIS;
+        long resolution;
+        if (nowMinute - minute < 60) {
+            // At least one minute, so that a note saved just now is not shown as "0 min. ago",
+            // nor one a little ahead of the clock as being in the future.
+            modified = now - Math.max(1, nowMinute - minute) * DateUtils.MINUTE_IN_MILLIS;
+            resolution = DateUtils.MINUTE_IN_MILLIS;
+        } else if (days == 0) {
+            resolution = DateUtils.HOUR_IN_MILLIS;
+        } else {
+            // "Yesterday".
+            resolution = DateUtils.DAY_IN_MILLIS;
+        }
+        return DateUtils.getRelativeTimeSpanString(modified, now, resolution,
+                DateUtils.FORMAT_ABBREV_RELATIVE).toString();
+    }
+
+    // Returns the number of the local day a time falls on.
+    private int dayOf(long millis) {
+        return (int) ((millis + mTimeZone.getOffset(millis)) / DateUtils.DAY_IN_MILLIS);
+    }
+}
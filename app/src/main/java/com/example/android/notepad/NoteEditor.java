@@ -16,13 +16,12 @@
 
 package com.example.android.notepad;
 
-import java.util.Date;
-import java.text.SimpleDateFormat;
 import android.app.Activity;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -33,6 +32,8 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -46,10 +47,13 @@ import android.widget.EditText;
  * {@link Intent#ACTION_EDIT}, create a note {@link Intent#ACTION_INSERT}, or
  * create a new note from the current contents of the clipboard {@link Intent#ACTION_PASTE}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler}
- * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The note is read in the background by a {@link NoteLoader}, which is kept across
+ * configuration changes. Updates and deletes are handed to {@link NoteSaveQueue}, which writes
+ * them in the background.
+ *
+ * NOTE: Notice that the insert of a new note and the paste in this Activity are taking place on
+ * the UI thread. This is not a good practice. It is only done here to make the code more
+ * readable. A real application should perform them on a separate thread.
  */
 public class NoteEditor extends Activity {
     //用于日志记录和调试目的
@@ -66,7 +70,7 @@ public class NoteEditor extends Activity {
             };
 
     //活动保存状态的标签
-    private static final String ORIGINAL_CONTENT = "origContent";
+    private static final String ORIGINAL_REVISION = "origRevision";
 
     // 此活动可以由多个操作启动。每个动作都表示为一个“状态”常量
     private static final int STATE_EDIT = 0;
@@ -75,9 +79,27 @@ public class NoteEditor extends Activity {
     // 全局可变变量
     private int mState;
     private Uri mUri;
-    private Cursor mCursor;
     private EditText mText;
-    private String mOriginalContent;
+
+    // 在后台读取注释，配置更改时保留
+    private NoteLoader mLoader;
+
+    // True once the note has been read, until it is deleted or reverted. Nothing is saved before.
+    private boolean mNoteLoaded;
+
+    // 打开注释时的修订号，还原时由提供程序重建该版本的文本；0表示尚未读取
+    private long mOriginalRevision;
+
+    // 最后一次从提供程序读取或写入的注释文本，用于跳过没有变化的保存
+    private String mPersistedText;
+
+    // Incremented for every change to the text in mText. Equal to mPersistedVersion when the
+    // text has not been touched since it was last read from or written to the provider.
+    private int mEditVersion;
+    private int mPersistedVersion;
+
+    // 在后台写入更新和删除
+    private NoteSaveQueue mSaveQueue;
 
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
@@ -138,6 +160,7 @@ public class NoteEditor extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mSaveQueue = NoteSaveQueue.getInstance(this);
         /*
          * 创建在将活动对象的结果发送回调用方时使用的意图。
          */
@@ -147,6 +170,12 @@ public class NoteEditor extends Activity {
          */
         // 获取触发此活动的意图筛选器的操作
         final String action = intent.getAction();
+        // An activity recreated for a configuration change takes over the loader of the one it
+        // replaces, and with it the note, which is not inserted or pasted again.
+        Object retained = getLastNonConfigurationInstance();
+        if (retained instanceof NoteLoader) {
+            mLoader = (NoteLoader) retained;
+        }
         // 对于编辑操作：
         if (Intent.ACTION_EDIT.equals(action)) {
             // 设置要编辑的活动状态，并获取要编辑的数据的URI。
@@ -157,7 +186,8 @@ public class NoteEditor extends Activity {
                 || Intent.ACTION_PASTE.equals(action)) {
             // 设置要插入的活动状态，获取常规注释URI，并在提供程序中插入空记录
             mState = STATE_INSERT;
-            mUri = getContentResolver().insert(intent.getData(), null);
+            mUri = mLoader != null ? mLoader.getUri()
+                    : getContentResolver().insert(intent.getData(), null);
             /*
              * If the attempt to insert the new note fails, shuts down this Activity. The
              * originating Activity receives back RESULT_CANCELED if it requested a result.
@@ -180,25 +210,26 @@ public class NoteEditor extends Activity {
             return;
         }
         /*
-         * Using the URI passed in with the triggering Intent, gets the note or notes in
-         * the provider.
-         * Note: This is being done on the UI thread. It will block the thread until the query
-         * completes. In a sample app, going against a simple provider based on a local database,
-         * the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * Using the URI passed in with the triggering Intent, sets up the reading of the note,
+         * which starts in onResume() and happens in the background.
          */
-        mCursor = managedQuery(
-                mUri,         // 从提供程序获取多个注释的URI。
-                PROJECTION,   // 返回每个注释的注释ID和注释内容的投影。
-                null,         // No "where" clause selection criteria.
-                null,         // No "where" clause selection values.
-                null          // Use the default sort order (modification date, descending)
-        );
-        // For a paste, initializes the data from clipboard.
-        // (Must be done after mCursor is initialized.)
+        boolean created = mLoader == null;
+        if (created) {
+            mLoader = new EditorLoader(this, mUri);
+        }
+        mLoader.attach(new NoteLoader.Listener() {
+            @Override
+            public void onNoteLoaded(ContentValues note) {
+                showNote(note);
+            }
+        });
+        // For a paste, initializes the data from clipboard, unless it was done before the
+        // configuration change.
         if (Intent.ACTION_PASTE.equals(action)) {
-            // Does the paste
-            performPaste();
+            if (created) {
+                // Does the paste
+                performPaste();
+            }
             // Switches the state to EDIT so the title can be modified.
             mState = STATE_EDIT;
         }
@@ -206,43 +237,61 @@ public class NoteEditor extends Activity {
         setContentView(R.layout.note_editor);
         // Gets a handle to the EditText in the the layout.
         mText = (EditText) findViewById(R.id.note);
+        // Tracks edits, so that leaving a note that was only looked at does not rewrite it.
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mEditVersion++;
+            }
+        });
         /*
-         * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
+         * If this Activity had stopped previously, its state was written the ORIGINAL_REVISION
          * location in the saved Instance state. This gets the state.
          */
         if (savedInstanceState != null) {
-            mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+            mOriginalRevision = savedInstanceState.getLong(ORIGINAL_REVISION);
         }
     }
     /**
      * This method is called when the Activity is about to come to the foreground. This happens
      * when the Activity comes to the top of the task stack, OR when it is first starting.
      *
-     * Moves to the first note in the list, sets an appropriate title for the action chosen by
-     * the user, puts the note contents into the TextView, and saves the original text as a
-     * backup.
+     * Has the loader hand over the note: the note read before, if it has not changed since the
+     * Activity was paused (such as its title), and otherwise the note read again in the
+     * background. showNote() then displays it.
      */
     @Override
     protected void onResume() {
         super.onResume();
-        /*
-         * mCursor is initialized, since onCreate() always precedes onResume for any running
-         * process. This tests that it's not null, since it should always contain data.
-         */
-        if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
-            /* Moves to the first record. Always call moveToFirst() before accessing data in
-             * a Cursor for the first time. The semantics of using a Cursor are that when it is
-             * created, its internal index is pointing to a "place" immediately before the first
-             * record.
-             */
-            mCursor.moveToFirst();
+        mLoader.start();
+    }
+
+    /**
+     * Sets an appropriate title for the action chosen by the user, puts the note contents into
+     * the TextView, and saves the original text as a backup.
+     *
+     * @param note The note as read by the loader, or null if it could not be read.
+     */
+    private void showNote(ContentValues note) {
+        if (note != null) {
+            mNoteLoaded = true;
+            // 尚未写入的保存优先于提供程序中的旧值
+            ContentValues pending = mSaveQueue.getPendingUpdate(mUri);
             // 根据当前活动状态修改活动的窗口标题。
             if (mState == STATE_EDIT) {
                 // 设置活动的标题以包含注释标题
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
+                String title = note.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+                if (pending != null && pending.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+                    title = pending.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+                }
                 Resources res = getResources();
                 String text = String.format(res.getString(R.string.title_edit), title);
                 setTitle(text);
@@ -256,14 +305,27 @@ public class NoteEditor extends Activity {
              * The Activity should re-display the text that had been retrieved previously, but
              * it should not move the cursor. This helps the user to continue editing or entering.
              */
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
-            mText.setTextKeepState(note);
-            // 存储原始注释文本，以允许用户恢复更改。
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
+            // Gets the note text and puts it in the TextView, but doesn't change the text
+            // cursor's position.
+            String text = note.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            if (pending != null && pending.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                text = pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            }
+            /*
+             * A note read again after it changed may arrive after the user started typing in
+             * the text shown before. The typing wins: it is kept, and saved over the note when
+             * the Activity pauses, rather than replaced by the text just read.
+             */
+            if (mPersistedText == null || !isDirty(mText.getText().toString())) {
+                mText.setTextKeepState(text);
+                // 刚读取的文本就是已保存的文本
+                mPersistedText = text;
+                mPersistedVersion = mEditVersion;
+            }
+            // 记住原始注释的修订号，以允许用户恢复更改。
+            if (mOriginalRevision == 0) {
+                Long revision = note.getAsLong(NotePad.Revisions.COLUMN_NAME_REVISION);
+                mOriginalRevision = revision != null ? revision : 0;
             }
             /*
              * 出现问题。光标应始终包含数据。在便笺中报告错误。
@@ -283,8 +345,59 @@ public class NoteEditor extends Activity {
      */
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-        //保存原始文本，以便在暂停时需要终止活动时仍保留它。
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        //保存原始修订号，以便在暂停时需要终止活动时仍保留它。
+        outState.putLong(ORIGINAL_REVISION, mOriginalRevision);
+    }
+
+    /**
+     * Hands the loader, and the note it read, to the Activity that replaces this one after a
+     * configuration change.
+     */
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mLoader;
+    }
+
+    /*
+     * Reads the note for the editor, along with the number of its newest revision, which it
+     * holds under NotePad.Revisions.COLUMN_NAME_REVISION.
+     */
+    private static final class EditorLoader extends NoteLoader {
+
+        EditorLoader(Context context, Uri uri) {
+            super(context, uri, PROJECTION);
+        }
+
+        @Override
+        ContentValues load(ContentResolver resolver) {
+            ContentValues note = super.load(resolver);
+            if (note != null) {
+                note.put(NotePad.Revisions.COLUMN_NAME_REVISION,
+                        queryLatestRevision(resolver, getUri()));
+            }
+            return note;
+        }
+    }
+
+    /**
+     * Returns the number of the newest revision of a note, or 0 if it has none.
+     */
+    private static long queryLatestRevision(ContentResolver resolver, Uri uri) {
+        Cursor c = resolver.query(
+                NotePad.Revisions.getContentUri(ContentUris.parseId(uri)),
+                new String[] { NotePad.Revisions.COLUMN_NAME_REVISION },
+                null,
+                null,
+                NotePad.Revisions.DEFAULT_SORT_ORDER
+        );
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
     }
     /**
      * This method is called when the Activity loses focus.
@@ -302,12 +415,10 @@ public class NoteEditor extends Activity {
     protected void onPause() {
         super.onPause();
         /*
-         * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
-         * will exist, even if no records were returned, unless the query failed because of some
-         * exception or error.
-         *
+         * Tests to see that the note has been read (see showNote()). Until it has, the editor
+         * shows nothing of it, so there is nothing to save.
          */
-        if (mCursor != null) {
+        if (mNoteLoaded) {
             // 获取当前注释文本。
             String text = mText.getText().toString();
             int length = text.length();
@@ -326,6 +437,8 @@ public class NoteEditor extends Activity {
                  * onCreate() inserted a new empty note into the provider, and it is this new note
                  * that is being edited.
                  */
+            } else if (!isDirty(text)) {
+                // 文本没有变化，跳过保存，不修改时间也不通知列表
             } else if (mState == STATE_EDIT) {
                 // 创建一个映射以包含列的新值
                 updateNote(text, null);
@@ -334,6 +447,37 @@ public class NoteEditor extends Activity {
                 mState = STATE_EDIT;
             }
         }
+        // 离开编辑器时立即写入，不等待合并延迟
+        if (isFinishing()) {
+            mSaveQueue.flush();
+        }
+    }
+
+    /**
+     * Lets go of the loader, which is dropped unless an Activity recreated for a configuration
+     * change takes it over.
+     */
+    @Override
+    protected void onDestroy() {
+        if (mLoader != null) {
+            mLoader.detach();
+            if (!isChangingConfigurations()) {
+                mLoader.destroy();
+            }
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Returns true if the text differs from what was last read from or written to the
+     * provider. Text that was not edited at all is not compared; text that was edited is, since
+     * the user may have typed and then deleted the same characters.
+     */
+    private boolean isDirty(String text) {
+        if (mEditVersion == mPersistedVersion && mPersistedText != null) {
+            return false;
+        }
+        return !text.equals(mPersistedText);
     }
     /**
      * This method is called when the user clicks the device's Menu button the first time for
@@ -364,11 +508,9 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        //检查注释是否已更改，并启用/禁用还原选项
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
+        //检查注释是否已更改，并启用/禁用还原选项。已保存的文本可能还在队列中，未写入提供程序
         String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
+        if (currentNote.equals(mPersistedText)) {
             menu.findItem(R.id.menu_revert).setVisible(false);
         } else {
             menu.findItem(R.id.menu_revert).setVisible(true);
@@ -444,8 +586,8 @@ public class NoteEditor extends Activity {
                 // (moveToFirst() returns true), then this gets the note data from it.
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                        int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+                        int colNoteIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+                        int colTitleIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
                         text = orig.getString(colNoteIndex);
                         title = orig.getString(colTitleIndex);
                     }
@@ -471,11 +613,8 @@ public class NoteEditor extends Activity {
 
         //设置包含要在提供程序中更新的值的映射。
         ContentValues values = new ContentValues();
-        long now = System.currentTimeMillis();
-        Date date = new Date(now);
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yy-MM-dd HH:mm:ss");
-        String dateFormat = simpleDateFormat.format(date);
-        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, dateFormat);
+        // 修改时间以毫秒存储，列表显示时再格式化
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
         // 如果操作是插入新注释，则会为其创建初始标题。
         if (mState == STATE_INSERT) {
@@ -503,38 +642,35 @@ public class NoteEditor extends Activity {
         //这会将所需的注释文本放入地图中。
         values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
         /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
-         * query Cursor objects to the incoming URI. The content resolver is thus
-         * automatically notified when the Cursor for the URI changes, and the UI is
-         * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * Queues the new values in the map for the provider. The queue writes them on its own
+         * thread shortly afterwards, merged with any other update to this note that is queued
+         * by then, so the UI thread does not wait for the database. The ListView is updated
+         * automatically when the write happens. The provider sets this up by setting the
+         * notification URI for query Cursor objects to the incoming URI.
          */
-        getContentResolver().update(
-                mUri,    // 要更新的记录的URI。
-                values,  // 列名和要应用于它们的新值的映射。
-                null,    // 没有使用选择标准，因此不需要列。
-                null     // 不使用列，因此不需要参数。
-        );
+        mSaveQueue.update(mUri, values);
 
+        // 记录已保存的文本，之后没有修改时不再重复保存
+        mPersistedText = text;
+        mPersistedVersion = mEditVersion;
     }
 
     /**
      * This helper method cancels the work done on a note.  It deletes the note if it was
-     * newly created, or reverts to the original text of the note i
+     * newly created, or reverts it to the revision it was at when it was opened.
      */
     private final void cancelNote() {
-        if (mCursor != null) {
+        if (mNoteLoaded) {
             if (mState == STATE_EDIT) {
-                // 将原始注释文本放回数据库
-                mCursor.close();
-                mCursor = null;
-                ContentValues values = new ContentValues();
-                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                // 让提供程序将注释还原为打开时的修订版本
+                mNoteLoaded = false;
+                if (mOriginalRevision > 0) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                            System.currentTimeMillis());
+                    mSaveQueue.update(NotePad.Revisions.getItemUri(
+                            ContentUris.parseId(mUri), mOriginalRevision), values);
+                }
             } else if (mState == STATE_INSERT) {
                 // 插入了一张空便条，请确保将其删除
                 deleteNote();
@@ -547,10 +683,9 @@ public class NoteEditor extends Activity {
      * Take care of deleting a note.  Simply deletes the entry.
      */
     private final void deleteNote() {
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
-            getContentResolver().delete(mUri, null, null);
+        if (mNoteLoaded) {
+            mNoteLoaded = false;
+            mSaveQueue.delete(mUri);
             mText.setText("");
         }
     }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+
+/**
+ * Shows the notes of a {@link NoteListModel} in NotesList, one row per note, with the note's
+ * title and modification date.
+ *
+ * The adapter has stable IDs, the IDs of the notes, so after a change to the notes the list
+ * hands each position back the view that showed the same note. Each view remembers the row it
+ * was bound to, and is bound again only if the model now holds another row for its note,
+ * which it does only when the note changed. A change to one note therefore binds one view,
+ * however many are visible, rather than every visible view as SimpleCursorAdapter did. Dates
+ * of recent notes read relative to now, so a view also shows its date again, and only its
+ * date, once {@link NoteDateFormatter#getVersion()} has changed.
+ *
+ * The fast scroller's sections are the months of a {@link NoteSectionIndex}, which counts
+ * every note. When the fast scroller asks for a month whose notes have not been loaded yet,
+ * the adapter points it at the last loaded note, and asks its {@link SectionLoader} to load
+ * the notes as far as the month; the fast scroller reaches the month when it asks again, as
+ * the thumb is dragged further, once they have been loaded.
+ *
+ * Set to package visibility, since only NotesList and its tests need it.
+ */
+final class NoteListAdapter extends BaseAdapter implements SectionIndexer {
+
+    /**
+     * Loads the notes of a fast scroll section that has not been loaded yet.
+     */
+    interface SectionLoader {
+        /**
+         * Loads the notes up to the given position, in the background, if they have not been
+         * loaded yet.
+         */
+        void loadThrough(int position);
+    }
+
+    private final LayoutInflater mInflater;
+
+    private final NoteListModel mModel;
+
+    private final int mTitleColumn;
+
+    private final int mModifiedColumn;
+
+    private final NoteDateBinder mDateBinder;
+
+    private final NoteDateFormatter mDateFormatter;
+
+    // A cursor over the model, returned by getItem().
+    private final Cursor mCursor;
+
+    private final NoteSectionIndex mSections;
+
+    private SectionLoader mSectionLoader;
+
+    /*
+     * The views of a row, and the row of the model they show.
+     */
+    private static final class RowViews {
+        final TextView mTitle;
+        final TextView mModified;
+        Object[] mRow;
+
+        // The version of the date formatter the date was shown with.
+        int mDateVersion;
+
+        RowViews(View view) {
+            mTitle = (TextView) view.findViewById(android.R.id.text1);
+            mModified = (TextView) view.findViewById(R.id.text2);
+        }
+    }
+
+    /**
+     * @param model The notes to show.
+     * @param titleColumn The position of the title among the model's columns.
+     * @param modifiedColumn The position of the modification date among the model's columns.
+     * @param sections The months of the notes, for the fast scroller.
+     */
+    NoteListAdapter(Context context, NoteListModel model, int titleColumn, int modifiedColumn,
+            NoteSectionIndex sections) {
+        mInflater = LayoutInflater.from(context);
+        mModel = model;
+        mTitleColumn = titleColumn;
+        mModifiedColumn = modifiedColumn;
+        mDateBinder = new NoteDateBinder(context);
+        mDateFormatter = NoteDateFormatter.getInstance(context);
+        mCursor = model.newCursor();
+        mSections = sections;
+    }
+
+    void setSectionLoader(SectionLoader loader) {
+        mSectionLoader = loader;
+    }
+
+    @Override
+    public int getCount() {
+        return mModel.size();
+    }
+
+    /**
+     * Returns a cursor over the notes, positioned on the note at the given position.
+     */
+    @Override
+    public Object getItem(int position) {
+        return mCursor.moveToPosition(position) ? mCursor : null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mModel.getId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSections.getSections();
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        int position = mSections.getPositionForSection(section);
+        if (mSectionLoader != null) {
+            mSectionLoader.loadThrough(position);
+        }
+        return Math.max(0, Math.min(position, mModel.size() - 1));
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return mSections.getSectionForPosition(position);
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        RowViews views;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.noteslist_item, parent, false);
+            views = new RowViews(convertView);
+            convertView.setTag(views);
+        } else {
+            views = (RowViews) convertView.getTag();
+        }
+
+        Object[] row = mModel.getRow(position);
+        int dateVersion = mDateFormatter.getVersion();
+        if (views.mRow != row) {
+            Object title = row[mTitleColumn];
+            views.mTitle.setText(title != null ? title.toString() : "");
+            mDateBinder.setDate(views.mModified, (Long) row[mModifiedColumn]);
+            views.mRow = row;
+            views.mDateVersion = dateVersion;
+        } else if (views.mDateVersion != dateVersion) {
+            // Only the date may read differently, such as "6 min. ago" instead of "5 min. ago".
+            mDateBinder.setDate(views.mModified, (Long) row[mModifiedColumn]);
+            views.mDateVersion = dateVersion;
+        }
+        return convertView;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The notes a list has loaded so far, in {@link NotePad.Notes#PAGED_SORT_ORDER}, held as rows
+ * of the columns it queried. Pages are appended as they are loaded, and a change to one note
+ * is applied by moving, adding or removing its row, so that the list does not have to query
+ * every note again when one changes. The rows are shown through a cursor over them, or by
+ * {@link NoteListAdapter}.
+ *
+ * A row is never modified once loaded: a note that changes gets a new row, and a note that
+ * does not keeps its row, even when the notes are loaded again. Views can therefore tell
+ * whether the note they show has changed by comparing the row they were bound to.
+ *
+ * Only used on the thread that shows the list, except for {@link #readRows(Cursor)} and
+ * {@link #diffRows(Cursor, List)}, with which the rows are read on another.
+ *
+ * Set to package visibility, since only the app's activities and their tests need it.
+ */
+final class NoteListModel {
+
+    private final String[] mColumns;
+
+    private final int mIdColumn;
+
+    private final int mModifiedColumn;
+
+    private ArrayList<Object[]> mRows = new ArrayList<Object[]>();
+
+    // Incremented on every change to the rows.
+    private int mVersion;
+
+    /**
+     * @param columns The columns of the rows, which the notes given are queried with.
+     * @param idColumn The position of {@link NotePad.Notes#_ID} in the columns.
+     * @param modifiedColumn The position of {@link NotePad.Notes#COLUMN_NAME_MODIFICATION_DATE}
+     * in the columns.
+     */
+    NoteListModel(String[] columns, int idColumn, int modifiedColumn) {
+        mColumns = columns;
+        mIdColumn = idColumn;
+        mModifiedColumn = modifiedColumn;
+    }
+
+    int size() {
+        return mRows.size();
+    }
+
+    long getId(int position) {
+        return (Long) mRows.get(position)[mIdColumn];
+    }
+
+    long getModified(int position) {
+        return (Long) mRows.get(position)[mModifiedColumn];
+    }
+
+    /**
+     * Returns the row at a position, which must not be modified.
+     */
+    Object[] getRow(int position) {
+        return mRows.get(position);
+    }
+
+    /**
+     * Returns a number that changes whenever the rows do.
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns a copy of the list of rows, which another thread may read while the rows change.
+     */
+    List<Object[]> snapshot() {
+        return new ArrayList<Object[]>(mRows);
+    }
+
+    /**
+     * Reads the notes of a cursor as rows. Reads nothing from this model but its columns, so
+     * it may run on any thread.
+     *
+     * @param notes The notes, queried with the model's columns.
+     * @return The rows, to be given to {@link #addRows(List)} or {@link #apply(long, Object[],
+     * boolean)}.
+     */
+    ArrayList<Object[]> readRows(Cursor notes) {
+        return diffRows(notes, new ArrayList<Object[]>(0));
+    }
+
+    /**
+     * Appends rows read by {@link #readRows(Cursor)}, which follow the rows loaded so far.
+     */
+    void addRows(List<Object[]> rows) {
+        mRows.addAll(rows);
+        mVersion++;
+    }
+
+    /**
+     * Reads the notes of a cursor as rows, reusing the row of each note that is the same in
+     * the previous rows, so that it is not bound again. Compares the notes by ID and reads
+     * nothing from this model but its columns, so it may run on any thread.
+     *
+     * @param notes The notes, queried with the model's columns.
+     * @param previous A {@link #snapshot()} of the rows.
+     * @return The rows, to be given to {@link #setRows(ArrayList)}.
+     */
+    ArrayList<Object[]> diffRows(Cursor notes, List<Object[]> previous) {
+        HashMap<Long, Object[]> previousRows = new HashMap<Long, Object[]>(previous.size() * 2);
+        for (Object[] row : previous) {
+            previousRows.put((Long) row[mIdColumn], row);
+        }
+        ArrayList<Object[]> rows = new ArrayList<Object[]>(notes.getCount());
+        notes.moveToPosition(-1);
+        while (notes.moveToNext()) {
+            Object[] row = rowOf(notes);
+            Object[] old = previousRows.get((Long) row[mIdColumn]);
+            rows.add(old != null && Arrays.deepEquals(old, row) ? old : row);
+        }
+        return rows;
+    }
+
+    /**
+     * Replaces the rows with those returned by {@link #diffRows(Cursor, List)}.
+     *
+     * @return True if any position now holds a different row.
+     */
+    boolean setRows(ArrayList<Object[]> rows) {
+        boolean changed = rows.size() != mRows.size();
+        for (int i = 0; !changed && i < rows.size(); i++) {
+            changed = rows.get(i) != mRows.get(i);
+        }
+        mRows = rows;
+        mVersion++;
+        return changed;
+    }
+
+    /**
+     * Applies a change to one note. Its row is removed, and put back where it now belongs if
+     * the note still exists. A note that now belongs after the last row is left out unless the
+     * list is complete, as it belongs to a page that has not been loaded yet. A note whose
+     * columns have not changed keeps its row.
+     *
+     * @param id The ID of the note.
+     * @param row The note as it is now, read by {@link #readRows(Cursor)}, or null if it was
+     * deleted.
+     * @param complete Whether every note has been loaded.
+     * @return True if the rows changed.
+     */
+    boolean apply(long id, Object[] row, boolean complete) {
+        int old = indexOf(id);
+        Object[] oldRow = old >= 0 ? mRows.remove(old) : null;
+        mVersion++;
+        if (row == null) {
+            return old >= 0;
+        }
+        if (oldRow != null && Arrays.deepEquals(oldRow, row)) {
+            row = oldRow;
+        }
+        int position = insertionPoint(row);
+        if (position == mRows.size() && !complete) {
+            return old >= 0;
+        }
+        mRows.add(position, row);
+        return row != oldRow || position != old;
+    }
+
+    /**
+     * Returns a cursor over the rows, which sees the changes made to them afterwards.
+     */
+    Cursor newCursor() {
+        return new RowsCursor();
+    }
+
+    /**
+     * Returns the position of the row of a note, or -1 if it has not been loaded.
+     */
+    int indexOf(long id) {
+        for (int i = 0; i < mRows.size(); i++) {
+            if ((Long) mRows.get(i)[mIdColumn] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Returns the position a row belongs at: after the rows modified later, or at the same
+     * time with a lower ID.
+     */
+    private int insertionPoint(Object[] row) {
+        long modified = (Long) row[mModifiedColumn];
+        long id = (Long) row[mIdColumn];
+        int low = 0;
+        int high = mRows.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Object[] other = mRows.get(middle);
+            long otherModified = (Long) other[mModifiedColumn];
+            if (otherModified > modified
+                    || (otherModified == modified && (Long) other[mIdColumn] < id)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Copies the current row of a cursor, holding integers as Long and text as String.
+    private Object[] rowOf(Cursor cursor) {
+        Object[] row = new Object[mColumns.length];
+        for (int i = 0; i < row.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        if (row[mModifiedColumn] == null) {
+            row[mModifiedColumn] = 0L;
+        }
+        return row;
+    }
+
+    /*
+     * A cursor over the rows as they are when it is read.
+     */
+    private final class RowsCursor extends AbstractCursor {
+
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = value(column);
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = value(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value != null ? Long.parseLong(value.toString()) : 0;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = value(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value != null ? Double.parseDouble(value.toString()) : 0;
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = value(column);
+            return value instanceof byte[] ? (byte[]) value : null;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return value(column) == null;
+        }
+
+        private Object value(int column) {
+            return mRows.get(getPosition())[column];
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Reads one note for an editor on the application's loading thread, and hands it to the
+ * editor on the UI thread, so that opening and resuming an editor does not wait for the
+ * provider.
+ *
+ * A loader outlives the activity that created it. An activity recreated for a configuration
+ * change gets the loader back from onRetainNonConfigurationInstance(), and attaches to it: it
+ * receives the note already read, or being read, without querying it again. The loader
+ * watches the note, and reads it again on the next {@link #start()} only if it changed.
+ *
+ * The note is handed over as a copy of its columns, rather than as a cursor, so that it can be
+ * kept across activities. Only used on the UI thread, apart from the reading itself.
+ *
+ * Set to package visibility, since only the app's activities and their tests need it.
+ */
+class NoteLoader {
+
+    // For logging and debugging
+    private static final String TAG = "NoteLoader";
+
+    /**
+     * Receives the note read by a loader, on the UI thread.
+     */
+    interface Listener {
+        /**
+         * @param note The columns of the note, or null if it could not be read.
+         */
+        void onNoteLoaded(ContentValues note);
+    }
+
+    private static Handler sLoadingHandler;
+
+    private final ContentResolver mResolver;
+
+    private final Uri mUri;
+
+    private final String[] mProjection;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private Listener mListener;
+
+    // The last note read, and whether it is still current. Only touched on the UI thread.
+    private ContentValues mNote;
+    private boolean mLoaded;
+    private boolean mStale = true;
+
+    // Increased for every read started, so that a read overtaken by another is dropped.
+    private int mGeneration;
+    private boolean mLoading;
+
+    private boolean mDestroyed;
+
+    // Marks the note stale when it changes.
+    private final ContentObserver mObserver;
+
+    /**
+     * Returns a handler on the application's loading thread, a background thread shared by
+     * the activities for reading the provider, creating it the first time.
+     */
+    static synchronized Handler getLoadingHandler() {
+        if (sLoadingHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sLoadingHandler = new Handler(thread.getLooper());
+        }
+        return sLoadingHandler;
+    }
+
+    /**
+     * Creates a loader for a note, which reads nothing until it is started.
+     *
+     * @param uri The note ID URI of the note.
+     * @param projection The columns to read.
+     */
+    NoteLoader(Context context, Uri uri, String[] projection) {
+        mResolver = context.getApplicationContext().getContentResolver();
+        mUri = uri;
+        mProjection = projection;
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mStale = true;
+            }
+        };
+        mResolver.registerContentObserver(uri, false, mObserver);
+    }
+
+    Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * Sets the listener the note is handed to, replacing the previous one, which belonged to
+     * the activity this one replaces.
+     */
+    void attach(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Forgets the listener, when its activity is destroyed. A note read meanwhile is kept for
+     * the next listener.
+     */
+    void detach() {
+        mListener = null;
+    }
+
+    /**
+     * Hands the note to the listener: the note read before if it has not changed since, and
+     * otherwise the note as it is now, once it has been read in the background. The listener
+     * is always called back later, never from within this call.
+     */
+    void start() {
+        if (mLoaded && !mStale) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+            return;
+        }
+        if (mLoading && !mStale) {
+            // The read under way will be handed over when it finishes.
+            return;
+        }
+        mStale = false;
+        mLoading = true;
+        final int generation = ++mGeneration;
+        getLoadingHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final ContentValues note = load(mResolver);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration || mDestroyed) {
+                            return;
+                        }
+                        mLoading = false;
+                        mNote = note;
+                        mLoaded = true;
+                        deliver();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops watching the note and drops it, when no activity will attach to the loader again.
+     */
+    void destroy() {
+        mDestroyed = true;
+        mListener = null;
+        mNote = null;
+        mResolver.unregisterContentObserver(mObserver);
+    }
+
+    /**
+     * Reads the note, on the loading thread. Subclasses may read more alongside it.
+     *
+     * @return The columns of the note, or null if it could not be read.
+     */
+    ContentValues load(ContentResolver resolver) {
+        Cursor cursor = resolver.query(mUri, mProjection, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues note = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, note);
+            return note;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void deliver() {
+        if (mListener != null && !mDestroyed) {
+            // A copy, so that the listener may change it without changing the loader's.
+            mListener.onNoteLoaded(mNote != null ? new ContentValues(mNote) : null);
+        }
+    }
+}
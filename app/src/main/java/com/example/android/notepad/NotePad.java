@@ -84,6 +84,16 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the Notes search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * Path part for the URI of the months the notes were modified in
+         */
+        private static final String PATH_MONTHS = "/notes/months";
+
         /**
          * The content:// style URL for this table
          */
@@ -109,6 +119,71 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
             = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * The content:// style URL for a full-text search over the titles and contents of the
+         * notes. Callers append the text to search for as the {@link #PARAM_SEARCH_QUERY} query
+         * parameter; each word matches notes containing a word that starts with it.
+         */
+        public static final Uri CONTENT_SEARCH_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The content:// style URL listing the months, in local time, in which the notes were
+         * last modified, newest first, with the number of notes modified in each: one row per
+         * month, with the columns {@link #COLUMN_NAME_MONTH} and {@link #_COUNT}. The months
+         * follow each other as the notes do in {@link #PAGED_SORT_ORDER}, so the counts give
+         * the position in the list at which each month starts.
+         */
+        public static final Uri CONTENT_MONTHS_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_MONTHS);
+
+        /**
+         * The query parameter of {@link #CONTENT_SEARCH_URI} holding the text to search for.
+         */
+        public static final String PARAM_SEARCH_QUERY = "q";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} that turns a query into a paged query,
+         * returning at most this many notes. Paged queries are always sorted by
+         * {@link #PAGED_SORT_ORDER}.
+         */
+        public static final String PARAM_PAGE_SIZE = "limit";
+
+        /**
+         * Query parameter of a paged query holding the {@link #COLUMN_NAME_MODIFICATION_DATE} of
+         * the last note of the previous page. Must be used together with {@link #PARAM_AFTER_ID}.
+         * The page returned starts with the note that follows that one.
+         */
+        public static final String PARAM_AFTER_MODIFIED = "after_modified";
+
+        /**
+         * Query parameter of a paged query holding the {@link #_ID} of the last note of the
+         * previous page.
+         */
+        public static final String PARAM_AFTER_ID = "after_id";
+
+        /**
+         * Query parameter of the URIs the provider notifies observers with, holding how the
+         * notes changed: {@link #CHANGE_INSERT}, {@link #CHANGE_UPDATE} or
+         * {@link #CHANGE_DELETE}. A change to one note is notified with its note ID URI, and a
+         * change to several notes with {@link #CONTENT_URI} and {@link #PARAM_CHANGED_IDS}.
+         * A notification without this parameter means that any of the notes may have changed.
+         */
+        public static final String PARAM_CHANGE = "change";
+
+        /**
+         * Query parameter of a change notification for several notes, holding their IDs,
+         * separated by commas.
+         */
+        public static final String PARAM_CHANGED_IDS = "ids";
+
+        /*
+         * The values of PARAM_CHANGE.
+         */
+        public static final String CHANGE_INSERT = "insert";
+        public static final String CHANGE_UPDATE = "update";
+        public static final String CHANGE_DELETE = "delete";
+
         /*
          * MIME type definitions
          */
@@ -124,11 +199,30 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * The MIME type of {@link #CONTENT_MONTHS_URI} providing a directory of months.
+         */
+        public static final String MONTHS_CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.month";
+
+        /**
+         * The MIME type of the line-delimited JSON stream that exports every note through
+         * {@link #CONTENT_URI}. Each line is one note, a JSON object whose members are named
+         * after the columns of this table. The notes URI can also be exported as text/plain.
+         */
+        public static final String EXPORT_JSON_TYPE = "application/x-ndjson";
+
         /**
          * The default sort order for this table
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The sort order of paged queries. It is the default order with ties broken by ID, so
+         * that every note has a unique position that the next page can start after.
+         */
+        public static final String PAGED_SORT_ORDER = "modified DESC, _id ASC";
+
         /*
          * Column definitions
          */
@@ -140,7 +234,10 @@ public final class NotePad {
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * Column name of the note content
+         * Column name of the note content. The provider stores long notes compressed and very
+         * large ones in pieces, so SQL cannot compare the text: selections and sort orders that
+         * refer to this column are rejected with an IllegalArgumentException. Use
+         * {@link #CONTENT_SEARCH_URI} to find notes by their text.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
@@ -156,5 +253,225 @@ public final class NotePad {
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
          */
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+        /**
+         * Column name for the start of the note content on one line, with runs of white space
+         * shown as single spaces and at most {@link #PREVIEW_MAX_CHARS} characters long. Lists
+         * should show it instead of reading {@link #COLUMN_NAME_NOTE}. It is kept up to date by
+         * the provider, and cannot be written.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_PREVIEW = "preview";
+
+        /**
+         * Column name for the number of characters in the note content. It is kept up to date
+         * by the provider, and cannot be written.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_LENGTH = "note_length";
+
+        /**
+         * Column name for the number of lines in the note content, 0 if it is empty. It is kept
+         * up to date by the provider, and cannot be written.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_LINE_COUNT = "line_count";
+
+        /**
+         * Column name for a month of {@link #CONTENT_MONTHS_URI}, as the year times 100 plus
+         * the month, from 1 to 12: 202410 for October 2024.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_MONTH = "month";
+
+        /**
+         * The largest number of characters in {@link #COLUMN_NAME_PREVIEW}.
+         */
+        public static final int PREVIEW_MAX_CHARS = 100;
+    }
+
+    /**
+     * Note revisions table contract. The provider records a revision of a note every time its
+     * text is saved. The revisions of a note are listed through {@link #getContentUri(long)},
+     * and a single revision, including its text, is read through {@link #getItemUri(long, long)}.
+     * Updating a single revision's URI reverts its note to the text of that revision, which
+     * records a new revision in turn; the values given are applied to the note as well. The
+     * provider keeps at least the newest {@link #MAX_REVISIONS} revisions of each note, and may
+     * delete older ones.
+     */
+    public static final class Revisions implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Revisions() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "note_revisions";
+
+        /**
+         * Path segment that follows a note ID URI to name its revisions
+         */
+        public static final String PATH_SEGMENT = "revisions";
+
+        /**
+         * 0-relative position of the note ID segment in the path part of a revisions URI
+         */
+        public static final int NOTE_ID_PATH_POSITION = 1;
+
+        /**
+         * 0-relative position of the revision number segment in the path part of a single
+         * revision's URI
+         */
+        public static final int REVISION_PATH_POSITION = 3;
+
+        /**
+         * Returns the content:// style URI of the revisions of a note.
+         */
+        public static Uri getContentUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(Long.toString(noteId))
+                    .appendPath(PATH_SEGMENT)
+                    .build();
+        }
+
+        /**
+         * Returns the content:// style URI of one revision of a note, by its revision number.
+         */
+        public static Uri getItemUri(long noteId, long revision) {
+            return getContentUri(noteId).buildUpon()
+                    .appendPath(Long.toString(revision))
+                    .build();
+        }
+
+        /**
+         * The MIME type of the revisions of a note.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * The MIME type of a single revision of a note.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /**
+         * The default sort order for this table, newest revision first
+         */
+        public static final String DEFAULT_SORT_ORDER = "revision DESC";
+
+        /**
+         * The number of the newest revisions of each note that the provider always keeps.
+         */
+        public static final int MAX_REVISIONS = 100;
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the ID of the note a revision belongs to
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the number of a revision, counting up from 1 for each note
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_REVISION = "revision";
+
+        /**
+         * Column name for the time a revision was saved
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+
+        /**
+         * Column name for the length of the text of a revision, in characters
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_LENGTH = "length";
+
+        /**
+         * Column name for the number of bytes the provider stores for a revision, which is much
+         * less than its length for most revisions
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_STORED_SIZE = "stored_size";
+
+        /**
+         * Column name for the text of a revision. Only available when querying a single
+         * revision.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+    }
+
+    /**
+     * Provider metrics contract. The provider counts its queries, inserts, updates and deletes,
+     * and keeps a histogram of how long they took, for each operation and URI pattern. Clients
+     * read them by calling {@link android.content.ContentResolver#call(Uri, String, String,
+     * android.os.Bundle)} on {@link Notes#CONTENT_URI} with one of the methods below, which
+     * return a snapshot as a Bundle.
+     *
+     * <P>The snapshot holds {@link #KEY_BUCKET_BOUNDS_NANOS}, {@link #KEY_ELAPSED_MILLIS} and
+     * {@link #KEY_TEXT}, and one entry for each operation and URI pattern that was used, named
+     * like "query notes/#". Its value is a long[] holding the number of calls, their total time
+     * in nanoseconds, and then the number of calls in each bucket of the histogram.</P>
+     *
+     * <P>Query times do not include filling the returned cursor, which happens as the client
+     * reads it.</P>
+     */
+    public static final class Metrics {
+
+        // This class cannot be instantiated
+        private Metrics() {
+        }
+
+        /**
+         * Method returning a snapshot of the metrics.
+         */
+        public static final String METHOD_GET = "getMetrics";
+
+        /**
+         * Method returning a snapshot of the metrics, and setting them back to zero.
+         */
+        public static final String METHOD_RESET = "resetMetrics";
+
+        /**
+         * Key of the upper bounds of the histogram buckets, in nanoseconds, as a long[]. The
+         * last bucket has no upper bound, and its entry is Long.MAX_VALUE.
+         */
+        public static final String KEY_BUCKET_BOUNDS_NANOS = "bucketBoundsNanos";
+
+        /**
+         * Key of the time the metrics cover, in milliseconds since they were last reset or the
+         * provider started, as a long.
+         */
+        public static final String KEY_ELAPSED_MILLIS = "elapsedMillis";
+
+        /**
+         * Key of a readable summary of the metrics, one line per operation and URI pattern, as a
+         * String. It is the same text the provider writes when it is dumped.
+         */
+        public static final String KEY_TEXT = "text";
+
+        /**
+         * Position of the number of calls in the long[] of an operation and URI pattern.
+         */
+        public static final int INDEX_COUNT = 0;
+
+        /**
+         * Position of the total time of the calls, in nanoseconds, in the long[] of an
+         * operation and URI pattern.
+         */
+        public static final int INDEX_TOTAL_NANOS = 1;
+
+        /**
+         * Position of the first histogram bucket in the long[] of an operation and URI pattern.
+         */
+        public static final int INDEX_FIRST_BUCKET = 2;
     }
 }
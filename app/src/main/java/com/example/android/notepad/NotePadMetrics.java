@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the operations of {@link NotePadProvider} and how long they took, for each operation
+ * and URI pattern, as described by {@link NotePad.Metrics}.
+ *
+ * Recording an operation is two atomic additions to a fixed array, with no locks and no
+ * allocation, so that it can stay on in the field. The time of an operation goes into one of
+ * {@link #BUCKET_COUNT} histogram buckets whose bounds double from {@link #FIRST_BOUND_NANOS};
+ * the number of calls is the sum of the buckets. Snapshots and resets read and clear each
+ * counter atomically, but not all of them at once, so an operation recorded while one runs may
+ * be counted in it or left for the next.
+ *
+ * Set to package visibility, since only the provider and its tests need it.
+ */
+final class NotePadMetrics {
+
+    /*
+     * The operations that are timed.
+     */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+
+    // The names of the operations, in the keys of snapshots.
+    private static final String[] OPERATION_NAMES = { "query", "insert", "update", "delete" };
+
+    /**
+     * The number of histogram buckets. The last one holds every operation slower than the
+     * bound of the one before it, about a second.
+     */
+    static final int BUCKET_COUNT = 18;
+
+    // The upper bound of the first bucket is 2^FIRST_BOUND_SHIFT nanoseconds.
+    private static final int FIRST_BOUND_SHIFT = 14;
+
+    /**
+     * The upper bound of the first histogram bucket, about 16 microseconds.
+     */
+    static final long FIRST_BOUND_NANOS = 1L << FIRST_BOUND_SHIFT;
+
+    // The counters of one operation on one URI pattern: the total time, then the buckets.
+    private static final int TOTAL_OFFSET = 0;
+    private static final int BUCKETS_OFFSET = 1;
+    private static final int SLOT_SIZE = BUCKETS_OFFSET + BUCKET_COUNT;
+
+    // The names of the URI patterns, indexed by their UriMatcher codes. Operations on URIs that
+    // match none are counted under the first name.
+    private final String[] mPatternNames;
+
+    private final AtomicLongArray mCounters;
+
+    // When the metrics were last reset.
+    private volatile long mResetMillis = SystemClock.elapsedRealtime();
+
+    /**
+     * Creates metrics for URI patterns whose UriMatcher codes are the indexes of their names.
+     * Index 0 names the operations on URIs that match no pattern.
+     */
+    NotePadMetrics(String[] patternNames) {
+        mPatternNames = patternNames;
+        mCounters = new AtomicLongArray(OPERATION_NAMES.length * patternNames.length * SLOT_SIZE);
+    }
+
+    /**
+     * Records an operation that started at the given {@link SystemClock#elapsedRealtimeNanos()}
+     * and has just finished.
+     */
+    void record(int operation, int match, long startNanos) {
+        long nanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        if (match <= 0 || match >= mPatternNames.length) {
+            match = 0;
+        }
+        int slot = (operation * mPatternNames.length + match) * SLOT_SIZE;
+        mCounters.addAndGet(slot + TOTAL_OFFSET, nanos);
+        mCounters.incrementAndGet(slot + BUCKETS_OFFSET + bucketOf(nanos));
+    }
+
+    /**
+     * Returns the histogram bucket of a time.
+     */
+    static int bucketOf(long nanos) {
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos >> FIRST_BOUND_SHIFT);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the upper bound of a histogram bucket, in nanoseconds, or Long.MAX_VALUE for the
+     * last one.
+     */
+    static long boundOf(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : FIRST_BOUND_NANOS << bucket;
+    }
+
+    /**
+     * Returns a snapshot of the metrics in the form described by {@link NotePad.Metrics},
+     * optionally setting them back to zero.
+     */
+    Bundle snapshot(boolean reset) {
+        long now = SystemClock.elapsedRealtime();
+        Bundle snapshot = new Bundle();
+        long[] bounds = new long[BUCKET_COUNT];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = boundOf(i);
+        }
+        snapshot.putLongArray(NotePad.Metrics.KEY_BUCKET_BOUNDS_NANOS, bounds);
+        snapshot.putLong(NotePad.Metrics.KEY_ELAPSED_MILLIS, now - mResetMillis);
+        if (reset) {
+            mResetMillis = now;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int match = 0; match < mPatternNames.length; match++) {
+                int slot = (operation * mPatternNames.length + match) * SLOT_SIZE;
+                long[] values = new long[NotePad.Metrics.INDEX_FIRST_BUCKET + BUCKET_COUNT];
+                for (int i = 0; i < SLOT_SIZE; i++) {
+                    long value = reset ? mCounters.getAndSet(slot + i, 0)
+                            : mCounters.get(slot + i);
+                    if (i == TOTAL_OFFSET) {
+                        values[NotePad.Metrics.INDEX_TOTAL_NANOS] = value;
+                    } else {
+                        values[NotePad.Metrics.INDEX_FIRST_BUCKET + i - BUCKETS_OFFSET] = value;
+                        values[NotePad.Metrics.INDEX_COUNT] += value;
+                    }
+                }
+                if (values[NotePad.Metrics.INDEX_COUNT] > 0) {
+                    String key = OPERATION_NAMES[operation] + " " + mPatternNames[match];
+                    snapshot.putLongArray(key, values);
+                    appendLine(text, key, values);
+                }
+            }
+        }
+        snapshot.putString(NotePad.Metrics.KEY_TEXT, text.toString());
+        return snapshot;
+    }
+
+    /*
+     * Appends a line summing up one operation on one URI pattern to a text snapshot. The
+     * percentiles are the upper bounds of the buckets they fall in.
+     */
+    private static void appendLine(StringBuilder text, String key, long[] values) {
+        long count = values[NotePad.Metrics.INDEX_COUNT];
+        text.append(key)
+                .append(" count=").append(count)
+                .append(" mean=").append(values[NotePad.Metrics.INDEX_TOTAL_NANOS] / count / 1000)
+                .append("us");
+        appendPercentile(text, "p50", 50, values);
+        appendPercentile(text, "p90", 90, values);
+        appendPercentile(text, "p99", 99, values);
+        text.append('\n');
+    }
+
+    private static void appendPercentile(StringBuilder text, String name, int percent,
+            long[] values) {
+        long rank = (values[NotePad.Metrics.INDEX_COUNT] * percent + 99) / 100;
+        long seen = 0;
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1) {
+            seen += values[NotePad.Metrics.INDEX_FIRST_BUCKET + bucket];
+            if (seen >= rank) {
+                break;
+            }
+            bucket++;
+        }
+        text.append(' ').append(name);
+        if (bucket == BUCKET_COUNT - 1) {
+            text.append(">").append(boundOf(bucket - 1) / 1000).append("us");
+        } else {
+            text.append("<=").append(boundOf(bucket) / 1000).append("us");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return snapshot(false).getString(NotePad.Metrics.KEY_TEXT);
+    }
+}
@@ -20,33 +20,58 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -62,20 +87,49 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static final String DATABASE_NAME = "note_pad.db";
 
     /**
-     * The database version
+     * The database version. Raising it requires a matching migration in
+     * {@link DatabaseHelper#upgrade(SQLiteDatabase, int, int)}.
      */
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 8;
 
     /**
-     * A projection map used to select columns from the database
+     * The oldest database version that can be upgraded in place. Older databases are recreated.
+     */
+    static final int BASE_DATABASE_VERSION = 2;
+
+    /**
+     * The full-text search table that shadows the title and note columns of the notes table.
+     * Rows are keyed by docid, which is always equal to the _ID of the note they index.
+     */
+    static final String SEARCH_TABLE_NAME = "notes_fts";
+
+    /**
+     * The index that serves the default sort order. It covers the title and the columns derived
+     * from the note text as well, so listing the notes, previews included, never has to read the
+     * table rows or the note bodies.
      */
-    private static HashMap<String, String> sNotesProjectionMap;
+    static final String MODIFIED_INDEX_NAME = "notes_modified_index";
+
+    /**
+     * Formats in which older versions of the app wrote the modification date as text, before it
+     * was always stored as milliseconds since the epoch.
+     */
+    private static final String[] LEGACY_DATE_FORMATS = {
+            "yy-MM-dd HH:mm:ss",   // Written by NoteEditor, in the local time zone
+            "yyyy/MM/dd HH:mm:ss", // Written by insert(), in GMT+08:00
+    };
 
     /**
      * A projection map used to select columns from the database
      */
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
+    /**
+     * The note column that each column of a live folder is read from, when the notes are read
+     * from the store.
+     */
+    private static HashMap<String, String> sLiveFolderColumns;
+
     /**
      * Standard projection for the interesting columns of a normal note.
      */
@@ -84,9 +138,48 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
             NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
     };
+    private static final int READ_NOTE_ID_INDEX = 0;
     private static final int READ_NOTE_NOTE_INDEX = 1;
     private static final int READ_NOTE_TITLE_INDEX = 2;
 
+    /**
+     * The columns written for each note by an export of the notes URI.
+     */
+    private static final String[] EXPORT_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_BACK_COLOR
+    };
+    private static final int EXPORT_ID_INDEX = 0;
+    private static final int EXPORT_TITLE_INDEX = 1;
+    private static final int EXPORT_NOTE_INDEX = 2;
+
+    /**
+     * Finds the note column named in SQL, alone, qualified by its table or quoted, once the
+     * string literals are taken out with {@link #STRING_LITERAL_PATTERN}.
+     */
+    private static final Pattern NOTE_COLUMN_PATTERN = Pattern.compile(
+            "(?<![\\w$])" + NotePad.Notes.COLUMN_NAME_NOTE + "(?![\\w$])",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Finds the string literals in SQL, in which a quote is escaped by doubling it.
+     */
+    private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'(?:[^']|'')*'");
+
+    /**
+     * The number of notes an export reads from the store at a time.
+     */
+    static final int EXPORT_CHUNK_NOTES = 100;
+
+    /**
+     * The number of characters an export buffers before writing them to the pipe.
+     */
+    private static final int EXPORT_BUFFER_CHARS = 16 * 1024;
+
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
      * of the incoming URI
@@ -100,14 +193,82 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // The incoming URI matches the Notes search URI pattern
+    private static final int SEARCH_NOTES = 4;
+
+    // The incoming URI matches the revisions of a note
+    private static final int REVISIONS = 5;
+
+    // The incoming URI matches a single revision of a note
+    private static final int REVISION_ID = 6;
+
+    // The incoming URI matches the months of the notes
+    private static final int MONTHS = 7;
+
+    // The names of the URI patterns in the provider's metrics, indexed by their codes above.
+    private static final String[] METRICS_PATTERN_NAMES = {
+            "unknown",
+            "notes",
+            "notes/#",
+            "live_folders/notes",
+            "notes/search",
+            "notes/#/" + NotePad.Revisions.PATH_SEGMENT,
+            "notes/#/" + NotePad.Revisions.PATH_SEGMENT + "/#",
+            "notes/months"
+    };
+
     /**
      * A UriMatcher instance
      */
     private static final UriMatcher sUriMatcher;
 
-    // Handle to a new DatabaseHelper.
-    private DatabaseHelper mOpenHelper;
+    /**
+     * The number of rows a bulk insert writes between chances for other threads to use the
+     * database.
+     */
+    private static final int BULK_INSERT_YIELD_INTERVAL = 100;
 
+    /**
+     * The size, in pages, the write-ahead log may reach before a write checkpoints it back into
+     * the database. SQLite's default of 1000 pages lets the log grow to about 4MB, which slows
+     * every read that has to look through it.
+     */
+    static final int WAL_AUTOCHECKPOINT_PAGES = 256;
+
+    /**
+     * How long the provider must go without writes before it checkpoints the write-ahead log,
+     * so that a burst of edits is folded into the database once it is over.
+     */
+    static final long IDLE_CHECKPOINT_DELAY_MILLIS = 5000;
+
+    // The store that holds the notes.
+    private NoteStore mStore;
+
+    // The notes most recently read one at a time through their note ID URI.
+    private final NoteCache mNoteCache = new NoteCache(NoteCache.DEFAULT_MAX_BYTES);
+
+    // The counts and latencies of the provider's operations, returned by call().
+    private final NotePadMetrics mMetrics = new NotePadMetrics(METRICS_PATTERN_NAMES);
+
+    // Set while the calling thread is inside bulkInsert() or applyBatch(). The individual
+    // inserts, updates and deletes skip their change notifications, and the batch sends the
+    // notifications for all of its changes once it has finished.
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    // Collects the changes the store commits, and sends change notifications naming them.
+    private final NoteChangeNotifier mChangeNotifier = new NoteChangeNotifier();
+
+    // Drops the notes that were updated or deleted from the cache, once the change is committed.
+    private final NoteStore.ChangeListener mCacheInvalidator = new NoteStore.ChangeListener() {
+        @Override
+        public void onNoteChanged(long sequence, int change, long id) {
+            if (id == NoteStore.ALL_NOTES) {
+                mNoteCache.invalidateAll();
+            } else if (change != NoteStore.CHANGE_INSERT) {
+                mNoteCache.invalidate(id);
+            }
+        }
+    };
 
     /**
      * A block that instantiates and sets static objects
@@ -131,34 +292,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
-        /*
-         * Creates and initializes a projection map that returns all columns
-         */
-
-        // Creates a new projection map instance. The map returns a column name
-        // given a string. The two are usually equal.
-        sNotesProjectionMap = new HashMap<String, String>();
-
-        // Maps the string "_ID" to the column name "_ID"
-        sNotesProjectionMap.put(NotePad.Notes._ID, NotePad.Notes._ID);
+        // Add a pattern that routes URIs terminated with notes/search to a search operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH_NOTES);
 
-        // Maps "title" to "title"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
+        // Add patterns that route the revisions of a note, and a single revision of a note
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_SEGMENT,
+                REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_SEGMENT + "/#",
+                REVISION_ID);
 
-        // Maps "note" to "note"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+        // Add a pattern that routes URIs terminated with notes/months to the months of the notes
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/months", MONTHS);
 
-        // Maps "created" to "created"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
-                NotePad.Notes.COLUMN_NAME_CREATE_DATE);
-
-        // Maps "modified" to "modified"
-        sNotesProjectionMap.put(
-                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
-        sNotesProjectionMap.put(
-                NotePad.Notes.COLUMN_NAME_BACK_COLOR,
-                NotePad.Notes.COLUMN_NAME_BACK_COLOR);
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -172,6 +317,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "NAME" to "title AS NAME"
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
                 LiveFolders.NAME);
+
+        // The same for the notes read from the store
+        sLiveFolderColumns = new HashMap<String, String>();
+        sLiveFolderColumns.put(LiveFolders._ID, NotePad.Notes._ID);
+        sLiveFolderColumns.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE);
     }
 
     /**
@@ -181,19 +331,144 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        // Runs the idle checkpoints, off the threads that call the provider.
+        private Handler mCheckpointHandler;
+
+        // Checkpoints the write-ahead log. Posted again after every write, so that it only runs
+        // once the writes have stopped for IDLE_CHECKPOINT_DELAY_MILLIS.
+        private final Runnable mIdleCheckpoint = new Runnable() {
+            @Override
+            public void run() {
+                checkpoint();
+            }
+        };
+
         DatabaseHelper(Context context) {
 
             // calls the super constructor, requesting the default cursor factory.
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+            // Writes go to a write-ahead log instead of a rollback journal, so that queries on
+            // the framework's pool of reader connections are not blocked while a note is saved.
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        /**
+         *
+         * Configures each connection to the database before it is created or upgraded. Sets how
+         * large the write-ahead log may grow before a write checkpoints it.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // The pragma returns the new setting as a row, so it is run as a query.
+            Cursor c = db.rawQuery("PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+            try {
+                c.moveToFirst();
+            } finally {
+                c.close();
+            }
         }
 
         /**
          *
          * Creates the underlying database with table name and column names taken from the
-         * NotePad class.
+         * NotePad class. The database is created with the oldest schema that can still be
+         * upgraded, and then brought up to date by the same migrations that upgrade existing
+         * databases, so that new and upgraded databases always end up with identical schemas.
          */
         @Override
         public void onCreate(SQLiteDatabase db) {
+            createBaseSchema(db);
+            upgrade(db, BASE_DATABASE_VERSION, DATABASE_VERSION);
+        }
+
+        /**
+         *
+         * Upgrades the database in place by running each migration from oldVersion up to
+         * newVersion in order. SQLiteOpenHelper runs this inside a single transaction, so either
+         * every step is applied or the database is left at its old version. Databases older than
+         * {@link #BASE_DATABASE_VERSION}, whose schema is unknown, are recreated, which destroys
+         * their data.
+         */
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+            if (oldVersion < BASE_DATABASE_VERSION) {
+                // Logs that the database is being upgraded
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+
+                // Kills the tables and existing data
+                db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE_NAME);
+                db.execSQL("DROP TABLE IF EXISTS notes");
+
+                // Recreates the database with a new version
+                onCreate(db);
+                return;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            upgrade(db, oldVersion, newVersion);
+            Log.i(TAG, "Upgraded database from version " + oldVersion + " to " + newVersion
+                    + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+
+        /**
+         * Schedules a checkpoint of the write-ahead log for when the provider has gone
+         * {@link #IDLE_CHECKPOINT_DELAY_MILLIS} without writes. Called after every write.
+         */
+        synchronized void scheduleIdleCheckpoint() {
+            if (mCheckpointHandler == null) {
+                HandlerThread thread = new HandlerThread(TAG + "Checkpoint",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                mCheckpointHandler = new Handler(thread.getLooper());
+            }
+            mCheckpointHandler.removeCallbacks(mIdleCheckpoint);
+            mCheckpointHandler.postDelayed(mIdleCheckpoint, IDLE_CHECKPOINT_DELAY_MILLIS);
+        }
+
+        /**
+         * Copies as much of the write-ahead log back into the database as can be copied without
+         * waiting for readers or writers. The log is then reset by the next write.
+         */
+        void checkpoint() {
+            try {
+                Cursor c = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+                try {
+                    // The result row holds whether the checkpoint was blocked, the pages in the
+                    // log and the pages copied back into the database.
+                    if (c.moveToFirst() && Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "checkpoint busy=" + c.getInt(0) + " log=" + c.getInt(1)
+                                + " checkpointed=" + c.getInt(2));
+                    }
+                } finally {
+                    c.close();
+                }
+            } catch (SQLException e) {
+                // The log is checkpointed by the next write that fills it instead.
+                Log.w(TAG, "Idle checkpoint failed", e);
+            }
+        }
+
+        /**
+         * Stops the idle checkpoints and closes the database.
+         */
+        @Override
+        public synchronized void close() {
+            if (mCheckpointHandler != null) {
+                mCheckpointHandler.removeCallbacks(mIdleCheckpoint);
+                mCheckpointHandler.getLooper().quit();
+                mCheckpointHandler = null;
+            }
+            super.close();
+        }
+
+        /**
+         * Creates the schema of database version {@link #BASE_DATABASE_VERSION}. This must
+         * never change; schema changes are made by adding a migration instead.
+         */
+        static void createBaseSchema(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
                     + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
                     + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
@@ -204,44 +479,311 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
 
         /**
+         * Applies the migrations that take a database from oldVersion to newVersion, one
+         * version at a time.
          *
-         * Demonstrates that the provider must consider what happens when the
-         * underlying datastore is changed. In this sample, the database is upgraded the database
-         * by destroying the existing data.
-         * A real application should upgrade the database in place.
+         * @throws IllegalStateException if there is no migration for one of the versions.
          */
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            for (int version = oldVersion; version < newVersion; version++) {
+                switch (version) {
+                    case 2:
+                        upgradeToVersion3(db);
+                        break;
+                    case 3:
+                        upgradeToVersion4(db);
+                        break;
+                    case 4:
+                        upgradeToVersion5(db);
+                        break;
+                    case 5:
+                        upgradeToVersion6(db);
+                        break;
+                    case 6:
+                        upgradeToVersion7(db);
+                        break;
+                    case 7:
+                        upgradeToVersion8(db);
+                        break;
+                    default:
+                        throw new IllegalStateException(
+                                "No migration from database version " + version);
+                }
+            }
+        }
+
+        /**
+         * Version 3 adds the FTS table used by search queries, and fills it from the existing
+         * notes. Its contents are written by the provider rather than by triggers, since the
+         * indexed text is preprocessed by {@link NoteSearchIndex} first.
+         */
+        static void upgradeToVersion3(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts4("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                    + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ");");
+            rebuildSearchIndex(db);
+        }
+
+        /**
+         * Version 4 adds the background color column, which the projection map and the notes
+         * list already expected. Existing notes get the default color.
+         */
+        static void upgradeToVersion4(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_BACK_COLOR + " INTEGER NOT NULL DEFAULT "
+                    + NotePad.Notes.DEFAULT_COLOR);
+        }
+
+        /**
+         * Version 5 converts modification dates that were stored as formatted text back to
+         * milliseconds since the epoch, so that they sort correctly against each other, and adds
+         * the covering index for the default sort order. Dates that cannot be parsed fall back
+         * to the creation date.
+         */
+        static void upgradeToVersion5(SQLiteDatabase db) {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    NotePad.Notes._ID,
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                    NotePad.Notes.COLUMN_NAME_CREATE_DATE
+            }, "typeof(" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ") = 'text'",
+                    null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                while (c.moveToNext()) {
+                    Long modified = parseLegacyDate(c.getString(1));
+                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                            modified != null ? modified : c.getLong(2));
+                    db.update(NotePad.Notes.TABLE_NAME, values,
+                            NotePad.Notes._ID + " = " + c.getLong(0), null);
+                }
+            } finally {
+                c.close();
+            }
+
+            db.execSQL("CREATE INDEX " + MODIFIED_INDEX_NAME + " ON " + NotePad.Notes.TABLE_NAME
+                    + " (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ");");
+        }
+
+        /**
+         * Version 6 adds the table that very large notes are stored in as chunks, and the flag
+         * marking the notes stored that way. Existing notes are chunked the next time they are
+         * saved.
+         */
+        static void upgradeToVersion6(SQLiteDatabase db) {
+            NoteChunks.createTable(db);
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NoteChunks.COLUMN_CHUNKED + " INTEGER NOT NULL DEFAULT 0");
+        }
+
+        /**
+         * Version 7 adds the table of note revisions, and records the current text of every
+         * note as its first revision, so that it can be reverted to.
+         */
+        static void upgradeToVersion7(SQLiteDatabase db) {
+            NoteRevisions.createTable(db);
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    NotePad.Notes._ID,
+                    NoteChunks.NOTE_TEXT + " AS " + NotePad.Notes.COLUMN_NAME_NOTE,
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            }, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    NoteRevisions.record(db, c.getLong(0), null,
+                            NoteChunks.readNote(db, c, 1), c.getLong(2));
+                }
+            } finally {
+                c.close();
+            }
+        }
 
-            // Logs that the database is being upgraded
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
+        /**
+         * Version 8 adds the columns derived from the note text that lists show instead of the
+         * text, fills them in for the existing notes, and widens the covering index for the
+         * default sort order to include them.
+         */
+        static void upgradeToVersion8(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT");
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                    + NotePad.Notes.COLUMN_NAME_LINE_COUNT + " INTEGER NOT NULL DEFAULT 0");
+
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    NotePad.Notes._ID,
+                    NoteChunks.NOTE_TEXT + " AS " + NotePad.Notes.COLUMN_NAME_NOTE
+            }, null, null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                while (c.moveToNext()) {
+                    NotePreview.put(values, NoteChunks.readNote(db, c, 1));
+                    db.update(NotePad.Notes.TABLE_NAME, values,
+                            NotePad.Notes._ID + " = " + c.getLong(0), null);
+                }
+            } finally {
+                c.close();
+            }
 
-            // Kills the table and existing data
-            db.execSQL("DROP TABLE IF EXISTS notes");
+            db.execSQL("DROP INDEX " + MODIFIED_INDEX_NAME);
+            db.execSQL("CREATE INDEX " + MODIFIED_INDEX_NAME + " ON " + NotePad.Notes.TABLE_NAME
+                    + " (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + ", "
+                    + NotePad.Notes.COLUMN_NAME_LINE_COUNT + ");");
+        }
 
-            // Recreates the database with a new version
-            onCreate(db);
+        /**
+         * Rebuilds the search table from scratch out of the notes table. Used once when a
+         * database created before the search table existed is upgraded, which is also before
+         * notes could be stored as chunks.
+         */
+        static void rebuildSearchIndex(SQLiteDatabase db) {
+            db.beginTransaction();
+            try {
+                db.execSQL("DELETE FROM " + SEARCH_TABLE_NAME);
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, READ_NOTE_PROJECTION,
+                        null, null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        SQLiteNoteStore.insertSearchRow(db, c.getLong(READ_NOTE_ID_INDEX),
+                                c.getString(READ_NOTE_TITLE_INDEX),
+                                NoteCompression.readNote(c, READ_NOTE_NOTE_INDEX));
+                    }
+                } finally {
+                    c.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
         }
     }
 
     /**
+     * Parses a modification date written as text by an older version of the app.
      *
-     * Initializes the provider by creating a new DatabaseHelper. onCreate() is called
-     * automatically when Android creates the provider in response to a resolver request from a
-     * client.
+     * @return The date in milliseconds since the epoch, or null if it is in none of the
+     * {@link #LEGACY_DATE_FORMATS}.
+     */
+    static Long parseLegacyDate(String text) {
+        for (int i = 0; i < LEGACY_DATE_FORMATS.length; i++) {
+            SimpleDateFormat format = new SimpleDateFormat(LEGACY_DATE_FORMATS[i], Locale.US);
+            if (i == 1) {
+                format.setTimeZone(TimeZone.getTimeZone("GMT+08:00"));
+            }
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(text, position);
+            if (date != null && position.getIndex() == text.length()) {
+                return date.getTime();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes sure a modification date supplied by a client is stored as milliseconds since the
+     * epoch. Numbers are passed through, dates in one of the legacy text formats are converted,
+     * and anything else is rejected.
+     *
+     * @throws IllegalArgumentException if the date cannot be understood.
+     */
+    private static void normalizeModificationDate(ContentValues values) {
+        Object modified = values.get(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        if (!(modified instanceof String)) {
+            return;
+        }
+        String text = (String) modified;
+        Long millis;
+        try {
+            millis = Long.valueOf(text.trim());
+        } catch (NumberFormatException e) {
+            millis = parseLegacyDate(text);
+        }
+        if (millis == null) {
+            throw new IllegalArgumentException("Invalid modification date " + text);
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, millis);
+    }
+
+    /**
+     * Creates a provider backed by the default store, {@link SQLiteNoteStore}, which is created
+     * in {@link #onCreate()}.
+     */
+    public NotePadProvider() {
+    }
+
+    /**
+     * Creates a provider backed by the given store, for tests and benchmarks.
+     */
+    NotePadProvider(NoteStore store) {
+        mStore = store;
+    }
+
+    /**
+     *
+     * Initializes the provider by creating a new DatabaseHelper, unless it was given a store.
+     * onCreate() is called automatically when Android creates the provider in response to a
+     * resolver request from a client.
      */
     @Override
     public boolean onCreate() {
 
         // Creates a new helper object. Note that the database itself isn't opened until
         // something tries to access it, and it's only created if it doesn't already exist.
-        mOpenHelper = new DatabaseHelper(getContext());
+        if (mStore == null) {
+            mStore = new SQLiteNoteStore(new DatabaseHelper(getContext()));
+        }
+        mStore.addChangeListener(mCacheInvalidator);
+        mStore.addChangeListener(mChangeNotifier);
 
         // Assumes that any failures will be reported by a thrown exception.
         return true;
     }
 
+    /**
+     * Closes the store, which for the default store closes the database and stops its idle
+     * checkpoints. Only called by tests.
+     */
+    @Override
+    public void shutdown() {
+        mStore.close();
+        super.shutdown();
+    }
+
+    /**
+     * Rejects a selection or sort order that refers to the note column. The column only holds
+     * the text of short notes, as long ones are compressed and very large ones are chunked, so
+     * SQL on it would silently miss them.
+     *
+     * @throws IllegalArgumentException if the SQL refers to the note column.
+     */
+    static void checkNoteColumnUnused(String sql) {
+        if (sql != null && NOTE_COLUMN_PATTERN.matcher(
+                STRING_LITERAL_PATTERN.matcher(sql).replaceAll("''")).find()) {
+            throw new IllegalArgumentException("The " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " column cannot be used in SQL: " + sql);
+        }
+    }
+
+    /**
+     * Returns the default store, for the queries chosen by the client that are written in SQL.
+     *
+     * @throws UnsupportedOperationException if the provider is backed by another store.
+     */
+    private SQLiteNoteStore sqlStore(Uri uri) {
+        if (!(mStore instanceof SQLiteNoteStore)) {
+            throw new UnsupportedOperationException(mStore.getClass().getSimpleName()
+                    + " cannot answer " + uri + " with SQL");
+        }
+        return (SQLiteNoteStore) mStore;
+    }
+
     /**
      * This method is called when a client calls
      * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String)}.
@@ -254,36 +796,140 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
 
-        // Constructs a new query builder and sets its table name
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(NotePad.Notes.TABLE_NAME);
+    /**
+     * This method is called when a client calls
+     * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String,
+     * CancellationSignal)}. Works like the other query method, but the database query, including
+     * filling the cursor window, is abandoned with an
+     * {@link android.os.OperationCanceledException} if the signal is cancelled first.
+     * NoteSearch uses this to stop searches that have been superseded by further typing.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        int match = sUriMatcher.match(uri);
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return doQuery(uri, match, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+        } finally {
+            mMetrics.record(NotePadMetrics.QUERY, match, start);
+        }
+    }
 
-        /**
-         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
-         */
-        switch (sUriMatcher.match(uri)) {
-            // If the incoming URI is for notes, chooses the Notes projection
+    /*
+     * Does the work of query(), for a URI that has been matched already. The queries that the
+     * app itself makes, with no selection and in the order the store keeps the notes in, are
+     * answered by the note store; any other query is answered in SQL by the default store.
+     */
+    private Cursor doQuery(Uri uri, int match, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+        checkNoteColumnUnused(selection);
+        checkNoteColumnUnused(sortOrder);
+        Cursor c;
+        switch (match) {
+            // If the incoming URI is for notes, lists them, or a page of them if the URI asks
+            // for one.
             case NOTES:
-                qb.setProjectionMap(sNotesProjectionMap);
+                String limit = uri.getQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE);
+                if (limit != null) {
+                    c = queryPage(uri, limit, projection, selection, selectionArgs, sortOrder,
+                            cancellationSignal);
+                } else if (selection == null && isStoreOrder(sortOrder)) {
+                    c = mStore.list(projection, NoteStore.FIRST_PAGE, 0, 0, cancellationSignal);
+                } else {
+                    c = sqlStore(uri).list(projection, selection, selectionArgs,
+                            TextUtils.isEmpty(sortOrder) ? NotePad.Notes.DEFAULT_SORT_ORDER
+                                    : sortOrder,
+                            NoteStore.FIRST_PAGE, 0, 0, cancellationSignal);
+                }
                 break;
 
-            /* If the incoming URI is for a single note identified by its ID, chooses the
-             * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
-             * it selects that single note
-             */
+            // If the incoming URI is for a single note identified by its ID, returns that note.
             case NOTE_ID:
-                qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(
-                        NotePad.Notes._ID +    // the name of the ID column
-                                "=" +
-                                // the position of the note ID itself in the incoming URI
-                                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                long id = ContentUris.parseId(uri);
+                if (selection != null) {
+                    c = sqlStore(uri).get(id, projection, selection, selectionArgs);
+                } else if (NoteCache.covers(projection)
+                        && !Boolean.TRUE.equals(mApplyingBatch.get())) {
+                    // A plain read of the note's columns is served from the cache when
+                    // possible, except inside a batch, whose changes the cache does not see
+                    // until they are committed.
+                    return queryCachedNote(uri, id, projection);
+                } else {
+                    c = mStore.get(id, projection);
+                }
                 break;
 
             case LIVE_FOLDER_NOTES:
                 // If the incoming URI is from a live folder, chooses the live folder projection.
+                if (selection == null && isStoreOrder(sortOrder)) {
+                    c = queryLiveFolder(projection, cancellationSignal);
+                    break;
+                }
+                SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+                qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sLiveFolderProjectionMap);
+                c = qb.query(sqlStore(uri).getOpenHelper().getReadableDatabase(), projection,
+                        selection, selectionArgs, null, null,
+                        TextUtils.isEmpty(sortOrder) ? NotePad.Notes.DEFAULT_SORT_ORDER
+                                : sortOrder,
+                        null, cancellationSignal);
+                break;
+
+            /* If the incoming URI is a search, restricts the notes to those whose title or text
+             * match the query text. An empty query matches every note.
+             */
+            case SEARCH_NOTES:
+                String query = uri.getQueryParameter(NotePad.Notes.PARAM_SEARCH_QUERY);
+                if (selection == null && (TextUtils.isEmpty(sortOrder)
+                        || NotePad.Notes.DEFAULT_SORT_ORDER.equals(sortOrder))) {
+                    c = mStore.search(query, projection, cancellationSignal);
+                } else {
+                    c = sqlStore(uri).search(query, projection, selection, selectionArgs,
+                            TextUtils.isEmpty(sortOrder) ? NotePad.Notes.DEFAULT_SORT_ORDER
+                                    : sortOrder,
+                            cancellationSignal);
+                }
+                break;
+
+            // If the incoming URI is for the revisions of a note, lists them without their text.
+            case REVISIONS:
+                long noteId = Long.parseLong(uri.getPathSegments()
+                        .get(NotePad.Revisions.NOTE_ID_PATH_POSITION));
+                if (selection == null && (TextUtils.isEmpty(sortOrder)
+                        || NotePad.Revisions.DEFAULT_SORT_ORDER.equals(sortOrder))) {
+                    c = mStore.listRevisions(noteId, projection, cancellationSignal);
+                } else {
+                    c = sqlStore(uri).listRevisions(noteId, projection, selection, selectionArgs,
+                            TextUtils.isEmpty(sortOrder) ? NotePad.Revisions.DEFAULT_SORT_ORDER
+                                    : sortOrder,
+                            cancellationSignal);
+                }
+                break;
+
+            // If the incoming URI is for a single revision, reads it with its text.
+            case REVISION_ID:
+                List<String> segments = uri.getPathSegments();
+                c = mStore.getRevision(
+                        Long.parseLong(segments.get(NotePad.Revisions.NOTE_ID_PATH_POSITION)),
+                        Long.parseLong(segments.get(NotePad.Revisions.REVISION_PATH_POSITION)),
+                        projection);
+                break;
+
+            /* If the incoming URI is for the months of the notes, counts the notes of each month,
+             * which every store can do without reading the notes themselves.
+             */
+            case MONTHS:
+                if (selection == null) {
+                    c = mStore.months(projection, cancellationSignal);
+                } else {
+                    c = sqlStore(uri).months(projection, selection, selectionArgs,
+                            cancellationSignal);
+                }
                 break;
 
             default:
@@ -291,37 +937,146 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        // Tells the Cursor what URI to watch, so it knows when its source data changes
+        c.setNotificationUri(Objects.requireNonNull(getContext()).getContentResolver(), uri);
+        return c;
+    }
 
-        String orderBy;
-        // If no sort order is specified, uses the default
-        if (TextUtils.isEmpty(sortOrder)) {
-            orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
-        } else {
-            // otherwise, uses the incoming sort order
-            orderBy = sortOrder;
+    /*
+     * Returns true if a sort order is one the store can list the notes in.
+     */
+    private static boolean isStoreOrder(String sortOrder) {
+        return TextUtils.isEmpty(sortOrder)
+                || NotePad.Notes.DEFAULT_SORT_ORDER.equals(sortOrder)
+                || NotePad.Notes.PAGED_SORT_ORDER.equals(sortOrder);
+    }
+
+    /**
+     * Returns a single note from the cache, reading it from the store and caching it if it is
+     * not there yet.
+     *
+     * @return A cursor holding the note, or an empty cursor if the note does not exist.
+     */
+    private Cursor queryCachedNote(Uri uri, long id, String[] projection) {
+        NoteCache.Note note = mNoteCache.get(id);
+        if (note == null) {
+            long generation = mNoteCache.generation();
+            Cursor c = mStore.get(id, NoteCache.COLUMNS);
+            try {
+                if (c.moveToFirst()) {
+                    Object[] values = new Object[NoteCache.COLUMNS.length];
+                    for (int i = 0; i < values.length; i++) {
+                        if (NotePad.Notes.COLUMN_NAME_NOTE.equals(NoteCache.COLUMNS[i])) {
+                            values[i] = NoteCompression.readNote(c, i);
+                        } else if (c.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                            values[i] = c.getLong(i);
+                        } else {
+                            values[i] = c.getString(i);
+                        }
+                    }
+                    note = new NoteCache.Note(values);
+                    mNoteCache.put(id, note, generation);
+                }
+            } finally {
+                c.close();
+            }
         }
 
-        // Opens the database object in "read" mode, since no writes need to be done.
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        MatrixCursor result = new MatrixCursor(projection, 1);
+        if (note != null) {
+            MatrixCursor.RowBuilder row = result.newRow();
+            for (String column : projection) {
+                row.add(note.get(column));
+            }
+        }
+        result.setNotificationUri(Objects.requireNonNull(getContext()).getContentResolver(), uri);
+        return result;
+    }
 
-        /*
-         * Performs the query. If no problems occur trying to read the database, then a Cursor
-         * object is returned; otherwise, the cursor variable contains null. If no records were
-         * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
-         */
-        Cursor c = qb.query(
-                db,            // The database to query
-                projection,    // The columns to return from the query
-                selection,     // The columns for the where clause
-                selectionArgs, // The values for the where clause
-                null,          // don't group the rows
-                null,          // don't filter by row groups
-                orderBy        // The sort order
-        );
+    /**
+     * Lists the notes for a live folder from the store, in the order it keeps them in, with
+     * the columns of the notes renamed to those of the live folder.
+     *
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     */
+    private Cursor queryLiveFolder(String[] projection, CancellationSignal cancellationSignal) {
+        if (projection == null) {
+            projection = sLiveFolderColumns.keySet().toArray(new String[0]);
+        }
+        String[] columns = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = sLiveFolderColumns.get(projection[i]);
+            if (columns[i] == null) {
+                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            }
+        }
+        final String[] names = projection;
+        return new CursorWrapper(mStore.list(columns, NoteStore.FIRST_PAGE, 0, 0,
+                cancellationSignal)) {
+            @Override
+            public String[] getColumnNames() {
+                return names.clone();
+            }
 
-        // Tells the Cursor what URI to watch, so it knows when its source data changes
-        c.setNotificationUri(Objects.requireNonNull(getContext()).getContentResolver(), uri);
-        return c;
+            @Override
+            public String getColumnName(int columnIndex) {
+                return names[columnIndex];
+            }
+
+            @Override
+            public int getColumnIndex(String columnName) {
+                return Arrays.asList(names).indexOf(columnName);
+            }
+
+            @Override
+            public int getColumnIndexOrThrow(String columnName) {
+                int index = getColumnIndex(columnName);
+                if (index < 0) {
+                    throw new IllegalArgumentException("column '" + columnName
+                            + "' does not exist");
+                }
+                return index;
+            }
+        };
+    }
+
+    /**
+     * Returns the page of notes a paged query asks for, starting after the note named by the
+     * URI, or at the first note if it names none.
+     *
+     * @throws IllegalArgumentException if the page parameters are malformed, or a sort order
+     * other than {@link NotePad.Notes#PAGED_SORT_ORDER} was requested.
+     */
+    private Cursor queryPage(Uri uri, String limit, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+        if (!TextUtils.isEmpty(sortOrder) && !NotePad.Notes.PAGED_SORT_ORDER.equals(sortOrder)) {
+            throw new IllegalArgumentException("Paged queries must use the paged sort order "
+                    + NotePad.Notes.PAGED_SORT_ORDER);
+        }
+
+        String afterModified = uri.getQueryParameter(NotePad.Notes.PARAM_AFTER_MODIFIED);
+        String afterId = uri.getQueryParameter(NotePad.Notes.PARAM_AFTER_ID);
+        int pageSize;
+        long modified = NoteStore.FIRST_PAGE;
+        long id = 0;
+        try {
+            pageSize = Integer.parseInt(limit);
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("Invalid page size " + limit);
+            }
+            if (afterModified != null || afterId != null) {
+                modified = Long.parseLong(afterModified);
+                id = Long.parseLong(afterId);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page parameters in " + uri);
+        }
+
+        if (selection == null) {
+            return mStore.list(projection, modified, id, pageSize, cancellationSignal);
+        }
+        return sqlStore(uri).list(projection, selection, selectionArgs,
+                NotePad.Notes.PAGED_SORT_ORDER, modified, id, pageSize, cancellationSignal);
     }
 
     /**
@@ -340,15 +1095,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, returns the general content type.
+            // If the pattern is for notes, live folders or a search, returns the general content
+            // type.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH_NOTES:
                 return NotePad.Notes.CONTENT_TYPE;
 
             // If the pattern is for note IDs, returns the note ID content type.
             case NOTE_ID:
                 return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+            // If the pattern is for revisions of a note, returns the revision content types.
+            case REVISIONS:
+                return NotePad.Revisions.CONTENT_TYPE;
+
+            case REVISION_ID:
+                return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
+            case MONTHS:
+                return NotePad.Notes.MONTHS_CONTENT_TYPE;
+
             // If the URI pattern doesn't match any permitted patterns, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -363,14 +1130,22 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    /**
+     * This describes the MIME types that are supported for exporting every note through the
+     * notes URI as a stream.
+     */
+    static ClipDescription NOTES_STREAM_TYPES = new ClipDescription(null,
+            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN, NotePad.Notes.EXPORT_JSON_TYPE });
+
     /**
      * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
+     * The application can convert such a note to a plain text stream. The notes URI is also
+     * supported, and exports every note as plain text or as line-delimited JSON.
      *
      * @param uri the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
-     * type for MIME types that match the filter. Currently, only text/plain MIME types match.
-     * @return a data stream MIME type. Currently, only text/plan is returned.
+     * type for MIME types that match the filter.
+     * @return the data stream MIME types that match the filter, or null if there are none.
      * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
      */
     @Override
@@ -380,10 +1155,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, returns the export types that match the filter.
             case NOTES:
+                return NOTES_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the pattern is for live folders, a search or revisions, return null. Data
+            // streams are not supported for this type of URI.
             case LIVE_FOLDER_NOTES:
+            case SEARCH_NOTES:
+            case REVISIONS:
+            case REVISION_ID:
+            case MONTHS:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -399,8 +1181,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 
     /**
-     * Returns a stream of data for each supported stream type. This method does a query on the
-     * incoming URI, then uses
+     * Returns a stream of data for each supported stream type. For a note, this method does a
+     * query on the incoming URI; for the notes URI, the notes are queried a chunk at a time while
+     * they are exported. Either way, it uses
      * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
      * PipeDataWriter)} to start another thread in which to convert the data into a stream.
      *
@@ -419,6 +1202,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // If the URI is for every note, starts a thread that exports them into the pipe. The
+        // notes are read a chunk at a time by the thread, rather than queried here.
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTES) {
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, mStore, mNotesExportWriter), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
@@ -487,6 +1278,94 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             }
         }
     }
+
+    /**
+     * Writes every note into the pipe of an export of the notes URI.
+     */
+    private final PipeDataWriter<NoteStore> mNotesExportWriter =
+            new PipeDataWriter<NoteStore>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                    Bundle opts, NoteStore store) {
+            exportNotes(store, output, mimeType);
+        }
+    };
+
+    /**
+     * Writes every note, in order of ID, to a pipe as either plain text or line-delimited JSON.
+     *
+     * The notes are read {@link #EXPORT_CHUNK_NOTES} at a time, each chunk starting after the
+     * last ID of the previous one, and written through a fixed-size buffer, so the memory used
+     * does not grow with the number of notes. Reading one cursor over every note would instead
+     * refill its window by stepping over all of the notes before it, each time it reached the
+     * end. Notes saved during an export may or may not be included, but no note is written
+     * twice.
+     */
+    private void exportNotes(NoteStore store, ParcelFileDescriptor output, String mimeType) {
+        boolean json = NotePad.Notes.EXPORT_JSON_TYPE.equals(mimeType);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output.getFileDescriptor()), StandardCharsets.UTF_8),
+                EXPORT_BUFFER_CHARS);
+        try {
+            long lastId = 0;
+            boolean more = true;
+            while (more) {
+                Cursor c = store.listById(EXPORT_PROJECTION, lastId, EXPORT_CHUNK_NOTES);
+                try {
+                    more = c.getCount() == EXPORT_CHUNK_NOTES;
+                    while (c.moveToNext()) {
+                        if (json) {
+                            writeNoteJson(writer, c);
+                        } else {
+                            writer.write(String.valueOf(c.getString(EXPORT_TITLE_INDEX)));
+                            writer.write("\n\n");
+                            writer.write(String.valueOf(c.getString(EXPORT_NOTE_INDEX)));
+                            writer.write("\n\n");
+                        }
+                        lastId = c.getLong(EXPORT_ID_INDEX);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // The reader closed the pipe before the export finished.
+            Log.w(TAG, "Export of notes stopped", e);
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Writes the note at the cursor's position as one line of JSON, an object with a member for
+     * each column of {@link #EXPORT_PROJECTION}.
+     */
+    private static void writeNoteJson(Writer writer, Cursor c) throws IOException {
+        writer.write('{');
+        for (int i = 0; i < EXPORT_PROJECTION.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(JSONObject.quote(c.getColumnName(i)));
+            writer.write(':');
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    writer.write("null");
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    writer.write(Long.toString(c.getLong(i)));
+                    break;
+                default:
+                    writer.write(JSONObject.quote(c.getString(i)));
+                    break;
+            }
+        }
+        writer.write("}\n");
+    }
 //END_INCLUDE(stream)
 
     /**
@@ -500,9 +1379,22 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        int match = sUriMatcher.match(uri);
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return doInsert(uri, match, initialValues);
+        } finally {
+            mMetrics.record(NotePadMetrics.INSERT, match, start);
+        }
+    }
+
+    /*
+     * Does the work of insert(), for a URI that has been matched already.
+     */
+    private Uri doInsert(Uri uri, int match, ContentValues initialValues) {
 
         // Validates the incoming URI. Only the full provider URI is allowed for inserts.
-        if (sUriMatcher.match(uri) != NOTES) {
+        if (match != NOTES) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
@@ -530,6 +1422,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // time.
         if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
             values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        } else {
+            normalizeModificationDate(values);
         }
 
         // If the values map doesn't contain a title, sets the value to the default title.
@@ -543,25 +1437,20 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
         }
 
-        // Opens the database object in "write" mode.
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Fills in the columns derived from the note text.
+        Object note = values.get(NotePad.Notes.COLUMN_NAME_NOTE);
+        NotePreview.put(values, note instanceof String ? (String) note : null);
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-                NotePad.Notes.TABLE_NAME,        // The table to insert into.
-                NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                // if values is empty.
-                values                           // A map of column names, and the values to insert
-                // into the columns.
-        );
+        // Adds the note to the store.
+        long rowId = mStore.insert(values);
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
             // Creates a URI with the note ID pattern and the new row ID appended to it.
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
-            // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            // Notifies observers registered against this provider that the note was added.
+            notifyChanges();
             return noteUri;
         }
 
@@ -584,53 +1473,37 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        int match = sUriMatcher.match(uri);
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return doDelete(uri, match, where, whereArgs);
+        } finally {
+            mMetrics.record(NotePadMetrics.DELETE, match, start);
+        }
+    }
 
-        // Opens the database object in "write" mode.
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        String finalWhere;
-
+    /*
+     * Does the work of delete(), for a URI that has been matched already.
+     */
+    private int doDelete(Uri uri, int match, String where, String[] whereArgs) {
+        checkNoteColumnUnused(where);
         int count;
 
         // Does the delete based on the incoming URI pattern.
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             // If the incoming pattern matches the general pattern for notes, does a delete
             // based on the incoming "where" columns and arguments.
             case NOTES:
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name
-                        where,                     // The incoming where clause column names
-                        whereArgs                  // The incoming where clause values
-                );
+                count = sqlStore(uri).delete(where, whereArgs);
                 break;
 
-            // If the incoming URI matches a single note ID, does the delete based on the
-            // incoming data, but modifies the where clause to restrict it to the
-            // particular note ID.
+            // If the incoming URI matches a single note ID, deletes that note, if it also
+            // matches the incoming "where" columns and arguments.
             case NOTE_ID:
-                /*
-                 * Starts a final WHERE clause by restricting it to the
-                 * desired note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                                " = " +                                          // test for equality
-                                uri.getPathSegments().                           // the incoming note ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final
-                // WHERE clause
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
-
-                // Performs the delete.
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name.
-                        finalWhere,                // The final WHERE clause
-                        whereArgs                  // The incoming where clause values.
-                );
+                long id = ContentUris.parseId(uri);
+                count = where == null ? mStore.delete(id)
+                        : sqlStore(uri).delete(id, where, whereArgs);
                 break;
 
             // If the incoming pattern is invalid, throws an exception.
@@ -639,10 +1512,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * of the notes that were deleted, if any. The object passes this along to the resolver
+         * framework, and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChanges();
 
         // Returns the number of rows deleted.
         return count;
@@ -670,77 +1543,237 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        int match = sUriMatcher.match(uri);
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return doUpdate(uri, match, values, where, whereArgs);
+        } finally {
+            mMetrics.record(NotePadMetrics.UPDATE, match, start);
+        }
+    }
+
+    /*
+     * Does the work of update(), for a URI that has been matched already.
+     */
+    private int doUpdate(Uri uri, int match, ContentValues values, String where,
+            String[] whereArgs) {
+        checkNoteColumnUnused(where);
+
+        // Updating a revision reverts its note to it.
+        if (match == REVISION_ID) {
+            return revertNote(uri, values);
+        }
+
+        // Makes sure the modification date is stored as a number, whatever the client sent,
+        // and keeps the columns derived from the note text in step with it. Works on a copy, to
+        // leave the client's map alone.
+        values = new ContentValues(values);
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) {
+            normalizeModificationDate(values);
+        }
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            Object note = values.get(NotePad.Notes.COLUMN_NAME_NOTE);
+            NotePreview.put(values, note instanceof String ? (String) note : null);
+        } else {
+            // The derived columns only ever follow the note text.
+            NotePreview.remove(values);
+        }
 
-        // Opens the database object in "write" mode.
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
-        String finalWhere;
 
         // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
-                        values,                   // A map of column names and new values to use.
-                        where,                    // The where clause column names.
-                        whereArgs                 // The where clause column values to select on.
-                );
+                count = sqlStore(uri).update(where, whereArgs, values);
                 break;
 
-            // If the incoming URI matches a single note ID, does the update based on the incoming
-            // data, but modifies the where clause to restrict it to the particular note ID.
+            // If the incoming URI matches a single note ID, updates that note, if it also
+            // matches the incoming "where" columns and arguments.
             case NOTE_ID:
-                // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
-
-                /*
-                 * Starts creating the final WHERE clause by restricting it to the incoming
-                 * note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                                " = " +                                          // test for equality
-                                uri.getPathSegments().                           // the incoming note ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final WHERE
-                // clause
-                if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
-
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
-                        values,                   // A map of column names and new values to use.
-                        finalWhere,               // The final WHERE clause to use
-                        // placeholders for whereArgs
-                        whereArgs                 // The where clause column values to select on, or
-                        // null if the values are in the where argument.
-                );
+                long id = ContentUris.parseId(uri);
+                count = where == null ? mStore.update(id, values)
+                        : sqlStore(uri).update(id, where, whereArgs, values);
                 break;
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * of the notes that were updated, if any. The object passes this along to the resolver
+         * framework, and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChanges();
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * Reverts a note to the text of one of its revisions, through an update of the note that
+     * also applies the given values. The revert is recorded as a new revision, so it can be
+     * undone in turn.
+     *
+     * @return The number of notes updated, which is 0 if the revision does not exist.
+     */
+    private int revertNote(Uri uri, ContentValues values) {
+        List<String> segments = uri.getPathSegments();
+        long noteId = Long.parseLong(segments.get(NotePad.Revisions.NOTE_ID_PATH_POSITION));
+        long revision = Long.parseLong(segments.get(NotePad.Revisions.REVISION_PATH_POSITION));
+        String text;
+        Cursor c = mStore.getRevision(noteId, revision,
+                new String[] { NotePad.Revisions.COLUMN_NAME_NOTE });
+        try {
+            if (!c.moveToFirst()) {
+                return 0;
+            }
+            text = c.getString(0);
+        } finally {
+            c.close();
+        }
+        ContentValues revert = values == null ? new ContentValues() : new ContentValues(values);
+        revert.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        return update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                revert, null, null);
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all of the rows in a single transaction, instead of one transaction per row, and
+     * notifies listeners of the new notes at the end rather than row by row. The transaction
+     * yields to other threads every {@link #BULK_INSERT_YIELD_INTERVAL} rows, so a large import
+     * does not lock out readers until it completes.
+     *
+     * @return The number of rows inserted.
+     * @throws SQLException if any of the insertions fails. Rows inserted since the last yield
+     * point are rolled back.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        int count = 0;
+
+        mStore.beginBatch();
+        mApplyingBatch.set(Boolean.TRUE);
+        try {
+            for (ContentValues value : values) {
+                insert(uri, value);
+                count++;
+                if (count % BULK_INSERT_YIELD_INTERVAL == 0) {
+                    mStore.yieldBatchIfContended();
+                }
+            }
+            mStore.setBatchSuccessful();
+        } finally {
+            mApplyingBatch.set(Boolean.FALSE);
+            endBatch();
+        }
+        return count;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all of the operations in a single transaction, and notifies listeners of the notes
+     * they changed at the end. Operations built with
+     * {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)} mark the points where
+     * the transaction may be committed so that other threads can use the database.
+     *
+     * @return The results of the operations, in order.
+     * @throws OperationApplicationException if any operation fails. Operations applied since the
+     * last yield point are rolled back.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+
+        // The notes the operations change are dropped from the cache when the store commits
+        // them, which is when the batch ends or yields.
+        mStore.beginBatch();
+        mApplyingBatch.set(Boolean.TRUE);
+        try {
+            for (int i = 0; i < results.length; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    mStore.yieldBatchIfContended();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            mStore.setBatchSuccessful();
+        } finally {
+            mApplyingBatch.set(Boolean.FALSE);
+            endBatch();
+        }
+        return results;
+    }
+
+    /**
+     * Ends the store's batch, and notifies observers of the notes it changed, including those
+     * committed at yield points before a failure.
+     */
+    private void endBatch() {
+        try {
+            mStore.endBatch();
+        } finally {
+            notifyChanges();
+        }
+    }
+
+    /**
+     * Notifies observers registered against this provider of the notes the calling thread
+     * changed, unless it is applying a batch, which notifies once when it is done.
+     */
+    private void notifyChanges() {
+        if (Boolean.TRUE.equals(mApplyingBatch.get())) {
+            return;
+        }
+        mChangeNotifier.notifyChanges(getContext().getContentResolver());
+    }
+
+    /**
+     * Returns the provider's metrics, described by {@link NotePad.Metrics}, for the methods it
+     * defines. Other methods return null.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.Metrics.METHOD_GET.equals(method)) {
+            return mMetrics.snapshot(false);
+        }
+        if (NotePad.Metrics.METHOD_RESET.equals(method)) {
+            return mMetrics.snapshot(true);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Writes the counters of the note cache and the provider's metrics, for
+     * "adb shell dumpsys activity provider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mNoteCache);
+        writer.print(mMetrics);
+    }
+
+    /**
+     * Returns the cache of single notes, so tests can check its counters.
+     */
+    NoteCache getNoteCacheForTest() {
+        return mNoteCache;
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -750,6 +1783,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * @return a handle to the database helper object for the provider's data.
      */
     DatabaseHelper getOpenHelperForTest() {
-        return mOpenHelper;
+        return ((SQLiteNoteStore) mStore).getOpenHelper();
+    }
+
+    /**
+     * Returns the store that holds the notes, so tests and benchmarks can use it directly.
+     */
+    NoteStore getNoteStoreForTest() {
+        return mStore;
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+
+/**
+ * Derives the columns that describe a note's text in lists, so that {@link NotePadProvider}
+ * can store them next to the note whenever its text is written, and lists never have to read
+ * the text itself, which may be long, compressed or stored as chunks.
+ *
+ * Set to package visibility, since only the provider and its tests need it.
+ */
+final class NotePreview {
+
+    /**
+     * The columns derived from the note text. Clients cannot write them.
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+            NotePad.Notes.COLUMN_NAME_LINE_COUNT
+    };
+
+    // This class cannot be instantiated
+    private NotePreview() {
+    }
+
+    /**
+     * Puts the derived columns of a note's text into a map of values to be written, replacing
+     * any values the client put there.
+     */
+    static void put(ContentValues values, String note) {
+        if (note == null) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_PREVIEW);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH, 0);
+            values.put(NotePad.Notes.COLUMN_NAME_LINE_COUNT, 0);
+            return;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, preview(note));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH, note.length());
+        values.put(NotePad.Notes.COLUMN_NAME_LINE_COUNT, lineCount(note));
+    }
+
+    /**
+     * Removes any derived columns a client put into a map of values that does not change the
+     * note text.
+     */
+    static void remove(ContentValues values) {
+        for (String column : COLUMNS) {
+            values.remove(column);
+        }
+    }
+
+    /**
+     * Returns the start of a note on one line: its first {@link NotePad.Notes#PREVIEW_MAX_CHARS}
+     * characters at most, with every run of white space, line breaks included, shown as a single
+     * space. Only the characters that end up in the preview are read, however long the note is.
+     */
+    static String preview(String note) {
+        StringBuilder preview = new StringBuilder(
+                Math.min(note.length(), NotePad.Notes.PREVIEW_MAX_CHARS));
+        boolean space = false;
+        for (int i = 0; i < note.length()
+                && preview.length() < NotePad.Notes.PREVIEW_MAX_CHARS; i++) {
+            char c = note.charAt(i);
+            if (Character.isWhitespace(c)) {
+                // Leading white space is dropped, and inner runs are kept as one space.
+                space = preview.length() > 0;
+                continue;
+            }
+            if (space) {
+                preview.append(' ');
+                space = false;
+                if (preview.length() == NotePad.Notes.PREVIEW_MAX_CHARS) {
+                    break;
+                }
+            }
+            preview.append(c);
+        }
+
+        // Keeps surrogate pairs whole, and drops a trailing space left by the cut.
+        int length = preview.length();
+        if (length > 0 && Character.isHighSurrogate(preview.charAt(length - 1))) {
+            length--;
+        }
+        while (length > 0 && preview.charAt(length - 1) == ' ') {
+            length--;
+        }
+        preview.setLength(length);
+        return preview.toString();
+    }
+
+    /**
+     * Returns the number of lines in a note: 0 if it is empty, and otherwise the number of line
+     * breaks, plus one for a last line that does not end with a line break.
+     */
+    static int lineCount(String note) {
+        int lines = 0;
+        for (int i = note.indexOf('\n'); i >= 0; i = note.indexOf('\n', i + 1)) {
+            lines++;
+        }
+        if (note.length() > 0 && note.charAt(note.length() - 1) != '\n') {
+            lines++;
+        }
+        return lines;
+    }
+}
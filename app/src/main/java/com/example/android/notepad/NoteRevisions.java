@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Keeps the history of the text of each note for {@link NotePadProvider}, one revision per save.
+ *
+ * Most revisions are stored as a delta against the revision before them: the number of
+ * characters kept from the start and from the end of the previous text, and the text that
+ * replaces everything in between. Every {@link #SNAPSHOT_INTERVAL}th revision, and any revision
+ * whose delta would be no smaller than the text, is stored whole as a snapshot instead, with
+ * null prefix and suffix lengths. Reading a revision therefore starts at the nearest snapshot
+ * at or before it and applies fewer than {@link #SNAPSHOT_INTERVAL} deltas, however long the
+ * history is. Stored text is compressed by {@link NoteCompression} when it is long enough.
+ *
+ * Only the newest {@link NotePad.Revisions#MAX_REVISIONS} revisions of a note are kept, along
+ * with the older ones back to the snapshot the oldest of them is rebuilt from.
+ *
+ * Set to package visibility, since only the provider and its tests need it.
+ */
+final class NoteRevisions {
+
+    /**
+     * At most this many revisions in a row are stored as deltas; the next one is a snapshot.
+     */
+    static final int SNAPSHOT_INTERVAL = 16;
+
+    /**
+     * The column holding the number of characters kept from the start of the previous revision,
+     * or null for a snapshot. Internal to the provider, and not part of the contract.
+     */
+    static final String COLUMN_PREFIX = "prefix";
+
+    /**
+     * The column holding the number of characters kept from the end of the previous revision,
+     * or null for a snapshot. Internal to the provider, and not part of the contract.
+     */
+    static final String COLUMN_SUFFIX = "suffix";
+
+    /**
+     * The column holding the text of a snapshot, or the replaced text of a delta, either as text
+     * or as compressed by {@link NoteCompression}. Internal to the provider, and not part of the
+     * contract.
+     */
+    static final String COLUMN_BODY = "body";
+
+    /**
+     * An SQL expression for the number of bytes a revision's body takes up in the database.
+     */
+    static final String STORED_SIZE = "length(CAST(" + COLUMN_BODY + " AS BLOB))";
+
+    // The columns read to rebuild a revision, and their positions.
+    private static final String[] DELTA_PROJECTION = new String[] {
+            COLUMN_PREFIX,
+            COLUMN_SUFFIX,
+            COLUMN_BODY,
+            NotePad.Revisions.COLUMN_NAME_REVISION
+    };
+    private static final int DELTA_PREFIX_INDEX = 0;
+    private static final int DELTA_SUFFIX_INDEX = 1;
+    private static final int DELTA_BODY_INDEX = 2;
+    private static final int DELTA_REVISION_INDEX = 3;
+
+    // This class cannot be instantiated
+    private NoteRevisions() {
+    }
+
+    /**
+     * Creates the revisions table. Its unique index on (note_id, revision) serves both the
+     * listing of a note's revisions and the search for the snapshot a revision starts from.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Revisions.TABLE_NAME + " ("
+                + NotePad.Revisions._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_LENGTH + " INTEGER NOT NULL,"
+                + COLUMN_PREFIX + " INTEGER,"
+                + COLUMN_SUFFIX + " INTEGER,"
+                + COLUMN_BODY + ","
+                + "UNIQUE (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + ")"
+                + ");");
+    }
+
+    /**
+     * Records the text of a note as its newest revision, unless it is the same as the note's
+     * previous text, and deletes the revisions that are no longer kept. Must be called inside a
+     * transaction.
+     *
+     * @param previous The text of the note before this save, which is the text of its newest
+     * revision, or null if it is a new note.
+     * @return The number of the new revision, or 0 if the text was unchanged.
+     */
+    static long record(SQLiteDatabase db, long noteId, String previous, String text,
+            long created) {
+        if (text == null) {
+            text = "";
+        }
+        if (text.equals(previous)) {
+            return 0;
+        }
+
+        // Finds the newest revision, and how many deltas have been stored since its snapshot.
+        long latest = 0;
+        long latestSnapshot = 0;
+        Cursor c = db.rawQuery("SELECT max(" + NotePad.Revisions.COLUMN_NAME_REVISION + "),"
+                + " max(CASE WHEN " + COLUMN_PREFIX + " IS NULL THEN "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " END)"
+                + " FROM " + NotePad.Revisions.TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null);
+        try {
+            if (c.moveToFirst() && !c.isNull(0)) {
+                latest = c.getLong(0);
+                latestSnapshot = c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_REVISION, latest + 1);
+        values.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE, created);
+        values.put(NotePad.Revisions.COLUMN_NAME_LENGTH, text.length());
+
+        // The previous text saves rebuilding the newest revision from its deltas.
+        String body = text;
+        if (latest > 0 && previous != null) {
+            // Keeps the longest unchanged start and end of the previous text, without letting
+            // them overlap in either text.
+            int limit = Math.min(previous.length(), text.length());
+            int prefix = 0;
+            while (prefix < limit && previous.charAt(prefix) == text.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < limit - prefix && previous.charAt(previous.length() - 1 - suffix)
+                    == text.charAt(text.length() - 1 - suffix)) {
+                suffix++;
+            }
+            // Keeps surrogate pairs on one side of the cut.
+            if (prefix > 0 && Character.isHighSurrogate(text.charAt(prefix - 1))) {
+                prefix--;
+            }
+            if (suffix > 0 && Character.isLowSurrogate(text.charAt(text.length() - suffix))) {
+                suffix--;
+            }
+
+            // Stores a delta, unless the chain of deltas is long enough already or the delta
+            // would be about as big as the text.
+            String replaced = text.substring(prefix, text.length() - suffix);
+            if (latest + 1 - latestSnapshot < SNAPSHOT_INTERVAL
+                    && replaced.length() < text.length() / 2) {
+                values.put(COLUMN_PREFIX, prefix);
+                values.put(COLUMN_SUFFIX, suffix);
+                body = replaced;
+            }
+        }
+
+        byte[] compressed = NoteCompression.compress(body);
+        if (compressed != null) {
+            values.put(COLUMN_BODY, compressed);
+        } else {
+            values.put(COLUMN_BODY, body);
+        }
+        db.insertOrThrow(NotePad.Revisions.TABLE_NAME, null, values);
+        prune(db, noteId, latest + 1);
+        return latest + 1;
+    }
+
+    /*
+     * Deletes the revisions of a note older than the newest MAX_REVISIONS, except those from
+     * the snapshot the oldest kept revision is rebuilt from.
+     */
+    private static void prune(SQLiteDatabase db, long noteId, long latest) {
+        long oldest = latest - NotePad.Revisions.MAX_REVISIONS + 1;
+        if (oldest <= 1) {
+            return;
+        }
+        String noteWhere = NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId;
+        db.delete(NotePad.Revisions.TABLE_NAME, noteWhere + " AND "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " < (SELECT max("
+                + NotePad.Revisions.COLUMN_NAME_REVISION + ") FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE " + noteWhere + " AND "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " <= " + oldest + " AND "
+                + COLUMN_PREFIX + " IS NULL)", null);
+    }
+
+    /**
+     * Rebuilds the text of one revision of a note, from the nearest snapshot at or before it.
+     *
+     * @return The text, or null if the note has no such revision.
+     */
+    static String read(SQLiteDatabase db, long noteId, long revision) {
+        String noteWhere = NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId;
+        Cursor c = db.query(NotePad.Revisions.TABLE_NAME, DELTA_PROJECTION,
+                noteWhere + " AND " + NotePad.Revisions.COLUMN_NAME_REVISION + " <= " + revision
+                        + " AND " + NotePad.Revisions.COLUMN_NAME_REVISION + " >= (SELECT max("
+                        + NotePad.Revisions.COLUMN_NAME_REVISION + ") FROM "
+                        + NotePad.Revisions.TABLE_NAME + " WHERE " + noteWhere + " AND "
+                        + NotePad.Revisions.COLUMN_NAME_REVISION + " <= " + revision + " AND "
+                        + COLUMN_PREFIX + " IS NULL)",
+                null, null, null, NotePad.Revisions.COLUMN_NAME_REVISION);
+        try {
+            // The last row read is the revision itself; if it is missing, so is the revision.
+            if (!c.moveToLast() || c.getLong(DELTA_REVISION_INDEX) != revision) {
+                return null;
+            }
+            c.moveToFirst();
+            String text = NoteCompression.readNote(c, DELTA_BODY_INDEX);
+            while (c.moveToNext()) {
+                int prefix = c.getInt(DELTA_PREFIX_INDEX);
+                int suffix = c.getInt(DELTA_SUFFIX_INDEX);
+                String replaced = NoteCompression.readNote(c, DELTA_BODY_INDEX);
+                StringBuilder next = new StringBuilder(prefix + replaced.length() + suffix);
+                next.append(text, 0, prefix)
+                        .append(replaced)
+                        .append(text, text.length() - suffix, text.length());
+                text = next.toString();
+            }
+            return text;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Deletes the revisions of a note.
+     */
+    static void delete(SQLiteDatabase db, long noteId) {
+        db.delete(NotePad.Revisions.TABLE_NAME,
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId, null);
+    }
+}
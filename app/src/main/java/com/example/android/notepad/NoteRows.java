@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Notes held as an array of the values of {@link NoteStore#COLUMNS}, in that order, by the
+ * stores that do not keep them in SQLite. Text is held as String and integers as Long, as
+ * they are read back.
+ *
+ * Set to package visibility, since only the stores need it.
+ */
+final class NoteRows {
+
+    /*
+     * The positions of the columns in a note.
+     */
+    static final int ID = 0;
+    static final int TITLE = 1;
+    static final int NOTE = 2;
+    static final int MODIFIED = 4;
+
+    /*
+     * The positions of the columns in a revision, which are those of
+     * NoteStore.REVISION_COLUMNS.
+     */
+    static final int REVISION_ID = 0;
+    static final int REVISION_NOTE_ID = 1;
+    static final int REVISION_NUMBER = 2;
+    static final int REVISION_CREATED = 3;
+    static final int REVISION_LENGTH = 4;
+    static final int REVISION_STORED_SIZE = 5;
+    static final int REVISION_TEXT = 6;
+
+    // The columns of a revision in a list of revisions, which leave out the text.
+    private static final String[] LISTED_REVISION_COLUMNS =
+            Arrays.copyOf(NoteStore.REVISION_COLUMNS, REVISION_TEXT);
+
+    private static final HashMap<String, Integer> COLUMN_INDEXES = new HashMap<String, Integer>();
+
+    // Whether each column holds text rather than an integer.
+    private static final boolean[] TEXT_COLUMNS = new boolean[NoteStore.COLUMNS.length];
+
+    static {
+        for (int i = 0; i < NoteStore.COLUMNS.length; i++) {
+            COLUMN_INDEXES.put(NoteStore.COLUMNS[i], i);
+        }
+        TEXT_COLUMNS[TITLE] = true;
+        TEXT_COLUMNS[NOTE] = true;
+        TEXT_COLUMNS[COLUMN_INDEXES.get(NotePad.Notes.COLUMN_NAME_PREVIEW)] = true;
+    }
+
+    // This class cannot be instantiated
+    private NoteRows() {
+    }
+
+    /**
+     * Returns a note with the given values, and the defaults the notes table gives the
+     * columns that are not among them. Its ID is null unless the values hold one.
+     */
+    static Object[] newNote(ContentValues values) {
+        Object[] note = new Object[NoteStore.COLUMNS.length];
+        note[COLUMN_INDEXES.get(NotePad.Notes.COLUMN_NAME_BACK_COLOR)] =
+                (long) NotePad.Notes.DEFAULT_COLOR;
+        note[COLUMN_INDEXES.get(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH)] = 0L;
+        note[COLUMN_INDEXES.get(NotePad.Notes.COLUMN_NAME_LINE_COUNT)] = 0L;
+        putValues(note, values);
+        return note;
+    }
+
+    /**
+     * Copies values into a note, converting them to the type of their column.
+     *
+     * @throws IllegalArgumentException if a value is for an unknown column, or is not a number
+     * where one is needed.
+     */
+    static void putValues(Object[] note, ContentValues values) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = columnIndex(entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                note[index] = null;
+            } else if (index == NOTE) {
+                note[index] = NoteCompression.toText(value);
+            } else if (TEXT_COLUMNS[index]) {
+                note[index] = value.toString();
+            } else if (value instanceof Number) {
+                note[index] = ((Number) value).longValue();
+            } else {
+                try {
+                    note[index] = Long.valueOf(value.toString().trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + entry.getKey()
+                            + ": " + value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the title or the text of a note match every phrase of a query, as the
+     * search table would.
+     */
+    static boolean matches(String[][] phrases, String title, String text) {
+        String[] titleTokens = NoteSearchIndex.toTokens(NoteSearchIndex.toIndexText(title));
+        String[] textTokens = NoteSearchIndex.toTokens(NoteSearchIndex.toIndexText(text));
+        for (String[] phrase : phrases) {
+            if (!NoteSearchIndex.matches(phrase, titleTokens)
+                    && !NoteSearchIndex.matches(phrase, textTokens)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the given columns of a note to a cursor as a row.
+     */
+    static void addRow(MatrixCursor c, Object[] note, int[] columns) {
+        MatrixCursor.RowBuilder row = c.newRow();
+        for (int column : columns) {
+            row.add(note[column]);
+        }
+    }
+
+    /**
+     * Returns the columns a cursor holds for a projection, which are all of them for null.
+     */
+    static String[] projectionOf(String[] projection) {
+        return projection != null ? projection : NoteStore.COLUMNS;
+    }
+
+    /**
+     * Returns the positions in a note of the columns of a projection.
+     *
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     */
+    static int[] columnIndexes(String[] projection) {
+        projection = projectionOf(projection);
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = columnIndex(projection[i]);
+        }
+        return columns;
+    }
+
+    /**
+     * Returns true if a column holds text rather than an integer.
+     */
+    static boolean isText(int column) {
+        return TEXT_COLUMNS[column];
+    }
+
+    static long longOf(Object value) {
+        return value != null ? (Long) value : 0;
+    }
+
+    /**
+     * Returns the columns a cursor of revisions holds for a projection, which are all of them
+     * for null, leaving out the text unless it is for a single revision.
+     */
+    static String[] revisionProjectionOf(String[] projection, boolean withText) {
+        if (projection != null) {
+            return projection;
+        }
+        return withText ? NoteStore.REVISION_COLUMNS : LISTED_REVISION_COLUMNS;
+    }
+
+    /**
+     * Returns the positions in a revision of the columns of a projection.
+     *
+     * @throws IllegalArgumentException if the projection names an unknown column, or the text
+     * when it is for a list of revisions.
+     */
+    static int[] revisionColumnIndexes(String[] projection, boolean withText) {
+        projection = revisionProjectionOf(projection, withText);
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = Arrays.asList(NoteStore.REVISION_COLUMNS).indexOf(projection[i]);
+            if (columns[i] < 0 || (columns[i] == REVISION_TEXT && !withText)) {
+                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Counts notes by the month of their modification date in local time, as
+     * {@link NoteStore#months(String[], android.os.CancellationSignal)} returns them. The dates must be
+     * added newest first, the order the stores keep the notes in, so each month is a run of
+     * dates and the calendar is only consulted once per month.
+     */
+    static final class MonthCounter {
+        private final int[] mColumns;
+        private final MatrixCursor mCursor;
+        private final Calendar mCalendar = Calendar.getInstance();
+
+        // The start of the month being counted, its number as year * 100 + month, and its notes
+        // so far.
+        private long mMonthStart = Long.MAX_VALUE;
+        private long mMonth;
+        private long mCount;
+
+        /**
+         * @throws IllegalArgumentException if the projection names an unknown column.
+         */
+        MonthCounter(String[] projection) {
+            if (projection == null) {
+                projection = NoteStore.MONTH_COLUMNS;
+            }
+            mColumns = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                if (NotePad.Notes.COLUMN_NAME_MONTH.equals(projection[i])) {
+                    mColumns[i] = 0;
+                } else if (NotePad.Notes._COUNT.equals(projection[i])) {
+                    mColumns[i] = 1;
+                } else {
+                    throw new IllegalArgumentException("Invalid column " + projection[i]);
+                }
+            }
+            mCursor = new MatrixCursor(projection);
+        }
+
+        void add(long modified) {
+            if (modified < mMonthStart) {
+                addMonth();
+                mCalendar.setTimeInMillis(modified);
+                mMonth = mCalendar.get(Calendar.YEAR) * 100 + mCalendar.get(Calendar.MONTH) + 1;
+                mCalendar.set(Calendar.DAY_OF_MONTH, 1);
+                mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+                mCalendar.set(Calendar.MINUTE, 0);
+                mCalendar.set(Calendar.SECOND, 0);
+                mCalendar.set(Calendar.MILLISECOND, 0);
+                mMonthStart = mCalendar.getTimeInMillis();
+            }
+            mCount++;
+        }
+
+        /**
+         * Returns the months counted, after the last date has been added.
+         */
+        Cursor finish() {
+            addMonth();
+            return mCursor;
+        }
+
+        private void addMonth() {
+            if (mCount > 0) {
+                MatrixCursor.RowBuilder row = mCursor.newRow();
+                for (int column : mColumns) {
+                    row.add(column == 0 ? mMonth : mCount);
+                }
+                mCount = 0;
+            }
+        }
+    }
+
+    private static int columnIndex(String column) {
+        Integer index = COLUMN_INDEXES.get(column);
+        if (index == null) {
+            throw new IllegalArgumentException("Invalid column " + column);
+        }
+        return index;
+    }
+}
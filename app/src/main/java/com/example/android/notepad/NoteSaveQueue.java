@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.res.Configuration;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteDiskIOException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the changes the editors make to notes in the background, instead of on the UI thread.
+ *
+ * The editors hand their updates and deletes to the queue, which keeps at most one pending
+ * change per note: a later update is merged into the pending one, so that only the latest state
+ * of each column is written, and a delete replaces it. The pending changes are written together
+ * in one batch, at most {@link #FLUSH_DELAY_MILLIS} after the first of them was queued. They are
+ * also written straight away when the application's UI is hidden or memory runs low, since the
+ * process may be killed soon after. A change that fails is retried later if the failure may
+ * pass, and otherwise logged and dropped.
+ *
+ * Until a change is written, readers of the provider see the old note. The editors overlay the
+ * change returned by {@link #getPendingUpdate(Uri)} on what they read.
+ */
+final class NoteSaveQueue implements ComponentCallbacks2 {
+
+    // For logging and debugging
+    private static final String TAG = "NoteSaveQueue";
+
+    /**
+     * The longest a queued change waits before it is written.
+     */
+    static final long FLUSH_DELAY_MILLIS = 500;
+
+    /**
+     * How long a change that failed for a reason that may pass waits before it is tried again,
+     * doubled for every further attempt.
+     */
+    static final long RETRY_DELAY_MILLIS = 1000;
+
+    /**
+     * The most times a change is tried before it is dropped.
+     */
+    static final int MAX_SAVE_ATTEMPTS = 5;
+
+    // The outcomes of applyBatch().
+    private static final int SAVED = 0;
+    private static final int FAILED_TRANSIENT = 1;
+    private static final int FAILED_PERMANENT = 2;
+
+    private static NoteSaveQueue sInstance;
+
+    private final ContentResolver mResolver;
+
+    // Writes the changes, off the UI thread.
+    private final Handler mHandler;
+
+    // The pending change of each note, in the order the notes were last changed. A null value
+    // is a pending delete. Guarded by this.
+    private final LinkedHashMap<Uri, ContentValues> mPending =
+            new LinkedHashMap<Uri, ContentValues>();
+
+    // The number of failed attempts to write the change of each note that is queued for a
+    // retry. Guarded by this.
+    private final HashMap<Uri, Integer> mAttempts = new HashMap<Uri, Integer>();
+
+    // True while a flush is posted to mHandler. Guarded by this.
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    /**
+     * Returns the queue of the application, creating it the first time.
+     */
+    static synchronized NoteSaveQueue getInstance(Context context) {
+        if (sInstance == null) {
+            Context application = context.getApplicationContext();
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sInstance = new NoteSaveQueue(application.getContentResolver(), thread.getLooper());
+            application.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a queue that writes through the given resolver on the given looper's thread.
+     * Only tests create queues directly.
+     */
+    NoteSaveQueue(ContentResolver resolver, Looper looper) {
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Queues an update of a note. Columns already pending for the note keep their values unless
+     * this update sets them too. The merged change moves behind every change queued before this
+     * one, so that it is written after them.
+     */
+    synchronized void update(Uri uri, ContentValues values) {
+        if (mPending.containsKey(uri) && mPending.get(uri) == null) {
+            // The note is being deleted; there is nothing left to update.
+            return;
+        }
+        ContentValues pending = mPending.remove(uri);
+        if (pending == null) {
+            pending = new ContentValues();
+        }
+        pending.putAll(values);
+        mPending.put(uri, pending);
+        scheduleFlush(FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * Queues the deletion of a note, in place of any update pending for it, behind every change
+     * queued before it.
+     */
+    synchronized void delete(Uri uri) {
+        mPending.remove(uri);
+        mPending.put(uri, null);
+        scheduleFlush(FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * Returns a copy of the columns waiting to be written to a note, or null if no update is
+     * pending for it.
+     */
+    synchronized ContentValues getPendingUpdate(Uri uri) {
+        ContentValues pending = mPending.get(uri);
+        return pending == null ? null : new ContentValues(pending);
+    }
+
+    /**
+     * Writes the pending changes as soon as possible, without waiting for the delay.
+     */
+    synchronized void flush() {
+        if (!mPending.isEmpty()) {
+            mHandler.removeCallbacks(mFlush);
+            mFlushScheduled = false;
+            scheduleFlush(0);
+        }
+    }
+
+    /**
+     * Writes the pending changes and waits until they have been written, or the timeout passes.
+     * Must not be called on the queue's own thread.
+     *
+     * @return True if every change queued before the call has been written.
+     */
+    boolean flushAndWait(long timeoutMillis) throws InterruptedException {
+        flush();
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Posts a flush, unless one is already posted. Called with the lock held.
+    private void scheduleFlush(long delayMillis) {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, delayMillis);
+        }
+    }
+
+    /*
+     * Writes every pending change in one batch, so that the provider uses one transaction and
+     * sends one change notification. Runs on the queue's thread.
+     *
+     * If the provider rejects the batch, the changes are written one at a time, so that a
+     * change it rejects does not take the others down with it. A rejected change is logged and
+     * dropped, since writing it again would fail again. A change that fails for a reason that
+     * may pass, such as a locked database or a provider process that died, is queued again,
+     * ahead of the changes made since, and retried after a delay that doubles with every
+     * attempt, up to MAX_SAVE_ATTEMPTS attempts.
+     */
+    private void flushPending() {
+        LinkedHashMap<Uri, ContentValues> changes;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            changes = new LinkedHashMap<Uri, ContentValues>(mPending);
+            mPending.clear();
+        }
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(changes.size());
+        for (Map.Entry<Uri, ContentValues> change : changes.entrySet()) {
+            operations.add(toOperation(change.getKey(), change.getValue()));
+        }
+        int result = applyBatch(operations);
+        LinkedHashMap<Uri, ContentValues> failed;
+        if (result == SAVED) {
+            failed = null;
+        } else if (result == FAILED_TRANSIENT) {
+            failed = changes;
+        } else {
+            failed = new LinkedHashMap<Uri, ContentValues>();
+            for (Map.Entry<Uri, ContentValues> change : changes.entrySet()) {
+                operations.clear();
+                operations.add(toOperation(change.getKey(), change.getValue()));
+                result = applyBatch(operations);
+                if (result == FAILED_TRANSIENT) {
+                    failed.put(change.getKey(), change.getValue());
+                } else if (result == FAILED_PERMANENT) {
+                    Log.e(TAG, "Dropped a change the provider rejected: " + change.getKey());
+                }
+            }
+        }
+        requeue(changes.keySet(), failed);
+    }
+
+    /*
+     * Applies a batch of operations, and returns SAVED, or why the batch failed, after logging
+     * it.
+     */
+    private int applyBatch(ArrayList<ContentProviderOperation> operations) {
+        try {
+            mResolver.applyBatch(NotePad.AUTHORITY, operations);
+            return SAVED;
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to save " + operations.size() + " notes", e);
+            return FAILED_TRANSIENT;
+        } catch (SQLiteDatabaseLockedException e) {
+            Log.w(TAG, "Failed to save " + operations.size() + " notes", e);
+            return FAILED_TRANSIENT;
+        } catch (SQLiteDiskIOException e) {
+            Log.w(TAG, "Failed to save " + operations.size() + " notes", e);
+            return FAILED_TRANSIENT;
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Failed to save " + operations.size() + " notes", e);
+            return FAILED_PERMANENT;
+        } catch (RuntimeException e) {
+            // Such as an IllegalArgumentException for a URI the provider does not know, which
+            // would otherwise kill the process.
+            Log.w(TAG, "Failed to save " + operations.size() + " notes", e);
+            return FAILED_PERMANENT;
+        }
+    }
+
+    private static ContentProviderOperation toOperation(Uri uri, ContentValues values) {
+        if (values == null) {
+            return ContentProviderOperation.newDelete(uri).build();
+        }
+        return ContentProviderOperation.newUpdate(uri).withValues(values).build();
+    }
+
+    /*
+     * Puts changes that failed for a reason that may pass back in front of the changes queued
+     * since they were taken out, unless they have been tried MAX_SAVE_ATTEMPTS times, and
+     * schedules their retry. A newer change of the same note is merged into the failed one, and
+     * keeps its place: a newer update overrides the columns it sets, and a delete, newer or
+     * failed, wins.
+     *
+     * @param tried The notes whose changes were tried.
+     * @param failed The changes to retry, or null if none are.
+     */
+    private synchronized void requeue(Set<Uri> tried, LinkedHashMap<Uri, ContentValues> failed) {
+        int attempts = 0;
+        for (Uri uri : tried) {
+            if (failed == null || !failed.containsKey(uri)) {
+                mAttempts.remove(uri);
+                continue;
+            }
+            Integer before = mAttempts.get(uri);
+            int attempt = before == null ? 1 : before + 1;
+            if (attempt >= MAX_SAVE_ATTEMPTS) {
+                Log.e(TAG, "Dropped a change after " + attempt + " failed attempts: " + uri);
+                failed.remove(uri);
+                mAttempts.remove(uri);
+            } else {
+                mAttempts.put(uri, attempt);
+                attempts = Math.max(attempts, attempt);
+            }
+        }
+        if (failed == null || failed.isEmpty()) {
+            return;
+        }
+
+        LinkedHashMap<Uri, ContentValues> pending = new LinkedHashMap<Uri, ContentValues>();
+        for (Map.Entry<Uri, ContentValues> change : failed.entrySet()) {
+            if (!mPending.containsKey(change.getKey())) {
+                pending.put(change.getKey(), change.getValue());
+            }
+        }
+        for (Map.Entry<Uri, ContentValues> change : mPending.entrySet()) {
+            Uri uri = change.getKey();
+            ContentValues values = change.getValue();
+            if (values != null && failed.containsKey(uri)) {
+                ContentValues older = failed.get(uri);
+                if (older == null) {
+                    values = null;
+                } else {
+                    older.putAll(values);
+                    values = older;
+                }
+            }
+            pending.put(uri, values);
+        }
+        mPending.clear();
+        mPending.putAll(pending);
+        scheduleFlush(RETRY_DELAY_MILLIS << (attempts - 1));
+    }
+
+    /**
+     * Writes the pending changes when the application's UI is hidden or memory is low, either
+     * of which makes it likely that the process will be killed.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        flush();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -1,25 +1,88 @@
 package com.example.android.notepad;
 import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
 import android.widget.ListView;
 import android.widget.SearchView;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Toast;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Searches the notes as the user types.
+ *
+ * Queries are debounced: a search only starts once the text has not changed for
+ * {@link #SEARCH_DEBOUNCE_MILLIS}. Searches run on a single background thread, and a search that
+ * is superseded by newer text is cancelled through its {@link CancellationSignal}. Results are
+ * swapped into one long-lived adapter with {@link MyCursorAdapter#changeCursor(Cursor)},
+ * which also closes the previous cursor.
+ */
 public class NoteSearch extends Activity implements SearchView.OnQueryTextListener
 {
+    // For logging and debugging
+    private static final String TAG = "NoteSearch";
+
+    /**
+     * How long the query text must stay unchanged before a search is started.
+     */
+    static final long SEARCH_DEBOUNCE_MILLIS = 250;
+
     ListView listView;
-    SQLiteDatabase sqLiteDatabase;
     /**
      * The columns needed by the cursor adapter
      */
     private static final String[] PROJECTION = new String[]{
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
-            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE//时间
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,//时间
+            NotePad.Notes.COLUMN_NAME_BACK_COLOR
+    };
+
+    // The single adapter that every search result is swapped into.
+    private MyCursorAdapter mAdapter;
+
+    // Runs the searches, one at a time, off the UI thread.
+    private ExecutorService mExecutor;
+
+    // Posts debounced searches and delivers their results on the UI thread.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // The search waiting for the debounce window to pass, if any.
+    private Runnable mPendingSearch;
+
+    // Cancels the search currently running in the background, if any.
+    private CancellationSignal mRunningSignal;
+
+    // Incremented for every new query text; results from older generations are stale.
+    private int mGeneration;
+
+    // Counters reported by logStats().
+    private int mSearchesStarted;
+    private int mSearchesCompleted;
+    private int mSearchesCancelled;
+    private int mSearchesStale;
+    private int mSearchesDebounced;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    // Shows the results' dates again every minute, since they are relative to now.
+    private final BroadcastReceiver mTimeTickReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mAdapter.notifyDataSetChanged();
+        }
     };
 
     public boolean onQueryTextSubmit(String query) {
@@ -37,7 +100,16 @@ public class NoteSearch extends Activity implements SearchView.OnQueryTextListen
             intent.setData(NotePad.Notes.CONTENT_URI);
         }
         listView = findViewById(R.id.list_view);
-        sqLiteDatabase = new NotePadProvider.DatabaseHelper(this).getReadableDatabase();
+
+        // Creates the backing adapter for the ListView. It starts without a cursor; each search
+        // result is swapped in when it arrives. Rows show the note's title, its modification
+        // date and its color.
+        mAdapter = new MyCursorAdapter(this, R.layout.noteslist_item, null);
+        // Sets the ListView's adapter to be the cursor adapter that was just created.
+        listView.setAdapter(mAdapter);
+
+        mExecutor = Executors.newSingleThreadExecutor();
+
         //设置该SearchView显示搜索按钮
         searchView.setSubmitButtonEnabled(true);
 
@@ -46,40 +118,154 @@ public class NoteSearch extends Activity implements SearchView.OnQueryTextListen
         searchView.setOnQueryTextListener(this);
 
     }
-    public boolean onQueryTextChange(String string) {
-        String selection1 = NotePad.Notes.COLUMN_NAME_TITLE+" like ? or "+NotePad.Notes.COLUMN_NAME_NOTE+" like ?";
-        String[] selection2 = {"%"+string+"%","%"+string+"%"};
-        Cursor cursor = sqLiteDatabase.query(
-                NotePad.Notes.TABLE_NAME,
-                PROJECTION, // The columns to return from the query
-                selection1, // The columns for the where clause
-                selection2, // The values for the where clause
-                null,          // don't group the rows
-                null,          // don't filter by row groups
-                NotePad.Notes.DEFAULT_SORT_ORDER // The sort order
-        );
-        // The names of the cursor columns to display in the view, initialized to the title column
-        String[] dataColumns = {
-                NotePad.Notes.COLUMN_NAME_TITLE,
-                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
-        } ;
-        // The view IDs that will display the cursor columns, initialized to the TextView in
-        // noteslist_item.xml
-        int[] viewIDs = {
-                android.R.id.text1,
-                android.R.id.text2
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        registerReceiver(mTimeTickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
+        // Catches up with the minutes that passed while the search was paused.
+        mAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        unregisterReceiver(mTimeTickReceiver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Drops any pending search and stops the running one. Results that still arrive are
+        // stale, and are closed rather than delivered.
+        mGeneration++;
+        if (mPendingSearch != null) {
+            mHandler.removeCallbacks(mPendingSearch);
+            mPendingSearch = null;
+        }
+        if (mRunningSignal != null) {
+            mRunningSignal.cancel();
+            mRunningSignal = null;
+        }
+        mExecutor.shutdown();
+        mAdapter.changeCursor(null);
+        logStats();
+    }
+
+    public boolean onQueryTextChange(final String string) {
+        final int generation = ++mGeneration;
+
+        // Restarts the debounce window.
+        if (mPendingSearch != null) {
+            mHandler.removeCallbacks(mPendingSearch);
+            mSearchesDebounced++;
+        }
+        mPendingSearch = new Runnable() {
+            @Override
+            public void run() {
+                mPendingSearch = null;
+                startSearch(string, generation);
+            }
         };
-        // Creates the backing adapter for the ListView.
-        SimpleCursorAdapter adapter
-                = new SimpleCursorAdapter(
-                this,                             // The Context for the ListView
-                R.layout.noteslist_item,         // Points to the XML for a list item
-                cursor,                           // The cursor to get items from
-                dataColumns,
-                viewIDs
-        );
-        // Sets the ListView's adapter to be the cursor adapter that was just created.
-        listView.setAdapter(adapter);
+        mHandler.postDelayed(mPendingSearch, SEARCH_DEBOUNCE_MILLIS);
         return true;
     }
+
+    /*
+     * Cancels the running search, if any, and starts a search for the given text in the
+     * background. Called on the UI thread.
+     */
+    private void startSearch(String string, final int generation) {
+        if (mRunningSignal != null) {
+            mRunningSignal.cancel();
+        }
+        final CancellationSignal signal = new CancellationSignal();
+        mRunningSignal = signal;
+        mSearchesStarted++;
+
+        // Searches through the provider's full-text index instead of scanning every note body.
+        final Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_SEARCH_QUERY, string)
+                .build();
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Cursor cursor = null;
+                try {
+                    cursor = getContentResolver().query(
+                            searchUri,
+                            PROJECTION, // The columns to return from the query
+                            null,       // The matching is done by the search URI
+                            null,
+                            NotePad.Notes.DEFAULT_SORT_ORDER, // The sort order
+                            signal
+                    );
+                    if (cursor != null) {
+                        // Fills the cursor window here rather than on the UI thread.
+                        cursor.getCount();
+                    }
+                } catch (OperationCanceledException e) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    cursor = null;
+                }
+                deliverResult(cursor, generation, signal,
+                        SystemClock.elapsedRealtimeNanos() - start);
+            }
+        });
+    }
+
+    /*
+     * Hands a finished search over to the UI thread, which either shows the result or, if newer
+     * text has been typed in the meantime, discards it.
+     */
+    private void deliverResult(final Cursor cursor, final int generation,
+                               final CancellationSignal signal, final long latencyNanos) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunningSignal == signal) {
+                    mRunningSignal = null;
+                }
+                if (cursor == null) {
+                    mSearchesCancelled++;
+                    return;
+                }
+                if (generation != mGeneration) {
+                    mSearchesStale++;
+                    cursor.close();
+                    return;
+                }
+                mSearchesCompleted++;
+                mTotalLatencyNanos += latencyNanos;
+                mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latencyNanos);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "search returned " + cursor.getCount() + " notes in "
+                            + latencyNanos / 1000 + "us");
+                }
+
+                // Swaps in the new result, closing the old cursor.
+                mAdapter.changeCursor(cursor);
+            }
+        });
+    }
+
+    /*
+     * Writes the search counters to the log, for tuning the debounce window.
+     */
+    private void logStats() {
+        long averageMicros = mSearchesCompleted == 0
+                ? 0 : mTotalLatencyNanos / mSearchesCompleted / 1000;
+        Log.i(TAG, "searches started=" + mSearchesStarted
+                + " completed=" + mSearchesCompleted
+                + " cancelled=" + mSearchesCancelled
+                + " stale=" + mSearchesStale
+                + " debounced=" + mSearchesDebounced
+                + " avgLatency=" + averageMicros + "us"
+                + " maxLatency=" + mMaxLatencyNanos / 1000 + "us");
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+
+/**
+ * Converts note text and user search queries into the form stored in, and matched against, the
+ * full-text search table maintained by {@link NotePadProvider}.
+ *
+ * The FTS "simple" tokenizer splits on ASCII punctuation and whitespace only, so a run of Chinese
+ * text would be indexed as one enormous token that can only be found by its first characters.
+ * To keep substring-like search for ideographic text, runs of ideographs are indexed as
+ * overlapping two-character tokens ("abcd" becomes "ab bc cd d"), and queries are rewritten into
+ * phrases of the same tokens. Everything else is passed through to the tokenizer unchanged.
+ *
+ * Set to package visibility, since only the provider, the note stores and their tests need it.
+ */
+final class NoteSearchIndex {
+
+    // This class cannot be instantiated
+    private NoteSearchIndex() {
+    }
+
+    /**
+     * Returns the text to store in the search table for the given note title or body.
+     *
+     * @param text The original text. May be null.
+     * @return The text to index, never null.
+     */
+    static String toIndexText(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder(text.length() + 16);
+        appendTokens(text, out);
+        return out.toString();
+    }
+
+    /**
+     * Builds an FTS MATCH expression for a search query typed by the user. Each whitespace
+     * separated term becomes a quoted phrase whose last token is a prefix, and the terms are
+     * implicitly ANDed together.
+     *
+     * @param query The query as typed by the user. May be null.
+     * @return The MATCH expression, or null if the query contains nothing searchable.
+     */
+    static String toMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String term : query.trim().split("\\s+")) {
+            // A term of punctuation only has no tokens, and as an empty phrase would match
+            // nothing, so it is dropped as toPhrases drops it.
+            String tokens = toTermTokens(term);
+            if (tokens == null || toTokens(tokens).length == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(tokens).append("*\"");
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Splits a search query typed by the user into the phrases of {@link #toMatchQuery}, for
+     * stores that match notes without the search table. Each phrase is an array of tokens whose
+     * last one is a prefix.
+     *
+     * @param query The query as typed by the user. May be null.
+     * @return The phrases, or null if the query contains nothing searchable.
+     */
+    static String[][] toPhrases(String query) {
+        if (query == null) {
+            return null;
+        }
+        ArrayList<String[]> phrases = new ArrayList<String[]>();
+        for (String term : query.trim().split("\\s+")) {
+            String tokens = toTermTokens(term);
+            if (tokens != null) {
+                String[] phrase = toTokens(tokens);
+                if (phrase.length > 0) {
+                    phrases.add(phrase);
+                }
+            }
+        }
+        return phrases.isEmpty() ? null : phrases.toArray(new String[phrases.size()][]);
+    }
+
+    /**
+     * Splits index text into tokens the way the FTS "simple" tokenizer does: on ASCII characters
+     * other than letters and digits, folding ASCII letters to lower case.
+     */
+    static String[] toTokens(String indexText) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        int length = indexText.length();
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? indexText.charAt(i) : ' ';
+            if (c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+                token.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                token.append((char) (c + ('a' - 'A')));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Returns true if a phrase of {@link #toPhrases} occurs in the given tokens: its tokens
+     * follow each other, and the last one is a prefix of the token it is matched against.
+     */
+    static boolean matches(String[] phrase, String[] tokens) {
+        int last = phrase.length - 1;
+        for (int start = 0; start + last < tokens.length; start++) {
+            int i = 0;
+            while (i < last && phrase[i].equals(tokens[start + i])) {
+                i++;
+            }
+            if (i == last && tokens[start + last].startsWith(phrase[last])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the index tokens of one whitespace separated term of a query, separated by
+     * spaces, or null if it contains nothing searchable.
+     */
+    private static String toTermTokens(String term) {
+
+        // Double quotes would terminate the phrase early, so they are dropped.
+        String tokens = toIndexText(term.replace('"', ' ')).trim();
+        if (tokens.length() == 0) {
+            return null;
+        }
+
+        // A trailing single ideograph was only emitted so that every character starts some
+        // token; in a query the preceding bigram already covers it.
+        int lastSpace = tokens.lastIndexOf(' ');
+        if (lastSpace > 0 && isIdeographic(tokens.codePointBefore(tokens.length()))
+                && tokens.length() - lastSpace - 1 == Character.charCount(
+                        tokens.codePointBefore(tokens.length()))) {
+            tokens = tokens.substring(0, lastSpace);
+        }
+        return tokens;
+    }
+
+    /*
+     * Appends the index tokens for text to out, splitting runs of ideographs into bigrams.
+     */
+    private static void appendTokens(String text, StringBuilder out) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int cp = text.codePointAt(i);
+            if (!isIdeographic(cp)) {
+                out.appendCodePoint(cp);
+                i += Character.charCount(cp);
+                continue;
+            }
+
+            // Finds the end of the run of ideographs starting at i.
+            int end = i;
+            while (end < length && isIdeographic(text.codePointAt(end))) {
+                end += Character.charCount(text.codePointAt(end));
+            }
+
+            out.append(' ');
+            int start = i;
+            while (start < end) {
+                int first = Character.charCount(text.codePointAt(start));
+                int next = start + first;
+                if (next < end) {
+                    int second = Character.charCount(text.codePointAt(next));
+                    out.append(text, start, next + second).append(' ');
+                } else {
+                    out.append(text, start, next).append(' ');
+                }
+                start = next;
+            }
+            i = end;
+        }
+    }
+
+    private static boolean isIdeographic(int codePoint) {
+        return Character.isIdeographic(codePoint);
+    }
+}
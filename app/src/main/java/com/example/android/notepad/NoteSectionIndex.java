@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.format.DateUtils;
+import android.widget.SectionIndexer;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * The fast scroll sections of NotesList: the months in which the notes were last modified,
+ * newest first as the list shows them, with the number of notes in each, from which the
+ * position every month starts at follows. The index covers every note, including those the
+ * list has not loaded yet.
+ *
+ * The months are read with one query of {@link NotePad.Notes#CONTENT_MONTHS_URI}, and kept up
+ * to date by adding and removing the notes that change, so the notes are never walked. A
+ * change that races with a new read of the months may be counted twice; the index is read
+ * again whenever the list loads its notes again, which puts it right.
+ *
+ * Only used on the thread that shows the list, except for {@link #read(Context, Cursor)}.
+ *
+ * Set to package visibility, since only NotesList and its tests need it.
+ */
+final class NoteSectionIndex implements SectionIndexer {
+
+    private final Context mContext;
+
+    // Finds the month of a date. Only used on the thread that shows the list.
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    // The months, as year * 100 + month, newest first, the number of notes in each, the
+    // position in the list of the first note of each, and their labels.
+    private int[] mMonths = new int[0];
+    private int[] mCounts = new int[0];
+    private int[] mStarts = new int[0];
+    private String[] mLabels = new String[0];
+
+    private int mTotal;
+
+    // Incremented on every change to the months or their counts.
+    private int mVersion;
+
+    NoteSectionIndex(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Reads the months of a query of {@link NotePad.Notes#CONTENT_MONTHS_URI}. Reads nothing
+     * else, so it may run on any thread.
+     *
+     * @return An index, to be given to {@link #set(NoteSectionIndex)}.
+     */
+    static NoteSectionIndex read(Context context, Cursor months) {
+        NoteSectionIndex index = new NoteSectionIndex(context);
+        int monthColumn = months.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_MONTH);
+        int countColumn = months.getColumnIndexOrThrow(NotePad.Notes._COUNT);
+        int size = months.getCount();
+        index.mMonths = new int[size];
+        index.mCounts = new int[size];
+        index.mLabels = new String[size];
+        months.moveToPosition(-1);
+        for (int i = 0; months.moveToNext(); i++) {
+            index.mMonths[i] = months.getInt(monthColumn);
+            index.mCounts[i] = months.getInt(countColumn);
+            index.mLabels[i] = index.labelOf(index.mMonths[i]);
+        }
+        index.updateStarts();
+        return index;
+    }
+
+    /**
+     * Replaces the months with those of an index returned by {@link #read(Context, Cursor)}.
+     */
+    void set(NoteSectionIndex index) {
+        mMonths = index.mMonths;
+        mCounts = index.mCounts;
+        mStarts = index.mStarts;
+        mLabels = index.mLabels;
+        mTotal = index.mTotal;
+        mVersion++;
+    }
+
+    /**
+     * Counts a note modified at the given date in or out of its month.
+     *
+     * @param modified The modification date of the note, in milliseconds since the epoch.
+     * @param delta 1 to count the note in, or -1 to count it out.
+     * @return True if a month was added or removed, and not only counted.
+     */
+    boolean add(long modified, int delta) {
+        if (delta != 1 && delta != -1) {
+            throw new IllegalArgumentException("delta must be 1 or -1: " + delta);
+        }
+        mVersion++;
+        int month = monthOf(modified);
+        int section = find(month);
+        if (section >= 0) {
+            mCounts[section] += delta;
+            if (mCounts[section] > 0) {
+                updateStarts();
+                return false;
+            }
+            mMonths = remove(mMonths, section);
+            mCounts = remove(mCounts, section);
+            String[] labels = new String[mLabels.length - 1];
+            System.arraycopy(mLabels, 0, labels, 0, section);
+            System.arraycopy(mLabels, section + 1, labels, section, labels.length - section);
+            mLabels = labels;
+        } else if (delta > 0) {
+            section = -section - 1;
+            mMonths = insert(mMonths, section, month);
+            mCounts = insert(mCounts, section, 1);
+            String[] labels = new String[mLabels.length + 1];
+            System.arraycopy(mLabels, 0, labels, 0, section);
+            System.arraycopy(mLabels, section, labels, section + 1, mLabels.length - section);
+            labels[section] = labelOf(month);
+            mLabels = labels;
+        } else {
+            // A note of a month the index does not know of, which it can only have missed.
+            return false;
+        }
+        updateStarts();
+        return true;
+    }
+
+    /**
+     * Returns the number of notes counted, which is the number of notes in the list once
+     * every note has been loaded.
+     */
+    int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns a number that changes whenever the months or their counts do.
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns the labels of the months, such as "Oct 2024". The array is replaced, never
+     * changed, when a month is added or removed.
+     */
+    @Override
+    public Object[] getSections() {
+        return mLabels;
+    }
+
+    /**
+     * Returns the position in the list of the first note of a month, which may not have been
+     * loaded yet.
+     */
+    @Override
+    public int getPositionForSection(int section) {
+        if (mStarts.length == 0) {
+            return 0;
+        }
+        return mStarts[Math.max(0, Math.min(section, mStarts.length - 1))];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        int low = 0;
+        int high = mStarts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mStarts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // Returns the month a date falls in, in local time, as year * 100 + month.
+    private int monthOf(long millis) {
+        mCalendar.setTimeInMillis(millis);
+        return mCalendar.get(Calendar.YEAR) * 100 + mCalendar.get(Calendar.MONTH) + 1;
+    }
+
+    // Returns the label of a month, as year * 100 + month.
+    private String labelOf(int month) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(month / 100, month % 100 - 1, 1);
+        return DateUtils.formatDateTime(mContext, calendar.getTimeInMillis(),
+                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_NO_MONTH_DAY
+                        | DateUtils.FORMAT_ABBREV_MONTH | DateUtils.FORMAT_SHOW_YEAR);
+    }
+
+    /*
+     * Returns the section of a month, or -(insertion point) - 1 if there is none, as
+     * Arrays.binarySearch() does. The months are in descending order.
+     */
+    private int find(int month) {
+        int low = 0;
+        int high = mMonths.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (mMonths[middle] > month) {
+                low = middle + 1;
+            } else if (mMonths[middle] < month) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void updateStarts() {
+        if (mStarts.length != mCounts.length) {
+            mStarts = new int[mCounts.length];
+        }
+        int total = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            mStarts[i] = total;
+            total += mCounts[i];
+        }
+        mTotal = total;
+    }
+
+    private static int[] remove(int[] values, int index) {
+        int[] result = Arrays.copyOf(values, values.length - 1);
+        System.arraycopy(values, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static int[] insert(int[] values, int index, int value) {
+        int[] result = new int[values.length + 1];
+        System.arraycopy(values, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(values, index, result, index + 1, values.length - index);
+        return result;
+    }
+}
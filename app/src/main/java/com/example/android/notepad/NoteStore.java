@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+
+/**
+ * The storage engine behind {@link NotePadProvider}. A store holds the notes, with the columns
+ * in {@link #COLUMNS}, and performs the operations the app itself needs: reading one note,
+ * listing a page of notes in {@link NotePad.Notes#PAGED_SORT_ORDER}, searching, writing and
+ * deleting notes one at a time, and grouping writes into a batch. Every committed change is
+ * reported to the listeners of the store's change feed.
+ *
+ * Each store also keeps the revisions of the text of each note: a note has a revision for its
+ * text when it is inserted, and another whenever an update changes the text. It keeps at least
+ * the newest {@link NotePad.Revisions#MAX_REVISIONS} of them. Deleting a note deletes its
+ * revisions.
+ *
+ * The provider is an adapter that turns URIs into these calls. The queries that are written in
+ * SQL (selections and sort orders chosen by the client, and updates and deletes of the notes a
+ * selection chooses) are only offered by {@link SQLiteNoteStore}, the default store; the
+ * provider rejects them for any other. {@link InMemoryNoteStore} keeps the notes in memory, so
+ * tests and benchmarks can run the same workload against both, and {@link LogNoteStore} appends
+ * them to a log, for workloads that mostly save notes.
+ *
+ * Stores must be safe to call from several threads at once, as the provider is.
+ *
+ * Set to package visibility, since only the provider, its tests and the benchmarks need it.
+ */
+interface NoteStore {
+
+    /**
+     * The columns of a note, which are the ones returned when a caller passes no projection.
+     * Stores fill in no defaults for them; the provider does.
+     */
+    String[] COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_BACK_COLOR,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH,
+            NotePad.Notes.COLUMN_NAME_LINE_COUNT
+    };
+
+    /**
+     * The columns of the months of the notes, which are the ones returned by
+     * {@link #months(String[], CancellationSignal)} when a caller passes no projection.
+     */
+    String[] MONTH_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_MONTH,
+            NotePad.Notes._COUNT
+    };
+
+    /**
+     * The columns of a revision, which are the ones returned by
+     * {@link #getRevision(long, long, String[])} when a caller passes no projection. Lists of
+     * revisions hold every column but the last, the text.
+     */
+    String[] REVISION_COLUMNS = new String[] {
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+            NotePad.Revisions.COLUMN_NAME_REVISION,
+            NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+            NotePad.Revisions.COLUMN_NAME_LENGTH,
+            NotePad.Revisions.COLUMN_NAME_STORED_SIZE,
+            NotePad.Revisions.COLUMN_NAME_NOTE
+    };
+
+    /**
+     * The modification date to list from to start at the first note.
+     */
+    long FIRST_PAGE = Long.MAX_VALUE;
+
+    /**
+     * The ID reported by the change feed for a change to an unknown number of notes.
+     */
+    long ALL_NOTES = -1;
+
+    /*
+     * The kinds of change reported by the change feed.
+     */
+    int CHANGE_INSERT = 1;
+    int CHANGE_UPDATE = 2;
+    int CHANGE_DELETE = 3;
+
+    /**
+     * Receives the changes made to a store, once they are committed. Changes made in a batch
+     * are held back until the batch, or the part of it before a yield point, is committed, and
+     * are dropped if it is rolled back.
+     */
+    interface ChangeListener {
+
+        /**
+         * Called on the thread that made the change.
+         *
+         * @param sequence The number of the change, one more than the one before it.
+         * @param change One of {@link #CHANGE_INSERT}, {@link #CHANGE_UPDATE} and
+         * {@link #CHANGE_DELETE}.
+         * @param id The ID of the note that changed, or {@link #ALL_NOTES}.
+         */
+        void onNoteChanged(long sequence, int change, long id);
+    }
+
+    /**
+     * Returns one note.
+     *
+     * @param projection The columns to return, or null for {@link #COLUMNS}.
+     * @return A cursor holding the note, or an empty cursor if it does not exist.
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     */
+    Cursor get(long id, String[] projection);
+
+    /**
+     * Returns a page of notes in {@link NotePad.Notes#PAGED_SORT_ORDER}, starting after the
+     * note with the given modification date and ID.
+     *
+     * @param afterModified The modification date of the last note of the previous page, or
+     * {@link #FIRST_PAGE}.
+     * @param afterId The ID of the last note of the previous page, or 0.
+     * @param limit The largest number of notes to return, or 0 for every remaining note.
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     * @throws android.os.OperationCanceledException if the signal is cancelled first.
+     */
+    Cursor list(String[] projection, long afterModified, long afterId, int limit,
+            CancellationSignal cancellationSignal);
+
+    /**
+     * Returns a page of notes in order of ID, starting after the note with the given ID, for
+     * reading every note without a sort by the client.
+     *
+     * @param afterId The ID of the last note of the previous page, or 0.
+     * @param limit The largest number of notes to return.
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     */
+    Cursor listById(String[] projection, long afterId, int limit);
+
+    /**
+     * Returns the notes whose title or text match a search query typed by the user, as
+     * described by {@link NoteSearchIndex}, in {@link NotePad.Notes#DEFAULT_SORT_ORDER}. A
+     * query with nothing searchable in it matches every note.
+     *
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     * @throws android.os.OperationCanceledException if the signal is cancelled first.
+     */
+    Cursor search(String query, String[] projection, CancellationSignal cancellationSignal);
+
+    /**
+     * Returns the number of notes modified in each month, in local time, newest month first.
+     * Months without notes are left out.
+     *
+     * @param projection The columns to return, from {@link #MONTH_COLUMNS}, or null for all of
+     * them.
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     * @throws android.os.OperationCanceledException if the signal is cancelled first.
+     */
+    Cursor months(String[] projection, CancellationSignal cancellationSignal);
+
+    /**
+     * Returns the revisions of a note, newest first, without their text.
+     *
+     * @param projection The columns to return, from {@link #REVISION_COLUMNS} but the text, or
+     * null for all of them.
+     * @return A cursor holding the revisions, or an empty cursor if the note has none.
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     * @throws android.os.OperationCanceledException if the signal is cancelled first.
+     */
+    Cursor listRevisions(long noteId, String[] projection, CancellationSignal cancellationSignal);
+
+    /**
+     * Returns one revision of a note, with its text.
+     *
+     * @param projection The columns to return, or null for {@link #REVISION_COLUMNS}.
+     * @return A cursor holding the revision, or an empty cursor if the note has no such
+     * revision.
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     */
+    Cursor getRevision(long noteId, long revision, String[] projection);
+
+    /**
+     * Adds a note with the given values.
+     *
+     * @return The ID of the new note, or -1 if it could not be added.
+     */
+    long insert(ContentValues values);
+
+    /**
+     * Changes the given columns of one note.
+     *
+     * @return The number of notes changed, which is 0 if the note does not exist.
+     */
+    int update(long id, ContentValues values);
+
+    /**
+     * Deletes one note.
+     *
+     * @return The number of notes deleted, which is 0 if the note does not exist.
+     */
+    int delete(long id);
+
+    /**
+     * Starts a batch. The writes the calling thread makes until {@link #endBatch()} are
+     * committed together, and reported to the change feed when they are. Batches do not nest.
+     *
+     * @throws IllegalStateException if the calling thread is already in a batch.
+     */
+    void beginBatch();
+
+    /**
+     * Commits the writes of the current batch so far if another thread is waiting for the
+     * store, and lets it in before the batch goes on.
+     */
+    void yieldBatchIfContended();
+
+    /**
+     * Marks the current batch as successful, so that {@link #endBatch()} commits it.
+     */
+    void setBatchSuccessful();
+
+    /**
+     * Ends the current batch, committing it if it was marked successful and rolling back the
+     * writes since the last yield point otherwise.
+     */
+    void endBatch();
+
+    /**
+     * Returns the sequence number of the last change reported by the change feed, or 0.
+     */
+    long getChangeSequence();
+
+    void addChangeListener(ChangeListener listener);
+
+    void removeChangeListener(ChangeListener listener);
+
+    /**
+     * Releases the resources of the store. It cannot be used afterwards.
+     */
+    void close();
+}
@@ -19,15 +19,19 @@ package com.example.android.notepad;
 import com.example.android.notepad.NotePad;
 
 import android.app.ListActivity;
+import android.content.BroadcastReceiver;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -35,19 +39,25 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Displays a list of notes. Will display notes from the {@link Uri}
  * provided in the incoming Intent if there is one, otherwise it defaults to displaying the
  * contents of the {@link NotePadProvider}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler} or
- * {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The notes are read on the application's loading thread (see
+ * {@link NoteLoader#getLoadingHandler()}) and shown once read, and are kept across
+ * configuration changes.
+ *
+ * NOTE: Notice that the delete in this Activity is taking place on the UI thread. This is not
+ * a good practice. It is only done here to make the code more readable. A real application
+ * should perform it on a separate thread.
  */
 public class NotesList extends ListActivity {
 
@@ -68,9 +78,65 @@ public class NotesList extends ListActivity {
 
 
 
+    /** The index of the ID column */
+    private static final int COLUMN_INDEX_ID = 0;
+
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    /** The index of the modification date column */
+    private static final int COLUMN_INDEX_MODIFICATION_DATE = 2;
+
+    /** The number of notes loaded at a time */
+    private static final int PAGE_SIZE = 50;
+
+    /** How close to the end of the loaded notes the user may scroll before the next page loads */
+    private static final int PAGE_PREFETCH = 10;
+
+    // The adapter showing the loaded notes.
+    private NoteListAdapter mAdapter;
+
+    // The notes loaded so far, page by page, with the changes notified since applied to them.
+    // Kept across configuration changes.
+    private NoteListModel mModel;
+
+    // True once the first page has been loaded, until a page shorter than requested has been.
+    private boolean mHasMorePages;
+
+    // True while the next page is being loaded.
+    private boolean mLoadingPage;
+
+    // Applies the changes to the notes to the loaded ones.
+    private ContentObserver mNotesObserver;
+
+    // Delivers the notes read on the loading thread to the UI thread.
+    private final Handler mHandler = new Handler();
+
+    // True while the notes are being loaded again, and if they must be loaded again once more
+    // after that.
+    private boolean mReloading;
+    private boolean mReloadAgain;
+
+    // The months of the notes, which are the fast scroller's sections.
+    private NoteSectionIndex mSections;
+
+    // True while the months are being read, and if they must be read again once more after
+    // that.
+    private boolean mLoadingSections;
+    private boolean mLoadSectionsAgain;
+
+    // The position the fast scroller wants the notes loaded through, or -1.
+    private int mLoadThrough = -1;
+
+    // Shows the dates of the visible notes again every minute while the list is resumed, as
+    // the dates of recent notes are shown relative to now.
+    private final BroadcastReceiver mTimeTickReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mAdapter.notifyDataSetChanged();
+        }
+    };
+
     /**
      * onCreate is called when Android starts this Activity from scratch.
      */
@@ -96,49 +162,374 @@ public class NotesList extends ListActivity {
          * ListView, and the context menu is handled by a method in NotesList.
          */
         getListView().setOnCreateContextMenuListener(this);
-        /* Performs a managed query. The Activity handles closing and requerying the cursor
-         * when needed.
-         *
-         * Please see the introductory note about performing provider operations on the UI thread.
+        // Takes over the notes loaded by the Activity this one replaces, if any.
+        Object retained = getLastNonConfigurationInstance();
+        mModel = retained instanceof NoteListModel ? (NoteListModel) retained
+                : new NoteListModel(PROJECTION, COLUMN_INDEX_ID, COLUMN_INDEX_MODIFICATION_DATE);
+
+        // The adapter shows the title and modification date of the notes loaded into mModel.
+        // Pages of notes are added to it as they are loaded; changes to the notes are applied
+        // by mNotesObserver, and only the rows of the notes that changed are bound again.
+        // The fast scroller jumps between the months the notes were modified in, including
+        // months whose notes have not been loaded yet, which are then loaded as far as needed.
+        mSections = new NoteSectionIndex(this);
+        mAdapter = new NoteListAdapter(this, mModel, COLUMN_INDEX_TITLE,
+                COLUMN_INDEX_MODIFICATION_DATE, mSections);
+        mAdapter.setSectionLoader(new NoteListAdapter.SectionLoader() {
+            @Override
+            public void loadThrough(int position) {
+                if (position >= mModel.size() && mHasMorePages) {
+                    mLoadThrough = Math.max(mLoadThrough, position);
+                    loadNextPage();
+                }
+            }
+        });
+
+        // Sets the ListView's adapter to be the adapter that was just created.
+        setListAdapter(mAdapter);
+        getListView().setFastScrollEnabled(true);
+
+        // Loads the next page whenever the user scrolls close to the end of the loaded notes.
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (mHasMorePages
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        mNotesObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                applyChange(uri);
+            }
+        };
+        getContentResolver().registerContentObserver(getIntent().getData(), true, mNotesObserver);
+
+        /*
+         * Loads the first page of notes in the background, or, for a list kept across a
+         * configuration change, loads its notes again to pick up any change it missed.
          */
-        Cursor cursor = managedQuery(
-                getIntent().getData(),            // Use the default content URI for the provider.
+        reloadPages();
+    }
+
+    /**
+     * Hands the loaded notes to the Activity that replaces this one after a configuration
+     * change, which shows them straight away.
+     */
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mModel;
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        registerReceiver(mTimeTickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
+        // Catches up with the minutes that passed while the list was paused.
+        mAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        unregisterReceiver(mTimeTickReceiver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mNotesObserver);
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /*
+     * Applies a change notification to the loaded notes. The notes it names are read again
+     * one by one on the loading thread, and then moved to where they now belong, or removed if
+     * they were deleted. A notification that does not name its notes means that any of them
+     * may have changed, so the notes are loaded again.
+     */
+    private void applyChange(Uri uri) {
+        final long[] ids = NoteChangeNotifier.idsOf(uri);
+        if (ids == null) {
+            reloadPages();
+            return;
+        }
+
+        final int change = NoteChangeNotifier.changeOf(uri);
+        final boolean deleted = change == NoteStore.CHANGE_DELETE;
+        final Uri notesUri = getIntent().getData();
+        NoteLoader.getLoadingHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final Object[][] rows = new Object[ids.length][];
+                for (int i = 0; i < ids.length && !deleted; i++) {
+                    ArrayList<Object[]> note =
+                            queryRows(ContentUris.withAppendedId(notesUri, ids[i]));
+                    rows[i] = note != null && !note.isEmpty() ? note.get(0) : null;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishChange(ids, rows, change);
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Applies the notes read by applyChange() to the loaded notes, and to the months of the
+     * notes. A note is moved from its old month to its new one if it had been loaded, or if it
+     * is new; otherwise its old month is not known, and the months are read again.
+     */
+    private void finishChange(long[] ids, Object[][] rows, int change) {
+        if (isDestroyed()) {
+            return;
+        }
+        boolean changed = false;
+        boolean recount = false;
+        for (int i = 0; i < ids.length; i++) {
+            int old = mModel.indexOf(ids[i]);
+            if (old >= 0) {
+                changed |= mSections.add(mModel.getModified(old), -1);
+            } else if (change != NoteStore.CHANGE_INSERT) {
+                recount = true;
+            }
+            if (rows[i] != null && (old >= 0 || change == NoteStore.CHANGE_INSERT)) {
+                changed |= mSections.add((Long) rows[i][COLUMN_INDEX_MODIFICATION_DATE], 1);
+            }
+            changed |= mModel.apply(ids[i], rows[i], !mHasMorePages);
+        }
+        if (changed) {
+            mAdapter.notifyDataSetChanged();
+        }
+        if (recount) {
+            reloadSections();
+        }
+    }
+
+    /*
+     * Loads the notes again from the start, on the loading thread. At least as many notes as
+     * were loaded before are loaded again, so that the list does not jump back when a note
+     * changes. The new notes are compared with the loaded ones by ID on that thread too, so
+     * that the notes that did not change keep their rows and are not bound again. This is also
+     * how the first page is loaded, and how a list kept across a configuration change catches
+     * up with the changes it missed.
+     */
+    private void reloadPages() {
+        if (mReloading) {
+            mReloadAgain = true;
+            return;
+        }
+        mReloading = true;
+        reloadSections();
+
+        final int pageSize = Math.max(PAGE_SIZE, mModel.size());
+        final Uri uri = pageUri(pageSize, -1);
+        final int version = mModel.getVersion();
+        final List<Object[]> previous = mModel.snapshot();
+        NoteLoader.getLoadingHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                Cursor page = getContentResolver().query(uri, PROJECTION, null, null,
+                        NotePad.Notes.PAGED_SORT_ORDER);
+                ArrayList<Object[]> rows = null;
+                if (page != null) {
+                    try {
+                        rows = mModel.diffRows(page, previous);
+                    } finally {
+                        page.close();
+                    }
+                }
+                final ArrayList<Object[]> reloaded = rows;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishReload(reloaded, pageSize, version);
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Shows the notes loaded by reloadPages(), unless the loaded notes changed meanwhile, in
+     * which case the change applied may be newer than the reloaded notes, and they are loaded
+     * again instead.
+     */
+    private void finishReload(ArrayList<Object[]> rows, int pageSize, int version) {
+        mReloading = false;
+        if (isDestroyed()) {
+            return;
+        }
+        if (rows != null && version != mModel.getVersion()) {
+            mReloadAgain = true;
+        } else if (rows != null) {
+            mHasMorePages = rows.size() >= pageSize;
+            if (mModel.setRows(rows)) {
+                mAdapter.notifyDataSetChanged();
+            }
+        }
+        if (mReloadAgain) {
+            mReloadAgain = false;
+            reloadPages();
+        }
+    }
+
+    /*
+     * Queries the page of notes following the last one loaded on the loading thread, and
+     * appends it to the list.
+     */
+    private void loadNextPage() {
+        if (mLoadingPage || mReloading || mModel.size() == 0) {
+            return;
+        }
+        mLoadingPage = true;
+        // A page reaching past the position the fast scroller wants, if it wants one.
+        final int pageSize = Math.max(PAGE_SIZE, mLoadThrough - mModel.size() + PAGE_SIZE);
+        final Uri uri = pageUri(pageSize, mModel.size() - 1);
+        final int version = mModel.getVersion();
+        NoteLoader.getLoadingHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<Object[]> rows = queryRows(uri);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishNextPage(rows, version, pageSize);
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Appends a page loaded by loadNextPage() to the loaded notes and shows them all. A page
+     * shorter than the requested size means that the end of the notes has been reached. A page
+     * that was loaded while the loaded notes changed may not follow them, and is loaded again.
+     */
+    private void finishNextPage(ArrayList<Object[]> rows, int version, int pageSize) {
+        mLoadingPage = false;
+        if (isDestroyed()) {
+            return;
+        }
+        if (rows == null) {
+            mHasMorePages = false;
+        } else if (version != mModel.getVersion()) {
+            loadNextPage();
+            return;
+        } else {
+            mHasMorePages = rows.size() >= pageSize;
+            mModel.addRows(rows);
+            mAdapter.notifyDataSetChanged();
+        }
+        if (mLoadThrough < mModel.size() || !mHasMorePages) {
+            mLoadThrough = -1;
+        } else {
+            loadNextPage();
+        }
+    }
+
+    /*
+     * Reads the months of the notes again on the loading thread, with one aggregate query,
+     * unless they are being read already, in which case they are read once more after that.
+     */
+    private void reloadSections() {
+        if (mLoadingSections) {
+            mLoadSectionsAgain = true;
+            return;
+        }
+        mLoadingSections = true;
+        final int version = mSections.getVersion();
+        NoteLoader.getLoadingHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                Cursor months = getContentResolver().query(NotePad.Notes.CONTENT_MONTHS_URI,
+                        null, null, null, null);
+                NoteSectionIndex index = null;
+                if (months != null) {
+                    try {
+                        index = NoteSectionIndex.read(NotesList.this, months);
+                    } finally {
+                        months.close();
+                    }
+                }
+                final NoteSectionIndex read = index;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishSections(read, version);
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Shows the months read by reloadSections(), unless a change was counted in the months
+     * meanwhile, which the months read may not include, in which case they are read again.
+     */
+    private void finishSections(NoteSectionIndex index, int version) {
+        mLoadingSections = false;
+        if (isDestroyed()) {
+            return;
+        }
+        if (index != null && version != mSections.getVersion()) {
+            mLoadSectionsAgain = true;
+        } else if (index != null) {
+            mSections.set(index);
+            mAdapter.notifyDataSetChanged();
+        }
+        if (mLoadSectionsAgain) {
+            mLoadSectionsAgain = false;
+            reloadSections();
+        }
+    }
+
+    /*
+     * Queries notes of the list, on the loading thread, and returns them as rows of mModel, or
+     * null if the query failed.
+     */
+    private ArrayList<Object[]> queryRows(Uri uri) {
+        Cursor notes = getContentResolver().query(
+                uri,                              // A page of the notes URI, or one note.
                 PROJECTION,                       // Return the note ID and title for each note.
                 null,                             // No where clause, return all records.
                 null,                             // No where clause, therefore no where column values.
-                NotePad.Notes.DEFAULT_SORT_ORDER  // Use the default sort order.
-        );
-        /*
-         * The following two arrays create a "map" between columns in the cursor and view IDs
-         * for items in the ListView. Each element in the dataColumns array represents
-         * a column name; each element in the viewID array represents the ID of a View.
-         * The SimpleCursorAdapter maps them in ascending order to determine where each column
-         * value will appear in the ListView.
-         */
-        // 要在视图中显示的光标列的名称，初始化为标题列
-
-        /*
-        String[] dataColumns = { NotePad.Notes.COLUMN_NAME_TITLE } ;
-        // The view IDs that will display the cursor columns, initialized to the TextView in
-        // noteslist_item.xml
-        int[] viewIDs = { android.R.id.text1 };
-        // Creates the backing adapter for the ListView.*/
-
-        String[] dataColumns={ NotePad.Notes.COLUMN_NAME_TITLE,NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE };
-        //加入修改时间
-        int[] viewIDs = { android.R.id.text1, R.id.text2 };//加入修改时间
-
-        SimpleCursorAdapter adapter
-                = new SimpleCursorAdapter(
-                this,                             // The Context for the ListView
-                R.layout.noteslist_item,          // Points to the XML for a list item
-                cursor,                           // The cursor to get items from
-                dataColumns,
-                viewIDs
+                NotePad.Notes.PAGED_SORT_ORDER    // Paged queries use the paged sort order.
         );
+        if (notes == null) {
+            return null;
+        }
+        try {
+            return mModel.readRows(notes);
+        } finally {
+            notes.close();
+        }
+    }
 
-        // Sets the ListView's adapter to be the cursor adapter that was just created.
-        setListAdapter(adapter);
+    /*
+     * Returns the URI of one page of notes. If the position of a loaded note is given, the page
+     * starts after that note; otherwise it starts with the most recently modified note.
+     */
+    private Uri pageUri(int pageSize, int after) {
+        Uri.Builder uri = getIntent().getData().buildUpon()
+                .appendQueryParameter(NotePad.Notes.PARAM_PAGE_SIZE, Integer.toString(pageSize));
+        if (after >= 0) {
+            uri.appendQueryParameter(NotePad.Notes.PARAM_AFTER_MODIFIED,
+                    Long.toString(mModel.getModified(after)));
+            uri.appendQueryParameter(NotePad.Notes.PARAM_AFTER_ID,
+                    Long.toString(mModel.getId(after)));
+        }
+        return uri.build();
     }
 
     /**
@@ -0,0 +1,710 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The default {@link NoteStore}, which keeps the notes in the SQLite database opened by
+ * {@link NotePadProvider.DatabaseHelper}. Each note is a row of the notes table, with its text
+ * compressed or stored as chunks when it is long, and shadowed by a row of the full-text search
+ * table and by its revisions, all of which are written in the same transaction as the note.
+ *
+ * Besides the operations of every store, it reads, updates and deletes notes chosen by SQL
+ * selections, and gives the provider its database for the queries written in SQL.
+ *
+ * Set to package visibility, since only the provider and its tests need it.
+ */
+final class SQLiteNoteStore implements NoteStore {
+
+    /**
+     * The projection map for the notes table, which maps each of {@link NoteStore#COLUMNS} to
+     * the SQL that reads it.
+     */
+    static final HashMap<String, String> sNotesProjectionMap;
+
+    /**
+     * The projection map for the months of the notes, which maps each of
+     * {@link NoteStore#MONTH_COLUMNS} to the SQL that counts the notes of a month. The month of
+     * a note is the local month of its modification date, as year * 100 + month.
+     */
+    static final HashMap<String, String> sMonthsProjectionMap;
+
+    /**
+     * The projection map for the revisions table, which maps each of
+     * {@link NoteStore#REVISION_COLUMNS} but the text to the SQL that reads it. The text is not
+     * a column, since it has to be rebuilt from the deltas.
+     */
+    static final HashMap<String, String> sRevisionsProjectionMap;
+
+    /**
+     * The columns read for the search table row of a note and for its text before an update,
+     * with the note column read by {@link NoteChunks#readNote}.
+     */
+    private static final String[] STORED_NOTE_PROJECTION = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NoteChunks.NOTE_TEXT + " AS " + NotePad.Notes.COLUMN_NAME_NOTE,
+    };
+    private static final int STORED_NOTE_TITLE_INDEX = 0;
+    private static final int STORED_NOTE_NOTE_INDEX = 1;
+
+    static {
+        // The columns are stored under their own names, except the note text, which may be
+        // stored as chunks.
+        sNotesProjectionMap = new HashMap<String, String>();
+        for (String column : COLUMNS) {
+            sNotesProjectionMap.put(column, column);
+        }
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                NoteChunks.NOTE_TEXT + " AS " + NotePad.Notes.COLUMN_NAME_NOTE);
+
+        sRevisionsProjectionMap = new HashMap<String, String>();
+        for (String column : REVISION_COLUMNS) {
+            sRevisionsProjectionMap.put(column, column);
+        }
+        sRevisionsProjectionMap.remove(NotePad.Revisions.COLUMN_NAME_NOTE);
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_STORED_SIZE,
+                NoteRevisions.STORED_SIZE + " AS " + NotePad.Revisions.COLUMN_NAME_STORED_SIZE);
+
+        sMonthsProjectionMap = new HashMap<String, String>();
+        sMonthsProjectionMap.put(NotePad.Notes.COLUMN_NAME_MONTH,
+                "CAST(strftime('%Y%m', " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                        + " / 1000, 'unixepoch', 'localtime') AS INTEGER) AS "
+                        + NotePad.Notes.COLUMN_NAME_MONTH);
+        sMonthsProjectionMap.put(NotePad.Notes._COUNT,
+                "COUNT(*) AS " + NotePad.Notes._COUNT);
+    }
+
+    private final NotePadProvider.DatabaseHelper mOpenHelper;
+
+    private final NoteChangeFeed mFeed = new NoteChangeFeed();
+
+    SQLiteNoteStore(NotePadProvider.DatabaseHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * Returns the database helper, for the features of the provider that are written in SQL.
+     */
+    NotePadProvider.DatabaseHelper getOpenHelper() {
+        return mOpenHelper;
+    }
+
+    @Override
+    public Cursor get(long id, String[] projection) {
+        return get(id, projection, null, null);
+    }
+
+    /**
+     * Returns one note, if it also matches a selection.
+     */
+    Cursor get(long id, String[] projection, String selection, String[] selectionArgs) {
+        SQLiteQueryBuilder qb = newNotesQuery();
+        qb.appendWhere(NotePad.Notes._ID + "=" + id);
+        Cursor c = qb.query(mOpenHelper.getReadableDatabase(), projection,
+                selection, selectionArgs, null, null, null);
+        return NoteCompression.wrap(c, mOpenHelper.getReadableDatabase());
+    }
+
+    @Override
+    public Cursor list(String[] projection, long afterModified, long afterId, int limit,
+            CancellationSignal cancellationSignal) {
+        return list(projection, null, null, NotePad.Notes.PAGED_SORT_ORDER, afterModified,
+                afterId, limit, cancellationSignal);
+    }
+
+    /**
+     * Returns a page of the notes that match a selection, in a sort order that must be
+     * {@link NotePad.Notes#PAGED_SORT_ORDER} unless the page starts at the first note.
+     *
+     * Pages are found by the modification date and ID of the last note of the previous page
+     * (keyset pagination), which the modification date index can seek to directly, rather than
+     * by an OFFSET, which would have to step over every earlier note.
+     */
+    Cursor list(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, long afterModified, long afterId, int limit,
+            CancellationSignal cancellationSignal) {
+        SQLiteQueryBuilder qb = newNotesQuery();
+        if (afterModified != FIRST_PAGE) {
+            // The first term lets SQLite seek into the index; the second skips the notes with
+            // the same date that were already on the previous page.
+            qb.appendWhere(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= " + afterModified
+                    + " AND (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < "
+                    + afterModified + " OR " + NotePad.Notes._ID + " > " + afterId + ")");
+        }
+        Cursor c = qb.query(mOpenHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, null, null, sortOrder, limit > 0 ? Integer.toString(limit) : null,
+                cancellationSignal);
+        return NoteCompression.wrap(c, mOpenHelper.getReadableDatabase());
+    }
+
+    @Override
+    public Cursor listById(String[] projection, long afterId, int limit) {
+        SQLiteQueryBuilder qb = newNotesQuery();
+        qb.appendWhere(NotePad.Notes._ID + " > " + afterId);
+        Cursor c = qb.query(mOpenHelper.getReadableDatabase(), projection, null, null, null,
+                null, NotePad.Notes._ID, Integer.toString(limit));
+        return NoteCompression.wrap(c, mOpenHelper.getReadableDatabase());
+    }
+
+    @Override
+    public Cursor search(String query, String[] projection,
+            CancellationSignal cancellationSignal) {
+        return search(query, projection, null, null, NotePad.Notes.DEFAULT_SORT_ORDER,
+                cancellationSignal);
+    }
+
+    /**
+     * Returns the notes that match both a search query, through the full-text search table,
+     * and a selection.
+     */
+    Cursor search(String query, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, CancellationSignal cancellationSignal) {
+        SQLiteQueryBuilder qb = newNotesQuery();
+        String matchQuery = NoteSearchIndex.toMatchQuery(query);
+        if (matchQuery != null) {
+            qb.appendWhere(NotePad.Notes._ID + " IN (SELECT docid FROM "
+                    + NotePadProvider.SEARCH_TABLE_NAME + " WHERE "
+                    + NotePadProvider.SEARCH_TABLE_NAME + " MATCH ");
+            qb.appendWhereEscapeString(matchQuery);
+            qb.appendWhere(")");
+        }
+        Cursor c = qb.query(mOpenHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, null, null, sortOrder, null, cancellationSignal);
+        return NoteCompression.wrap(c, mOpenHelper.getReadableDatabase());
+    }
+
+    @Override
+    public Cursor months(String[] projection, CancellationSignal cancellationSignal) {
+        return months(projection, null, null, cancellationSignal);
+    }
+
+    /**
+     * Returns the months of the notes that match a selection, with a single aggregate query,
+     * which SQLite answers from the index on the modification dates without reading the notes
+     * themselves.
+     */
+    Cursor months(String[] projection, String selection, String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(NotePad.Notes.TABLE_NAME);
+        qb.setProjectionMap(sMonthsProjectionMap);
+        return qb.query(mOpenHelper.getReadableDatabase(),
+                projection != null ? projection : MONTH_COLUMNS, selection, selectionArgs,
+                NotePad.Notes.COLUMN_NAME_MONTH, null, NotePad.Notes.COLUMN_NAME_MONTH + " DESC",
+                null, cancellationSignal);
+    }
+
+    @Override
+    public Cursor listRevisions(long noteId, String[] projection,
+            CancellationSignal cancellationSignal) {
+        return listRevisions(noteId, projection, null, null,
+                NotePad.Revisions.DEFAULT_SORT_ORDER, cancellationSignal);
+    }
+
+    /**
+     * Returns the revisions of a note that match a selection, in the given sort order.
+     */
+    Cursor listRevisions(long noteId, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+        SQLiteQueryBuilder qb = newRevisionsQuery(noteId);
+        return qb.query(mOpenHelper.getReadableDatabase(),
+                NoteRows.revisionProjectionOf(projection, false), selection, selectionArgs, null,
+                null, sortOrder, null, cancellationSignal);
+    }
+
+    /**
+     * Returns one revision of a note, with its text rebuilt from the nearest snapshot and the
+     * deltas after it.
+     */
+    @Override
+    public Cursor getRevision(long noteId, long revision, String[] projection) {
+        projection = NoteRows.revisionProjectionOf(projection, true);
+        SQLiteQueryBuilder qb = newRevisionsQuery(noteId);
+        qb.appendWhere(" AND " + NotePad.Revisions.COLUMN_NAME_REVISION + "=" + revision);
+
+        // The revision's row, with every requested column except the text.
+        ArrayList<String> columns = new ArrayList<String>();
+        for (String column : projection) {
+            if (!NotePad.Revisions.COLUMN_NAME_NOTE.equals(column)) {
+                columns.add(column);
+            }
+        }
+        if (columns.isEmpty()) {
+            columns.add(NotePad.Revisions._ID);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        MatrixCursor result = new MatrixCursor(projection, 1);
+        Cursor c = qb.query(db, columns.toArray(new String[columns.size()]),
+                null, null, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                String text = NoteRevisions.read(db, noteId, revision);
+                MatrixCursor.RowBuilder row = result.newRow();
+                for (String column : projection) {
+                    if (NotePad.Revisions.COLUMN_NAME_NOTE.equals(column)) {
+                        row.add(text);
+                    } else if (c.getType(c.getColumnIndex(column)) == Cursor.FIELD_TYPE_INTEGER) {
+                        row.add(c.getLong(c.getColumnIndex(column)));
+                    } else {
+                        row.add(c.getString(c.getColumnIndex(column)));
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    /**
+     * Inserts the note, its chunks if it is very large, its search table row and its first
+     * revision in one transaction, so that the tables never disagree. Like every write
+     * transaction of the store, it is non-exclusive, so readers keep reading the last committed
+     * notes from the write-ahead log while it runs.
+     */
+    @Override
+    public long insert(ContentValues values) {
+        values = new ContentValues(values);
+
+        // Keeps the note text for the search table, and stores a very large note as chunks or a
+        // long note compressed.
+        String note = NoteCompression.toText(values.get(NotePad.Notes.COLUMN_NAME_NOTE));
+        boolean chunked = prepareNote(values);
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId;
+        db.beginTransactionNonExclusive();
+        try {
+            rowId = db.insert(
+                    NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                    NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to
+                    // null if values is empty.
+                    values                           // A map of column names, and the values to
+                    // insert into the columns.
+            );
+            if (rowId > 0) {
+                if (chunked) {
+                    NoteChunks.write(db, rowId, note);
+                }
+                insertSearchRow(db, rowId,
+                        values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE), note);
+                NoteRevisions.record(db, rowId, null, note, System.currentTimeMillis());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rowId <= 0) {
+            return -1;
+        }
+        changed(CHANGE_INSERT, rowId);
+        return rowId;
+    }
+
+    @Override
+    public int update(long id, ContentValues values) {
+        return update(new long[] { id }, NotePad.Notes._ID + " = " + id, null, values);
+    }
+
+    /**
+     * Updates one note, if it also matches a selection.
+     *
+     * @return The number of notes updated.
+     */
+    int update(long id, String where, String[] whereArgs, ContentValues values) {
+        String finalWhere = NotePad.Notes._ID + " = " + id;
+        if (where != null) {
+            finalWhere = finalWhere + " AND " + where;
+        }
+        return update(new long[] { id }, finalWhere, whereArgs, values);
+    }
+
+    /**
+     * Updates the notes matching a selection, or every note if it is null.
+     *
+     * @return The number of notes updated.
+     */
+    int update(String where, String[] whereArgs, ContentValues values) {
+        return update(null, where, whereArgs, values);
+    }
+
+    /*
+     * Updates the notes matching a WHERE clause, along with their chunks, search table rows and
+     * revisions, in one transaction. The IDs of the notes the clause can match may be given;
+     * otherwise they are looked up when the other tables need them, or to report which notes
+     * a selection changed.
+     */
+    private int update(long[] ids, String where, String[] whereArgs, ContentValues values) {
+
+        // Stores a very large note as chunks or a long note compressed. Works on a copy, to
+        // leave the caller's map alone.
+        boolean noteChanged = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        String note = null;
+        boolean chunked = false;
+        values = new ContentValues(values);
+        if (noteChanged) {
+            note = NoteCompression.toText(values.get(NotePad.Notes.COLUMN_NAME_NOTE));
+            chunked = prepareNote(values);
+        }
+
+        // Only changes to the title or the note text need to reach the search table.
+        boolean reindex = values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        db.beginTransactionNonExclusive();
+        try {
+            // Remembers which notes are being changed, so their search rows can follow and the
+            // change feed can name them.
+            if (ids == null && (reindex || where != null)) {
+                ids = queryNoteIds(db, where, whereArgs);
+            }
+
+            // Reads the text of each note before it changes, for its revisions.
+            String[] previous = null;
+            if (noteChanged) {
+                previous = new String[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    previous[i] = readText(db, ids[i]);
+                }
+            }
+
+            count = db.update(
+                    NotePad.Notes.TABLE_NAME, // The database table name.
+                    values,                   // A map of column names and new values to use.
+                    where,                    // The where clause column names.
+                    whereArgs                 // The where clause column values to select on.
+            );
+
+            // Stores the chunks of the notes that were actually updated, rewriting only those
+            // that changed, or drops their chunks if they are no longer chunked. For each note
+            // whose text changed, records the new text as a revision. Then refreshes the search
+            // rows of the notes whose title or text changed, with the text known here, so that
+            // a chunked note is not read back.
+            if (reindex && count > 0) {
+                boolean titleChanged = values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE);
+                String text = note != null ? note : "";
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < ids.length; i++) {
+                    boolean textChanged = noteChanged && !text.equals(previous[i]);
+                    if (noteChanged) {
+                        if (chunked) {
+                            NoteChunks.write(db, ids[i], note);
+                        } else {
+                            NoteChunks.delete(db, ids[i]);
+                        }
+                    }
+                    if (textChanged) {
+                        NoteRevisions.record(db, ids[i], previous[i], note, now);
+                    }
+                    if (textChanged || titleChanged) {
+                        reindexNote(db, ids[i], values, textChanged ? text : null);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // An update of every note that touches neither the title nor the note did not look up
+        // its notes, and changed all of them.
+        if (count > 0) {
+            if (ids != null) {
+                for (long id : ids) {
+                    changed(CHANGE_UPDATE, id);
+                }
+            } else {
+                changed(CHANGE_UPDATE, ALL_NOTES);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int delete(long id) {
+        return delete(id, null, null);
+    }
+
+    /**
+     * Deletes one note, if it also matches a selection.
+     *
+     * @return The number of notes deleted.
+     */
+    int delete(long id, String where, String[] whereArgs) {
+        String finalWhere = NotePad.Notes._ID + " = " + id;
+        if (where != null) {
+            finalWhere = finalWhere + " AND " + where;
+        }
+        return delete(new long[] { id }, finalWhere, whereArgs);
+    }
+
+    /**
+     * Deletes the notes matching a selection, or every note if it is null.
+     *
+     * @return The number of notes deleted.
+     */
+    int delete(String where, String[] whereArgs) {
+        return delete(null, where, whereArgs);
+    }
+
+    /*
+     * Deletes the notes matching a WHERE clause, along with their search table rows, chunks and
+     * revisions, in one transaction.
+     */
+    private int delete(long[] ids, String where, String[] whereArgs) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        db.beginTransactionNonExclusive();
+        try {
+            // Remembers which notes are going away, so their other rows can follow.
+            if (ids == null) {
+                ids = queryNoteIds(db, where, whereArgs);
+            }
+            count = db.delete(NotePad.Notes.TABLE_NAME, where, whereArgs);
+
+            // Drops the search rows, chunks and revisions of the notes that were actually
+            // deleted.
+            if (count > 0) {
+                for (long id : ids) {
+                    db.delete(NotePadProvider.SEARCH_TABLE_NAME, "docid = " + id, null);
+                    NoteChunks.delete(db, id);
+                    NoteRevisions.delete(db, id);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            for (long id : ids) {
+                changed(CHANGE_DELETE, id);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts a batch as a non-exclusive transaction, which the writes of the batch join.
+     */
+    @Override
+    public void beginBatch() {
+        mFeed.beginBatch();
+        try {
+            mOpenHelper.getWritableDatabase().beginTransactionNonExclusive();
+        } catch (RuntimeException e) {
+            mFeed.endBatch(false);
+            throw e;
+        }
+    }
+
+    @Override
+    public void yieldBatchIfContended() {
+        if (mOpenHelper.getWritableDatabase().yieldIfContendedSafely()) {
+            mFeed.flushBatch();
+        }
+    }
+
+    @Override
+    public void setBatchSuccessful() {
+        mOpenHelper.getWritableDatabase().setTransactionSuccessful();
+        mFeed.setBatchSuccessful();
+    }
+
+    @Override
+    public void endBatch() {
+        boolean committed = false;
+        try {
+            mOpenHelper.getWritableDatabase().endTransaction();
+            committed = true;
+        } finally {
+            mFeed.endBatch(committed);
+            mOpenHelper.scheduleIdleCheckpoint();
+        }
+    }
+
+    @Override
+    public long getChangeSequence() {
+        return mFeed.sequence();
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        mFeed.addListener(listener);
+    }
+
+    @Override
+    public void removeChangeListener(ChangeListener listener) {
+        mFeed.removeListener(listener);
+    }
+
+    /**
+     * Closes the database, and stops its idle checkpoints.
+     */
+    @Override
+    public void close() {
+        mOpenHelper.close();
+    }
+
+    /*
+     * Reports a committed change, and pushes back the idle checkpoint of the write-ahead log.
+     * Batches push it back once, when they end.
+     */
+    private void changed(int change, long id) {
+        mFeed.changed(change, id);
+        if (!mFeed.inBatch()) {
+            mOpenHelper.scheduleIdleCheckpoint();
+        }
+    }
+
+    // Returns a query builder for the notes table.
+    private static SQLiteQueryBuilder newNotesQuery() {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(NotePad.Notes.TABLE_NAME);
+        qb.setProjectionMap(sNotesProjectionMap);
+        return qb;
+    }
+
+    // Returns a query of the revisions of one note.
+    private static SQLiteQueryBuilder newRevisionsQuery(long noteId) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(NotePad.Revisions.TABLE_NAME);
+        qb.setProjectionMap(sRevisionsProjectionMap);
+        qb.appendWhere(NotePad.Revisions.COLUMN_NAME_NOTE_ID + "=" + noteId);
+        return qb;
+    }
+
+    /**
+     * Prepares the note text in a map of values to be written for storage. A very large note is
+     * taken out of the map, to be stored as chunks, and a long note is replaced by its
+     * compressed form.
+     *
+     * @return True if the note must be stored as chunks by {@link NoteChunks#write}.
+     */
+    private static boolean prepareNote(ContentValues values) {
+        Object note = values.get(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (!(note instanceof String)) {
+            values.put(NoteChunks.COLUMN_CHUNKED, 0);
+            return false;
+        }
+        if (NoteChunks.shouldChunk((String) note)) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.put(NoteChunks.COLUMN_CHUNKED, 1);
+            return true;
+        }
+        byte[] compressed = NoteCompression.compress((String) note);
+        if (compressed != null) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, compressed);
+        }
+        values.put(NoteChunks.COLUMN_CHUNKED, 0);
+        return false;
+    }
+
+    /**
+     * Writes the search table row for one note.
+     */
+    static void insertSearchRow(SQLiteDatabase db, long id, String title, String note) {
+        db.execSQL("INSERT INTO " + NotePadProvider.SEARCH_TABLE_NAME + " (docid, "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + ") VALUES (?, ?, ?)",
+                new Object[] {
+                        id,
+                        NoteSearchIndex.toIndexText(title),
+                        NoteSearchIndex.toIndexText(note)
+                });
+    }
+
+    /**
+     * Returns the IDs of the notes matching a WHERE clause. Used to find the other rows that a
+     * multi-row update or delete is about to affect.
+     */
+    private static long[] queryNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Reads the full text of a note, which is empty if it has none, or returns null if there is
+     * no such note.
+     */
+    private static String readText(SQLiteDatabase db, long id) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, STORED_NOTE_PROJECTION,
+                NotePad.Notes._ID + " = " + id, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            String text = NoteChunks.readNote(db, c, STORED_NOTE_NOTE_INDEX);
+            return text != null ? text : "";
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Replaces the search table row of an updated note. The title is taken from the values of
+     * the update if they set it, and the text if it is given; whichever is not is read from the
+     * notes table.
+     */
+    private static void reindexNote(SQLiteDatabase db, long id, ContentValues values,
+            String text) {
+        String title;
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) && text != null) {
+            title = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+        } else {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME, STORED_NOTE_PROJECTION,
+                    NotePad.Notes._ID + " = " + id, null, null, null, null);
+            try {
+                if (!c.moveToFirst()) {
+                    return;
+                }
+                title = values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                        ? values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)
+                        : c.getString(STORED_NOTE_TITLE_INDEX);
+                if (text == null) {
+                    text = NoteChunks.readNote(db, c, STORED_NOTE_NOTE_INDEX);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        db.delete(NotePadProvider.SEARCH_TABLE_NAME, "docid = " + id, null);
+        insertSearchRow(db, id, title, text);
+    }
+}
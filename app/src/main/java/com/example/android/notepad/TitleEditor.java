@@ -18,7 +18,6 @@ package com.example.android.notepad;
 
 import android.app.Activity;
 import android.content.ContentValues;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
@@ -28,10 +27,9 @@ import android.widget.EditText;
  * This Activity allows the user to edit a note's title. It displays a floating window
  * containing an EditText.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler}
- * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The note is read in the background by a {@link NoteLoader}, which is kept across
+ * configuration changes. The new title is handed to {@link NoteSaveQueue}, which writes it in
+ * the background.
  */
 public class TitleEditor extends Activity {
 
@@ -46,18 +44,25 @@ public class TitleEditor extends Activity {
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
     };
 
-    // The position of the title column in a Cursor returned by the provider.
-    private static final int COLUMN_INDEX_TITLE = 1;
+    // Reads the note in the background, and is kept across configuration changes.
+    private NoteLoader mLoader;
 
-    // A Cursor object that will contain the results of querying the provider for a note.
-    private Cursor mCursor;
+    // True once the note has been read. Nothing is saved before.
+    private boolean mNoteLoaded;
 
     // An EditText object for preserving the edited title.
     private EditText mText;
 
+    // The title last put in mText from the note, or null before the note is read. The box is
+    // edited if it no longer holds it.
+    private String mShownTitle;
+
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // The queue that writes the new title in the background.
+    private NoteSaveQueue mSaveQueue;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -65,6 +70,7 @@ public class TitleEditor extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mSaveQueue = NoteSaveQueue.getInstance(this);
 
         // Set the View for this Activity object's UI.
         setContentView(R.layout.title_editor);
@@ -74,21 +80,19 @@ public class TitleEditor extends Activity {
         mUri = getIntent().getData();
 
         /*
-         * Using the URI passed in with the triggering Intent, gets the note.
-         *
-         * Note: This is being done on the UI thread. It will block the thread until the query
-         * completes. In a sample app, going against a simple provider based on a local database,
-         * the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * Using the URI passed in with the triggering Intent, sets up the reading of the note,
+         * which starts in onResume() and happens in the background. An Activity recreated for
+         * a configuration change takes over the loader of the one it replaces.
          */
-
-        mCursor = managedQuery(
-            mUri,        // The URI for the note that is to be retrieved.
-            PROJECTION,  // The columns to retrieve
-            null,        // No selection criteria are used, so no where columns are needed.
-            null,        // No where columns are used, so no where values are needed.
-            null         // No sort order is needed.
-        );
+        Object retained = getLastNonConfigurationInstance();
+        mLoader = retained instanceof NoteLoader ? (NoteLoader) retained
+                : new NoteLoader(this, mUri, PROJECTION);
+        mLoader.attach(new NoteLoader.Listener() {
+            @Override
+            public void onNoteLoaded(ContentValues note) {
+                showTitle(note);
+            }
+        });
 
         // Gets the View ID for the EditText box
         mText = (EditText) this.findViewById(R.id.title);
@@ -98,22 +102,41 @@ public class TitleEditor extends Activity {
      * This method is called when the Activity is about to come to the foreground. This happens
      * when the Activity comes to the top of the task stack, OR when it is first starting.
      *
-     * Displays the current title for the selected note.
+     * Has the loader hand over the note, which is read again in the background only if it
+     * changed while this Activity was paused. showTitle() then displays its title.
      */
     @Override
     protected void onResume() {
         super.onResume();
+        mLoader.start();
+    }
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-        if (mCursor != null) {
-
-            // The Cursor was just retrieved, so its index is set to one record *before* the first
-            // record retrieved. This moves it to the first record.
-            mCursor.moveToFirst();
+    /**
+     * Displays the current title for the selected note.
+     *
+     * @param note The note as read by the loader, or null if it could not be read.
+     */
+    private void showTitle(ContentValues note) {
+        if (note != null) {
+            mNoteLoaded = true;
+
+            // Displays the current title text in the EditText object. A title that is queued but
+            // not yet written replaces the one in the provider.
+            String title = note.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+            ContentValues pending = mSaveQueue.getPendingUpdate(mUri);
+            if (pending != null && pending.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+                title = pending.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+            }
 
-            // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            /*
+             * A note read again after it changed may arrive after the user started typing in
+             * the title shown before. The typing wins: it is kept, and saved over the title when
+             * the Activity pauses, rather than replaced by the title just read.
+             */
+            if (mShownTitle == null || mShownTitle.equals(mText.getText().toString())) {
+                mText.setText(title);
+                mShownTitle = mText.getText().toString();
+            }
         }
     }
 
@@ -132,10 +155,9 @@ public class TitleEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-
-        if (mCursor != null) {
+        // Verifies that the note has been read (see showTitle()). Until it has, the box does not
+        // hold its title, so there is nothing to save.
+        if (mNoteLoaded) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
@@ -144,21 +166,38 @@ public class TitleEditor extends Activity {
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
 
             /*
-             * Updates the provider with the note's new title.
-             *
-             * Note: This is being done on the UI thread. It will block the thread until the
-             * update completes. In a sample app, going against a simple provider based on a
-             * local database, the block will be momentary, but in a real app you should use
-             * android.content.AsyncQueryHandler or android.os.AsyncTask.
+             * Queues the note's new title. The queue writes it on its own thread, so the UI
+             * thread does not wait for the database.
              */
-            getContentResolver().update(
-                mUri,    // The URI for the note to update.
-                values,  // The values map containing the columns to update and the values to use.
-                null,    // No selection criteria is used, so no "where" columns are needed.
-                null     // No "where" columns are used, so no "where" values are needed.
-            );
+            mSaveQueue.update(mUri, values);
+
+            // Writes the title straight away when leaving, rather than after the queue's delay.
+            if (isFinishing()) {
+                mSaveQueue.flush();
+            }
+        }
+    }
+
+    /**
+     * Hands the loader, and the note it read, to the Activity that replaces this one after a
+     * configuration change.
+     */
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mLoader;
+    }
 
+    /**
+     * Lets go of the loader, which is dropped unless an Activity recreated for a configuration
+     * change takes it over.
+     */
+    @Override
+    protected void onDestroy() {
+        mLoader.detach();
+        if (!isChangingConfigurations()) {
+            mLoader.destroy();
         }
+        super.onDestroy();
     }
 
     public void onClickOk(View v) {
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Runs the statements that NotePadProvider runs for its operations, through the SQLite
+ * JDBC driver instead of Android's SQLiteDatabase, so that they can be benchmarked on a plain
+ * JVM. The note text is prepared by the same helpers the provider uses: its preview columns by
+ * {@link NotePreview}, its stored form by {@link NoteCompression} and its search text by
+ * {@link NoteSearchIndex}.
+ *
+ * The schema is the notes and search tables of the current database version, as the provider
+ * creates them, and must follow its migrations. Notes are kept below the chunking threshold and
+ * no revisions are recorded, since the chunks and revisions are written through Android's
+ * database classes; NotePadProviderBenchmark measures those on a device.
+ */
+final class JdbcNoteStore implements AutoCloseable {
+
+    /*
+     * The names and settings the provider uses, which are copied here rather than read from
+     * NotePadProvider, since it cannot be compiled without the rest of the app.
+     */
+    private static final String SEARCH_TABLE_NAME = "notes_fts";
+    private static final String MODIFIED_INDEX_NAME = "notes_modified_index";
+    private static final String COLUMN_CHUNKED = "chunked";
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 256;
+    private static final int EXPORT_CHUNK_NOTES = 100;
+
+    private static final String LIST_SQL = "SELECT "
+            + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            + " FROM " + NotePad.Notes.TABLE_NAME
+            + " ORDER BY " + NotePad.Notes.DEFAULT_SORT_ORDER;
+
+    private static final String READ_SQL = "SELECT "
+            + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + NotePad.Notes.COLUMN_NAME_NOTE
+            + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " = ?";
+
+    private static final String SEARCH_SQL = "SELECT "
+            + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " IN (SELECT docid FROM "
+            + SEARCH_TABLE_NAME + " WHERE " + SEARCH_TABLE_NAME
+            + " MATCH ?)"
+            + " ORDER BY " + NotePad.Notes.DEFAULT_SORT_ORDER;
+
+    private static final String EXPORT_SQL = "SELECT "
+            + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + NotePad.Notes.COLUMN_NAME_NOTE
+            + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " > ?"
+            + " ORDER BY " + NotePad.Notes._ID
+            + " LIMIT " + EXPORT_CHUNK_NOTES;
+
+    private final Connection mConnection;
+
+    private final PreparedStatement mInsert;
+    private final PreparedStatement mInsertSearchRow;
+    private final PreparedStatement mUpdate;
+    private final PreparedStatement mDeleteSearchRow;
+    private final PreparedStatement mDelete;
+    private final PreparedStatement mList;
+    private final PreparedStatement mRead;
+    private final PreparedStatement mSearch;
+    private final PreparedStatement mExport;
+
+    /**
+     * Creates an empty database in the given file, in write-ahead log mode like the provider's.
+     */
+    JdbcNoteStore(File file) throws SQLException {
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try (Statement statement = mConnection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+            createSchema(statement);
+        }
+
+        mInsert = mConnection.prepareStatement("INSERT INTO " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_PREVIEW + ", "
+                + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + ", "
+                + NotePad.Notes.COLUMN_NAME_LINE_COUNT
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+        mInsertSearchRow = mConnection.prepareStatement("INSERT INTO "
+                + SEARCH_TABLE_NAME + " (docid, "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") VALUES (?, ?, ?)");
+        mUpdate = mConnection.prepareStatement("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " = ?, "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = ?, "
+                + NotePad.Notes.COLUMN_NAME_PREVIEW + " = ?, "
+                + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + " = ?, "
+                + NotePad.Notes.COLUMN_NAME_LINE_COUNT + " = ?"
+                + " WHERE " + NotePad.Notes._ID + " = ?");
+        mDeleteSearchRow = mConnection.prepareStatement("DELETE FROM "
+                + SEARCH_TABLE_NAME + " WHERE docid = ?");
+        mDelete = mConnection.prepareStatement("DELETE FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " = ?");
+        mList = mConnection.prepareStatement(LIST_SQL);
+        mRead = mConnection.prepareStatement(READ_SQL);
+        mSearch = mConnection.prepareStatement(SEARCH_SQL);
+        mExport = mConnection.prepareStatement(EXPORT_SQL);
+    }
+
+    /*
+     * Creates the notes and search tables and the covering index of the default sort order, as
+     * they are after every migration of NotePadProvider.DatabaseHelper.
+     */
+    private static void createSchema(Statement statement) throws SQLException {
+        statement.execute("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_BACK_COLOR + " INTEGER NOT NULL DEFAULT "
+                + NotePad.Notes.DEFAULT_COLOR + ","
+                + COLUMN_CHUNKED + " INTEGER NOT NULL DEFAULT 0,"
+                + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + " INTEGER NOT NULL DEFAULT 0,"
+                + NotePad.Notes.COLUMN_NAME_LINE_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                + ")");
+        statement.execute("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME
+                + " USING fts4("
+                + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                + NotePad.Notes.COLUMN_NAME_NOTE
+                + ")");
+        statement.execute("CREATE INDEX " + MODIFIED_INDEX_NAME + " ON "
+                + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                + NotePad.Notes._ID + ", "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                + NotePad.Notes.COLUMN_NAME_PREVIEW + ", "
+                + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH + ", "
+                + NotePad.Notes.COLUMN_NAME_LINE_COUNT + ")");
+    }
+
+    /**
+     * Inserts a note and its search row in one transaction.
+     *
+     * @return The ID of the new note.
+     */
+    long insert(String title, String note, long now) throws SQLException {
+        mConnection.setAutoCommit(false);
+        try {
+            mInsert.setString(1, title);
+            setNote(mInsert, 2, note);
+            mInsert.setLong(3, now);
+            mInsert.setLong(4, now);
+            mInsert.setString(5, NotePreview.preview(note));
+            mInsert.setInt(6, note.length());
+            mInsert.setInt(7, NotePreview.lineCount(note));
+            mInsert.executeUpdate();
+            long id;
+            try (ResultSet keys = mInsert.getGeneratedKeys()) {
+                keys.next();
+                id = keys.getLong(1);
+            }
+            insertSearchRow(id, title, note);
+            mConnection.commit();
+            return id;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Replaces the text of a note, and its search row, in one transaction.
+     *
+     * @return The number of notes updated.
+     */
+    int update(long id, String title, String note, long now) throws SQLException {
+        mConnection.setAutoCommit(false);
+        try {
+            setNote(mUpdate, 1, note);
+            mUpdate.setLong(2, now);
+            mUpdate.setString(3, NotePreview.preview(note));
+            mUpdate.setInt(4, note.length());
+            mUpdate.setInt(5, NotePreview.lineCount(note));
+            mUpdate.setLong(6, id);
+            int count = mUpdate.executeUpdate();
+            mDeleteSearchRow.setLong(1, id);
+            mDeleteSearchRow.executeUpdate();
+            insertSearchRow(id, title, note);
+            mConnection.commit();
+            return count;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Deletes a note and its search row in one transaction.
+     *
+     * @return The number of notes deleted.
+     */
+    int delete(long id) throws SQLException {
+        mConnection.setAutoCommit(false);
+        try {
+            mDeleteSearchRow.setLong(1, id);
+            mDeleteSearchRow.executeUpdate();
+            mDelete.setLong(1, id);
+            int count = mDelete.executeUpdate();
+            mConnection.commit();
+            return count;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Reads every note in the default sort order with the projection of NotesList.
+     *
+     * @return The number of notes read.
+     */
+    int list() throws SQLException {
+        try (ResultSet rs = mList.executeQuery()) {
+            return drain(rs);
+        }
+    }
+
+    /**
+     * Reads the text of one note, as NoteEditor does through the note ID URI.
+     *
+     * @return The text, or null if there is no such note.
+     */
+    String read(long id) throws SQLException {
+        mRead.setLong(1, id);
+        try (ResultSet rs = mRead.executeQuery()) {
+            if (!rs.next()) {
+                return null;
+            }
+            rs.getString(2);
+            return readNote(rs, 3);
+        }
+    }
+
+    /**
+     * Searches the notes as the search URI does.
+     *
+     * @return The number of notes found.
+     */
+    int search(String query) throws SQLException {
+        mSearch.setString(1, NoteSearchIndex.toMatchQuery(query));
+        try (ResultSet rs = mSearch.executeQuery()) {
+            return drain(rs);
+        }
+    }
+
+    /**
+     * Writes every note as text, as the text/plain export of the notes URI does, reading them
+     * a chunk of notes at a time in order of ID.
+     *
+     * @return The number of notes written.
+     */
+    int export(Writer writer) throws SQLException, IOException {
+        int notes = 0;
+        long lastId = 0;
+        boolean more = true;
+        while (more) {
+            mExport.setLong(1, lastId);
+            try (ResultSet rs = mExport.executeQuery()) {
+                int rows = 0;
+                while (rs.next()) {
+                    writer.write(String.valueOf(rs.getString(2)));
+                    writer.write("\n\n");
+                    writer.write(String.valueOf(readNote(rs, 3)));
+                    writer.write("\n\n");
+                    lastId = rs.getLong(1);
+                    rows++;
+                }
+                notes += rows;
+                more = rows == EXPORT_CHUNK_NOTES;
+            }
+        }
+        writer.flush();
+        return notes;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        mConnection.close();
+    }
+
+    private void insertSearchRow(long id, String title, String note) throws SQLException {
+        mInsertSearchRow.setLong(1, id);
+        mInsertSearchRow.setString(2, NoteSearchIndex.toIndexText(title));
+        mInsertSearchRow.setString(3, NoteSearchIndex.toIndexText(note));
+        mInsertSearchRow.executeUpdate();
+    }
+
+    // Rolls back a transaction that was not committed, and leaves transaction mode.
+    private void endTransaction() throws SQLException {
+        if (!mConnection.getAutoCommit()) {
+            mConnection.rollback();
+            mConnection.setAutoCommit(true);
+        }
+    }
+
+    // Binds a note in the form the provider stores it: compressed if it is long, text if not.
+    private static void setNote(PreparedStatement statement, int index, String note)
+            throws SQLException {
+        byte[] compressed = NoteCompression.compress(note);
+        if (compressed != null) {
+            statement.setBytes(index, compressed);
+        } else {
+            statement.setString(index, note);
+        }
+    }
+
+    // Reads a note column as text, whether it is stored as text or compressed.
+    private static String readNote(ResultSet rs, int index) throws SQLException {
+        Object value = rs.getObject(index);
+        return value instanceof byte[] ? NoteCompression.decompress((byte[]) value)
+                : (String) value;
+    }
+
+    // Reads every column of every row, as a cursor window would.
+    private static int drain(ResultSet rs) throws SQLException {
+        int columns = rs.getMetaData().getColumnCount();
+        int rows = 0;
+        while (rs.next()) {
+            for (int i = 1; i <= columns; i++) {
+                rs.getObject(i);
+            }
+            rows++;
+        }
+        return rows;
+    }
+}
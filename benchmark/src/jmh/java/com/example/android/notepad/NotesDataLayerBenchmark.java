@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the operations of the notes provider on a plain JVM: insert, update by ID, delete,
+ * the list query in the default sort order, reading one note by ID, search, and the text export.
+ * Each runs against a database of {@link #notes} generated notes, through {@link JdbcNoteStore}.
+ *
+ * Run with "./gradlew :benchmark:jmh"; the results are written as JSON to
+ * benchmark/build/reports/jmh/results.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NotesDataLayerBenchmark {
+
+    // Words the generated notes are built from, as in NotePadProviderBenchmark.
+    private static final String[] WORDS = {
+        "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel", "india",
+        "juliet", "kilo", "lima", "mike", "november", "oscar", "papa", "quebec", "romeo",
+        "sierra", "tango", "uniform", "victor", "whiskey", "xray", "yankee", "zulu",
+        "笔记", "会议", "超市", "牛奶", "项目", "计划"
+    };
+
+    // The number of words in each generated note; every tenth note is long enough to be
+    // compressed.
+    private static final int NOTE_WORDS = 40;
+    private static final int LONG_NOTE_WORDS = 1200;
+
+    /**
+     * The number of notes in the database.
+     */
+    @Param({ "1000", "10000" })
+    public int notes;
+
+    private File mFile;
+
+    private JdbcNoteStore mStore;
+
+    // The ID of the last note, and a counter that varies the edits and the notes read.
+    private long mLastId;
+    private long mCounter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        mFile = File.createTempFile("notes", ".db");
+        mFile.delete();
+        mStore = new JdbcNoteStore(mFile);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < notes; i++) {
+            mLastId = mStore.insert("Note " + i + " " + word(i), generateBody(i), now - i * 1000L);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mStore.close();
+        for (String suffix : new String[] { "", "-wal", "-shm" }) {
+            new File(mFile.getPath() + suffix).delete();
+        }
+    }
+
+    /**
+     * Inserts a note and deletes it again, so that the database keeps its size.
+     */
+    @Benchmark
+    public int insertAndDelete() throws SQLException {
+        long id = mStore.insert("Inserted", generateBody((int) mCounter++),
+                System.currentTimeMillis());
+        return mStore.delete(id);
+    }
+
+    /**
+     * Saves a new text for a note, the way NoteEditor saves an edit.
+     */
+    @Benchmark
+    public int updateById() throws SQLException {
+        long counter = mCounter++;
+        return mStore.update(1 + counter % mLastId, "Updated", generateBody((int) counter),
+                System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public int listQuery() throws SQLException {
+        return mStore.list();
+    }
+
+    @Benchmark
+    public String readById() throws SQLException {
+        return mStore.read(1 + mCounter++ % mLastId);
+    }
+
+    @Benchmark
+    public int search() throws SQLException {
+        return mStore.search(WORDS[(int) (mCounter++ % WORDS.length)]);
+    }
+
+    /**
+     * Exports every note as text, to a writer that throws the text away.
+     */
+    @Benchmark
+    public int export() throws SQLException, IOException {
+        return mStore.export(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    // Returns a generated note, deterministic for each seed.
+    private static String generateBody(int seed) {
+        int words = seed % 10 == 0 ? LONG_NOTE_WORDS : NOTE_WORDS;
+        StringBuilder body = new StringBuilder(words * 8);
+        for (int i = 0; i < words; i++) {
+            body.append(word(seed * 31 + i * 7)).append(i % 10 == 9 ? '\n' : ' ');
+        }
+        return body.toString();
+    }
+
+    private static String word(int i) {
+        return WORDS[(i & Integer.MAX_VALUE) % WORDS.length];
+    }
+}